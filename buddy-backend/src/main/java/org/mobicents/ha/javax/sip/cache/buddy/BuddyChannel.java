@@ -0,0 +1,252 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection of the local member to another member of the buddy replication, over a blocking NIO socket channel.
+ * The messages are queued and written in order by a sender thread, the replies to the GET requests are read by a receiver thread.
+ *
+ * When the other member is a buddy, the queue is the change log of the local member : on each connection the buddy is told to drop
+ * what it holds from the local member since it started and receives all the entries written by the local member before the queued changes,
+ * so that the changes lost while the buddy was unreachable or the queue was full are never missed.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class BuddyChannel {
+
+	private static StackLogger logger = CommonLogger.getLogger(BuddyChannel.class);
+
+	// time waited for a message before checking if the channel is still running
+	private static final long POLL_INTERVAL = 1000;
+
+	private final BuddyReplicator replicator;
+	private final String member;
+	private final boolean buddy;
+	private final long timeout;
+	private final BlockingQueue<BuddyMessage> queue;
+	private volatile SocketChannel socketChannel;
+	private volatile boolean running;
+	private long lastConnectionAttempt;
+	private Thread sender;
+
+	/**
+	 * @param replicator the replicator owning the channel
+	 * @param member host:port of the other member
+	 * @param buddy true if the other member is a buddy of the local member
+	 * @param timeout connection timeout in milliseconds, also the minimum time between two connection attempts
+	 * @param queueSize the number of messages that can be waiting to be written
+	 */
+	public BuddyChannel(BuddyReplicator replicator, String member, boolean buddy, long timeout, int queueSize) {
+		this.replicator = replicator;
+		this.member = member;
+		this.buddy = buddy;
+		this.timeout = timeout;
+		this.queue = new LinkedBlockingQueue<BuddyMessage>(queueSize);
+	}
+
+	public String getMember() {
+		return member;
+	}
+
+	public boolean isBuddy() {
+		return buddy;
+	}
+
+	public void start() {
+		running = true;
+		sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, "BuddyChannel-" + member);
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (sender != null) {
+			sender.interrupt();
+		}
+		disconnect();
+		queue.clear();
+	}
+
+	/**
+	 * Queue a message to be written
+	 * @return false if the message couldn't be queued
+	 */
+	public boolean send(BuddyMessage message) {
+		if (!running) {
+			return false;
+		}
+		if (!queue.offer(message)) {
+			// the member doesn't keep up, the entries are sent again once reconnected
+			logger.logWarning("the queue of member " + member + " is full, dropping it and reconnecting");
+			queue.clear();
+			disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	private void send() {
+		while (running) {
+			final BuddyMessage message;
+			try {
+				message = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			// a buddy is kept connected even when idle, so it holds the entries of the local member as soon as possible
+			if (message == null && !buddy) {
+				continue;
+			}
+			final SocketChannel channel = connect();
+			if (channel == null) {
+				if (message != null && message.getType() == BuddyMessage.GET) {
+					replicator.reply(message.reply(null));
+				}
+				continue;
+			}
+			if (message == null) {
+				continue;
+			}
+			try {
+				write(channel, message);
+			} catch (IOException e) {
+				if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug("couldn't write " + message + " to member " + member + ", reconnecting");
+				}
+				disconnect(channel);
+				if (message.getType() == BuddyMessage.GET) {
+					replicator.reply(message.reply(null));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the connected channel, null if the member is unreachable
+	 */
+	private SocketChannel connect() {
+		SocketChannel channel = socketChannel;
+		if (channel != null) {
+			return channel;
+		}
+		final long now = System.currentTimeMillis();
+		if (now - lastConnectionAttempt < timeout) {
+			return null;
+		}
+		lastConnectionAttempt = now;
+		final InetSocketAddress address = BuddyRing.toAddress(member);
+		try {
+			channel = SocketChannel.open();
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().connect(address, (int) timeout);
+			if (buddy) {
+				write(channel, BuddyMessage.sync(replicator.getOrigin()));
+				for (BuddyMessage put : replicator.getStore().getPuts(replicator.getOrigin())) {
+					write(channel, put);
+				}
+			}
+		} catch (IOException e) {
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("member " + member + " is unreachable : " + e.getMessage());
+			}
+			close(channel);
+			return null;
+		}
+		if (logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("connected to " + (buddy ? "buddy " : "member ") + member);
+		}
+		socketChannel = channel;
+		startReceiver(channel);
+		return channel;
+	}
+
+	private void startReceiver(final SocketChannel channel) {
+		final Thread receiver = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (running && socketChannel == channel) {
+						final BuddyMessage message = BuddyMessage.read(channel, replicator.getAllowList());
+						if (message.getType() == BuddyMessage.ENTRY) {
+							replicator.reply(message);
+						}
+					}
+				} catch (IOException e) {
+					if (running && logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("connection to member " + member + " lost : " + e.getMessage());
+					}
+				}
+				disconnect(channel);
+			}
+		}, "BuddyChannel-" + member + "-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	private static void write(SocketChannel channel, BuddyMessage message) throws IOException {
+		final ByteBuffer frame = message.encode();
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	private void disconnect() {
+		final SocketChannel channel = socketChannel;
+		if (channel != null) {
+			disconnect(channel);
+		}
+	}
+
+	private void disconnect(SocketChannel channel) {
+		synchronized (this) {
+			if (socketChannel == channel) {
+				socketChannel = null;
+			}
+		}
+		close(channel);
+	}
+
+	private static void close(SocketChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
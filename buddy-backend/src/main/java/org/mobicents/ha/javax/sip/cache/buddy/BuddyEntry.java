@@ -0,0 +1,102 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.io.Serializable;
+
+/**
+ * State of a dialog or transaction kept by the buddy replication, immutable.
+ * The revision orders the writes of the same entry made by different nodes, the highest one is kept on failover.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class BuddyEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Object state;
+	private final Object applicationData;
+	private final String origin;
+	private final long revision;
+	private final boolean adopted;
+
+	/**
+	 * @param state the encoded dialog state or the transaction meta data
+	 * @param applicationData the application data, can be null
+	 * @param origin the origin of the member which wrote the entry, see {@link BuddyReplicator#getOrigin()}
+	 * @param revision the revision of the entry
+	 * @param adopted true if the entry has been taken over from another member, its copies may be on any member
+	 */
+	public BuddyEntry(Object state, Object applicationData, String origin, long revision, boolean adopted) {
+		this.state = state;
+		this.applicationData = applicationData;
+		this.origin = origin;
+		this.revision = revision;
+		this.adopted = adopted;
+	}
+
+	public Object getState() {
+		return state;
+	}
+
+	public Object getApplicationData() {
+		return applicationData;
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public boolean isAdopted() {
+		return adopted;
+	}
+
+	/**
+	 * Entries are compared by origin and revision, a member never writes two entries with the same revision,
+	 * so that the conditional operations of the stores work on entries read back from direct memory or received from another member
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof BuddyEntry)) {
+			return false;
+		}
+		final BuddyEntry other = (BuddyEntry) obj;
+		return revision == other.revision && origin.equals(other.origin);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (revision ^ (revision >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return "BuddyEntry[origin=" + origin + ", revision=" + revision + ", adopted=" + adopted + "]";
+	}
+}
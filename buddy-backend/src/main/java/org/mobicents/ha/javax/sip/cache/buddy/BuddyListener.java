@@ -0,0 +1,45 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+/**
+ * Notified of the changes replicated by the other members of the buddy replication
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public interface BuddyListener {
+
+	/**
+	 * Called once an entry replicated by another member has been stored
+	 * @param region the region of the entry, see {@link BuddyStore}
+	 * @param key the key of the entry
+	 * @param entry the entry
+	 */
+	void entryReplicated(byte region, String key, BuddyEntry entry);
+
+	/**
+	 * Called once an entry removed by another member has been removed from the store
+	 * @param region the region of the entry, see {@link BuddyStore}
+	 * @param key the key of the entry
+	 */
+	void entryRemoved(byte region, String key);
+}
@@ -0,0 +1,234 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Message exchanged between the members of the buddy replication.
+ * On the wire a message is a frame made of its length on 4 bytes followed by its serialized form.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class BuddyMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** an entry has been written, sent to the buddies */
+	public static final byte PUT = 1;
+	/** an entry has been removed, sent to the buddies */
+	public static final byte REMOVE = 2;
+	/** request for an entry, sent to the other members when an entry isn't known locally */
+	public static final byte GET = 3;
+	/** reply to a GET, the entry is null if the member doesn't hold it */
+	public static final byte ENTRY = 4;
+	/** sent to a buddy on connection, before the entries of the sender, the buddy drops the entries it holds with the origin of the sender */
+	public static final byte SYNC = 5;
+
+	// frames bigger than that are considered corrupted
+	static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private final byte type;
+	private final byte region;
+	private final String key;
+	private final BuddyEntry entry;
+	private final long requestId;
+
+	private BuddyMessage(byte type, byte region, String key, BuddyEntry entry, long requestId) {
+		this.type = type;
+		this.region = region;
+		this.key = key;
+		this.entry = entry;
+		this.requestId = requestId;
+	}
+
+	public static BuddyMessage put(byte region, String key, BuddyEntry entry) {
+		return new BuddyMessage(PUT, region, key, entry, 0);
+	}
+
+	public static BuddyMessage remove(byte region, String key) {
+		return new BuddyMessage(REMOVE, region, key, null, 0);
+	}
+
+	public static BuddyMessage get(byte region, String key, long requestId) {
+		return new BuddyMessage(GET, region, key, null, requestId);
+	}
+
+	/**
+	 * @param origin the origin of the entries about to be sent again
+	 */
+	public static BuddyMessage sync(String origin) {
+		return new BuddyMessage(SYNC, (byte) 0, origin, null, 0);
+	}
+
+	public BuddyMessage reply(BuddyEntry entry) {
+		return new BuddyMessage(ENTRY, region, key, entry, requestId);
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public byte getRegion() {
+		return region;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public BuddyEntry getEntry() {
+		return entry;
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return the frame of the message, ready to be written
+	 */
+	public ByteBuffer encode() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		// room for the length, written once the size is known
+		bytes.write(new byte[4]);
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(this);
+		out.close();
+		final ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.limit() - 4);
+		return frame;
+	}
+
+	/**
+	 * @param body the frame without its length
+	 * @param allowList the classes the message can be made of
+	 */
+	public static BuddyMessage decode(byte[] body, ClassAllowList allowList) throws IOException {
+		final ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(body), allowList);
+		try {
+			final Object message = in.readObject();
+			if (!(message instanceof BuddyMessage)) {
+				throw new IOException("Unexpected frame content " + message.getClass().getName());
+			}
+			return (BuddyMessage) message;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Couldn't load a class of the replicated state : " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a frame from a blocking channel
+	 * @param allowList the classes the message can be made of
+	 * @return the message read
+	 * @throws EOFException if the channel has been closed by the other end
+	 */
+	public static BuddyMessage read(ReadableByteChannel channel, ClassAllowList allowList) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		readFully(channel, header);
+		header.flip();
+		final ByteBuffer body = ByteBuffer.allocate(checkFrameSize(header.getInt()));
+		readFully(channel, body);
+		return decode(body.array(), allowList);
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("connection closed");
+			}
+		}
+	}
+
+	/**
+	 * @param size the size of a frame read from the wire
+	 * @return the size if it is valid
+	 */
+	static int checkFrameSize(int size) throws IOException {
+		if (size <= 0 || size > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame size " + size + ", the connection is out of sync");
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "BuddyMessage[type=" + type + ", region=" + region + ", key=" + key + ", requestId=" + requestId + ", entry=" + entry + "]";
+	}
+
+	/**
+	 * Resolves the classes of the application data with the context class loader the replication threads inherited from the thread starting the cache,
+	 * the classes outside of the allow list are rejected before being loaded
+	 */
+	static class ContextObjectInputStream extends ObjectInputStream {
+		private final ClassAllowList allowList;
+
+		/**
+		 * @param allowList the classes that can be resolved, null to resolve any class for the state written by the local member
+		 */
+		ContextObjectInputStream(InputStream in, ClassAllowList allowList) throws IOException {
+			super(in);
+			this.allowList = allowList;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			if (allowList != null && !allowList.isAllowed(desc.getName())) {
+				throw new InvalidClassException(desc.getName(), "not allowed in the replicated state");
+			}
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			if (classLoader != null) {
+				try {
+					return Class.forName(desc.getName(), false, classLoader);
+				} catch (ClassNotFoundException e) {
+					// falls back to the default resolution
+				}
+			}
+			return super.resolveClass(desc);
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+			if (allowList != null) {
+				for (String proxyInterface : interfaces) {
+					if (!allowList.isAllowed(proxyInterface)) {
+						throw new InvalidClassException(proxyInterface, "not allowed in the replicated state");
+					}
+				}
+			}
+			return super.resolveProxyClass(interfaces);
+		}
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.SipCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Implementation of the SipCache interface replicating the dialogs and transactions directly between the SIP nodes, without any external data grid.
+ * Each node keeps the state it writes in memory and streams it to its buddies, the nodes following it in the ring of members,
+ * which hold it in memory and serve it to the node taking over the calls of a failed node. See {@link BuddyReplicator}.
+ *
+ * It is used by setting <b>org.mobicents.ha.javax.sip.CACHE_CLASS_NAME</b> to this class, the ring being configured through the following Restcomm SIP Stack properties :
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_MEMBERS</b> comma separated host:port the nodes listen on for the replication, in ring order, the same on all nodes
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_LOCAL_MEMBER</b> host:port of the local node, one of the members
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_BUDDIES</b> number of buddies each node replicates to, 1 by default
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_TIMEOUT</b> connection and failover read timeout in milliseconds, 500 by default
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_QUEUE_SIZE</b> number of changes that can be waiting to be sent to a node, 10000 by default
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_OFF_HEAP</b> when set to true, the entries are kept in direct memory rather than in the Java heap, see {@link OffHeapBuddyStore}
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_OFF_HEAP_SLAB_SIZE</b> size in bytes of the slabs of direct memory, bounding the size of an entry, 16MB by default
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_OFF_HEAP_MAX_SIZE</b> number of bytes of direct memory the entries can take, 0, the default, for no limit
+ * <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_ALLOWED_CLASSES</b> comma separated class names or package names ending with a dot
+ * the application data is made of, on top of the JDK and SIP stack classes always allowed, see {@link ClassAllowList}
+ *
+ * An entry not stored locally is only fetched from the other nodes when it can be the state of a failed node :
+ * a dialog whose id has both tags, or a transaction or dialog this node hasn't removed recently.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class BuddyReplicationCache implements SipCache, BuddyListener {
+
+	public static final String BUDDY_REPLICATION_MEMBERS = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_MEMBERS";
+	public static final String BUDDY_REPLICATION_LOCAL_MEMBER = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_LOCAL_MEMBER";
+	public static final String BUDDY_REPLICATION_BUDDIES = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_BUDDIES";
+	public static final String BUDDY_REPLICATION_TIMEOUT = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_TIMEOUT";
+	public static final String BUDDY_REPLICATION_QUEUE_SIZE = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_QUEUE_SIZE";
+	public static final String BUDDY_REPLICATION_OFF_HEAP = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_OFF_HEAP";
+	public static final String BUDDY_REPLICATION_OFF_HEAP_SLAB_SIZE = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_OFF_HEAP_SLAB_SIZE";
+	public static final String BUDDY_REPLICATION_OFF_HEAP_MAX_SIZE = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_OFF_HEAP_MAX_SIZE";
+	public static final String BUDDY_REPLICATION_ALLOWED_CLASSES = "org.mobicents.ha.javax.sip.BUDDY_REPLICATION_ALLOWED_CLASSES";
+
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(BuddyReplicationCache.class);
+
+	private Properties configProperties = null;
+	private ClusteredSipStack stack;
+	private BuddyStore store;
+	private BuddyReplicator replicator;
+	private boolean dialogNearCache;
+	// revisions of the entries written by this node, an entry taken over from another node gets a revision above the one it had
+	private final AtomicLong revisions = new AtomicLong(System.currentTimeMillis());
+	// entries removed lately, a late retransmission looking them up isn't a failover and doesn't query the other nodes
+	private Map<String, Boolean> removedEntries;
+
+	private SIPDialogCacheData dialogCacheData;
+	private SIPServerTransactionCacheData serverTXCacheData;
+	private SIPClientTransactionCacheData clientTXCacheData;
+
+	public void init() throws SipCacheException {
+		final String members = configProperties.getProperty(BUDDY_REPLICATION_MEMBERS);
+		final String localMember = configProperties.getProperty(BUDDY_REPLICATION_LOCAL_MEMBER);
+		if (members == null || localMember == null) {
+			throw new SipCacheException(BUDDY_REPLICATION_MEMBERS + " and " + BUDDY_REPLICATION_LOCAL_MEMBER + " are mandatory for the buddy replication");
+		}
+		final BuddyRing ring;
+		final int buddies;
+		final long timeout;
+		final int queueSize;
+		final int slabSize;
+		final long maxOffHeapSize;
+		try {
+			ring = new BuddyRing(members, localMember);
+			buddies = Integer.parseInt(configProperties.getProperty(BUDDY_REPLICATION_BUDDIES, "1"));
+			timeout = Long.parseLong(configProperties.getProperty(BUDDY_REPLICATION_TIMEOUT, "500"));
+			queueSize = Integer.parseInt(configProperties.getProperty(BUDDY_REPLICATION_QUEUE_SIZE, "10000"));
+			slabSize = Integer.parseInt(configProperties.getProperty(BUDDY_REPLICATION_OFF_HEAP_SLAB_SIZE, String.valueOf(16 * 1024 * 1024)));
+			maxOffHeapSize = Long.parseLong(configProperties.getProperty(BUDDY_REPLICATION_OFF_HEAP_MAX_SIZE, "0"));
+		} catch (IllegalArgumentException e) {
+			throw new SipCacheException("Invalid buddy replication configuration", e);
+		}
+		if (buddies < 1) {
+			throw new SipCacheException(BUDDY_REPLICATION_BUDDIES + " must be at least 1");
+		}
+		if (Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.EARLY_DIALOG_TRANSACTION_RECORD))) {
+			clusteredlogger.logWarning(ClusteredSipStack.EARLY_DIALOG_TRANSACTION_RECORD + " isn't supported by the buddy replication, ignored");
+		}
+		dialogNearCache = Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE));
+		if (Boolean.valueOf(configProperties.getProperty(BUDDY_REPLICATION_OFF_HEAP))) {
+			try {
+				store = new OffHeapBuddyStore(slabSize, maxOffHeapSize);
+			} catch (IllegalArgumentException e) {
+				throw new SipCacheException("Invalid off heap buddy store configuration", e);
+			}
+		} else {
+			store = new HeapBuddyStore();
+		}
+		removedEntries = Collections.synchronizedMap(new RemovedEntries(queueSize));
+		replicator = new BuddyReplicator(ring, buddies, store, this, timeout, queueSize, new ClassAllowList(configProperties.getProperty(BUDDY_REPLICATION_ALLOWED_CLASSES)));
+	}
+
+	public void start() throws SipCacheException {
+		dialogCacheData = new SIPDialogCacheData(stack, this);
+		serverTXCacheData = new SIPServerTransactionCacheData(stack, this);
+		clientTXCacheData = new SIPClientTransactionCacheData(stack, this);
+		try {
+			replicator.start();
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't start the buddy replication", e);
+		}
+	}
+
+	public void stop() throws SipCacheException {
+		replicator.stop();
+		store.close();
+		clientTXCacheData = null;
+		serverTXCacheData = null;
+		dialogCacheData = null;
+	}
+
+	/**
+	 * @return the entry stored locally, or else the one held by the other nodes if it can be the state of a failed node
+	 */
+	BuddyEntry get(byte region, String key) throws SipCacheException {
+		try {
+			final BuddyEntry entry = store.get(region, key);
+			if (entry != null) {
+				return entry;
+			}
+			if (!isFailoverCandidate(region, key)) {
+				return null;
+			}
+			// failover, the entry is read from the buddies of the node which wrote it and kept as the base of the writes made here
+			final BuddyEntry fetchedEntry = replicator.fetch(region, key);
+			if (fetchedEntry != null) {
+				store.apply(region, key, fetchedEntry);
+			}
+			return fetchedEntry;
+		} catch (IllegalStateException e) {
+			throw new SipCacheException("Couldn't read " + key, e);
+		}
+	}
+
+	/**
+	 * @return true if the entry, unknown locally, may have been written by a failed node
+	 */
+	private boolean isFailoverCandidate(byte region, String key) {
+		// only established dialogs are failed over, their id is made of the call id and both tags
+		// there can be more than 3 tokens if the call id contains a colon as well
+		if (region == BuddyStore.DIALOGS && new StringTokenizer(key, ":").countTokens() < 3) {
+			return false;
+		}
+		return !removedEntries.containsKey(region + key);
+	}
+
+	/**
+	 * @return the entry stored locally, written by this node or replicated to it
+	 */
+	BuddyEntry getLocal(byte region, String key) throws SipCacheException {
+		try {
+			return store.get(region, key);
+		} catch (IllegalStateException e) {
+			throw new SipCacheException("Couldn't read " + key, e);
+		}
+	}
+
+	/**
+	 * @param previousEntry the entry the new one replaces, null if none
+	 * @return a new entry written by this node
+	 */
+	BuddyEntry createEntry(Object state, Object applicationData, BuddyEntry previousEntry) {
+		long revision = revisions.incrementAndGet();
+		boolean adopted = false;
+		if (previousEntry != null) {
+			while (revision <= previousEntry.getRevision()) {
+				revisions.compareAndSet(revision, previousEntry.getRevision());
+				revision = revisions.incrementAndGet();
+			}
+			adopted = previousEntry.isAdopted() || !replicator.getOrigin().equals(previousEntry.getOrigin());
+		}
+		return new BuddyEntry(state, applicationData, replicator.getOrigin(), revision, adopted);
+	}
+
+	/**
+	 * Store the entry if the one stored locally is still the previous entry and stream it to the buddies
+	 * @param previousEntry the entry the new one has been computed from, it may have been read from another node
+	 * @return false if the entry has been modified concurrently
+	 */
+	boolean put(byte region, String key, BuddyEntry previousEntry, BuddyEntry entry) throws SipCacheException {
+		final boolean stored;
+		try {
+			final BuddyEntry storedEntry = store.get(region, key);
+			if (storedEntry == null) {
+				stored = store.putIfAbsent(region, key, entry) == null;
+			} else {
+				stored = storedEntry.equals(previousEntry) && store.replace(region, key, storedEntry, entry);
+			}
+		} catch (IllegalStateException e) {
+			throw new SipCacheException("Couldn't store " + key, e);
+		}
+		if (stored) {
+			replicator.replicate(BuddyMessage.put(region, key, entry), false);
+		}
+		return stored;
+	}
+
+	/**
+	 * Store the entry and stream it to the buddies, no matter what is stored locally
+	 */
+	void put(byte region, String key, BuddyEntry entry) throws SipCacheException {
+		try {
+			store.put(region, key, entry);
+		} catch (IllegalStateException e) {
+			throw new SipCacheException("Couldn't store " + key, e);
+		}
+		replicator.replicate(BuddyMessage.put(region, key, entry), false);
+	}
+
+	void remove(byte region, String key) throws SipCacheException {
+		final BuddyEntry entry;
+		try {
+			entry = store.remove(region, key);
+		} catch (IllegalStateException e) {
+			throw new SipCacheException("Couldn't remove " + key, e);
+		}
+		removedEntries.put(region + key, Boolean.TRUE);
+		if (entry != null) {
+			// the copies of an entry taken over from another node are on the buddies of both nodes
+			replicator.replicate(BuddyMessage.remove(region, key), entry.isAdopted() || !replicator.getOrigin().equals(entry.getOrigin()));
+		}
+	}
+
+	public void entryReplicated(byte region, String key, BuddyEntry entry) {
+		if (region == BuddyStore.DIALOGS && dialogNearCache) {
+			stack.remoteDialogModification(key);
+		}
+	}
+
+	public void entryRemoved(byte region, String key) {
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("sipStack " + stack + " entry removed : " + key);
+		}
+		removedEntries.put(region + key, Boolean.TRUE);
+		switch (region) {
+		case BuddyStore.DIALOGS:
+			stack.remoteDialogRemoval(key);
+			break;
+		case BuddyStore.SERVER_TRANSACTIONS:
+			stack.remoteServerTransactionRemoval(key);
+			break;
+		case BuddyStore.CLIENT_TRANSACTIONS:
+			stack.remoteClientTransactionRemoval(key);
+			break;
+		default:
+			break;
+		}
+	}
+
+	public SIPDialog getDialog(String dialogId) throws SipCacheException {
+		if (dialogId == null) 
+			throw new SipCacheException("No dialogId");
+		
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialog(dialogId);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		if (dialog == null) 
+			throw new SipCacheException("SipDialog is null");
+		
+		if (dialogCacheData != null)
+			dialogCacheData.putDialog(dialog);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void updateDialog(SIPDialog dialog) throws SipCacheException {
+		if (dialog == null) 
+			throw new SipCacheException("SipDialog is null");
+		
+		if (dialogCacheData != null)
+			dialogCacheData.updateDialog(dialog);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void removeDialog(String dialogId) throws SipCacheException {
+		if (dialogId == null) 
+			throw new SipCacheException("No dialogId");
+		
+		if (dialogCacheData != null)
+			dialogCacheData.removeDialog(dialogId);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void evictDialog(String dialogId) {
+		if (dialogCacheData != null) {
+			try {
+				dialogCacheData.removeDialog(dialogId);
+			} catch (SipCacheException e) {
+				clusteredlogger.logError("Couldn't evict the dialog " + dialogId, e);
+			}
+		}
+	}
+
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.putDialogs(dialogs);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.removeDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public SIPServerTransaction getServerTransaction(String txId) throws SipCacheException {
+		if (serverTXCacheData != null)
+			return serverTXCacheData.getServerTransaction(txId);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void putServerTransaction(SIPServerTransaction serverTransaction) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.putServerTransaction(serverTransaction);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void removeServerTransaction(String txId) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.removeServerTransaction(txId);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) throws SipCacheException {
+		if (serverTXCacheData != null)
+			return serverTXCacheData.getServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.putServerTransactions(serverTransactions);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void removeServerTransactions(Collection<String> txIds) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.removeServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public SIPClientTransaction getClientTransaction(String txId) throws SipCacheException {
+		if (clientTXCacheData != null)
+			return clientTXCacheData.getClientTransaction(txId);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void putClientTransaction(SIPClientTransaction clientTransaction) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.putClientTransaction(clientTransaction);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void removeClientTransaction(String txId) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.removeClientTransaction(txId);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) throws SipCacheException {
+		if (clientTXCacheData != null)
+			return clientTXCacheData.getClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.putClientTransactions(clientTransactions);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void removeClientTransactions(Collection<String> txIds) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.removeClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void setConfigurationProperties(Properties configurationProperties) {
+		this.configProperties = configurationProperties;
+	}
+
+	public boolean inLocalMode() {
+		return false;
+	}
+
+	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
+		stack = clusteredStack;
+	}
+
+	/**
+	 * Keys of the last entries removed, the oldest ones are forgotten beyond the capacity
+	 */
+	private static class RemovedEntries extends LinkedHashMap<String, Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		RemovedEntries(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > capacity;
+		}
+	}
+}
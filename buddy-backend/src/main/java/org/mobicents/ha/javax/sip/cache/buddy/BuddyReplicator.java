@@ -0,0 +1,424 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replicates the entries of a {@link BuddyStore} between the members of a {@link BuddyRing} over TCP, without any external data grid.
+ *
+ * Each member streams the entries it writes and removes to its buddies, the members following it in the ring,
+ * through a {@link BuddyChannel} per member. The connections from the other members are served by a single selector thread
+ * which applies their changes to the local store and answers their GET requests from it,
+ * so that the state of a failed member can be fetched from its buddies by the member taking over its calls.
+ * Only the connections coming from the addresses of the members are accepted, and only the classes of the {@link ClassAllowList}
+ * are deserialized from them.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class BuddyReplicator {
+
+	private static StackLogger logger = CommonLogger.getLogger(BuddyReplicator.class);
+
+	private final BuddyRing ring;
+	private final BuddyStore store;
+	private final BuddyListener listener;
+	// the local member and the time it started, a restarted member doesn't drop the entries written before its restart
+	private final String origin;
+	private final long timeout;
+	private final ClassAllowList allowList;
+	private final List<BuddyChannel> buddyChannels = new ArrayList<BuddyChannel>();
+	private final List<BuddyChannel> memberChannels = new ArrayList<BuddyChannel>();
+	private final ConcurrentMap<Long, Fetch> fetches = new ConcurrentHashMap<Long, Fetch>();
+	private final AtomicLong requestIds = new AtomicLong();
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean running;
+
+	/**
+	 * @param ring the members
+	 * @param buddies the number of buddies each member streams its changes to
+	 * @param store the local store
+	 * @param listener notified of the changes replicated by the other members
+	 * @param timeout connection and GET timeout in milliseconds
+	 * @param queueSize the number of messages that can be waiting to be written to a member
+	 * @param allowList the classes the messages received from the other members can be made of
+	 */
+	public BuddyReplicator(BuddyRing ring, int buddies, BuddyStore store, BuddyListener listener, long timeout, int queueSize, ClassAllowList allowList) {
+		this.ring = ring;
+		this.store = store;
+		this.listener = listener;
+		this.origin = ring.getLocalMember() + '@' + System.currentTimeMillis();
+		this.timeout = timeout;
+		this.allowList = allowList;
+		final List<String> buddyMembers = ring.getBuddies(buddies);
+		for (String member : ring.getOtherMembers()) {
+			final BuddyChannel channel = new BuddyChannel(this, member, buddyMembers.contains(member), timeout, queueSize);
+			if (channel.isBuddy()) {
+				buddyChannels.add(channel);
+			}
+			memberChannels.add(channel);
+		}
+	}
+
+	/**
+	 * @return the origin of the entries written by the local member, made of the local member and the time it started
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	public BuddyStore getStore() {
+		return store;
+	}
+
+	public ClassAllowList getAllowList() {
+		return allowList;
+	}
+
+	public void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(BuddyRing.toAddress(ring.getLocalMember()));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		selectorThread = new Thread(new Runnable() {
+			public void run() {
+				select();
+			}
+		}, "BuddyReplicator-" + ring.getLocalMember());
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		for (BuddyChannel channel : memberChannels) {
+			channel.start();
+		}
+		if (logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("buddy replication started on " + ring + " with buddies " + ring.getBuddies(buddyChannels.size()));
+		}
+	}
+
+	public void stop() {
+		running = false;
+		for (BuddyChannel channel : memberChannels) {
+			channel.stop();
+		}
+		for (Fetch fetch : fetches.values()) {
+			fetch.cancel();
+		}
+		if (selectorThread != null) {
+			selector.wakeup();
+			// the port is released once the selector thread is done
+			try {
+				selectorThread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			selectorThread = null;
+		}
+	}
+
+	/**
+	 * Stream a change to the buddies
+	 * @param message a PUT or a REMOVE
+	 * @param allMembers true to send it to all the members, for the entries whose copies may be held by members other than the buddies
+	 */
+	public void replicate(BuddyMessage message, boolean allMembers) {
+		for (BuddyChannel channel : allMembers ? memberChannels : buddyChannels) {
+			channel.send(message);
+		}
+	}
+
+	/**
+	 * Ask the other members for an entry not known locally, waits for their replies up to the timeout.
+	 * The first member replying with the entry ends the wait : the buddies of a member receive its writes in the same order,
+	 * so a buddy can only hold an older revision if it missed writes while disconnected, which the writes made from the fetched entry override
+	 * @return the entry replied first, null if none of the members which replied holds it
+	 */
+	public BuddyEntry fetch(byte region, String key) {
+		if (memberChannels.isEmpty()) {
+			return null;
+		}
+		final long requestId = requestIds.incrementAndGet();
+		final Fetch fetch = new Fetch(memberChannels.size());
+		fetches.put(Long.valueOf(requestId), fetch);
+		try {
+			final BuddyMessage request = BuddyMessage.get(region, key, requestId);
+			for (BuddyChannel channel : memberChannels) {
+				if (!channel.send(request)) {
+					fetch.reply(null);
+				}
+			}
+			if (!fetch.await(timeout) && logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("no member replied in time with " + key);
+			}
+			return fetch.getEntry();
+		} finally {
+			fetches.remove(Long.valueOf(requestId));
+		}
+	}
+
+	/**
+	 * Called by the channels with the replies to the GET requests
+	 */
+	void reply(BuddyMessage reply) {
+		final Fetch fetch = fetches.get(Long.valueOf(reply.getRequestId()));
+		if (fetch != null) {
+			fetch.reply(reply.getEntry());
+		}
+	}
+
+	private void select() {
+		while (running) {
+			try {
+				selector.select();
+				final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					final SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept();
+						} catch (RuntimeException e) {
+							logger.logError("unexpected failure accepting a connection", e);
+						}
+					} else {
+						final Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (IOException e) {
+							if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+								logger.logDebug("connection from " + connection + " closed : " + e.getMessage());
+							}
+							connection.close();
+						} catch (RuntimeException e) {
+							// only the connection is dropped, the other members keep being served
+							logger.logError("unexpected failure on the connection from " + connection + ", closing it", e);
+							connection.close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.logError("buddy replication selector failure", e);
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				((Connection) key.attachment()).close();
+			}
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			logger.logError("couldn't close the buddy replication server channel", e);
+		}
+	}
+
+	private void accept() throws IOException {
+		final SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		final InetAddress remoteAddress = channel.socket().getInetAddress();
+		if (!ring.isMember(remoteAddress)) {
+			logger.logWarning("rejected the connection from " + remoteAddress + ", not a member of " + ring);
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		final Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	private void handle(Connection connection, BuddyMessage message) throws IOException {
+		if (logger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			logger.logTrace("received " + message + " from " + connection);
+		}
+		try {
+			switch (message.getType()) {
+			case BuddyMessage.PUT:
+				if (store.apply(message.getRegion(), message.getKey(), message.getEntry())) {
+					listener.entryReplicated(message.getRegion(), message.getKey(), message.getEntry());
+				}
+				break;
+			case BuddyMessage.REMOVE:
+				if (store.remove(message.getRegion(), message.getKey()) != null) {
+					listener.entryRemoved(message.getRegion(), message.getKey());
+				}
+				break;
+			case BuddyMessage.SYNC:
+				store.removeAll(message.getKey());
+				break;
+			case BuddyMessage.GET:
+				connection.send(message.reply(store.get(message.getRegion(), message.getKey())));
+				break;
+			default:
+				throw new IOException("unexpected message " + message);
+			}
+		} catch (IllegalStateException e) {
+			// the store is full or the entry can't be serialized, the other messages of the connection are still handled
+			logger.logError("couldn't handle " + message + " from " + connection, e);
+		}
+	}
+
+	/**
+	 * Connection from another member, read and written by the selector thread only
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private final ByteBuffer header = ByteBuffer.allocate(4);
+		private ByteBuffer body;
+		private final LinkedList<ByteBuffer> pendingFrames = new LinkedList<ByteBuffer>();
+		private SelectionKey key;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			while (true) {
+				if (body == null) {
+					if (channel.read(header) < 0) {
+						throw new IOException("connection closed");
+					}
+					if (header.hasRemaining()) {
+						return;
+					}
+					header.flip();
+					body = ByteBuffer.allocate(BuddyMessage.checkFrameSize(header.getInt()));
+					header.clear();
+				}
+				if (channel.read(body) < 0) {
+					throw new IOException("connection closed");
+				}
+				if (body.hasRemaining()) {
+					return;
+				}
+				final BuddyMessage message = BuddyMessage.decode(body.array(), allowList);
+				body = null;
+				handle(this, message);
+			}
+		}
+
+		void send(BuddyMessage message) throws IOException {
+			pendingFrames.add(message.encode());
+			flush();
+		}
+
+		void flush() throws IOException {
+			while (!pendingFrames.isEmpty()) {
+				final ByteBuffer frame = pendingFrames.getFirst();
+				channel.write(frame);
+				if (frame.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				pendingFrames.removeFirst();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+	}
+
+	/**
+	 * Replies to a GET request sent to all the other members, done with the first entry or once all the members replied without it
+	 */
+	private static class Fetch {
+		private final CountDownLatch replies;
+		private BuddyEntry entry;
+
+		Fetch(int members) {
+			replies = new CountDownLatch(members);
+		}
+
+		synchronized void reply(BuddyEntry reply) {
+			if (reply != null && entry == null) {
+				entry = reply;
+				cancel();
+			} else {
+				replies.countDown();
+			}
+		}
+
+		synchronized BuddyEntry getEntry() {
+			return entry;
+		}
+
+		boolean await(long timeout) {
+			try {
+				return replies.await(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		void cancel() {
+			while (replies.getCount() > 0) {
+				replies.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Members of the buddy replication, ordered as configured. The buddies of a member are the members following it in the ring,
+ * so that each member is the buddy of the ones preceding it and the state of a failed member is held by its successors.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class BuddyRing {
+
+	private final List<String> members;
+	private final String localMember;
+
+	/**
+	 * @param members comma separated host:port of all the members, including the local one
+	 * @param localMember host:port of the local member
+	 */
+	public BuddyRing(String members, String localMember) {
+		final List<String> memberList = new ArrayList<String>();
+		for (String member : members.split(",")) {
+			final String trimmedMember = member.trim();
+			if (trimmedMember.length() > 0 && !memberList.contains(trimmedMember)) {
+				// validates the member
+				toAddress(trimmedMember);
+				memberList.add(trimmedMember);
+			}
+		}
+		this.localMember = localMember.trim();
+		toAddress(this.localMember);
+		if (!memberList.contains(this.localMember)) {
+			throw new IllegalArgumentException("the local member " + localMember + " isn't one of the members " + members);
+		}
+		this.members = Collections.unmodifiableList(memberList);
+	}
+
+	public String getLocalMember() {
+		return localMember;
+	}
+
+	/**
+	 * @param count the number of buddies
+	 * @return the members following the local one in the ring, at most count and never the local member
+	 */
+	public List<String> getBuddies(int count) {
+		final List<String> buddies = new ArrayList<String>(count);
+		final int localIndex = members.indexOf(localMember);
+		for (int i = 1; i < members.size() && buddies.size() < count; i++) {
+			buddies.add(members.get((localIndex + i) % members.size()));
+		}
+		return buddies;
+	}
+
+	/**
+	 * @return all the members but the local one
+	 */
+	public List<String> getOtherMembers() {
+		return getBuddies(members.size() - 1);
+	}
+
+	/**
+	 * @param address the address a connection comes from
+	 * @return true if one of the members, the local one included, listens on that address, the host names being resolved on each call
+	 */
+	public boolean isMember(InetAddress address) {
+		for (String member : members) {
+			if (address.equals(toAddress(member).getAddress())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param member host:port of a member
+	 */
+	public static InetSocketAddress toAddress(String member) {
+		final int separator = member.lastIndexOf(':');
+		if (separator <= 0 || separator == member.length() - 1) {
+			throw new IllegalArgumentException("the member " + member + " isn't formatted as host:port");
+		}
+		try {
+			return new InetSocketAddress(member.substring(0, separator), Integer.parseInt(member.substring(separator + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("the member " + member + " isn't formatted as host:port");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BuddyRing[localMember=" + localMember + ", members=" + members + "]";
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.util.List;
+
+/**
+ * Store of the buddy replication, holding the entries written by the local member
+ * along with the entries replicated by the members this member is a buddy of.
+ * Entries are compared by origin and revision in the conditional operations, see {@link BuddyEntry#equals(Object)}.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public abstract class BuddyStore {
+
+	public static final byte DIALOGS = 0;
+	public static final byte SERVER_TRANSACTIONS = 1;
+	public static final byte CLIENT_TRANSACTIONS = 2;
+	protected static final int REGIONS = 3;
+
+	public abstract BuddyEntry get(byte region, String key);
+
+	public abstract void put(byte region, String key, BuddyEntry entry);
+
+	/**
+	 * @return the entry already stored, null if the entry has been stored
+	 */
+	public abstract BuddyEntry putIfAbsent(byte region, String key, BuddyEntry entry);
+
+	/**
+	 * @return false if the entry stored isn't the cached entry anymore
+	 */
+	public abstract boolean replace(byte region, String key, BuddyEntry cachedEntry, BuddyEntry entry);
+
+	/**
+	 * @return the entry removed, null if none
+	 */
+	public abstract BuddyEntry remove(byte region, String key);
+
+	/**
+	 * Store an entry replicated by another member, unless a more recent revision is already stored
+	 * @return true if the entry has been stored
+	 */
+	public abstract boolean apply(byte region, String key, BuddyEntry entry);
+
+	/**
+	 * @param origin the origin of the entries, see {@link BuddyReplicator#getOrigin()}
+	 * @return a put of each entry with this origin
+	 */
+	public abstract List<BuddyMessage> getPuts(String origin);
+
+	/**
+	 * Remove the entries with an origin
+	 * @param origin the origin of the entries, see {@link BuddyReplicator#getOrigin()}
+	 */
+	public abstract void removeAll(String origin);
+
+	public abstract int size(byte region);
+
+	public abstract void clear();
+
+	/**
+	 * Clear the store and release what it holds, it won't be used anymore
+	 */
+	public void close() {
+		clear();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classes that can be deserialized from the messages received from the other members.
+ * The replicated state is made of the buddy messages and entries, the dialog state and transaction meta data built by the stack,
+ * and the application data, so only the JDK value and collection classes, the SIP stack classes and the classes configured
+ * through <b>org.mobicents.ha.javax.sip.BUDDY_REPLICATION_ALLOWED_CLASSES</b> are resolved, any other class ends the connection.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ClassAllowList {
+
+	private static final String[] DEFAULT_ALLOWED_CLASSES = {"java.lang.", "java.util.", "java.math.", "java.net.", "javax.sip.", "gov.nist.", "org.mobicents."};
+
+	private final List<String> allowedClasses = new ArrayList<String>();
+
+	/**
+	 * @param allowedClasses comma separated class names or package names ending with a dot allowed on top of the default ones, can be null
+	 */
+	public ClassAllowList(String allowedClasses) {
+		for (String allowedClass : DEFAULT_ALLOWED_CLASSES) {
+			this.allowedClasses.add(allowedClass);
+		}
+		if (allowedClasses != null) {
+			for (String allowedClass : allowedClasses.split(",")) {
+				final String trimmedClass = allowedClass.trim();
+				if (trimmedClass.length() > 0) {
+					this.allowedClasses.add(trimmedClass);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param className the name of a class as written in the serialized stream, arrays included
+	 * @return true if the class can be resolved
+	 */
+	public boolean isAllowed(String className) {
+		String componentName = className;
+		int dimensions = 0;
+		while (componentName.startsWith("[")) {
+			componentName = componentName.substring(1);
+			dimensions++;
+		}
+		if (dimensions > 0) {
+			if (!componentName.startsWith("L")) {
+				// array of primitives
+				return true;
+			}
+			componentName = componentName.substring(1, componentName.length() - 1);
+		}
+		for (String allowedClass : allowedClasses) {
+			if (allowedClass.endsWith(".") ? componentName.startsWith(allowedClass) : componentName.equals(allowedClass)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "ClassAllowList" + allowedClasses;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link BuddyStore} keeping the entries in maps of the Java heap.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class HeapBuddyStore extends BuddyStore {
+
+	private final ConcurrentMap<String, BuddyEntry>[] regions;
+
+	@SuppressWarnings("unchecked")
+	public HeapBuddyStore() {
+		regions = new ConcurrentMap[REGIONS];
+		for (int i = 0; i < REGIONS; i++) {
+			regions[i] = new ConcurrentHashMap<String, BuddyEntry>();
+		}
+	}
+
+	@Override
+	public BuddyEntry get(byte region, String key) {
+		return regions[region].get(key);
+	}
+
+	@Override
+	public void put(byte region, String key, BuddyEntry entry) {
+		regions[region].put(key, entry);
+	}
+
+	@Override
+	public BuddyEntry putIfAbsent(byte region, String key, BuddyEntry entry) {
+		return regions[region].putIfAbsent(key, entry);
+	}
+
+	@Override
+	public boolean replace(byte region, String key, BuddyEntry cachedEntry, BuddyEntry entry) {
+		return regions[region].replace(key, cachedEntry, entry);
+	}
+
+	@Override
+	public BuddyEntry remove(byte region, String key) {
+		return regions[region].remove(key);
+	}
+
+	@Override
+	public boolean apply(byte region, String key, BuddyEntry entry) {
+		final ConcurrentMap<String, BuddyEntry> entries = regions[region];
+		while (true) {
+			final BuddyEntry cachedEntry = entries.get(key);
+			if (cachedEntry == null) {
+				if (entries.putIfAbsent(key, entry) == null) {
+					return true;
+				}
+			} else if (cachedEntry.getRevision() > entry.getRevision()) {
+				return false;
+			} else if (entries.replace(key, cachedEntry, entry)) {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public List<BuddyMessage> getPuts(String origin) {
+		final List<BuddyMessage> puts = new ArrayList<BuddyMessage>();
+		for (byte region = 0; region < REGIONS; region++) {
+			for (Map.Entry<String, BuddyEntry> entry : regions[region].entrySet()) {
+				if (origin.equals(entry.getValue().getOrigin())) {
+					puts.add(BuddyMessage.put(region, entry.getKey(), entry.getValue()));
+				}
+			}
+		}
+		return puts;
+	}
+
+	@Override
+	public void removeAll(String origin) {
+		for (byte region = 0; region < REGIONS; region++) {
+			for (Map.Entry<String, BuddyEntry> entry : regions[region].entrySet()) {
+				if (origin.equals(entry.getValue().getOrigin())) {
+					regions[region].remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	@Override
+	public int size(byte region) {
+		return regions[region].size();
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < REGIONS; i++) {
+			regions[i].clear();
+		}
+	}
+}
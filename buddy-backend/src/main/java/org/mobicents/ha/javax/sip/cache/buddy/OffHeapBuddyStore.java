@@ -0,0 +1,318 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mobicents.ha.javax.sip.cache.store.DirectSegmentStore;
+import org.mobicents.ha.javax.sip.cache.store.SegmentStore;
+
+/**
+ * {@link BuddyStore} keeping the entries serialized in slabs of direct memory, see {@link DirectSegmentStore},
+ * so that the dialogs held for the other members don't weigh on the garbage collections of the local member.
+ * Only the index of the keys stays in the Java heap, the entries being deserialized each time they are read.
+ *
+ * The origin and the revision of an entry are written in front of it, so that the revisions can be compared
+ * and the entries of an origin found without deserializing them.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class OffHeapBuddyStore extends BuddyStore {
+
+	private static StackLogger logger = CommonLogger.getLogger(OffHeapBuddyStore.class);
+
+	// time in milliseconds between two compactions of the slabs
+	private static final long COMPACTION_INTERVAL = 1000;
+
+	private final DirectSegmentStore store;
+	private final ScheduledThreadPoolExecutor compactionExecutor;
+
+	/**
+	 * @param slabSize the size in bytes of the slabs, bounding the size of an entry
+	 * @param maxSize the number of bytes of direct memory the store can take, 0 for no limit
+	 */
+	public OffHeapBuddyStore(int slabSize, long maxSize) {
+		store = new DirectSegmentStore(slabSize, maxSize);
+		try {
+			store.open();
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't allocate the first slab of the store", e);
+		}
+		compactionExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "OffHeapBuddyStoreCompaction");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				compact();
+			}
+		}, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Move the live entries out of the oldest slabs holding too much garbage, run periodically
+	 */
+	void compact() {
+		try {
+			store.compact(0);
+		} catch (Exception e) {
+			logger.logError("Couldn't compact the buddy store", e);
+		}
+	}
+
+	@Override
+	public BuddyEntry get(byte region, String key) {
+		final SegmentStore.StoredValue storedValue = store.get(getStoreKey(region, key));
+		return storedValue != null ? decode(storedValue.getValue()) : null;
+	}
+
+	@Override
+	public void put(byte region, String key, BuddyEntry entry) {
+		try {
+			store.put(getStoreKey(region, key), encode(entry));
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't store " + key, e);
+		}
+	}
+
+	@Override
+	public BuddyEntry putIfAbsent(byte region, String key, BuddyEntry entry) {
+		final String storeKey = getStoreKey(region, key);
+		final byte[] value = encode(entry);
+		try {
+			while (true) {
+				final SegmentStore.StoredValue storedValue = store.get(storeKey);
+				if (storedValue != null) {
+					return decode(storedValue.getValue());
+				}
+				if (store.replace(storeKey, null, value)) {
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't store " + key, e);
+		}
+	}
+
+	@Override
+	public boolean replace(byte region, String key, BuddyEntry cachedEntry, BuddyEntry entry) {
+		final String storeKey = getStoreKey(region, key);
+		final SegmentStore.StoredValue storedValue = store.get(storeKey);
+		if (storedValue == null || !isSameEntry(storedValue.getValue(), cachedEntry)) {
+			return false;
+		}
+		try {
+			return store.replace(storeKey, storedValue, encode(entry));
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't store " + key, e);
+		}
+	}
+
+	@Override
+	public BuddyEntry remove(byte region, String key) {
+		final String storeKey = getStoreKey(region, key);
+		try {
+			while (true) {
+				final SegmentStore.StoredValue storedValue = store.get(storeKey);
+				if (storedValue == null) {
+					return null;
+				}
+				if (store.remove(storeKey, storedValue)) {
+					return decode(storedValue.getValue());
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't remove " + key, e);
+		}
+	}
+
+	@Override
+	public boolean apply(byte region, String key, BuddyEntry entry) {
+		final String storeKey = getStoreKey(region, key);
+		final byte[] value = encode(entry);
+		try {
+			while (true) {
+				final SegmentStore.StoredValue storedValue = store.get(storeKey);
+				if (storedValue != null && getRevision(storedValue.getValue()) > entry.getRevision()) {
+					return false;
+				}
+				if (store.replace(storeKey, storedValue, value)) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't store " + key, e);
+		}
+	}
+
+	@Override
+	public List<BuddyMessage> getPuts(String origin) {
+		final List<BuddyMessage> puts = new ArrayList<BuddyMessage>();
+		for (String storeKey : store.keySet()) {
+			final SegmentStore.StoredValue storedValue = store.get(storeKey);
+			if (storedValue != null && origin.equals(getOrigin(storedValue.getValue()))) {
+				puts.add(BuddyMessage.put(getRegion(storeKey), getKey(storeKey), decode(storedValue.getValue())));
+			}
+		}
+		return puts;
+	}
+
+	@Override
+	public void removeAll(String origin) {
+		try {
+			for (String storeKey : store.keySet()) {
+				final SegmentStore.StoredValue storedValue = store.get(storeKey);
+				if (storedValue != null && origin.equals(getOrigin(storedValue.getValue()))) {
+					store.remove(storeKey, storedValue);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't remove the entries of " + origin, e);
+		}
+	}
+
+	/**
+	 * Counts the keys of the region, to be used sparingly
+	 */
+	@Override
+	public int size(byte region) {
+		int size = 0;
+		for (String storeKey : store.keySet()) {
+			if (getRegion(storeKey) == region) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		try {
+			for (String storeKey : store.keySet()) {
+				store.remove(storeKey);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't clear the store", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		compactionExecutor.shutdown();
+		try {
+			compactionExecutor.awaitTermination(COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		store.close();
+	}
+
+	/**
+	 * @return the number of bytes of direct memory taken by the store
+	 */
+	public long getAllocatedSize() {
+		return store.getAllocatedSize();
+	}
+
+	private static String getStoreKey(byte region, String key) {
+		return (char) ('0' + region) + key;
+	}
+
+	private static byte getRegion(String storeKey) {
+		return (byte) (storeKey.charAt(0) - '0');
+	}
+
+	private static String getKey(String storeKey) {
+		return storeKey.substring(1);
+	}
+
+	private static byte[] encode(BuddyEntry entry) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream header = new DataOutputStream(bytes);
+			header.writeLong(entry.getRevision());
+			header.writeUTF(entry.getOrigin());
+			header.flush();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(entry);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't serialize " + entry, e);
+		}
+	}
+
+	private static BuddyEntry decode(byte[] value) {
+		try {
+			final ByteArrayInputStream bytes = new ByteArrayInputStream(value);
+			final DataInputStream header = new DataInputStream(bytes);
+			header.readLong();
+			header.readUTF();
+			// the entries received from the other members went through the allow list before being stored
+			final ObjectInputStream in = new BuddyMessage.ContextObjectInputStream(bytes, null);
+			try {
+				return (BuddyEntry) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Couldn't load a class of the stored state", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't deserialize a stored entry", e);
+		}
+	}
+
+	private static long getRevision(byte[] value) {
+		return ByteBuffer.wrap(value).getLong(0);
+	}
+
+	private static String getOrigin(byte[] value) {
+		try {
+			final DataInputStream header = new DataInputStream(new ByteArrayInputStream(value, 8, value.length - 8));
+			return header.readUTF();
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't read the origin of a stored entry", e);
+		}
+	}
+
+	private static boolean isSameEntry(byte[] value, BuddyEntry entry) {
+		return entry != null && getRevision(value) == entry.getRevision() && entry.getOrigin().equals(getOrigin(value));
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sip.PeerUnavailableException;
+import javax.sip.SipFactory;
+import javax.sip.address.Address;
+import javax.sip.header.ContactHeader;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.HASipDialog;
+import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.message.MessageProjection;
+
+/**
+ * Stores the dialogs in the {@link BuddyReplicationCache}, the state of a dialog is the encoded {@link DialogReplicationState}
+ * merged with the deltas written by the local node, streamed in full to the buddies on each write.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class SIPDialogCacheData {
+
+	// bound on the number of times a dialog write is merged again after losing a race against another thread
+	private static final int MAX_WRITE_ATTEMPTS = 16;
+
+	private ClusteredSipStack stack;
+	private StackLogger clusteredlogger;
+	private BuddyReplicationCache cache;
+	
+	public SIPDialogCacheData(ClusteredSipStack s, BuddyReplicationCache cache) {
+		stack = s;
+		clusteredlogger = s.getStackLogger();
+		this.cache = cache;
+	}
+	
+	public SIPDialog getDialog(String dialogId) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logTrace("getDialog("+ dialogId +")");
+		
+		final BuddyEntry entry = cache.get(BuddyStore.DIALOGS, dialogId);
+		if (entry != null) {
+			return (SIPDialog) createDialog(dialogId, DialogReplicationStateCodec.decode((byte[]) entry.getState()), entry.getApplicationData());
+		} else {
+			return null;
+		}
+	}
+	
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logTrace("getDialogs(" + dialogIds + ")");
+		
+		final Map<String, SIPDialog> sipDialogs = new HashMap<String, SIPDialog>();
+		for (String dialogId : dialogIds) {
+			final SIPDialog sipDialog = getDialog(dialogId);
+			if (sipDialog != null) {
+				sipDialogs.put(dialogId, sipDialog);
+			}
+		}
+		return sipDialogs;
+	}
+	
+	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialog(" + dialog.getDialogId() + ")");
+		}
+		
+		final DialogWrite dialogWrite = new DialogWrite((HASipDialog) dialog);
+		if (!dialogWrite.isEmpty()) {
+			write(dialogWrite);
+		}
+	}
+	
+	public void putDialogs(Collection<SIPDialog> dialogsToPut) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogs(" + dialogsToPut.size() + " dialogs)");
+		}
+		
+		// the writes are queued to the buddies in order, there is nothing to gain in batching them
+		for (SIPDialog dialog : dialogsToPut) {
+			putDialog(dialog);
+		}
+	}
+	
+	/**
+	 * Store the dialog write, computed again from the new entry if the entry has been modified concurrently
+	 */
+	private void write(DialogWrite dialogWrite) throws SipCacheException {
+		for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+			BuddyEntry cachedEntry = cache.getLocal(BuddyStore.DIALOGS, dialogWrite.dialogId);
+			if (cachedEntry == null && !dialogWrite.isFirstWrite()) {
+				// the dialog has been recovered from another node, its state is held by the buddies of that node
+				cachedEntry = cache.get(BuddyStore.DIALOGS, dialogWrite.dialogId);
+			}
+			if (!dialogWrite.prepare(cachedEntry)) {
+				return;
+			}
+			if (cache.put(BuddyStore.DIALOGS, dialogWrite.dialogId, cachedEntry, dialogWrite.entry)) {
+				dialogWrite.acknowledge();
+				return;
+			}
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("dialog " + dialogWrite.dialogId + " has been modified concurrently, merging again");
+			}
+		}
+		throw new SipCacheException("Couldn't store the dialog " + dialogWrite.dialogId + " after " + MAX_WRITE_ATTEMPTS + " attempts, too many concurrent writes");
+	}
+	
+	public void updateDialog(SIPDialog dialog) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logDebug("updateDialog(" + dialog.getDialogId() + ")");
+		
+		// a dialog in use here has been written by this node, replicated to it or recovered by it, it is never fetched from the other nodes again
+		final BuddyEntry entry = cache.getLocal(BuddyStore.DIALOGS, dialog.getDialogId());
+		if (entry != null) {
+			updateDialog((HASipDialog) dialog, DialogReplicationStateCodec.decode((byte[]) entry.getState()), entry.getApplicationData());
+		}
+	}
+	
+	public void removeDialog(String dialogId) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logDebug("removeDialog(" + dialogId + ")");
+		
+		cache.remove(BuddyStore.DIALOGS, dialogId);
+	}
+	
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logDebug("removeDialogs(" + dialogIds + ")");
+		
+		for (String dialogId : dialogIds) {
+			cache.remove(BuddyStore.DIALOGS, dialogId);
+		}
+	}
+	
+	private HASipDialog createDialog(String dialogId, DialogReplicationState dialogMetaData, 
+			Object dialogAppData) throws SipCacheException {
+		HASipDialog haSipDialog = null; 
+		if(dialogMetaData != null) {
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("sipStack " + this + " dialog " + dialogId + " is present in the distributed cache, recreating it locally");
+			}
+			
+			final byte[] lastResponseProjection = dialogMetaData.getLastResponse();
+			try {
+				final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
+				haSipDialog = HASipDialogFactory.createHASipDialog(stack.getReplicationStrategy(), (SipProviderImpl)stack.getSipProviders().next(), lastResponse);
+				haSipDialog.setDialogId(dialogId);
+				updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, true);
+				// setLastResponse won't be called on recreation since version will be null on recreation			
+				haSipDialog.setLastResponse(lastResponse);				
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("HA SIP Dialog " + dialogId + " localTag  = " + haSipDialog.getLocalTag());
+					clusteredlogger.logDebug("HA SIP Dialog " + dialogId + " remoteTag  = " + haSipDialog.getRemoteTag());
+					clusteredlogger.logDebug("HA SIP Dialog " + dialogId + " localParty = " + haSipDialog.getLocalParty());
+					clusteredlogger.logDebug("HA SIP Dialog " + dialogId + " remoteParty  = " + haSipDialog.getRemoteParty());
+					clusteredlogger.logDebug("HA SIP Dialog " + dialogId + " state  = " + ((SIPDialog)haSipDialog).getState());
+				}
+				
+			} catch (PeerUnavailableException e) {
+				throw new SipCacheException("A problem occured while retrieving the following dialog " + dialogId + " from the Cache", e);
+			} catch (ParseException e) {
+				throw new SipCacheException("A problem occured while retrieving the following dialog " + dialogId + " from the Cache", e);
+			}
+		}
+		
+		return haSipDialog;
+	}
+	
+	public void updateDialog(HASipDialog haSipDialog, DialogReplicationState dialogMetaData, 
+			Object dialogAppData) throws SipCacheException {
+		if(dialogMetaData != null) {			
+			final long currentVersion = haSipDialog.getVersion();
+			final long cacheVersion = dialogMetaData.getVersion(); 
+			if(currentVersion < cacheVersion) {
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("HA SIP Dialog " + haSipDialog + " with dialogId " + haSipDialog.getDialogIdToReplicate() + " is older " + currentVersion + " than the one in the cache " + cacheVersion + " updating it");
+				}
+				try {
+					final byte[] lastResponseProjection = dialogMetaData.getLastResponse();				
+					final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
+					haSipDialog.setLastResponse(lastResponse);
+					updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, false);
+				
+				}  catch (PeerUnavailableException e) {
+					throw new SipCacheException("A problem occured while retrieving the following dialog " + haSipDialog.getDialogIdToReplicate() + " from the Cache", e);
+				} catch (ParseException e) {
+					throw new SipCacheException("A problem occured while retrieving the following dialog " + haSipDialog.getDialogIdToReplicate() + " from the Cache", e);
+				}
+			} else {
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("HA SIP Dialog " + haSipDialog + " with dialogId " + haSipDialog.getDialogIdToReplicate() + " is not older " + currentVersion + " than the one in the cache " + cacheVersion + ", not updating it");
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Update the haSipDialog passed in param with the dialogMetaData and app meta data
+	 * @param dialogMetaData
+	 * @param dialogAppData
+	 * @param haSipDialog
+	 * @throws ParseException
+	 * @throws PeerUnavailableException
+	 */
+	private void updateDialogMetaData(DialogReplicationState dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) 
+			throws ParseException, PeerUnavailableException {
+		haSipDialog.setMetaDataToReplicate(dialogMetaData, recreation);
+		haSipDialog.setApplicationDataToReplicate(dialogAppData);
+		final String contactStringified = dialogMetaData.getContactHeader();
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("contactStringified " + contactStringified);
+		}
+		
+		if(contactStringified != null) {
+			Address contactAddress = SipFactory.getInstance().createAddressFactory().createAddress(contactStringified);
+			ContactHeader contactHeader = SipFactory.getInstance().createHeaderFactory().createContactHeader(contactAddress);
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("contactHeader " + contactHeader);
+				clusteredlogger.logDebug("contactURI " + contactHeader.getAddress().getURI());
+			}
+			haSipDialog.setContactHeader(contactHeader);
+		}
+	}
+
+	/**
+	 * Computes the entry to store for a dialog from the entry currently stored
+	 */
+	private class DialogWrite {
+		private final HASipDialog haSipDialog;
+		private final String dialogId;
+		private DialogReplicationState dialogMetaData;
+		private final Object dialogAppData;
+		private BuddyEntry entry;
+		private DialogReplicationState replicatedMetaData;
+		
+		DialogWrite(HASipDialog haSipDialog) {
+			this.haSipDialog = haSipDialog;
+			this.dialogId = ((SIPDialog) haSipDialog).getDialogId();
+			this.dialogMetaData = haSipDialog.getMetaDataToReplicate();
+			this.dialogAppData = haSipDialog.getApplicationDataToReplicate();
+		}
+		
+		boolean isEmpty() {
+			return dialogMetaData == null && dialogAppData == null;
+		}
+		
+		/**
+		 * @return true if the dialog has never been replicated, no other node can hold it
+		 */
+		boolean isFirstWrite() {
+			return dialogMetaData != null && dialogMetaData.isFullSnapshot() && dialogMetaData.getBaseVersion() == 0;
+		}
+		
+		/**
+		 * @param cachedEntry the entry stored locally or by the other nodes, null if none
+		 * @return true if there is something to store
+		 */
+		boolean prepare(BuddyEntry cachedEntry) throws SipCacheException {
+			this.replicatedMetaData = null;
+			byte[] metaDataToStore = cachedEntry != null ? (byte[]) cachedEntry.getState() : null;
+			if (dialogMetaData != null) {
+				DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(metaDataToStore);
+				if (!dialogMetaData.canBeAppliedOn(cachedMetaData)) {
+					// the cached record is missing or has been written by someone else, the delta would lose state
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + dialogId + " delta based on version " + dialogMetaData.getBaseVersion() + " doesn't match cached record " + cachedMetaData + ", replicating the full state");
+					}
+					dialogMetaData = haSipDialog.getFullMetaDataToReplicate();
+				}
+				if (cachedMetaData != null) {
+					long currentVersion = dialogMetaData.getVersion();
+					long cacheVersion = cachedMetaData.getVersion();
+					if ( cacheVersion < currentVersion) {
+						cachedMetaData.merge(dialogMetaData);
+						metaDataToStore = DialogReplicationStateCodec.encode(cachedMetaData);
+						replicatedMetaData = dialogMetaData;
+					}
+					
+				} else {
+					metaDataToStore = DialogReplicationStateCodec.encode(dialogMetaData);
+					replicatedMetaData = dialogMetaData;
+				}
+			}
+			if (replicatedMetaData == null && dialogAppData == null) {
+				return false;
+			}
+			final Object appDataToStore = dialogAppData != null ? dialogAppData : (cachedEntry != null ? cachedEntry.getApplicationData() : null);
+			entry = cache.createEntry(metaDataToStore, appDataToStore, cachedEntry);
+			return true;
+		}
+		
+		/**
+		 * to be called once the entry has been stored
+		 */
+		void acknowledge() {
+			if (replicatedMetaData != null) {
+				haSipDialog.metaDataReplicated(replicatedMetaData);
+			}
+		}
+	}
+}
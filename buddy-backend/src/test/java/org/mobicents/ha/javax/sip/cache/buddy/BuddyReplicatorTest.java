@@ -0,0 +1,225 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Replication between three members on localhost, each member streaming its changes to the member following it
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class BuddyReplicatorTest extends TestCase {
+
+	private static final long TIMEOUT = 500;
+	private static final long WAIT = 10000;
+
+	private String[] members;
+	private BuddyStore[] stores;
+	private RecordingListener[] listeners;
+	private BuddyReplicator[] replicators;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		members = new String[] {"127.0.0.1:" + freePort(), "127.0.0.1:" + freePort(), "127.0.0.1:" + freePort()};
+		stores = new BuddyStore[members.length];
+		listeners = new RecordingListener[members.length];
+		replicators = new BuddyReplicator[members.length];
+		for (int i = 0; i < members.length; i++) {
+			startMember(i);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (BuddyReplicator replicator : replicators) {
+			replicator.stop();
+		}
+		super.tearDown();
+	}
+
+	public void testPutReplicatedToBuddy() throws Exception {
+		put(0, "dialog1", 1);
+		waitForEntry(1, "dialog1");
+		assertEquals(1, stores[1].get(BuddyStore.DIALOGS, "dialog1").getRevision());
+		assertEquals(replicators[0].getOrigin(), stores[1].get(BuddyStore.DIALOGS, "dialog1").getOrigin());
+		// the listener is notified once the entry is stored
+		final long deadline = System.currentTimeMillis() + WAIT;
+		while (listeners[1].replicated.get(BuddyStore.DIALOGS + "dialog1") == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("dialog1", listeners[1].replicated.get(BuddyStore.DIALOGS + "dialog1"));
+		// only the buddy holds the entry
+		assertNull(stores[2].get(BuddyStore.DIALOGS, "dialog1"));
+	}
+
+	public void testFetchFromBuddy() throws Exception {
+		put(0, "dialog1", 1);
+		waitForEntry(1, "dialog1");
+		// the member taking over the calls of the first one fetches the entry from its buddy
+		replicators[0].stop();
+		final BuddyEntry entry = replicators[2].fetch(BuddyStore.DIALOGS, "dialog1");
+		assertNotNull(entry);
+		assertEquals(1, entry.getRevision());
+		assertNull(replicators[2].fetch(BuddyStore.DIALOGS, "unknown"));
+	}
+
+	public void testRemoveReplicated() throws Exception {
+		put(0, "tx1", 1);
+		waitForEntry(1, "tx1");
+		stores[0].remove(BuddyStore.DIALOGS, "tx1");
+		replicators[0].replicate(BuddyMessage.remove(BuddyStore.DIALOGS, "tx1"), false);
+		final long deadline = System.currentTimeMillis() + WAIT;
+		while (stores[1].get(BuddyStore.DIALOGS, "tx1") != null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNull(stores[1].get(BuddyStore.DIALOGS, "tx1"));
+		while (!listeners[1].removed.contains(BuddyStore.DIALOGS + "tx1") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(listeners[1].removed.contains(BuddyStore.DIALOGS + "tx1"));
+	}
+
+	public void testOlderRevisionIgnored() throws Exception {
+		put(0, "dialog1", 2);
+		waitForEntry(1, "dialog1");
+		assertFalse(stores[1].apply(BuddyStore.DIALOGS, "dialog1", new BuddyEntry(new byte[0], null, replicators[0].getOrigin(), 1, false)));
+		assertEquals(2, stores[1].get(BuddyStore.DIALOGS, "dialog1").getRevision());
+	}
+
+	public void testBuddyResynchronizedOnRestart() throws Exception {
+		put(0, "dialog1", 1);
+		waitForEntry(1, "dialog1");
+		replicators[1].stop();
+		// written while the buddy is down
+		put(0, "dialog2", 2);
+		startMember(1);
+		waitForEntry(1, "dialog1");
+		waitForEntry(1, "dialog2");
+	}
+
+	public void testRestartedMemberEntriesKept() throws Exception {
+		put(0, "dialog1", 1);
+		waitForEntry(1, "dialog1");
+		replicators[0].stop();
+		// the dialogs of the member are still to be taken over by the other members once it restarted
+		startMember(0);
+		put(0, "dialog2", 2);
+		waitForEntry(1, "dialog2");
+		assertNotNull(stores[1].get(BuddyStore.DIALOGS, "dialog1"));
+	}
+
+	public void testFetchReturnsTheFirstEntry() throws Exception {
+		put(0, "dialog1", 1);
+		waitForEntry(1, "dialog1");
+		// the first member is down, the fetch doesn't wait for it once its buddy replied
+		replicators[0].stop();
+		final long start = System.currentTimeMillis();
+		assertNotNull(replicators[2].fetch(BuddyStore.DIALOGS, "dialog1"));
+		assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+	}
+
+	public void testClassesNotAllowedRejected() throws Exception {
+		final BuddyEntry entry = new BuddyEntry(new byte[] {1}, new Point(1, 2), "a", 1, false);
+		final ByteBuffer frame = BuddyMessage.put(BuddyStore.DIALOGS, "dialog1", entry).encode();
+		final byte[] body = new byte[frame.limit() - 4];
+		frame.position(4);
+		frame.get(body);
+		try {
+			BuddyMessage.decode(body, new ClassAllowList(null));
+			fail("the application data class isn't allowed");
+		} catch (InvalidClassException e) {
+			assertEquals(Point.class.getName(), e.classname);
+		}
+		assertEquals(new Point(1, 2), BuddyMessage.decode(body, new ClassAllowList(" java.awt.Point ")).getEntry().getApplicationData());
+		assertEquals(new Point(1, 2), BuddyMessage.decode(body, new ClassAllowList("java.awt.")).getEntry().getApplicationData());
+		assertTrue(new ClassAllowList(null).isAllowed("[[B"));
+		assertTrue(new ClassAllowList(null).isAllowed("[Ljava.lang.String;"));
+		assertFalse(new ClassAllowList(null).isAllowed("[Ljava.awt.Point;"));
+	}
+
+	public void testRingMembers() throws Exception {
+		final BuddyRing ring = new BuddyRing(members[0] + "," + members[1], members[0]);
+		assertTrue(ring.isMember(InetAddress.getByName("127.0.0.1")));
+		assertFalse(ring.isMember(InetAddress.getByName("10.1.2.3")));
+	}
+
+	private void startMember(int i) throws IOException {
+		stores[i] = new HeapBuddyStore();
+		listeners[i] = new RecordingListener();
+		final StringBuilder ring = new StringBuilder();
+		for (String member : members) {
+			ring.append(member).append(',');
+		}
+		replicators[i] = new BuddyReplicator(new BuddyRing(ring.toString(), members[i]), 1, stores[i], listeners[i], TIMEOUT, 1024, new ClassAllowList(null));
+		replicators[i].start();
+	}
+
+	private void put(int i, String key, long revision) {
+		final BuddyEntry entry = new BuddyEntry(new byte[] {1, 2, 3}, "appData", replicators[i].getOrigin(), revision, false);
+		stores[i].put(BuddyStore.DIALOGS, key, entry);
+		replicators[i].replicate(BuddyMessage.put(BuddyStore.DIALOGS, key, entry), false);
+	}
+
+	private void waitForEntry(int i, String key) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + WAIT;
+		while (stores[i].get(BuddyStore.DIALOGS, key) == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNotNull(key + " not replicated to " + members[i], stores[i].get(BuddyStore.DIALOGS, key));
+	}
+
+	private static int freePort() throws IOException {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static class RecordingListener implements BuddyListener {
+		final Map<String, String> replicated = Collections.synchronizedMap(new HashMap<String, String>());
+		final Set<String> removed = Collections.synchronizedSet(new HashSet<String>());
+
+		public void entryReplicated(byte region, String key, BuddyEntry entry) {
+			replicated.put(region + key, key);
+		}
+
+		public void entryRemoved(byte region, String key) {
+			removed.add(region + key);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.buddy;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Conditional operations of the off heap store and reuse of its slabs
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class OffHeapBuddyStoreTest extends TestCase {
+
+	private static final int SLAB_SIZE = 16 * 1024;
+
+	private OffHeapBuddyStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		store = new OffHeapBuddyStore(SLAB_SIZE, 4 * SLAB_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+	}
+
+	private static BuddyEntry entry(Object state, String origin, long revision) {
+		return new BuddyEntry(state, null, origin, revision, false);
+	}
+
+	public void testConditionalOperations() throws Exception {
+		final BuddyEntry first = entry("1", "a", 1);
+		assertNull(store.putIfAbsent(BuddyStore.DIALOGS, "dialog", first));
+		assertEquals(first, store.putIfAbsent(BuddyStore.DIALOGS, "dialog", entry("2", "a", 2)));
+		// entries read back from the store are other instances
+		final BuddyEntry stored = store.get(BuddyStore.DIALOGS, "dialog");
+		assertEquals("1", stored.getState());
+		assertFalse(store.replace(BuddyStore.DIALOGS, "dialog", entry("0", "a", 0), entry("2", "a", 2)));
+		assertTrue(store.replace(BuddyStore.DIALOGS, "dialog", stored, entry("2", "a", 2)));
+		assertEquals("2", store.get(BuddyStore.DIALOGS, "dialog").getState());
+		// regions don't share their keys
+		assertNull(store.get(BuddyStore.SERVER_TRANSACTIONS, "dialog"));
+		assertEquals(1, store.size(BuddyStore.DIALOGS));
+		assertEquals(0, store.size(BuddyStore.SERVER_TRANSACTIONS));
+		assertEquals("2", store.remove(BuddyStore.DIALOGS, "dialog").getState());
+		assertNull(store.remove(BuddyStore.DIALOGS, "dialog"));
+	}
+
+	public void testApplyKeepsTheHighestRevision() throws Exception {
+		assertTrue(store.apply(BuddyStore.DIALOGS, "dialog", entry("2", "a", 2)));
+		assertFalse(store.apply(BuddyStore.DIALOGS, "dialog", entry("1", "b", 1)));
+		assertTrue(store.apply(BuddyStore.DIALOGS, "dialog", entry("3", "b", 3)));
+		assertEquals("3", store.get(BuddyStore.DIALOGS, "dialog").getState());
+	}
+
+	public void testEntriesOfAnOrigin() throws Exception {
+		store.put(BuddyStore.DIALOGS, "dialog1", entry("1", "a", 1));
+		store.put(BuddyStore.CLIENT_TRANSACTIONS, "transaction1", entry("1", "a", 2));
+		store.put(BuddyStore.DIALOGS, "dialog2", entry("1", "b", 1));
+		final List<BuddyMessage> puts = store.getPuts("a");
+		assertEquals(2, puts.size());
+		store.removeAll("a");
+		assertNull(store.get(BuddyStore.DIALOGS, "dialog1"));
+		assertNull(store.get(BuddyStore.CLIENT_TRANSACTIONS, "transaction1"));
+		assertNotNull(store.get(BuddyStore.DIALOGS, "dialog2"));
+	}
+
+	public void testSlabsAreReused() throws Exception {
+		final String state = new String(new char[1000]).replace('\0', 'x');
+		// way more than the 4 slabs allowed, each write making the previous one garbage
+		for (int i = 0; i < 1000; i++) {
+			store.put(BuddyStore.DIALOGS, "dialog" + (i % 3), entry(state, "a", i));
+			if (i % 10 == 0) {
+				// what the compaction thread does, without waiting for it
+				store.compact();
+			}
+		}
+		assertTrue(store.getAllocatedSize() <= 4 * SLAB_SIZE);
+		assertEquals(3, store.size(BuddyStore.DIALOGS));
+		assertEquals(999L, store.get(BuddyStore.DIALOGS, "dialog0").getRevision());
+	}
+
+	public void testFullStore() throws Exception {
+		final String state = new String(new char[1000]).replace('\0', 'x');
+		try {
+			for (int i = 0; i < 100; i++) {
+				store.put(BuddyStore.DIALOGS, "dialog" + i, entry(state, "a", i));
+			}
+			fail("the 100 entries don't fit in 4 slabs");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
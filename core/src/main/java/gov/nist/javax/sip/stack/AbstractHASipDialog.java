@@ -26,6 +26,8 @@ import gov.nist.core.CommonLogger;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.header.Contact;
+import gov.nist.javax.sip.header.RecordRoute;
+import gov.nist.javax.sip.header.RecordRouteList;
 import gov.nist.javax.sip.header.Route;
 import gov.nist.javax.sip.header.RouteList;
 import gov.nist.javax.sip.header.SIPHeader;
@@ -34,10 +36,9 @@ import gov.nist.javax.sip.parser.EventParser;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sip.DialogState;
@@ -47,13 +48,18 @@ import javax.sip.SipException;
 import javax.sip.SipFactory;
 import javax.sip.address.Address;
 import javax.sip.address.AddressFactory;
+import javax.sip.address.URI;
+import javax.sip.header.CSeqHeader;
 import javax.sip.header.ContactHeader;
 import javax.sip.header.EventHeader;
 import javax.sip.header.HeaderFactory;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.DialogReplicationMode;
 import org.mobicents.ha.javax.sip.HASipDialog;
-import org.mobicents.ha.javax.sip.ReplicationStrategy;
+import org.mobicents.ha.javax.sip.cache.CoalescedReplication;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.message.MessageProjection;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -62,29 +68,6 @@ import org.mobicents.ha.javax.sip.ReplicationStrategy;
 public abstract class AbstractHASipDialog extends SIPDialog implements HASipDialog {
 	private static StackLogger logger = CommonLogger.getLogger(AbstractHASipDialog.class);
 	private static final long serialVersionUID = 1L;	
-	public static final String B2BUA = "b2b";
-	public static final String EVENT_HEADER = "eh";	
-	public static final String REMOTE_TARGET = "rt";
-	public static final String TERMINATE_ON_BYE = "tob";
-	public static final String ROUTE_LIST = "rl";
-	public static final String IS_REINVITE = "ir";
-	public static final String LAST_RESPONSE = "lr";
-	public static final String IS_SERVER = "is";
-	public static final String IS_LATEST_TX_SERVER = "ilts";
-	public static final String FIRST_TX_METHOD = "ftm";
-	public static final String FIRST_TX_ID = "ftid";
-	public static final String FIRST_TX_PORT = "ftp";
-	public static final String FIRST_TX_SECURE = "fts";
-	public static final String CONTACT_HEADER = "ch";
-	public static final String LOCAL_TAG = "ltag";
-	public static final String REMOTE_TAG = "rtag";
-	public static final String VERSION = "v";
-	public static final String REMOTE_CSEQ = "rc";
-	public static final String LOCAL_CSEQ = "lc";
-	public static final String DIALOG_METHOD = "dm";
-	public static final String ENABLE_CSEQ_VALIDATION = "dc";
-	public static final String DIALOG_STATE = "ds";
-
 	public boolean b2buaChanged;
 	public boolean eventChanged;	
 	public boolean remoteTargetChanged;
@@ -93,12 +76,43 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	public boolean storeFirstTxChanged;
 	public boolean dialogStateChanged;	
 	public boolean isLatestTxServer;
+	private boolean lastResponseProjectionChanged;
+	
+	private static final int FIRST_TX_FIELDS = DialogReplicationState.IS_SERVER | DialogReplicationState.FIRST_TX_SECURE | DialogReplicationState.FIRST_TX_ID
+		| DialogReplicationState.ENABLE_CSEQ_VALIDATION | DialogReplicationState.FIRST_TX_METHOD | DialogReplicationState.CONTACT_HEADER;
+	// fields changed since the last write acknowledged by the cache
+	// no initializers on purpose, the SIPDialog constructor calls some of the overriden methods before they would run
+	private volatile int dirtyFields;
+	// version of the last record each field has been collected in after a change, indexed by bit, also guards dirtyFields.
+	// An acknowledged record only clears the fields that didn't change again after it has been built.
+	// Its initializer runs after the SIPDialog constructor, no record is built before
+	private final long[] fieldChangeVersions = new long[Integer.SIZE];
+	private volatile long acknowledgedVersion;
+	private String[] acknowledgedRouteList;
+	private boolean acknowledgedLatestTxServer;
+	private String acknowledgedRemoteTag;
+	private String acknowledgedLocalTag;
+	private long acknowledgedRemoteCSeq;
+	private long acknowledgedLocalCSeq;
 	
 	static AddressFactory addressFactory = null;
 	static HeaderFactory headerFactory = null;		
 	boolean isCreated = false;
 	private AtomicLong version = new AtomicLong(0);
-	private String lastResponseStringified = null;
+	private byte[] lastResponseProjection = null;
+	// latest recovery relevant response not projected yet and the header values it is compared on
+	// no initializers on purpose, see above
+	private volatile SIPResponse lastResponseToProject;
+	private ResponseFingerprint lastResponseFingerprint;
+	// null until narrowed by the application or a replication profile
+	private volatile DialogReplicationMode replicationMode;
+	private volatile CoalescedReplication provisionalReplication;
+	// dialog recovered along with this one, see setLinkedDialog, no initializers on purpose, see above
+	private volatile HASipDialog linkedDialog;
+	private volatile String linkedDialogId;
+	private boolean linkedDialogChanged;
+	// true once a write of the dialog has been handed to the cache, no initializers on purpose, see above
+	private volatile boolean writeSubmitted;
 	
 	static {		
 		try {
@@ -148,37 +162,94 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 //		ackSeen = true;
 	}			
 
-	@SuppressWarnings("unchecked")
-	public Map<String,Object> getMetaDataToReplicate() {
-		Map<String,Object> dialogMetaData = new HashMap<String,Object>();
-		dialogMetaData.put(VERSION, Long.valueOf(version.incrementAndGet()));
+	public DialogReplicationState getMetaDataToReplicate() {
+		// nothing has been acknowledged by the cache yet, so the cache can't hold anything to apply a delta on
+		return getMetaDataToReplicate(acknowledgedVersion == 0);
+	}
+	
+	public DialogReplicationState getFullMetaDataToReplicate() {
+		return getMetaDataToReplicate(true);
+	}
+	
+	/**
+	 * Builds the record to replicate. The dirty flags set since the last call are moved to the dirty fields,
+	 * which are cleared only once the cache acknowledged the write through {@link #metaDataReplicated(DialogReplicationState)}
+	 * so that a failed write is retried on the next replication.
+	 * @param fullSnapshot if true all fields are put in the record, otherwise only the ones that changed since the last acknowledged write
+	 * @return the record to replicate
+	 */
+	private DialogReplicationState getMetaDataToReplicate(boolean fullSnapshot) {
+		final DialogReplicationState dialogMetaData = new DialogReplicationState(version.incrementAndGet());
+		dialogMetaData.setBaseVersion(acknowledgedVersion);
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : version " + version);
+			logger.logDebug(getDialogIdToReplicate() + " : version " + version + ", base version " + acknowledgedVersion + ", full snapshot " + fullSnapshot);
 		}
+		int fields = 0;
 		if(dialogStateChanged) {
-			dialogMetaData.put(DIALOG_STATE, Integer.valueOf(getState().getValue()));
+			dialogStateChanged = false;
+			fields |= DialogReplicationState.DIALOG_STATE;
+		}
+		if(lastResponseProjectionChanged) {
+			lastResponseProjectionChanged = false;
+			fields |= DialogReplicationState.LAST_RESPONSE;
+		}
+		if(isReinviteChanged) {
+			isReinviteChanged = false;
+			fields |= DialogReplicationState.IS_REINVITE;
+		}
+		if(terminateOnByeChanged) {
+			terminateOnByeChanged = false;
+			fields |= DialogReplicationState.TERMINATE_ON_BYE;
+		}
+		if(remoteTargetChanged) {
+			remoteTargetChanged = false;
+			fields |= DialogReplicationState.REMOTE_TARGET;
+		}
+		if(eventChanged) {
+			eventChanged = false;
+			fields |= DialogReplicationState.EVENT_HEADER;
+		}
+		if(b2buaChanged) {
+			b2buaChanged = false;
+			fields |= DialogReplicationState.B2BUA;
+		}
+		if(storeFirstTxChanged) {
+			storeFirstTxChanged = false;
+			fields |= FIRST_TX_FIELDS;
+		}
+		if(linkedDialogChanged) {
+			linkedDialogChanged = false;
+			fields |= DialogReplicationState.LINKED_DIALOG_ID;
+		}
+		fields = addDirtyFields(fields, dialogMetaData.getVersion());
+		if(fullSnapshot) {
+			fields = DialogReplicationState.ALL_FIELDS;
+		}
+		
+		if((fields & DialogReplicationState.DIALOG_STATE) != 0) {
+			dialogMetaData.setDialogState(getState() == null ? -1 : getState().getValue());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : dialogState " + getState());
 			}
-			dialogStateChanged = false;
 		}
-		boolean firstTimeReplication = version.get() == 1;		
-		if(firstTimeReplication) {
-			dialogMetaData.put(DIALOG_METHOD, getMethod());
+		if((fields & DialogReplicationState.DIALOG_METHOD) != 0) {
+			dialogMetaData.setDialogMethod(getMethod());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : dialog method " + getMethod());
 			}
 		}
-		dialogMetaData.put(LAST_RESPONSE, getLastResponseStringified());
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : lastResponse " + getLastResponseStringified());
+		if((fields & DialogReplicationState.LAST_RESPONSE) != 0) {
+			final byte[] lastResponse = getLastResponseProjection();
+			dialogMetaData.setLastResponse(lastResponse);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : lastResponse projection of " + (lastResponse == null ? 0 : lastResponse.length) + " bytes");
+			}
 		}
-		if(isReinviteChanged) {
-			dialogMetaData.put(IS_REINVITE, isReInvite());
+		if((fields & DialogReplicationState.IS_REINVITE) != 0) {
+			dialogMetaData.setReInvite(isReInvite());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isReInvite " + isReInvite());
 			}
-			isReinviteChanged = false;
 		}
 		final List<SIPHeader> routeList = new ArrayList<SIPHeader>();
 		final Iterator<SIPHeader> it = getRouteSet();
@@ -191,146 +262,262 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		for (SIPHeader sipHeader : routeList) {
 			routes[i++] = sipHeader.getHeaderValue().toString();
 		}
-		dialogMetaData.put(ROUTE_LIST, routes);
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : routes " + routes);
+		if((fields & DialogReplicationState.ROUTE_LIST) != 0 || !Arrays.equals(routes, acknowledgedRouteList)) {
+			dialogMetaData.setRouteList(routes);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : routes " + Arrays.toString(routes));
+			}
 		}
-		if(terminateOnByeChanged) {
-			dialogMetaData.put(TERMINATE_ON_BYE, Boolean.valueOf(isTerminatedOnBye()));
+		if((fields & DialogReplicationState.TERMINATE_ON_BYE) != 0) {
+			dialogMetaData.setTerminateOnBye(isTerminatedOnBye());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : terminateOnBye " + isTerminatedOnBye());
 			}
-			terminateOnByeChanged = false;
 		}
-		if(remoteTargetChanged) {
+		if((fields & DialogReplicationState.REMOTE_TARGET) != 0) {
 			if(getRemoteTarget() != null) {
-				dialogMetaData.put(REMOTE_TARGET, getRemoteTarget().toString());
+				dialogMetaData.setRemoteTarget(getRemoteTarget().toString());
 			} else {
-				dialogMetaData.put(REMOTE_TARGET, null);
+				dialogMetaData.setRemoteTarget(null);
 			}
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : remoteTarget " + getRemoteTarget());
 			}		
-			remoteTargetChanged = false;
 		}
-		if(eventChanged) {
+		if((fields & DialogReplicationState.EVENT_HEADER) != 0) {
 			if(getEventHeader() != null) {
-				dialogMetaData.put(EVENT_HEADER, getEventHeader().toString());
+				dialogMetaData.setEventHeader(getEventHeader().toString());
 			} else {
-				dialogMetaData.put(EVENT_HEADER, null);
+				dialogMetaData.setEventHeader(null);
 			}
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : evenHeader " + getEventHeader());
 			}
-			eventChanged = false;
 		}
-		if(b2buaChanged) {
-			dialogMetaData.put(B2BUA, Boolean.valueOf(isBackToBackUserAgent()));
+		if((fields & DialogReplicationState.B2BUA) != 0) {
+			dialogMetaData.setB2BUA(isBackToBackUserAgent());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isB2BUA " + isBackToBackUserAgent());
 			}
-			b2buaChanged = false;
 		}
-		if(storeFirstTxChanged) {
-			dialogMetaData.put(IS_SERVER, Boolean.valueOf(isServer()));
+		if((fields & FIRST_TX_FIELDS) != 0) {
+			dialogMetaData.setServer(isServer());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isServer " + isServer());
 			}
-			dialogMetaData.put(FIRST_TX_SECURE, Boolean.valueOf(firstTransactionSecure));
+			dialogMetaData.setFirstTxSecure(firstTransactionSecure);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTxSecure " + firstTransactionSecure);
 			}					
-			dialogMetaData.put(FIRST_TX_ID, firstTransactionId);
+			dialogMetaData.setFirstTxId(firstTransactionId);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTransactionId " + firstTransactionId);
 			}
-			dialogMetaData.put(ENABLE_CSEQ_VALIDATION, isSequenceNumberValidation());
+			dialogMetaData.setCSeqValidationEnabled(isSequenceNumberValidation());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : CSeq validation is " + isSequenceNumberValidation());
 			}
-			dialogMetaData.put(FIRST_TX_METHOD, firstTransactionMethod);
+			dialogMetaData.setFirstTxMethod(firstTransactionMethod);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTransactionMethod " + firstTransactionMethod);
 			}
 			if(contactHeader != null) {
 				// http://code.google.com/p/jain-sip/issues/detail?id=38
-				dialogMetaData.put(CONTACT_HEADER, contactHeader.getHeaderValue());
+				dialogMetaData.setContactHeader(contactHeader.getHeaderValue());
+			} else if(fullSnapshot) {
+				dialogMetaData.setContactHeader(null);
 			}
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : contactHeader " + contactHeader);
 			}
-			storeFirstTxChanged = false;
 		}		
-		dialogMetaData.put(IS_LATEST_TX_SERVER, Boolean.valueOf(isLatestTxServer));
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : isLatestTxServer " + isLatestTxServer);
+		if((fields & DialogReplicationState.IS_LATEST_TX_SERVER) != 0 || acknowledgedLatestTxServer != isLatestTxServer) {
+			dialogMetaData.setLatestTxServer(isLatestTxServer);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : isLatestTxServer " + isLatestTxServer);
+			}
 		}
-		dialogMetaData.put(REMOTE_TAG, getRemoteTag());
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : remoteTag " + getRemoteTag());
+		if((fields & DialogReplicationState.REMOTE_TAG) != 0 || !equals(getRemoteTag(), acknowledgedRemoteTag)) {
+			dialogMetaData.setRemoteTag(getRemoteTag());
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : remoteTag " + getRemoteTag());
+			}
 		}
-		dialogMetaData.put(LOCAL_TAG, getLocalTag());
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : localTag " + getLocalTag());
+		if((fields & DialogReplicationState.LOCAL_TAG) != 0 || !equals(getLocalTag(), acknowledgedLocalTag)) {
+			dialogMetaData.setLocalTag(getLocalTag());
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : localTag " + getLocalTag());
+			}
 		}
-		dialogMetaData.put(REMOTE_CSEQ, Long.valueOf(getRemoteSeqNumber()));
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : remoteCSeq " + getRemoteSeqNumber());
+		if((fields & DialogReplicationState.REMOTE_CSEQ) != 0 || getRemoteSeqNumber() != acknowledgedRemoteCSeq) {
+			dialogMetaData.setRemoteCSeq(getRemoteSeqNumber());
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : remoteCSeq " + getRemoteSeqNumber());
+			}
 		}
-		dialogMetaData.put(LOCAL_CSEQ, Long.valueOf(getLocalSeqNumber()));
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : localCSeq " + getLocalSeqNumber());
+		if((fields & DialogReplicationState.LOCAL_CSEQ) != 0 || getLocalSeqNumber() != acknowledgedLocalCSeq) {
+			dialogMetaData.setLocalCSeq(getLocalSeqNumber());
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : localCSeq " + getLocalSeqNumber());
+			}
+		}
+		if((fields & DialogReplicationState.LINKED_DIALOG_ID) != 0) {
+			dialogMetaData.setLinkedDialogId(linkedDialogId);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : linked dialog " + linkedDialogId);
+			}
 		}
 		
 		return dialogMetaData;
 	}
+	
+	/**
+	 * Called by the cache once the record passed in param has been written,
+	 * the fields it carries are not dirty anymore unless they changed again since, and its version becomes the base version of the next delta.
+	 * A record acknowledged after a newer one is ignored, the cache already holds what it carries.
+	 * @param dialogMetaData the record that has been written to the cache
+	 */
+	public void metaDataReplicated(DialogReplicationState dialogMetaData) {
+		synchronized (fieldChangeVersions) {
+			if(dialogMetaData.getVersion() <= acknowledgedVersion) {
+				if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug(getDialogIdToReplicate() + " : version " + dialogMetaData.getVersion() + " acknowledged after version " + acknowledgedVersion + ", ignored");
+				}
+				return;
+			}
+			removeDirtyFields(dialogMetaData.getFieldMask(), dialogMetaData.getVersion());
+			acknowledgeValues(dialogMetaData);
+		}
+		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug(getDialogIdToReplicate() + " : version " + dialogMetaData.getVersion() + " acknowledged by the cache");
+		}
+	}
+	
+	/**
+	 * Keeps the values carried by the record passed in param as the ones the cache knows about,
+	 * the fields that are always replicated are compared against them to know if they changed
+	 */
+	private void acknowledgeValues(DialogReplicationState dialogMetaData) {
+		if(dialogMetaData.isSet(DialogReplicationState.ROUTE_LIST)) {
+			acknowledgedRouteList = dialogMetaData.getRouteList();
+		}
+		if(dialogMetaData.isSet(DialogReplicationState.IS_LATEST_TX_SERVER)) {
+			acknowledgedLatestTxServer = dialogMetaData.isLatestTxServer();
+		}
+		if(dialogMetaData.isSet(DialogReplicationState.REMOTE_TAG)) {
+			acknowledgedRemoteTag = dialogMetaData.getRemoteTag();
+		}
+		if(dialogMetaData.isSet(DialogReplicationState.LOCAL_TAG)) {
+			acknowledgedLocalTag = dialogMetaData.getLocalTag();
+		}
+		if(dialogMetaData.isSet(DialogReplicationState.REMOTE_CSEQ)) {
+			acknowledgedRemoteCSeq = dialogMetaData.getRemoteCSeq();
+		}
+		if(dialogMetaData.isSet(DialogReplicationState.LOCAL_CSEQ)) {
+			acknowledgedLocalCSeq = dialogMetaData.getLocalCSeq();
+		}
+		if(dialogMetaData.getVersion() > acknowledgedVersion) {
+			acknowledgedVersion = dialogMetaData.getVersion();
+		}
+	}
+	
+	/**
+	 * Record that a write of this dialog is about to be handed to the cache, directly or through the write behind queue,
+	 * to be called before the write so that a concurrent removal of the dialog knows it has to remove it from the cache
+	 */
+	public void writeSubmitted() {
+		writeSubmitted = true;
+	}
+	
+	/**
+	 * @return true if the cache may hold an entry for this dialog, because a write of it has been submitted or it has been loaded from the cache
+	 */
+	public boolean isStoredInCache() {
+		return writeSubmitted || acknowledgedVersion > 0;
+	}
+	
+	/**
+	 * @param changedFields the fields that changed since the last record has been built
+	 * @param version the version of the record being built
+	 * @return the fields to put in the record, the ones that changed and the ones not acknowledged yet
+	 */
+	private int addDirtyFields(int changedFields, long version) {
+		synchronized (fieldChangeVersions) {
+			for (int remaining = changedFields; remaining != 0; remaining &= remaining - 1) {
+				fieldChangeVersions[Integer.numberOfTrailingZeros(remaining)] = version;
+			}
+			dirtyFields |= changedFields;
+			return dirtyFields;
+		}
+	}
+	
+	/**
+	 * @param fields the fields carried by the acknowledged record
+	 * @param version the version of the acknowledged record
+	 */
+	private void removeDirtyFields(int fields, long version) {
+		synchronized (fieldChangeVersions) {
+			int cleared = 0;
+			for (int remaining = fields & dirtyFields; remaining != 0; remaining &= remaining - 1) {
+				final int bit = Integer.numberOfTrailingZeros(remaining);
+				if(fieldChangeVersions[bit] <= version) {
+					cleared |= 1 << bit;
+				}
+			}
+			dirtyFields &= ~cleared;
+		}
+	}
+	
+	private static boolean equals(String value, String otherValue) {
+		return value == null ? otherValue == null : value.equals(otherValue);
+	}
 
 	public Object getApplicationDataToReplicate() {
 		return getApplicationData();
 	}
 	
-	public void setMetaDataToReplicate(Map<String, Object> metaData, boolean recreation) {
-		final ReplicationStrategy replicationStrategy = ((ClusteredSipStack)getStack()).getReplicationStrategy();
-		if(replicationStrategy == ReplicationStrategy.EarlyDialog) {
-			Integer dialogState = (Integer) metaData.get(DIALOG_STATE);
-			if(dialogState!= null) {
+	public void setMetaDataToReplicate(DialogReplicationState metaData, boolean recreation) {
+		if(getReplicationMode() == DialogReplicationMode.EARLY) {
+			if(metaData.isSet(DialogReplicationState.DIALOG_STATE) && metaData.getDialogState() >= 0) {
 				// the call to super is very important otherwise it triggers replication on dialog recreation
-				super.setState(dialogState);				
+				super.setState(metaData.getDialogState());				
 			} 
 		} else {
 			// the call to super is very important otherwise it triggers replication on dialog recreation
 			super.setState(DialogState._CONFIRMED);
 		}
-		lastResponseStringified = (String) metaData.get(LAST_RESPONSE);
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : lastResponse " + lastResponseStringified);
+		if(metaData.isSet(DialogReplicationState.LAST_RESPONSE)) {
+			lastResponseProjection = metaData.getLastResponse();
+			lastResponseToProject = null;
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : lastResponse projection of " + (lastResponseProjection == null ? 0 : lastResponseProjection.length) + " bytes");
+			}
 		}
-		String dialogMethod = (String) metaData.get(DIALOG_METHOD);
+		String dialogMethod = metaData.getDialogMethod();
 		if(dialogMethod!= null) {
 			method = dialogMethod;		
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : dialog method " + method);
 			}
 		}
-		version = new AtomicLong((Long)metaData.get(VERSION));
+		version = new AtomicLong(metaData.getVersion());
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : version " + version);
 		}
-		final Boolean isB2BUA = (Boolean) metaData.get(B2BUA);
-		if(isB2BUA != null && isB2BUA == Boolean.TRUE) {
+		if(metaData.isSet(DialogReplicationState.B2BUA) && metaData.isB2BUA()) {
 			setBackToBackUserAgent();
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-				logger.logDebug(getDialogIdToReplicate() + " : isB2BUA " + isB2BUA);
+				logger.logDebug(getDialogIdToReplicate() + " : isB2BUA true");
 			}
 		}		
-		final Boolean isReinvite = (Boolean) metaData.get(IS_REINVITE);
-		if(isReinvite != null) {
+		if(metaData.isSet(DialogReplicationState.IS_REINVITE)) {
+			final boolean isReinvite = metaData.isReInvite();
 			super.setReInviteFlag(isReinvite);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isReInvite " + isReinvite);
 			}
 		}		
-		final String eventHeaderStringified = (String) metaData.get(EVENT_HEADER);
+		final String eventHeaderStringified = metaData.getEventHeader();
 		if(eventHeaderStringified != null) {
 			try {
 				super.setEventHeader((EventHeader)new EventParser(eventHeaderStringified).parse());
@@ -341,7 +528,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 				logger.logDebug(getDialogIdToReplicate() + " : evenHeader " + eventHeaderStringified);
 			}	
 		}			
-		final String remoteTargetCache = (String) metaData.get(REMOTE_TARGET);
+		final String remoteTargetCache = metaData.getRemoteTarget();
 		if(remoteTargetCache != null) {
 			Contact contact = new Contact();
 			try {
@@ -355,8 +542,8 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 				logger.logDebug(getDialogIdToReplicate() + " : remoteTarget " + remoteTargetStringified);
 			}
 		}		
-		final Boolean terminateOnBye = (Boolean) metaData.get(TERMINATE_ON_BYE);
-		if(terminateOnBye != null) {
+		if(metaData.isSet(DialogReplicationState.TERMINATE_ON_BYE)) {
+			final boolean terminateOnBye = metaData.isTerminateOnBye();
 			try {
 				terminateOnBye(terminateOnBye);
 			} catch (SipException e) {
@@ -366,7 +553,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 				logger.logDebug(getDialogIdToReplicate() + " : terminateOnBye " + terminateOnBye);
 			}
 		}		
-		final String[] routes = (String[]) metaData.get(ROUTE_LIST);
+		final String[] routes = metaData.getRouteList();
 		if(routes != null) {			
 			final RouteList routeList = new RouteList();			
 			for (String route : routes) {
@@ -381,30 +568,30 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : routes " + routes);
 		}
-		final Boolean isServer = (Boolean) metaData.get(IS_SERVER);
-		if(isServer != null) {
+		if(metaData.isSet(DialogReplicationState.IS_SERVER)) {
+			final boolean isServer = metaData.isServer();
 			firstTransactionSeen = true;
-			firstTransactionIsServerTransaction = isServer.booleanValue();
-			super.setServerTransactionFlag(isServer.booleanValue());
+			firstTransactionIsServerTransaction = isServer;
+			super.setServerTransactionFlag(isServer);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-				logger.logDebug(getDialogIdToReplicate() + " : isServer " + isServer.booleanValue());
+				logger.logDebug(getDialogIdToReplicate() + " : isServer " + isServer);
 			}
 		}				
-		final Boolean firstTxSecure = (Boolean) metaData.get(FIRST_TX_SECURE);
-		if(firstTxSecure != null) {
+		if(metaData.isSet(DialogReplicationState.FIRST_TX_SECURE)) {
+			final boolean firstTxSecure = metaData.isFirstTxSecure();
 			firstTransactionSecure = firstTxSecure;
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTxSecure " + firstTxSecure);
 			}
 		}		
-		final String firstTxId = (String) metaData.get(FIRST_TX_ID);
+		final String firstTxId = metaData.getFirstTxId();
 		if(firstTxId != null) {
 			firstTransactionId = firstTxId;
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTransactionId " + firstTransactionId);
 			}
 		}
-		final String firstTxMethod = (String) metaData.get(FIRST_TX_METHOD);
+		final String firstTxMethod = metaData.getFirstTxMethod();
 		if(firstTxMethod != null) { 
 			firstTransactionMethod = firstTxMethod;
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
@@ -412,7 +599,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			}
 		}
 		if(recreation) {
-			isLatestTxServer = (Boolean) metaData.get(IS_LATEST_TX_SERVER);
+			isLatestTxServer = metaData.isLatestTxServer();
 			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug("HA SIP Dialog is Server ? " + isServer() + ", isLatestTxServer ? " + isLatestTxServer);
 			}
@@ -434,59 +621,61 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		}
 	
 
-		String remoteTag = (String) metaData.get(REMOTE_TAG);
+		String remoteTag = metaData.getRemoteTag();
 		setRemoteTagInternal(remoteTag);
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : remoteTag " + getRemoteTag());
 		}
-		String localTag = (String) metaData.get(LOCAL_TAG);
+		String localTag = metaData.getLocalTag();
 		setLocalTagInternal(localTag);
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : localTag " + getLocalTag());
 		}
-		Long remoteCSeq = (Long) metaData.get(REMOTE_CSEQ);
-		if(remoteCSeq != null) {
-			long cseq = remoteCSeq.longValue();
-			if(getRemoteSeqNumber()>cseq) {
-				if (logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
-					logger.logInfo("Concurrency problem. Nodes are out" +
-							" of sync. We will assume the local CSeq is the valid one. Enable request affinity to avoid this problem, remoteSequenceNumber=" + 
-							getRemoteSeqNumber() + " while other node's remote CSeq" +
-									" number=" + cseq);
-				}
-				// No need to update the number, it is greater, http://code.google.com/p/restcomm/issues/detail?id=2051
-			} else {
-				setRemoteSequenceNumber(cseq);
-			}
+		// the cached CSeqs are merged as their maximum, the local ones can only be greater if they haven't been replicated yet
+		if(metaData.isSet(DialogReplicationState.REMOTE_CSEQ)) {
+			setRemoteSequenceNumber(Math.max(getRemoteSeqNumber(), metaData.getRemoteCSeq()));
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : remoteCSeq " + getRemoteSeqNumber());
 			}
 		}
-		Long localCSeq = (Long) metaData.get(LOCAL_CSEQ);
-		if(localCSeq != null) {
-			long cseq = localCSeq.longValue();
-			if(localSequenceNumber>cseq) {
-				if (logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
-					logger.logInfo("Concurrency problem. Nodes are out" +
-							" of sync. We will assume the local CSeq is the valid one. Enable request affinity to avoid this problem, localSequenceNumber=" 
-							+ localSequenceNumber+ " while other node's local CSeq" +
-									" number=" + cseq);
-				}
-				// No need to update the number, it is greater, http://code.google.com/p/restcomm/issues/detail?id=2051
-			} else {
-				localSequenceNumber = cseq;
-			}
+		if(metaData.isSet(DialogReplicationState.LOCAL_CSEQ)) {
+			localSequenceNumber = Math.max(localSequenceNumber, metaData.getLocalCSeq());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : localCSeq " + getLocalSeqNumber());
 			}
 		}		
-		final Boolean enableCSeqValidation = (Boolean) metaData.get(ENABLE_CSEQ_VALIDATION);
-		if(enableCSeqValidation != null) {
+		if(metaData.isSet(DialogReplicationState.ENABLE_CSEQ_VALIDATION)) {
+			final boolean enableCSeqValidation = metaData.isCSeqValidationEnabled();
 			if(!enableCSeqValidation) disableSequenceNumberValidation();
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : CSeq validation is " + enableCSeqValidation);
 			}
 		}
+		if(metaData.isSet(DialogReplicationState.LINKED_DIALOG_ID)) {
+			linkedDialogId = metaData.getLinkedDialogId();
+			if(linkedDialog != null && !linkedDialog.getDialogIdToReplicate().equals(linkedDialogId)) {
+				linkedDialog = null;
+			}
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : linked dialog " + linkedDialogId);
+			}
+		}
+		// the dialog is now in sync with the cache, next replications only need to carry what changes from here
+		acknowledgeValues(metaData);
+		if(recreation) {
+			synchronized (fieldChangeVersions) {
+				dirtyFields = 0;
+			}
+			dialogStateChanged = false;
+			lastResponseProjectionChanged = false;
+			isReinviteChanged = false;
+			terminateOnByeChanged = false;
+			remoteTargetChanged = false;
+			eventChanged = false;
+			b2buaChanged = false;
+			storeFirstTxChanged = false;
+			linkedDialogChanged = false;
+		}
 	}
 	
 	public void setApplicationDataToReplicate(Object appData) {
@@ -543,38 +732,58 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			boolean lastResponseChanged = false;
 			long previousVersion = version.get(); 			
 			// for 2xx w/o 1xx
-			final ReplicationStrategy replicationStrategy = ((ClusteredSipStack)getStack()).getReplicationStrategy();
-			// set to confirmed dialog strategy at least
+				// set to confirmed dialog strategy at least
 			int lowerStatusCodeToReplicateOn = 200;
-			if(replicationStrategy == ReplicationStrategy.EarlyDialog) {
+			if(getReplicationMode() == DialogReplicationMode.EARLY) {
 				lowerStatusCodeToReplicateOn = 101; 
 			}
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(dialogId  + " lowerStatusCodeToReplicateOn = " + lowerStatusCodeToReplicateOn);
-				logger.logDebug(dialogId  + " lastResponseStr = " + lastResponseStringified);
+				logger.logDebug(dialogId  + " lastResponseFingerprint = " + lastResponseFingerprint);
 				logger.logDebug(dialogId  + " sipResponse = " + sipResponse);
 			}
-			if(sipResponse != null && getLastResponseStringified() == null && sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn) {
-				lastResponseChanged = true;
-			}
-			String responseStringified = sipResponse.toString(); 
-			if(sipResponse != null && getLastResponseStringified() != null && sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn && !responseStringified.equals(this.getLastResponseStringified())) {
+			// retransmissions and responses to in dialog requests such as INFO or NOTIFY don't change what is needed to recreate the dialog
+			// so they are detected from a few header values instead of comparing the whole response text 
+			final ResponseFingerprint fingerprint = new ResponseFingerprint(sipResponse);
+			final boolean recoveryRelevant = fingerprint.isRecoveryRelevantChange(lastResponseFingerprint, getMethod());
+			if(recoveryRelevant && sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn) {
 				lastResponseChanged = true;
 			}		
 			super.setLastResponse(transaction, sipResponse);
-			lastResponseStringified = responseStringified;
+			if(recoveryRelevant) {
+				lastResponseFingerprint = fingerprint;
+				// the response is projected only if a replication actually carries it
+				lastResponseToProject = sipResponse;
+				lastResponseProjectionChanged = true;
+			} else if(sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn && 
+					(getLocalSeqNumber() != acknowledgedLocalCSeq || getRemoteSeqNumber() != acknowledgedRemoteCSeq)) {
+				// only the CSeqs need to be replicated, the cached last response is kept as is
+				lastResponseChanged = true;
+			}
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-				logger.logDebug(dialogId  + " lastResponseChanged = " + lastResponseChanged);
+				logger.logDebug(dialogId  + " lastResponseChanged = " + lastResponseChanged + ", recoveryRelevant = " + recoveryRelevant);
 				logger.logDebug(dialogId  + " previousVersion = " + previousVersion);
 				logger.logDebug(dialogId  + " currentVersion = " + version.get());
 			}
 			// we replicate only if the version is the same, otherwise it means lastResponse already triggered a replication by putting the dialog in the stack and therefore in the cache		
 			if(lastResponseChanged && previousVersion == version.get()) {
 				// don't consider it a retrans even if it is on the new node taking over
-				if(replicationStrategy == ReplicationStrategy.EarlyDialog) {
+				if(getReplicationMode() == DialogReplicationMode.EARLY) {
 					sipResponse.setRetransmission(false);
 				}
-				replicateState();
+				final CoalescedReplication coalescedReplication = getProvisionalReplication();
+				if(coalescedReplication == null) {
+					replicateState();
+				} else if(sipResponse.getStatusCode() < 200) {
+					// a burst of provisional responses results in a single replication at the end of the window
+					if(!coalescedReplication.defer()) {
+						replicateState();
+					}
+				} else {
+					// the final response carries the state of the provisional responses not replicated yet
+					coalescedReplication.flush();
+					replicateState();
+				}
 			}
 		}
 		// causes REINVITE after NOTIFY on failover to fail with NPE since method attribute is not yet initialized
@@ -586,6 +795,8 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	public void setLastResponse(SIPResponse lastResponse) {
 		// the call to super is very important otherwise it triggers replication on dialog recreation
 		super.setLastResponse(null, lastResponse);
+		// the response comes from the cache so the same response seen again on this node is not a change
+		lastResponseFingerprint = new ResponseFingerprint(lastResponse);
 	}	
 
 	/**
@@ -602,6 +813,76 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		return myTag != null && myTag.trim().length() > 0 ? true : false;
 	}
 	
+	/**
+	 * @return the replication coalescing the provisional responses of this dialog, null if they are not coalesced
+	 */
+	private synchronized CoalescedReplication getProvisionalReplication() {
+		if(provisionalReplication == null) {
+			final ClusteredSipStack clusteredSipStack = (ClusteredSipStack)getStack();
+			final long window = clusteredSipStack.getProvisionalReplicationWindow();
+			if(window <= 0 || clusteredSipStack.getReplicationTimer() == null) {
+				return null;
+			}
+			provisionalReplication = new CoalescedReplication(clusteredSipStack.getReplicationTimer(), window) {
+				@Override
+				protected void replicate() {
+					replicateState();
+				}
+			};
+		}
+		return provisionalReplication;
+	}
+	
+	/**
+	 * Drop the replication of the provisional responses not replicated yet, to be called once the dialog is removed
+	 */
+	public void closeProvisionalReplication() {
+		final CoalescedReplication coalescedReplication = provisionalReplication;
+		if(coalescedReplication != null) {
+			coalescedReplication.close();
+		}
+	}
+	
+	public void setReplicationMode(DialogReplicationMode replicationMode) {
+		this.replicationMode = replicationMode;
+		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug(getDialogIdToReplicate() + " : replication mode " + replicationMode);
+		}
+	}
+	
+	public DialogReplicationMode getReplicationMode() {
+		final DialogReplicationMode strategyReplicationMode = ((ClusteredSipStack)getStack()).getReplicationStrategy().getDialogReplicationMode();
+		return replicationMode == null ? strategyReplicationMode : replicationMode.narrow(strategyReplicationMode);
+	}
+	
+	public void setLinkedDialog(HASipDialog peer) {
+		final HASipDialog previousPeer = linkedDialog;
+		final String peerId = peer == null ? null : peer.getDialogIdToReplicate();
+		linkedDialog = peer;
+		if(!equals(peerId, linkedDialogId)) {
+			linkedDialogId = peerId;
+			linkedDialogChanged = true;
+		}
+		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug(getDialogIdToReplicate() + " : linked dialog " + peerId);
+		}
+		// the link goes both ways
+		if(previousPeer != null && previousPeer != peer && previousPeer.getLinkedDialog() == this) {
+			previousPeer.setLinkedDialog(null);
+		}
+		if(peer != null && peer.getLinkedDialog() != this) {
+			peer.setLinkedDialog(this);
+		}
+	}
+	
+	public HASipDialog getLinkedDialog() {
+		return linkedDialog;
+	}
+	
+	public String getLinkedDialogId() {
+		return linkedDialogId;
+	}
+	
 	/**
 	 * @return the version
 	 */
@@ -621,8 +902,16 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 //        return retval.toString().toLowerCase();
 	}
 	
-	public String getLastResponseStringified() {
-		return lastResponseStringified;
+	/**
+	 * @return the last response reduced to the headers needed to recreate the dialog, see {@link MessageProjection}
+	 */
+	public byte[] getLastResponseProjection() {
+		final SIPResponse response = lastResponseToProject;
+		if(response != null) {
+			lastResponseProjection = MessageProjection.project(response);
+			lastResponseToProject = null;
+		}
+		return lastResponseProjection;
 	}	
 	
 	@Override
@@ -662,8 +951,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	public void setState(int state) {
 		DialogState oldState = this.getState();
 		super.setState(state);
-		final ReplicationStrategy replicationStrategy = ((ClusteredSipStack)getStack()).getReplicationStrategy();
-		if(replicationStrategy == ReplicationStrategy.EarlyDialog && (oldState == null  || oldState.getValue() != state 
+		if(getReplicationMode() == DialogReplicationMode.EARLY && (oldState == null  || oldState.getValue() != state 
 			// commented as part of https://github.com/Mobicents/jain-sip.ha/pull/1
 			/*&& state != DialogState.TERMINATED.getValue()*/)) { 
 			dialogStateChanged = true;
@@ -672,4 +960,73 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			}
 		}
 	}
+	
+	/**
+	 * The values of a response that matter to recreate the dialog from it on another node,
+	 * comparing them is much cheaper than comparing the whole response text
+	 */
+	static final class ResponseFingerprint {
+		private final int statusCode;
+		private final long seqNumber;
+		private final String method;
+		private final String toTag;
+		private final URI contactURI;
+		private final RecordRouteList recordRouteList;
+		
+		ResponseFingerprint(SIPResponse sipResponse) {
+			statusCode = sipResponse.getStatusCode();
+			final CSeqHeader cseq = sipResponse.getCSeq();
+			seqNumber = cseq == null ? -1 : cseq.getSeqNumber();
+			method = cseq == null ? null : cseq.getMethod();
+			toTag = sipResponse.getToTag();
+			final Contact contact = sipResponse.getContactHeader();
+			contactURI = contact == null || contact.getAddress() == null ? null : contact.getAddress().getURI();
+			recordRouteList = sipResponse.getRecordRouteHeaders();
+		}
+		
+		/**
+		 * @param previous the fingerprint of the last response stored as recovery relevant, null if none
+		 * @param dialogMethod the method that created the dialog, null if not known yet
+		 * @return true if the dialog should be recreated from this response rather than from the previous one.
+		 * Responses to other methods than the one that created the dialog are never relevant, their CSeqs are replicated on their own
+		 */
+		boolean isRecoveryRelevantChange(ResponseFingerprint previous, String dialogMethod) {
+			if(previous == null) {
+				return true;
+			}
+			if(dialogMethod != null && !dialogMethod.equals(method)) {
+				return false;
+			}
+			return statusCode != previous.statusCode 
+				|| seqNumber != previous.seqNumber
+				|| !AbstractHASipDialog.equals(method, previous.method)
+				|| !AbstractHASipDialog.equals(toTag, previous.toTag)
+				|| !(contactURI == null ? previous.contactURI == null : contactURI.equals(previous.contactURI))
+				|| !isSameRecordRoute(previous.recordRouteList);
+		}
+		
+		private boolean isSameRecordRoute(RecordRouteList previousRecordRouteList) {
+			if(recordRouteList == previousRecordRouteList) {
+				return true;
+			}
+			final int size = recordRouteList == null ? 0 : recordRouteList.size();
+			final int previousSize = previousRecordRouteList == null ? 0 : previousRecordRouteList.size();
+			if(size != previousSize) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				final URI uri = ((RecordRoute) recordRouteList.get(i)).getAddress().getURI();
+				final URI previousUri = ((RecordRoute) previousRecordRouteList.get(i)).getAddress().getURI();
+				if(!uri.equals(previousUri)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return statusCode + " " + seqNumber + " " + method + " toTag=" + toTag + " contact=" + contactURI;
+		}
+	}
 }
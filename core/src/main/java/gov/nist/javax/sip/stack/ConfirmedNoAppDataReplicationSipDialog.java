@@ -27,11 +27,20 @@ import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.message.SIPResponse;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
 import javax.sip.DialogState;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.DialogReplicationMode;
+import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.ReplicationStrategy;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.ReplicationTimer;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.WriteBehindReplicationQueue;
 
 /**
  * Extends the standard NIST SIP Stack Dialog so that it gets replicated when the dialog state is confirmed
@@ -44,6 +53,13 @@ public class ConfirmedNoAppDataReplicationSipDialog extends AbstractHASipDialog
 	private static StackLogger logger = CommonLogger.getLogger(ConfirmedNoAppDataReplicationSipDialog.class);
 	
 	private static final long serialVersionUID = -779892668482217624L;
+	
+	// whether the early dialog has been put in the cache under the Transaction replication strategy,
+	// no initializer as replicateState can be called from the super constructor
+	private volatile boolean earlyAnchorReplicated;
+	// first replication of the confirmed dialog scheduled on the stack replication timer, same constraint on initializers
+	private ScheduledFuture<?> delayedReplication;
+	private volatile boolean delayedReplicationDue;
 
 	public ConfirmedNoAppDataReplicationSipDialog(SIPTransaction transaction) {
 		super(transaction);
@@ -61,30 +77,194 @@ public class ConfirmedNoAppDataReplicationSipDialog extends AbstractHASipDialog
 	 * 
 	 */
 	protected void replicateState() {
+		if (!((ClusteredSipStack)getStack()).isCacheReady()) {
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("cache not ready, dialog " + getDialogId() + " not replicated");
+			}
+			return;
+		}
 		final DialogState dialogState = getState();
 		final ReplicationStrategy replicationStrategy = ((ClusteredSipStack)getStack()).getReplicationStrategy();
-		boolean replicationStateVsDialogStateOK= false;		
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug("dialogState = " + dialogState + ", replicationStrategy = " + replicationStrategy);
 		}
-		if(dialogState == DialogState.CONFIRMED && (replicationStrategy == ReplicationStrategy.ConfirmedDialog|| replicationStrategy == ReplicationStrategy.ConfirmedDialogNoApplicationData)) {
-			replicationStateVsDialogStateOK = true;
+		final boolean replicationStateVsDialogStateOK = isReplicatedInState(dialogState, replicationStrategy);
+		if(replicationStrategy == ReplicationStrategy.Transaction && dialogState == DialogState.CONFIRMED && earlyAnchorReplicated) {
+			// the INVITE transaction is over, the early dialog anchor is not needed anymore
+			removeEarlyAnchor();
+			return;
 		}
-		if((dialogState == DialogState.EARLY || dialogState == DialogState.CONFIRMED || 
-			// Added as part of https://github.com/Mobicents/jain-sip.ha/pull/1
-			dialogState == DialogState.TERMINATED) 
-			&& replicationStrategy == ReplicationStrategy.EarlyDialog) {
-			replicationStateVsDialogStateOK = true;
+		if (replicationStateVsDialogStateOK && dialogState == DialogState.CONFIRMED && !replicationStrategy.replicatesEarlyDialogs() && delayReplication()) {
+			return;
 		}
 		if (replicationStateVsDialogStateOK && isCreated && super.dialogId != null && isRemoteTagSet() && isLocalTagSet() && getStack().getDialog(getDialogIdToReplicate()) != null) {
 			try {
-				((ClusteredSipStack)getStack()).getSipCache().putDialog(this);
+				final ClusteredSipStack clusteredSipStack = (ClusteredSipStack)getStack();
+				final WriteBehindReplicationQueue writeBehindReplicationQueue = clusteredSipStack.getWriteBehindReplicationQueue();
+				final HASipDialog peer = getLinkedDialog();
+				if(peer instanceof ConfirmedNoAppDataReplicationSipDialog && ((ConfirmedNoAppDataReplicationSipDialog) peer).isReplicable()) {
+					// both linked dialogs are written by a single call at the same point of the call flow,
+					// each dialog is still stored under its own key so the two writes are not atomic
+					((ConfirmedNoAppDataReplicationSipDialog) peer).writeSubmitted();
+					writeSubmitted();
+					final List<SIPDialog> linkedDialogs = new ArrayList<SIPDialog>(2);
+					linkedDialogs.add(this);
+					linkedDialogs.add((SIPDialog) peer);
+					if(writeBehindReplicationQueue != null) {
+						writeBehindReplicationQueue.putDialogs(linkedDialogs);
+					} else {
+						clusteredSipStack.getSipCache().putDialogs(linkedDialogs);
+					}
+					if(replicationStrategy == ReplicationStrategy.Transaction) {
+						((ConfirmedNoAppDataReplicationSipDialog) peer).earlyAnchorReplicated = true;
+					}
+				} else {
+					writeSubmitted();
+					if(writeBehindReplicationQueue != null) {
+						writeBehindReplicationQueue.putDialog(this);
+					} else {
+						clusteredSipStack.getSipCache().putDialog(this);
+					}
+				}
+				if(replicationStrategy == ReplicationStrategy.Transaction) {
+					earlyAnchorReplicated = true;
+				}
 			} catch (SipCacheException e) {
 				logger.logError("problem storing dialog " + getDialogId() + " into the distributed cache", e);
 			}
 		}
 	}
 	
+	/**
+	 * @return true if the replication strategy and the replication mode of this dialog allow to replicate it in the state passed in param
+	 */
+	private boolean isReplicatedInState(DialogState dialogState, ReplicationStrategy replicationStrategy) {
+		final DialogReplicationMode replicationMode = getReplicationMode();
+		if(replicationMode == DialogReplicationMode.NONE || (replicationMode == DialogReplicationMode.CONFIRMED && dialogState != DialogState.CONFIRMED)) {
+			// the dialog opted out of the replication, or of the replication of its early state
+			return false;
+		}
+		if(replicationStrategy == ReplicationStrategy.Transaction) {
+			return replicationMode == DialogReplicationMode.EARLY && dialogState == DialogState.EARLY;
+		}
+		if(replicationStrategy == ReplicationStrategy.EarlyDialog) {
+			return dialogState == DialogState.EARLY || dialogState == DialogState.CONFIRMED || 
+				// Added as part of https://github.com/Mobicents/jain-sip.ha/pull/1
+				dialogState == DialogState.TERMINATED;
+		}
+		return dialogState == DialogState.CONFIRMED;
+	}
+	
+	/**
+	 * @return true if this dialog can be written along with the dialog it is linked to,
+	 * a dialog whose first replication is still delayed is left to its own timer
+	 */
+	private boolean isReplicable() {
+		return isReplicatedInState(getState(), ((ClusteredSipStack)getStack()).getReplicationStrategy()) 
+			&& isCreated && super.dialogId != null && isRemoteTagSet() && isLocalTagSet() && !isDelayedReplicationPending();
+	}
+	
+	private synchronized boolean isDelayedReplicationPending() {
+		return delayedReplication != null && !delayedReplicationDue;
+	}
+	
+	/**
+	 * Schedule the first replication of the confirmed dialog if the stack delays it
+	 * @return true if the replication has to wait for the delay to elapse
+	 */
+	private boolean delayReplication() {
+		if(delayedReplicationDue) {
+			return false;
+		}
+		final ClusteredSipStack clusteredSipStack = (ClusteredSipStack)getStack();
+		final long delay = clusteredSipStack.getConfirmedDialogReplicationDelay();
+		final ReplicationTimer replicationTimer = clusteredSipStack.getReplicationTimer();
+		if(delay <= 0 || replicationTimer == null) {
+			return false;
+		}
+		return scheduleDelayedReplication(replicationTimer, delay);
+	}
+	
+	private synchronized boolean scheduleDelayedReplication(ReplicationTimer replicationTimer, long delay) {
+		if(delayedReplicationDue) {
+			return false;
+		}
+		if(delayedReplication == null) {
+			delayedReplication = replicationTimer.schedule(new DelayedReplicationTask(), delay);
+			if(delayedReplication == null) {
+				// the timer has been stopped
+				delayedReplicationDue = true;
+				return false;
+			}
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("dialog " + getDialogId() + " will be replicated in " + delay + "ms if it is still confirmed");
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if the early dialog anchor of the Transaction replication strategy may still be in the cache
+	 */
+	public boolean isEarlyAnchorReplicated() {
+		return earlyAnchorReplicated;
+	}
+	
+	@Override
+	public void setMetaDataToReplicate(DialogReplicationState metaData, boolean recreation) {
+		super.setMetaDataToReplicate(metaData, recreation);
+		if(((ClusteredSipStack)getStack()).getReplicationStrategy() == ReplicationStrategy.Transaction) {
+			// read from the cache, the anchor is there until this dialog gets confirmed
+			earlyAnchorReplicated = true;
+		}
+	}
+	
+	/**
+	 * Cancel the first replication of the dialog if it is still delayed
+	 * @return true if the delayed replication has been cancelled before it ran
+	 */
+	public synchronized boolean cancelDelayedReplication() {
+		if(delayedReplication == null || delayedReplicationDue) {
+			return false;
+		}
+		delayedReplicationDue = true;
+		return ((ClusteredSipStack)getStack()).getReplicationTimer().cancel(delayedReplication);
+	}
+	
+	/**
+	 * @return false if the delayed replication has been cancelled in the meantime
+	 */
+	private synchronized boolean delayedReplicationElapsed() {
+		if(delayedReplicationDue) {
+			return false;
+		}
+		delayedReplicationDue = true;
+		return true;
+	}
+	
+	private final class DelayedReplicationTask implements Runnable {
+		public void run() {
+			if(delayedReplicationElapsed()) {
+				replicateState();
+			}
+		}
+	}
+	
+	private void removeEarlyAnchor() {
+		earlyAnchorReplicated = false;
+		try {
+			final ClusteredSipStack clusteredSipStack = (ClusteredSipStack)getStack();
+			final WriteBehindReplicationQueue writeBehindReplicationQueue = clusteredSipStack.getWriteBehindReplicationQueue();
+			if(writeBehindReplicationQueue != null) {
+				writeBehindReplicationQueue.removeDialog(getDialogIdToReplicate());
+			} else {
+				clusteredSipStack.getSipCache().removeDialog(getDialogIdToReplicate());
+			}
+		} catch (SipCacheException e) {
+			logger.logError("problem removing the early dialog " + getDialogId() + " from the distributed cache", e);
+		}
+	}
+	
 	public Object getApplicationDataToReplicate() {
 		return null;
 	}
@@ -35,11 +35,13 @@ import java.util.HashMap;
 import java.util.Map;
 
 import javax.sip.PeerUnavailableException;
-import javax.sip.SipFactory;
 import javax.sip.message.Request;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.CoalescedReplication;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.WriteBehindReplicationQueue;
+import org.mobicents.ha.javax.sip.message.MessageProjection;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -57,6 +59,7 @@ public class MobicentsHASIPServerTransaction extends MobicentsSIPServerTransacti
 	public static final String ORIGINAL_REQUEST = "req";
 	String localDialogId;
 	int peerReliablePort = -1;
+	private volatile CoalescedReplication provisionalReplication;
 	
 	public MobicentsHASIPServerTransaction(SIPTransactionStack sipStack,
 			MessageChannel newChannelToUse) {
@@ -66,7 +69,8 @@ public class MobicentsHASIPServerTransaction extends MobicentsSIPServerTransacti
 	public Map<String, Object> getMetaDataToReplicate() {
 		Map<String,Object> transactionMetaData = new HashMap<String,Object>();
 		
-		transactionMetaData.put(ORIGINAL_REQUEST, getOriginalRequest().toString());
+		// only the headers needed to recreate the transaction are replicated, not the body
+		transactionMetaData.put(ORIGINAL_REQUEST, MessageProjection.project(getOriginalRequest()));
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(transactionId + " : original request " + getOriginalRequest());
 		}
@@ -125,21 +129,75 @@ public class MobicentsHASIPServerTransaction extends MobicentsSIPServerTransacti
 					logger.logDebug(transactionId + " : peer Reliable Port " + peerReliablePort);
 				}
 			}
-			// store the tx when the response will be sent
-			try {
-				((ClusteredSipStack)sipStack).getSipCache().putServerTransaction(this);
-			} catch (SipCacheException e) {
-				logger.logError("problem storing server transaction " + transactionId + " into the distributed cache", e);
+			// store the tx when the response will be sent, a burst of provisional responses results in a single replication
+			final CoalescedReplication coalescedReplication = getProvisionalReplication();
+			if(coalescedReplication == null || !coalescedReplication.defer()) {
+				replicateState();
+			}
+		} else if(response != null && Request.INVITE.equals(getMethod()) && response.getStatusCode() >= 200) {
+			final CoalescedReplication coalescedReplication = provisionalReplication;
+			if(coalescedReplication != null && coalescedReplication.flush()) {
+				replicateState();
 			}
 		}
 		super.sendMessage(message);
 	}
+	
+	private void replicateState() {
+		if (!((ClusteredSipStack)sipStack).isCacheReady()) {
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("cache not ready, server transaction " + transactionId + " not replicated");
+			}
+			return;
+		}
+		try {
+			final WriteBehindReplicationQueue writeBehindReplicationQueue = ((ClusteredSipStack)sipStack).getWriteBehindReplicationQueue();
+			if(writeBehindReplicationQueue != null) {
+				writeBehindReplicationQueue.putServerTransaction(this);
+			} else {
+				((ClusteredSipStack)sipStack).getSipCache().putServerTransaction(this);
+			}
+		} catch (SipCacheException e) {
+			logger.logError("problem storing server transaction " + transactionId + " into the distributed cache", e);
+		}
+	}
+	
+	/**
+	 * @return the replication coalescing the provisional responses of this transaction, null if they are not coalesced
+	 */
+	private synchronized CoalescedReplication getProvisionalReplication() {
+		if(provisionalReplication == null) {
+			final ClusteredSipStack clusteredSipStack = (ClusteredSipStack)sipStack;
+			final long window = clusteredSipStack.getProvisionalReplicationWindow();
+			if(window <= 0 || clusteredSipStack.getReplicationTimer() == null) {
+				return null;
+			}
+			provisionalReplication = new CoalescedReplication(clusteredSipStack.getReplicationTimer(), window) {
+				@Override
+				protected void replicate() {
+					replicateState();
+				}
+			};
+		}
+		return provisionalReplication;
+	}
+	
+	/**
+	 * Drop the replication of the provisional responses not replicated yet, to be called once the transaction is removed
+	 */
+	public void closeProvisionalReplication() {
+		final CoalescedReplication coalescedReplication = provisionalReplication;
+		if(coalescedReplication != null) {
+			coalescedReplication.close();
+		}
+	}
 
 	public void setMetaDataToReplicate(Map<String, Object> transactionMetaData,
 			boolean recreation) throws PeerUnavailableException, ParseException {
-		String originalRequestString = (String) transactionMetaData.get(ORIGINAL_REQUEST);
-		if(originalRequestString != null) {
-			final SIPRequest origRequest = (SIPRequest) SipFactory.getInstance().createMessageFactory().createRequest(originalRequestString);			
+		// either a projection or the full request text replicated by previous versions
+		final Object originalRequestProjection = transactionMetaData.get(ORIGINAL_REQUEST);
+		if(originalRequestProjection != null) {
+			final SIPRequest origRequest = MessageProjection.createRequest(originalRequestProjection);			
 			setOriginalRequest(origRequest);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(transactionId + " : original Request " + originalRequest);
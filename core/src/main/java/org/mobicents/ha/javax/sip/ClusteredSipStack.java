@@ -32,7 +32,10 @@ import javax.sip.SipStack;
 import javax.sip.address.Address;
 import javax.sip.address.SipURI;
 
+import org.mobicents.ha.javax.sip.cache.ReplicationTimer;
 import org.mobicents.ha.javax.sip.cache.SipCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheReadiness;
+import org.mobicents.ha.javax.sip.cache.WriteBehindReplicationQueue;
 
 /**
  * This interface defines the method to be implemented by a SipStack that can be clustered.
@@ -45,11 +48,46 @@ public interface ClusteredSipStack extends SipStack {
 	public static final String CACHE_CLASS_NAME_PROPERTY = "org.mobicents.ha.javax.sip.CACHE_CLASS_NAME";
 	public static final String REPLICATION_STRATEGY_PROPERTY = "org.mobicents.ha.javax.sip.REPLICATION_STRATEGY";
 	public static final String REPLICATE_APPLICATION_DATA = "org.mobicents.ha.javax.sip.REPLICATE_APPLICATION_DATA";
+	/**
+	 * when set to true, confirmed dialogs are only checked against the cache for updates after the cache reported a modification from another node.
+	 * The Infinispan cache refuses it unless the cache.dialogVersions cache is replicated, only the owners of an entry being notified of its modifications
+	 */
+	public static final String DIALOG_NEAR_CACHE = "org.mobicents.ha.javax.sip.DIALOG_NEAR_CACHE";
+	/**
+	 * time in milliseconds a dialog has to stay confirmed before it is replicated for the first time,
+	 * dialogs terminating before never reach the cache. 0, the default, replicates them as soon as they are confirmed
+	 */
+	public static final String CONFIRMED_DIALOG_REPLICATION_DELAY = "org.mobicents.ha.javax.sip.CONFIRMED_DIALOG_REPLICATION_DELAY";
+	/**
+	 * comma separated METHOD[:event-package]=NONE|CONFIRMED|EARLY profiles narrowing the replication of the dialogs created by the matching requests,
+	 * see {@link ReplicationProfiles}
+	 */
+	public static final String REPLICATION_PROFILES = "org.mobicents.ha.javax.sip.REPLICATION_PROFILES";
+	/**
+	 * time in milliseconds the replications triggered by provisional responses are coalesced for when early dialogs and transactions are replicated,
+	 * a final response flushes them right away. 0, the default, replicates on each provisional response
+	 */
+	public static final String PROVISIONAL_REPLICATION_WINDOW = "org.mobicents.ha.javax.sip.PROVISIONAL_REPLICATION_WINDOW";
+	/**
+	 * when set to true, the INVITE transactions bound to a dialog are stored in the cache entry of the dialog, so that an early dialog
+	 * and its transaction are written, recovered and removed together. Only supported by the Hazelcast and Infinispan caches
+	 */
+	public static final String EARLY_DIALOG_TRANSACTION_RECORD = "org.mobicents.ha.javax.sip.EARLY_DIALOG_TRANSACTION_RECORD";
+	/**
+	 * when set to true, the caches that can attach to their backend in the background do so, the stack starts its listening points right away
+	 * but doesn't replicate anything and holds back the heartbeats to the load balancers until the cache reports ready, see {@link SipCacheReadiness}
+	 */
+	public static final String READINESS_GATED_STARTUP = "org.mobicents.ha.javax.sip.READINESS_GATED_STARTUP";
 	
 	SIPDialog getDialog(String dialogId);	
 	SIPDialog putDialog(SIPDialog dialog);
 	void removeDialog(SIPDialog dialog);		
 	void remoteDialogRemoval(String dialogId);
+	/**
+	 * Called by the cache when a dialog has been modified by another node
+	 * @param dialogId the id of the modified dialog
+	 */
+	void remoteDialogModification(String dialogId);
 	void passivateDialog(HASipDialog dialog);
 	/**
 	 * @param sipCache the sipCache to set
@@ -59,6 +97,26 @@ public interface ClusteredSipStack extends SipStack {
 	 * @return the sipCache
 	 */
 	SipCache getSipCache();
+	/**
+	 * @return the queue the dialogs and transactions writes go through, null if they are written synchronously to the sipCache
+	 */
+	WriteBehindReplicationQueue getWriteBehindReplicationQueue();
+	/**
+	 * @return the timer running the delayed replications, null if no replication is delayed
+	 */
+	ReplicationTimer getReplicationTimer();
+	/**
+	 * @return the time in milliseconds a dialog has to stay confirmed before it is replicated, 0 if it is replicated right away
+	 */
+	long getConfirmedDialogReplicationDelay();
+	/**
+	 * @return the time in milliseconds the replications triggered by provisional responses are coalesced for, 0 if they are not
+	 */
+	long getProvisionalReplicationWindow();
+	/**
+	 * @return true if the sipCache can be used, always true unless {@link #READINESS_GATED_STARTUP} is enabled and the cache isn't ready yet
+	 */
+	boolean isCacheReady();
 	
 	StackLogger getStackLogger();
 	
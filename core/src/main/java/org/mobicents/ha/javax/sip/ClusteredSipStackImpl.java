@@ -27,8 +27,11 @@ import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+import gov.nist.javax.sip.stack.ConfirmedNoAppDataReplicationSipDialog;
 import gov.nist.javax.sip.stack.MessageChannel;
 import gov.nist.javax.sip.stack.MobicentsHASIPClientTransaction;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
@@ -36,6 +39,10 @@ import gov.nist.javax.sip.stack.SIPTransaction;
 
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.DialogState;
 import javax.sip.ListeningPoint;
@@ -49,9 +56,14 @@ import javax.sip.SipProvider;
 import javax.sip.message.Request;
 
 import org.mobicents.ext.javax.sip.SipStackImpl;
+import org.mobicents.ha.javax.sip.cache.DialogNearCache;
+import org.mobicents.ha.javax.sip.cache.RemoteChangeListener;
+import org.mobicents.ha.javax.sip.cache.ReplicationTimer;
 import org.mobicents.ha.javax.sip.cache.SipCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 import org.mobicents.ha.javax.sip.cache.SipCacheFactory;
+import org.mobicents.ha.javax.sip.cache.SipCacheReadiness;
+import org.mobicents.ha.javax.sip.cache.WriteBehindReplicationQueue;
 
 /**
  * This class extends the regular NIST SIP Stack Implementation to cache Dialogs in a replicated cache 
@@ -75,6 +87,17 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	protected ReplicationStrategy replicationStrategy = ReplicationStrategy.ConfirmedDialog;
 	protected LoadBalancerElector loadBalancerElector = null;
 	private boolean replicateApplicationData = false;
+	protected DialogNearCache dialogNearCache = null;
+	protected WriteBehindReplicationQueue writeBehindReplicationQueue = null;
+	protected ReplicationTimer replicationTimer = null;
+	protected long confirmedDialogReplicationDelay = 0;
+	protected long provisionalReplicationWindow = 0;
+	protected ReplicationProfiles replicationProfiles = null;
+	// latched once the cache reported ready, see READINESS_GATED_STARTUP
+	private volatile boolean cacheReady = true;
+	private ScheduledExecutorService cacheReadinessWatcher = null;
+	// interval in milliseconds the cache readiness is checked at while the heartbeats are held back
+	private static final long CACHE_READINESS_CHECK_INTERVAL = 1000;
 	
 	public ClusteredSipStackImpl(Properties configurationProperties) throws PeerUnavailableException {
 		
@@ -110,13 +133,19 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		String replicationStrategyProperty = configurationProperties.getProperty(ClusteredSipStack.REPLICATION_STRATEGY_PROPERTY);
 		if(replicationStrategyProperty != null) {
 			replicationStrategy = ReplicationStrategy.valueOf(replicationStrategyProperty);
-			if(replicationStrategy == ReplicationStrategy.EarlyDialog && transactionFactory == null) {
-				// when using EarlyDialog replication strategy we need to have an HA transaction factory to replicate transactions
+			if(replicationStrategy.replicatesTransactions() && transactionFactory == null) {
+				// when using EarlyDialog or Transaction replication strategy we need to have an HA transaction factory to replicate transactions
 				transactionFactory = new MobicentsHATransactionFactory();
 				transactionFactory.setSipStack(this);
 			}
 		}
 		
+		if(Boolean.valueOf(configurationProperties.getProperty(ClusteredSipStack.READINESS_GATED_STARTUP))) {
+			cacheReady = false;
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Readiness gated startup enabled, nothing will be replicated and the load balancers won't be notified until the SipCache is ready");
+			}
+		}
 		// get/create the jboss cache instance to store all sip stack related data into it
 		sipCache = SipCacheFactory.createSipCache(this, configurationProperties);
 		try {
@@ -138,6 +167,68 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
 			getStackLogger().logInfo("Replication Strategy is " + replicationStrategy + " replicating application data " + replicateApplicationData);
 		}
+		String writeBehindThreadsProperty = configurationProperties.getProperty(WriteBehindReplicationQueue.THREADS);
+		if(writeBehindThreadsProperty != null && Integer.parseInt(writeBehindThreadsProperty) > 0) {
+			final long maxDelay = Long.parseLong(configurationProperties.getProperty(WriteBehindReplicationQueue.MAX_DELAY, String.valueOf(WriteBehindReplicationQueue.DEFAULT_MAX_DELAY)));
+			final int capacity = Integer.parseInt(configurationProperties.getProperty(WriteBehindReplicationQueue.CAPACITY, String.valueOf(WriteBehindReplicationQueue.DEFAULT_CAPACITY)));
+			writeBehindReplicationQueue = new WriteBehindReplicationQueue(sipCache, Integer.parseInt(writeBehindThreadsProperty), maxDelay, capacity);
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Write behind replication enabled with " + writeBehindThreadsProperty + " threads, max delay " + maxDelay + "ms, capacity " + capacity);
+			}
+		}
+		String replicationProfilesProperty = configurationProperties.getProperty(ClusteredSipStack.REPLICATION_PROFILES);
+		if(replicationProfilesProperty != null) {
+			try {
+				replicationProfiles = new ReplicationProfiles(replicationProfilesProperty);
+			} catch (IllegalArgumentException e) {
+				throw new PeerUnavailableException("Invalid " + ClusteredSipStack.REPLICATION_PROFILES + " property " + replicationProfilesProperty, e);
+			}
+			if(replicationProfiles.isEmpty()) {
+				replicationProfiles = null;
+			} else if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog replication profiles " + replicationProfiles);
+			}
+		}
+		String confirmedDialogReplicationDelayProperty = configurationProperties.getProperty(ClusteredSipStack.CONFIRMED_DIALOG_REPLICATION_DELAY);
+		if(confirmedDialogReplicationDelayProperty != null) {
+			confirmedDialogReplicationDelay = Long.parseLong(confirmedDialogReplicationDelayProperty);
+		}
+		if(confirmedDialogReplicationDelay > 0) {
+			if(replicationStrategy.replicatesEarlyDialogs()) {
+				// the dialog is already in the cache when it gets confirmed, delaying would only make the cache stale
+				confirmedDialogReplicationDelay = 0;
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_WARN)) {
+					getStackLogger().logWarning(ClusteredSipStack.CONFIRMED_DIALOG_REPLICATION_DELAY + " is ignored with the " + replicationStrategy + " replication strategy");
+				}
+			} else if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Confirmed dialogs will be replicated after " + confirmedDialogReplicationDelay + "ms");
+			}
+		}
+		String provisionalReplicationWindowProperty = configurationProperties.getProperty(ClusteredSipStack.PROVISIONAL_REPLICATION_WINDOW);
+		if(provisionalReplicationWindowProperty != null) {
+			provisionalReplicationWindow = Long.parseLong(provisionalReplicationWindowProperty);
+		}
+		if(provisionalReplicationWindow > 0) {
+			if(!replicationStrategy.replicatesEarlyDialogs()) {
+				// nothing is replicated on provisional responses
+				provisionalReplicationWindow = 0;
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_WARN)) {
+					getStackLogger().logWarning(ClusteredSipStack.PROVISIONAL_REPLICATION_WINDOW + " is ignored with the " + replicationStrategy + " replication strategy");
+				}
+			} else if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Replications on provisional responses will be coalesced for " + provisionalReplicationWindow + "ms");
+			}
+		}
+		if(confirmedDialogReplicationDelay > 0 || provisionalReplicationWindow > 0) {
+			replicationTimer = new ReplicationTimer();
+		}
+		String dialogNearCacheProperty = configurationProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE);
+		if(dialogNearCacheProperty != null && Boolean.valueOf(dialogNearCacheProperty)) {
+			dialogNearCache = new DialogNearCache();
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog near cache enabled, confirmed dialogs will only be checked against the cache after a remote modification");
+			}
+		}
 	}		
 	
 	/*
@@ -151,11 +242,57 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		} catch (Exception e) {
 			throw new SipException("Unable to start the SipCache", e);
 		}
+		if(writeBehindReplicationQueue != null) {
+			writeBehindReplicationQueue.start();
+		}
 		if(loadBalancerHeartBeatingService != null) {
-			loadBalancerHeartBeatingService.start();
+			if(isCacheReady()) {
+				loadBalancerHeartBeatingService.start();
+			} else {
+				startLoadBalancerHeartBeatingWhenCacheReady();
+			}
 		}
 		super.start();		
 	}
+	
+	/**
+	 * Hold back the heartbeats to the load balancers until the cache is ready, so that the node doesn't get calls it can't serve with HA
+	 */
+	private void startLoadBalancerHeartBeatingWhenCacheReady() {
+		cacheReadinessWatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "SipCacheReadinessWatcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		cacheReadinessWatcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					if(isCacheReady()) {
+						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+							getStackLogger().logInfo("SipCache ready, starting the heartbeats to the load balancers");
+						}
+						cacheReadinessWatcher.shutdown();
+						loadBalancerHeartBeatingService.start();
+					}
+				} catch (Exception e) {
+					getStackLogger().logError("sipStack " + ClusteredSipStackImpl.this + " problem checking the readiness of the SipCache", e);
+				}
+			}
+		}, CACHE_READINESS_CHECK_INTERVAL, CACHE_READINESS_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#isCacheReady()
+	 */
+	public boolean isCacheReady() {
+		if(!cacheReady && (!(sipCache instanceof SipCacheReadiness) || ((SipCacheReadiness) sipCache).isReady())) {
+			cacheReady = true;
+		}
+		return cacheReady;
+	}
 		
 	public void closeAllTcpSockets() {
 		
@@ -169,6 +306,16 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	@Override
 	public void stop() {		
 		super.stop();
+		if(replicationTimer != null) {
+			replicationTimer.stop();
+		}
+		if(writeBehindReplicationQueue != null) {
+			// flush the pending writes while the cache is still up
+			writeBehindReplicationQueue.stop();
+		}
+		if(cacheReadinessWatcher != null) {
+			cacheReadinessWatcher.shutdownNow();
+		}
 		try {
 			sipCache.stop();
 		} catch (Exception e) {
@@ -195,10 +342,12 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 				retval = this.earlyDialogTable.get(dialogId);
 				if (retval == null || (retval.getState() != null && retval.getState() != DialogState.EARLY)) {
 					retval = (SIPDialog) HASipDialogFactory.createHASipDialog(replicationStrategy, transaction);
+					applyReplicationProfile(retval, (SIPRequest) transaction.getRequest());
 					this.earlyDialogTable.put(dialogId, retval);
 				}
 			} else {
 				retval = (SIPDialog) HASipDialogFactory.createHASipDialog(replicationStrategy, transaction);
+				applyReplicationProfile(retval, (SIPRequest) transaction.getRequest());
 			}
 			return retval;
 		}
@@ -220,6 +369,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 				this.earlyDialogTable.remove(dialogId);
 			} else {
 				retval = (SIPDialog) HASipDialogFactory.createHASipDialog(replicationStrategy, transaction, sipResponse);
+				applyReplicationProfile(retval, (SIPRequest) transaction.getRequest());
 			}
 			return retval;
 		}
@@ -236,7 +386,34 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			return super.createDialog(sipProvider, sipResponse);
 		}
 		else {
-			return (SIPDialog) HASipDialogFactory.createHASipDialog(replicationStrategy, sipProvider, sipResponse);
+			final SIPDialog sipDialog = (SIPDialog) HASipDialogFactory.createHASipDialog(replicationStrategy, sipProvider, sipResponse);
+			applyReplicationProfile(sipDialog, sipResponse);
+			return sipDialog;
+		}
+	}
+	
+	/**
+	 * Narrow the replication of the dialog passed in param with the profile matching the request creating it, if any
+	 */
+	protected void applyReplicationProfile(SIPDialog sipDialog, SIPRequest request) {
+		if(replicationProfiles != null && request != null) {
+			final DialogReplicationMode replicationMode = replicationProfiles.getReplicationMode(request);
+			if(replicationMode != null) {
+				((HASipDialog) sipDialog).setReplicationMode(replicationMode);
+			}
+		}
+	}
+
+	/**
+	 * Narrow the replication of the dialog passed in param with the profile matching the response creating it, if any,
+	 * see {@link ReplicationProfiles#getReplicationMode(SIPResponse)} for what can be matched from a response
+	 */
+	protected void applyReplicationProfile(SIPDialog sipDialog, SIPResponse response) {
+		if(replicationProfiles != null && response != null) {
+			final DialogReplicationMode replicationMode = replicationProfiles.getReplicationMode(response);
+			if(replicationMode != null) {
+				((HASipDialog) sipDialog).setReplicationMode(replicationMode);
+			}
 		}
 	}
 
@@ -246,7 +423,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 */
 	@Override
 	public SIPDialog getDialog(String dialogId) {
-		if (sipCache.inLocalMode()) {
+		if (sipCache.inLocalMode() || !isCacheReady()) {
 			return super.getDialog(dialogId);
 		}
 		else {
@@ -263,6 +440,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 					if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 						getStackLogger().logDebug("local dialog " + dialogId + " is null, checking in the distributed cache");
 					}
+					final long nearCacheStamp = dialogNearCache != null ? dialogNearCache.stamp(dialogId) : 0;
 					sipDialog = getDialogFromDistributedCache(dialogId);
 					if(sipDialog != null) {
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
@@ -273,6 +451,11 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 						// the dialog after failover, we use the one that won the race
 						if(existingDialog != null) {
 							sipDialog = existingDialog;
+						} else {
+							if(dialogNearCache != null) {
+								dialogNearCache.markUpToDate(dialogId, nearCacheStamp);
+							}
+							recoverLinkedDialog((HASipDialog) sipDialog);
 						}
 					} else {
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
@@ -280,13 +463,24 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 						}
 					}
 				} else {
-					// we check for updates only if the dialog is confirmed
-					if(sipDialog.getState() == DialogState.CONFIRMED) {
+					// we check for updates only if the dialog is confirmed and confirmed dialogs are replicated
+					if(sipDialog.getState() == DialogState.CONFIRMED && replicationStrategy.replicatesConfirmedDialogs() && 
+							((HASipDialog) sipDialog).getReplicationMode() != DialogReplicationMode.NONE) {
+						if(dialogNearCache != null && dialogNearCache.isUpToDate(dialogId)) {
+							if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+								getStackLogger().logDebug("local dialog " + dialogId + " is present locally " + sipDialog + " and hasn't been modified remotely since it was last checked");
+							}
+							return sipDialog;
+						}
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 							getStackLogger().logDebug("local dialog " + dialogId + " is present locally " + sipDialog + " checking if it needs to be updated from the cache");
 						}
+						final long nearCacheStamp = dialogNearCache != null ? dialogNearCache.stamp(dialogId) : 0;
 						try {
 							sipCache.updateDialog(sipDialog);
+							if(dialogNearCache != null) {
+								dialogNearCache.markUpToDate(dialogId, nearCacheStamp);
+							}
 						} catch (SipCacheException e) {
 							getStackLogger().logError("sipStack " + this + " problem updating dialog " + dialogId + " from the distributed cache", e);
 						}	
@@ -318,7 +512,37 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	@Override
 	public void removeDialog(SIPDialog dialog) {
 		if (!sipCache.inLocalMode()) {
-			removeDialogFromDistributedCache(dialog.getDialogId());
+			if(dialog instanceof AbstractHASipDialog) {
+				((AbstractHASipDialog) dialog).closeProvisionalReplication();
+			}
+			if(dialog instanceof HASipDialog && ((HASipDialog) dialog).getLinkedDialog() != null) {
+				// the linked dialog is replicated on its own from now on
+				((HASipDialog) dialog).setLinkedDialog(null);
+			}
+			if(dialog instanceof ConfirmedNoAppDataReplicationSipDialog) {
+				// the first replication of the dialog, if still delayed, won't happen anymore
+				((ConfirmedNoAppDataReplicationSipDialog) dialog).cancelDelayedReplication();
+			}
+			// decided on what has been written rather than on the current replication mode, the application may have opted out after a write
+			if(dialog instanceof AbstractHASipDialog && !((AbstractHASipDialog) dialog).isStoredInCache()) {
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					getStackLogger().logDebug("dialog " + dialog.getDialogId() + " terminated before being replicated, no need to remove it from the distributed cache");
+				}
+			} else if(!replicationStrategy.replicatesConfirmedDialogs() && dialog instanceof ConfirmedNoAppDataReplicationSipDialog 
+					&& !((ConfirmedNoAppDataReplicationSipDialog) dialog).isEarlyAnchorReplicated()) {
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					getStackLogger().logDebug("dialog " + dialog.getDialogId() + " early anchor already removed from the distributed cache or never stored there");
+				}
+			} else {
+				removeDialogFromDistributedCache(dialog.getDialogId());
+			}
+			if(writeBehindReplicationQueue != null) {
+				// whether or not it was removed from the cache, the dialog isn't linked anymore
+				writeBehindReplicationQueue.forget(dialog.getDialogId());
+			}
+		}
+		if (dialogNearCache != null) {
+			dialogNearCache.invalidate(dialog.getDialogId());
 		}
 		super.removeDialog(dialog);
 	}
@@ -334,6 +558,12 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			getStackLogger().logDebug("sipStack " + this + 
 					" remote Dialog Removal of dialogId : " + dialogId);
 		}
+		if (dialogNearCache != null) {
+			dialogNearCache.invalidate(dialogId);
+		}
+		if (sipCache instanceof RemoteChangeListener) {
+			((RemoteChangeListener) sipCache).remoteDialogRemoval(dialogId);
+		}
 		SIPDialog sipDialog = super.dialogTable.remove(dialogId);
 		if (sipDialog != null) {
 			String mergeId = sipDialog.getMergeId();
@@ -343,6 +573,59 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#remoteDialogModification(java.lang.String)
+	 */
+	public void remoteDialogModification(String dialogId) {
+		if (dialogNearCache != null) {
+			if (getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("sipStack " + this + 
+						" remote Dialog Modification of dialogId : " + dialogId);
+			}
+			dialogNearCache.invalidate(dialogId);
+		}
+		if (sipCache instanceof RemoteChangeListener) {
+			((RemoteChangeListener) sipCache).remoteDialogModification(dialogId);
+		}
+	}
+	
+	/**
+	 * @return the near cache tracking the dialogs in sync with the distributed cache, null if it is not enabled
+	 */
+	public DialogNearCache getDialogNearCache() {
+		return dialogNearCache;
+	}
+	
+	/**
+	 * Recover the dialog linked to the dialog passed in param along with it,
+	 * so that both legs of a B2BUA call are recreated on the same node
+	 * @param haSipDialog the dialog just recovered from the distributed cache
+	 */
+	private void recoverLinkedDialog(HASipDialog haSipDialog) {
+		final String peerId = haSipDialog.getLinkedDialogId();
+		if(peerId == null) {
+			return;
+		}
+		SIPDialog peer = super.getDialog(peerId);
+		if(peer == null) {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("recovering dialog " + peerId + " linked to " + haSipDialog.getDialogIdToReplicate());
+			}
+			peer = getDialogFromDistributedCache(peerId);
+			if(peer == null) {
+				return;
+			}
+			final SIPDialog existingPeer = super.putDialog(peer);
+			if(existingPeer != null) {
+				peer = existingPeer;
+			}
+		}
+		if(peer instanceof HASipDialog && haSipDialog.getDialogIdToReplicate().equals(((HASipDialog) peer).getLinkedDialogId())) {
+			haSipDialog.setLinkedDialog((HASipDialog) peer);
+		}
+	}
+	
 	/**
 	 * Retrieve the dialog from the distributed cache
 	 * @param dialogId the id of the dialog to fetch
@@ -372,13 +655,23 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 * @param dialog the dialog to store
 	 */
 	protected  void putDialogIntoDistributedCache(SIPDialog dialog) {
+		if(!isCacheReady()) {
+			return;
+		}
 		String dialogId = dialog.getDialogId();	
 		if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			getStackLogger().logDebug("sipStack " + this + " storing the dialog " + dialogId + " in the distributed cache");
 		}
 		// put the corresponding dialog into the cache instance
+		if(dialog instanceof AbstractHASipDialog) {
+			((AbstractHASipDialog) dialog).writeSubmitted();
+		}
 		try {
-			sipCache.putDialog(dialog);
+			if(writeBehindReplicationQueue != null) {
+				writeBehindReplicationQueue.putDialog(dialog);
+			} else {
+				sipCache.putDialog(dialog);
+			}
 		} catch (SipCacheException e) {
 			getStackLogger().logError("sipStack " + this + " problem storing the dialog " + dialogId + " into the distributed cache", e);
 		}
@@ -389,13 +682,20 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 * @param dialogId the id of the dialog to remove
 	 */
 	protected  void removeDialogFromDistributedCache(String dialogId) {
+		if(!isCacheReady()) {
+			return;
+		}
 		if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			getStackLogger().logDebug("sipStack " + this + " removing the dialog " + dialogId + " from the distributed cache");
 		}
 		// remove the corresponding dialog from the cache instance
 		// put the corresponding dialog into the cache instance
 		try {
-			sipCache.removeDialog(dialogId);
+			if(writeBehindReplicationQueue != null) {
+				writeBehindReplicationQueue.removeDialog(dialogId);
+			} else {
+				sipCache.removeDialog(dialogId);
+			}
 		} catch (SipCacheException e) {
 			getStackLogger().logError("sipStack " + this + " problem removing dialog " + dialogId + " from the distributed cache", e);
 		}
@@ -407,7 +707,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 */
 	@Override
 	public SIPTransaction findTransaction(String transactionId, boolean isServer) {
-		if(sipCache.inLocalMode() || replicationStrategy != ReplicationStrategy.EarlyDialog) {
+		if(sipCache.inLocalMode() || !replicationStrategy.replicatesTransactions() || !isCacheReady()) {
 			return super.findTransaction(transactionId,isServer);
 		}
 		final String txId = transactionId.toLowerCase();
@@ -474,18 +774,30 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		if(sipCache.inLocalMode() && transactionFactory == null) {
 			return;
 		}
-		if(transactionFactory != null && sipTransaction != null && replicationStrategy == ReplicationStrategy.EarlyDialog && sipTransaction.getMethod().equalsIgnoreCase(Request.INVITE)) {
+		if(transactionFactory != null && sipTransaction != null && replicationStrategy.replicatesTransactions() && sipTransaction.getMethod().equalsIgnoreCase(Request.INVITE)) {
+			closeProvisionalReplication(sipTransaction);
+			if(!isCacheReady()) {
+				return;
+			}
 			if(sipTransaction instanceof ServerTransaction) {
 				// remove the corresponding server transaction from the cache instance
 				try {
-					sipCache.removeServerTransaction(sipTransaction.getTransactionId());
+					if(writeBehindReplicationQueue != null) {
+						writeBehindReplicationQueue.removeServerTransaction(sipTransaction.getTransactionId());
+					} else {
+						sipCache.removeServerTransaction(sipTransaction.getTransactionId());
+					}
 				} catch (SipCacheException e) {
 					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
 				}
 			} else {
 				// remove the corresponding client transaction from the cache instance
 				try {
-					sipCache.removeClientTransaction(sipTransaction.getTransactionId());
+					if(writeBehindReplicationQueue != null) {
+						writeBehindReplicationQueue.removeClientTransaction(sipTransaction.getTransactionId());
+					} else {
+						sipCache.removeClientTransaction(sipTransaction.getTransactionId());
+					}
 				} catch (SipCacheException e) {
 					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
 				}
@@ -499,18 +811,30 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		if(sipCache.inLocalMode() && transactionFactory == null) {
 			return;
 		}
-		if(transactionFactory != null && sipTransaction != null && replicationStrategy == ReplicationStrategy.EarlyDialog && sipTransaction.getMethod().equalsIgnoreCase(Request.INVITE)) {
+		if(transactionFactory != null && sipTransaction != null && replicationStrategy.replicatesTransactions() && sipTransaction.getMethod().equalsIgnoreCase(Request.INVITE)) {
+			closeProvisionalReplication(sipTransaction);
+			if(!isCacheReady()) {
+				return;
+			}
 			if(sipTransaction instanceof ServerTransaction) {
 				// remove the corresponding server transaction from the cache instance
 				try {
-					sipCache.removeServerTransaction(sipTransaction.getTransactionId());
+					if(writeBehindReplicationQueue != null) {
+						writeBehindReplicationQueue.removeServerTransaction(sipTransaction.getTransactionId());
+					} else {
+						sipCache.removeServerTransaction(sipTransaction.getTransactionId());
+					}
 				} catch (SipCacheException e) {
 					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
 				}
 			} else {
 				// remove the corresponding client transaction from the cache instance
 				try {
-					sipCache.removeClientTransaction(sipTransaction.getTransactionId());
+					if(writeBehindReplicationQueue != null) {
+						writeBehindReplicationQueue.removeClientTransaction(sipTransaction.getTransactionId());
+					} else {
+						sipCache.removeClientTransaction(sipTransaction.getTransactionId());
+					}
 				} catch (SipCacheException e) {
 					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
 				}
@@ -518,6 +842,14 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		}
 	}
 
+	private void closeProvisionalReplication(SIPTransaction sipTransaction) {
+		if(sipTransaction instanceof MobicentsHASIPServerTransaction) {
+			((MobicentsHASIPServerTransaction) sipTransaction).closeProvisionalReplication();
+		} else if(sipTransaction instanceof MobicentsHASIPClientTransaction) {
+			((MobicentsHASIPClientTransaction) sipTransaction).closeProvisionalReplication();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#setSipCache(org.mobicents.ha.javax.sip.cache.SipCache)
@@ -534,6 +866,38 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		return sipCache;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#getWriteBehindReplicationQueue()
+	 */
+	public WriteBehindReplicationQueue getWriteBehindReplicationQueue() {
+		return writeBehindReplicationQueue;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#getReplicationTimer()
+	 */
+	public ReplicationTimer getReplicationTimer() {
+		return replicationTimer;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#getConfirmedDialogReplicationDelay()
+	 */
+	public long getConfirmedDialogReplicationDelay() {
+		return confirmedDialogReplicationDelay;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#getProvisionalReplicationWindow()
+	 */
+	public long getProvisionalReplicationWindow() {
+		return provisionalReplicationWindow;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#getLoadBalancerHeartBeatingService()
@@ -594,6 +958,9 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			getStackLogger().logDebug("sipStack " + this + 
 					" remote Server Transaction Removal of transaction Id : " + txId);
 		}
+		if (sipCache instanceof RemoteChangeListener) {
+			((RemoteChangeListener) sipCache).remoteServerTransactionRemoval(txId);
+		}
 		// the transaction id is set to lower case in the cache so it might not remove it correctly
 		SIPServerTransaction sipServerTransaction = super.serverTransactionTable.remove(txId);
 		if (sipServerTransaction != null) {
@@ -614,6 +981,9 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			getStackLogger().logDebug("sipStack " + this + 
 					" remote Client Transaction Removal of transaction Id : " + txId);
 		}
+		if (sipCache instanceof RemoteChangeListener) {
+			((RemoteChangeListener) sipCache).remoteClientTransactionRemoval(txId);
+		}
 		// the transaction id is set to lower case in the cache so it might not remove it correctly
 		SIPClientTransaction sipClientTransaction = super.clientTransactionTable.remove(txId);		
 	}
@@ -0,0 +1,54 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+/**
+ * How much of a dialog lifecycle is replicated, set per dialog through {@link HASipDialog#setReplicationMode(DialogReplicationMode)}
+ * or per method and event package through the {@link ClusteredSipStack#REPLICATION_PROFILES} property.
+ * A dialog is never replicated more than the {@link ReplicationStrategy} of the stack allows, the mode can only narrow it.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public enum DialogReplicationMode {
+	/**
+	 * the dialog is never replicated
+	 */
+	NONE,
+	/**
+	 * the dialog is replicated once confirmed
+	 */
+	CONFIRMED,
+	/**
+	 * the dialog is replicated from its early state
+	 */
+	EARLY;
+	
+	/**
+	 * @param other another mode
+	 * @return the mode replicating the least of this mode and the one passed in param
+	 */
+	public DialogReplicationMode narrow(DialogReplicationMode other) {
+		return other == null || ordinal() <= other.ordinal() ? this : other;
+	}
+}
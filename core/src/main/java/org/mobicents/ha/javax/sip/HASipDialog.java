@@ -24,11 +24,11 @@ package org.mobicents.ha.javax.sip;
 
 import gov.nist.javax.sip.message.SIPResponse;
 
-import java.util.Map;
-
 import javax.sip.address.Address;
 import javax.sip.header.ContactHeader;
 
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+
 /**
  * @author jean.deruelle@gmail.com
  *
@@ -41,16 +41,55 @@ public interface HASipDialog {
 	
 	String getMergeId();
 	
-	Map<String, Object> getMetaDataToReplicate();
+	/**
+	 * @return the dialog state that changed since the last write acknowledged by the cache,
+	 * or all of it if the cache doesn't hold anything to apply a delta on
+	 */
+	DialogReplicationState getMetaDataToReplicate();
+	/**
+	 * @return all the dialog state, to be used when the cached record is missing or its version doesn't match the delta base version
+	 */
+	DialogReplicationState getFullMetaDataToReplicate();
+	/**
+	 * Acknowledge that the record passed in param has been written to the cache
+	 * @param dialogMetaData the record returned by getMetaDataToReplicate or getFullMetaDataToReplicate that has been written
+	 */
+	void metaDataReplicated(DialogReplicationState dialogMetaData);
 	Object getApplicationDataToReplicate();
 
-	void setMetaDataToReplicate(Map<String, Object> dialogMetaData, boolean recreation);
+	void setMetaDataToReplicate(DialogReplicationState dialogMetaData, boolean recreation);
 	void setApplicationDataToReplicate(Object dialogAppData);
 
 	void setContactHeader(ContactHeader contactHeader);
 
 	long getVersion();
 	
+	/**
+	 * Narrow the replication of this dialog, to be called before the dialog is first replicated, typically when it is created
+	 * @param replicationMode the replication mode of this dialog, null to follow the replication strategy of the stack
+	 */
+	void setReplicationMode(DialogReplicationMode replicationMode);
+	/**
+	 * @return the mode this dialog is actually replicated with, never more than the replication strategy of the stack allows
+	 */
+	DialogReplicationMode getReplicationMode();
+	
+	/**
+	 * Link this dialog and the one passed in param, typically the two legs of a B2BUA call, so that they are recovered together
+	 * when either of them is looked up on another node. Linked dialogs are written to the cache by a single call but not atomically,
+	 * each dialog stays stored under its own key, so after a failover one of them can be recovered at an older state than the other
+	 * @param peer the dialog to link this one to, null to unlink this dialog
+	 */
+	void setLinkedDialog(HASipDialog peer);
+	/**
+	 * @return the dialog linked to this one on this node, null if none or if it hasn't been recovered yet
+	 */
+	HASipDialog getLinkedDialog();
+	/**
+	 * @return the id of the dialog linked to this one, null if none
+	 */
+	String getLinkedDialogId();
+	
 	void setLastResponse(SIPResponse lastResponse);
 
 	boolean isServer();
@@ -44,6 +44,9 @@ public class HASipDialogFactory {
 			return new ConfirmedNoAppDataReplicationSipDialog(transaction);
 		case EarlyDialog:
 			return new ConfirmedReplicationSipDialog(transaction);
+		case Transaction:
+			// only an anchor of the early dialog is replicated, the application data is never needed for it
+			return new ConfirmedNoAppDataReplicationSipDialog(transaction);
 		default:
 			throw new IllegalArgumentException("Replication Strategy " + replicationStrategy + " is not supported");
 		}
@@ -57,6 +60,9 @@ public class HASipDialogFactory {
 			return new ConfirmedNoAppDataReplicationSipDialog(transaction, sipResponse);
 		case EarlyDialog:
 			return new ConfirmedReplicationSipDialog(transaction, sipResponse);
+		case Transaction:
+			// only an anchor of the early dialog is replicated, the application data is never needed for it
+			return new ConfirmedNoAppDataReplicationSipDialog(transaction, sipResponse);
 		default:
 			throw new IllegalArgumentException("Replication Strategy " + replicationStrategy + " is not supported");
 		}
@@ -70,6 +76,9 @@ public class HASipDialogFactory {
 			return new ConfirmedNoAppDataReplicationSipDialog(sipProvider, sipResponse);
 		case EarlyDialog:
 			return new ConfirmedReplicationSipDialog(sipProvider, sipResponse);
+		case Transaction:
+			// only an anchor of the early dialog is replicated, the application data is never needed for it
+			return new ConfirmedNoAppDataReplicationSipDialog(sipProvider, sipResponse);
 		default:
 			throw new IllegalArgumentException("Replication Strategy " + replicationStrategy + " is not supported");
 		}
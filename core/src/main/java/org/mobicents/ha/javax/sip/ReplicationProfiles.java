@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.EventHeader;
+
+/**
+ * Replication modes of the dialogs keyed on the method of the request creating them and optionally its event package,
+ * parsed from the {@link ClusteredSipStack#REPLICATION_PROFILES} property,
+ * for example <code>MESSAGE=NONE,OPTIONS=NONE,SUBSCRIBE:presence.winfo=NONE,INVITE=CONFIRMED</code>.
+ * A profile with an event package takes precedence over the one for the method only.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ReplicationProfiles {
+	private static final char EVENT_SEPARATOR = ':';
+	
+	private final Map<String, DialogReplicationMode> replicationModes = new HashMap<String, DialogReplicationMode>();
+	
+	/**
+	 * @param profiles the comma separated list of METHOD[:event-package]=MODE profiles
+	 * @throws IllegalArgumentException if a profile is malformed or its mode unknown
+	 */
+	public ReplicationProfiles(String profiles) {
+		final StringTokenizer tokenizer = new StringTokenizer(profiles, ",");
+		while (tokenizer.hasMoreTokens()) {
+			final String profile = tokenizer.nextToken().trim();
+			if(profile.length() == 0) {
+				continue;
+			}
+			final int equalsIndex = profile.indexOf('=');
+			if(equalsIndex <= 0) {
+				throw new IllegalArgumentException("Replication profile " + profile + " should be METHOD[:event-package]=" + DialogReplicationMode.NONE + "|" + DialogReplicationMode.CONFIRMED + "|" + DialogReplicationMode.EARLY);
+			}
+			final String mode = profile.substring(equalsIndex + 1).trim().toUpperCase(Locale.ENGLISH);
+			replicationModes.put(key(profile.substring(0, equalsIndex)), DialogReplicationMode.valueOf(mode));
+		}
+	}
+	
+	private static String key(String selector) {
+		final int eventIndex = selector.indexOf(EVENT_SEPARATOR);
+		if(eventIndex < 0) {
+			return selector.trim().toUpperCase(Locale.ENGLISH);
+		}
+		// method names are case sensitive but always upper case in practice, event packages are case insensitive
+		return selector.substring(0, eventIndex).trim().toUpperCase(Locale.ENGLISH) + EVENT_SEPARATOR + selector.substring(eventIndex + 1).trim().toLowerCase(Locale.ENGLISH);
+	}
+	
+	/**
+	 * @param request the request creating the dialog
+	 * @return the replication mode of the dialog, null if no profile matches
+	 */
+	public DialogReplicationMode getReplicationMode(SIPRequest request) {
+		return getReplicationMode(request.getMethod(), (EventHeader) request.getHeader(EventHeader.NAME));
+	}
+	
+	/**
+	 * The method of the request creating the dialog is taken from the CSeq of the response. Responses don't have to carry the Event header
+	 * of the request, so a profile with an event package only matches if the response carries it, otherwise the profile for the method applies
+	 * @param response the response creating the dialog, when the request itself is not available
+	 * @return the replication mode of the dialog, null if no profile matches
+	 */
+	public DialogReplicationMode getReplicationMode(SIPResponse response) {
+		final CSeqHeader cseq = response.getCSeq();
+		if(cseq == null) {
+			return null;
+		}
+		return getReplicationMode(cseq.getMethod(), (EventHeader) response.getHeader(EventHeader.NAME));
+	}
+	
+	private DialogReplicationMode getReplicationMode(String requestMethod, EventHeader eventHeader) {
+		final String method = requestMethod.toUpperCase(Locale.ENGLISH);
+		if(eventHeader != null && eventHeader.getEventType() != null) {
+			final DialogReplicationMode replicationMode = replicationModes.get(method + EVENT_SEPARATOR + eventHeader.getEventType().toLowerCase(Locale.ENGLISH));
+			if(replicationMode != null) {
+				return replicationMode;
+			}
+		}
+		return replicationModes.get(method);
+	}
+	
+	/**
+	 * @param method the method of the request creating the dialog, when the request itself is not available
+	 * @return the replication mode of the dialog, null if no profile matches
+	 */
+	public DialogReplicationMode getReplicationMode(String method) {
+		return replicationModes.get(method.toUpperCase(Locale.ENGLISH));
+	}
+	
+	public boolean isEmpty() {
+		return replicationModes.isEmpty();
+	}
+	
+	@Override
+	public String toString() {
+		return "ReplicationProfiles" + replicationModes;
+	}
+}
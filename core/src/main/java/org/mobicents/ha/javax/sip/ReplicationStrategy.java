@@ -31,5 +31,37 @@ public enum ReplicationStrategy {
 	@Deprecated
 	ConfirmedDialogNoApplicationData, 
 	EarlyDialog, 
-	Transaction
+	/**
+	 * only the in-flight INVITE transactions are replicated, along with the early dialog they create as an anchor,
+	 * the dialog is dropped from the cache once confirmed
+	 */
+	Transaction;
+	
+	/**
+	 * @return true if the INVITE server and client transactions are replicated
+	 */
+	public boolean replicatesTransactions() {
+		return this == EarlyDialog || this == Transaction;
+	}
+	
+	/**
+	 * @return true if the dialogs are replicated while they are in the early state
+	 */
+	public boolean replicatesEarlyDialogs() {
+		return this == EarlyDialog || this == Transaction;
+	}
+	
+	/**
+	 * @return the replication mode of the dialogs for which no narrower mode has been set
+	 */
+	public DialogReplicationMode getDialogReplicationMode() {
+		return replicatesEarlyDialogs() ? DialogReplicationMode.EARLY : DialogReplicationMode.CONFIRMED;
+	}
+	
+	/**
+	 * @return true if the dialogs are kept in the cache once confirmed
+	 */
+	public boolean replicatesConfirmedDialogs() {
+		return this != Transaction;
+	}
 }
@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Coalesces the replications of a dialog or transaction happening within a window into a single one run on the {@link ReplicationTimer},
+ * the state replicated is the one at the end of the window.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public abstract class CoalescedReplication implements Runnable {
+
+	private final ReplicationTimer replicationTimer;
+	private final long window;
+	private ScheduledFuture<?> pendingReplication;
+	private boolean closed;
+
+	/**
+	 * @param replicationTimer the timer to run the replication on
+	 * @param window the time in milliseconds the replications are coalesced for
+	 */
+	public CoalescedReplication(ReplicationTimer replicationTimer, long window) {
+		this.replicationTimer = replicationTimer;
+		this.window = window;
+	}
+
+	/**
+	 * Defer the replication to the end of the current window, opening one if needed
+	 * @return false if the replication couldn't be deferred and has to be done right away
+	 */
+	public synchronized boolean defer() {
+		if(closed) {
+			return true;
+		}
+		if(pendingReplication == null) {
+			pendingReplication = replicationTimer.schedule(this, window);
+			return pendingReplication != null;
+		}
+		return true;
+	}
+
+	/**
+	 * Cancel the deferred replication, if any
+	 * @return true if a replication was pending, the caller is then expected to replicate right away
+	 */
+	public synchronized boolean flush() {
+		if(pendingReplication == null) {
+			return false;
+		}
+		final ScheduledFuture<?> cancelledReplication = pendingReplication;
+		pendingReplication = null;
+		return replicationTimer.cancel(cancelledReplication);
+	}
+
+	/**
+	 * Drop the deferred replication, if any, and ignore the next deferrals, to be called once the dialog or transaction is removed
+	 */
+	public synchronized void close() {
+		closed = true;
+		flush();
+	}
+
+	public void run() {
+		synchronized (this) {
+			if(pendingReplication == null || closed) {
+				return;
+			}
+			pendingReplication = null;
+		}
+		replicate();
+	}
+
+	/**
+	 * Replicate the current state of the dialog or transaction
+	 */
+	protected abstract void replicate();
+}
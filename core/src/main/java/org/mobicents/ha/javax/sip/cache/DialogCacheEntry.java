@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Value stored under the dialog id in the dialogs cache of the key/value backends.
+ * It holds both the encoded dialog state and the application data so that a dialog
+ * can be fetched or stored in a single call to a single owner.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogCacheEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] metaData;
+	private final Object applicationData;
+	private final EarlyTransactionRecord transaction;
+	// number of times the entry has been rewritten, changes with every write even if only the application data changed
+	private final long stamp;
+
+	/**
+	 * @param metaData the dialog state encoded by {@link DialogReplicationStateCodec}
+	 * @param applicationData the application data of the dialog, can be null
+	 */
+	public DialogCacheEntry(byte[] metaData, Object applicationData) {
+		this(metaData, applicationData, null);
+	}
+
+	/**
+	 * @param metaData the dialog state encoded by {@link DialogReplicationStateCodec}, null if only the transaction has been written so far
+	 * @param applicationData the application data of the dialog, can be null
+	 * @param transaction the INVITE transaction of the dialog, can be null
+	 */
+	public DialogCacheEntry(byte[] metaData, Object applicationData, EarlyTransactionRecord transaction) {
+		this(metaData, applicationData, transaction, 0);
+	}
+
+	/**
+	 * @param metaData the dialog state encoded by {@link DialogReplicationStateCodec}, null if only the transaction has been written so far
+	 * @param applicationData the application data of the dialog, can be null
+	 * @param transaction the INVITE transaction of the dialog, can be null
+	 * @param stamp the stamp of the entry replaced plus one, 0 for a new entry
+	 */
+	public DialogCacheEntry(byte[] metaData, Object applicationData, EarlyTransactionRecord transaction, long stamp) {
+		this.metaData = metaData;
+		this.applicationData = applicationData;
+		this.transaction = transaction;
+		this.stamp = stamp;
+	}
+
+	/**
+	 * @return the dialog state encoded by {@link DialogReplicationStateCodec}
+	 */
+	public byte[] getMetaData() {
+		return metaData;
+	}
+
+	public Object getApplicationData() {
+		return applicationData;
+	}
+
+	/**
+	 * @param applicationData the new application data
+	 * @return an entry with the same dialog state and the application data passed in param
+	 */
+	public DialogCacheEntry withApplicationData(Object applicationData) {
+		return new DialogCacheEntry(metaData, applicationData, transaction, stamp + 1);
+	}
+
+	/**
+	 * @return the INVITE transaction stored along with the dialog, null if none
+	 */
+	public EarlyTransactionRecord getTransaction() {
+		return transaction;
+	}
+
+	/**
+	 * @param transaction the new transaction, null to remove it
+	 * @return an entry with the same dialog state and application data and the transaction passed in param
+	 */
+	public DialogCacheEntry withTransaction(EarlyTransactionRecord transaction) {
+		return new DialogCacheEntry(metaData, applicationData, transaction, stamp + 1);
+	}
+
+	/**
+	 * @return the number of times the entry has been rewritten since it has been created
+	 */
+	public long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * @return true if the entry holds neither a dialog nor a transaction
+	 */
+	public boolean isEmpty() {
+		return metaData == null && transaction == null;
+	}
+
+	/**
+	 * Entries are compared by value so that they can be used in the conditional operations of the backends
+	 * even once they have been serialized to another node. The application data doesn't have to implement equals,
+	 * the stamp tells the entries apart when only the application data changed
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof DialogCacheEntry)) {
+			return false;
+		}
+		final DialogCacheEntry other = (DialogCacheEntry) obj;
+		if(stamp != other.stamp || !Arrays.equals(metaData, other.metaData)) {
+			return false;
+		}
+		if(transaction == null ? other.transaction != null : !transaction.equals(other.transaction)) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(metaData);
+	}
+
+	@Override
+	public String toString() {
+		return "DialogCacheEntry[metaData=" + (metaData == null ? 0 : metaData.length) + " bytes, applicationData=" + applicationData + ", transaction=" + transaction + ", stamp=" + stamp + "]";
+	}
+}
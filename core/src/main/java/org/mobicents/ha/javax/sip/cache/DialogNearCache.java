@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the dialogs whose local copy is known to be in sync with the distributed cache,
+ * so that the stack doesn't need to check the cache for updates each time such a dialog is looked up.
+ * An entry is dropped as soon as the cache reports a modification or removal of the dialog coming from another node.
+ *
+ * Invalidation stamps protect against an invalidation racing with the check of the cache :
+ * an entry is only recorded if no invalidation happened since the stamp taken before the check.
+ * The stamps are striped by dialog id, so an invalidation only holds back the dialogs sharing its stripe.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogNearCache {
+
+	private static final int INVALIDATION_STRIPES = 256;
+
+	private final ConcurrentHashMap<String, Boolean> upToDateDialogs = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLongArray invalidationStamps = new AtomicLongArray(INVALIDATION_STRIPES);
+
+	private static int getInvalidationStripe(String dialogId) {
+		return (dialogId.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+	}
+
+	/**
+	 * @param dialogId the id of the dialog about to be checked against the cache
+	 * @return the stamp to pass to {@link #markUpToDate(String, long)} once the dialog has been checked against the cache
+	 */
+	public long stamp(String dialogId) {
+		return invalidationStamps.get(getInvalidationStripe(dialogId));
+	}
+
+	/**
+	 * @param dialogId the id of the dialog
+	 * @return true if the local copy of the dialog is known to be in sync with the cache
+	 */
+	public boolean isUpToDate(String dialogId) {
+		return upToDateDialogs.containsKey(dialogId);
+	}
+
+	/**
+	 * Record that the local copy of the dialog is in sync with the cache
+	 * @param dialogId the id of the dialog
+	 * @param stamp the stamp taken before checking the dialog against the cache
+	 * @return false if an invalidation happened in the meantime and the dialog has not been recorded
+	 */
+	public boolean markUpToDate(String dialogId, long stamp) {
+		final int stripe = getInvalidationStripe(dialogId);
+		upToDateDialogs.put(dialogId, Boolean.TRUE);
+		if(invalidationStamps.get(stripe) != stamp) {
+			// we can't tell whether the invalidation was for this dialog or another one of the stripe, so be conservative
+			upToDateDialogs.remove(dialogId);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Forget about the dialog, the next lookup will check it against the cache
+	 * @param dialogId the id of the dialog
+	 */
+	public void invalidate(String dialogId) {
+		invalidationStamps.incrementAndGet(getInvalidationStripe(dialogId));
+		upToDateDialogs.remove(dialogId);
+	}
+
+	public void clear() {
+		for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+			invalidationStamps.incrementAndGet(i);
+		}
+		upToDateDialogs.clear();
+	}
+
+	public int size() {
+		return upToDateDialogs.size();
+	}
+}
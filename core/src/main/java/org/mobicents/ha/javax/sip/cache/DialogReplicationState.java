@@ -0,0 +1,414 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+/**
+ * Fixed layout record holding the dialog state replicated to the cache.
+ * Each field has a bit in the field mask telling whether it is carried by this record,
+ * so that a record can hold either the full dialog state or only part of it.
+ * Records are turned into bytes by {@link DialogReplicationStateCodec}.
+ * A record that doesn't carry all the fields is a delta that can only be applied on the cached record
+ * having its base version, the base version is not encoded as it only matters to the node writing the delta.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogReplicationState {
+	public static final int DIALOG_STATE = 1;
+	public static final int DIALOG_METHOD = 1 << 1;
+	public static final int LAST_RESPONSE = 1 << 2;
+	public static final int IS_REINVITE = 1 << 3;
+	public static final int ROUTE_LIST = 1 << 4;
+	public static final int TERMINATE_ON_BYE = 1 << 5;
+	public static final int REMOTE_TARGET = 1 << 6;
+	public static final int EVENT_HEADER = 1 << 7;
+	public static final int B2BUA = 1 << 8;
+	public static final int IS_SERVER = 1 << 9;
+	public static final int FIRST_TX_SECURE = 1 << 10;
+	public static final int FIRST_TX_ID = 1 << 11;
+	public static final int ENABLE_CSEQ_VALIDATION = 1 << 12;
+	public static final int FIRST_TX_METHOD = 1 << 13;
+	public static final int CONTACT_HEADER = 1 << 14;
+	public static final int IS_LATEST_TX_SERVER = 1 << 15;
+	public static final int REMOTE_TAG = 1 << 16;
+	public static final int LOCAL_TAG = 1 << 17;
+	public static final int REMOTE_CSEQ = 1 << 18;
+	public static final int LOCAL_CSEQ = 1 << 19;
+	public static final int LINKED_DIALOG_ID = 1 << 20;
+
+	/**
+	 * fields whose value is a boolean, their values are kept as bits in a single int
+	 */
+	public static final int BOOLEAN_FIELDS = IS_REINVITE | TERMINATE_ON_BYE | B2BUA | IS_SERVER | FIRST_TX_SECURE | ENABLE_CSEQ_VALIDATION | IS_LATEST_TX_SERVER;
+	public static final int ALL_FIELDS = (LINKED_DIALOG_ID << 1) - 1;
+
+	private long version;
+	private long baseVersion;
+	private int fieldMask;
+	private int booleanValues;
+	private int dialogState;
+	private String dialogMethod;
+	private byte[] lastResponse;
+	private String[] routeList;
+	private String remoteTarget;
+	private String eventHeader;
+	private String firstTxId;
+	private String firstTxMethod;
+	private String contactHeader;
+	private String remoteTag;
+	private String localTag;
+	private long remoteCSeq;
+	private long localCSeq;
+	private String linkedDialogId;
+
+	public DialogReplicationState() {}
+
+	public DialogReplicationState(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Copy the fields carried by the record passed in param on this record,
+	 * the version of this record becomes the one of the record passed in param.
+	 * The CSeqs are merged as their maximum.
+	 * @param update the record holding the fields to copy
+	 */
+	public void merge(DialogReplicationState update) {
+		final int updateMask = update.fieldMask;
+		version = update.version;
+		if((updateMask & DIALOG_STATE) != 0) {
+			dialogState = update.dialogState;
+		}
+		if((updateMask & DIALOG_METHOD) != 0) {
+			dialogMethod = update.dialogMethod;
+		}
+		if((updateMask & LAST_RESPONSE) != 0) {
+			lastResponse = update.lastResponse;
+		}
+		if((updateMask & ROUTE_LIST) != 0) {
+			routeList = update.routeList;
+		}
+		if((updateMask & REMOTE_TARGET) != 0) {
+			remoteTarget = update.remoteTarget;
+		}
+		if((updateMask & EVENT_HEADER) != 0) {
+			eventHeader = update.eventHeader;
+		}
+		if((updateMask & FIRST_TX_ID) != 0) {
+			firstTxId = update.firstTxId;
+		}
+		if((updateMask & FIRST_TX_METHOD) != 0) {
+			firstTxMethod = update.firstTxMethod;
+		}
+		if((updateMask & CONTACT_HEADER) != 0) {
+			contactHeader = update.contactHeader;
+		}
+		if((updateMask & REMOTE_TAG) != 0) {
+			remoteTag = update.remoteTag;
+		}
+		if((updateMask & LOCAL_TAG) != 0) {
+			localTag = update.localTag;
+		}
+		// CSeqs only move forward, a concurrent writer can't take them back
+		if((updateMask & REMOTE_CSEQ) != 0) {
+			remoteCSeq = (fieldMask & REMOTE_CSEQ) != 0 ? Math.max(remoteCSeq, update.remoteCSeq) : update.remoteCSeq;
+		}
+		if((updateMask & LOCAL_CSEQ) != 0) {
+			localCSeq = (fieldMask & LOCAL_CSEQ) != 0 ? Math.max(localCSeq, update.localCSeq) : update.localCSeq;
+		}
+		if((updateMask & LINKED_DIALOG_ID) != 0) {
+			linkedDialogId = update.linkedDialogId;
+		}
+		final int updatedBooleans = updateMask & BOOLEAN_FIELDS;
+		booleanValues = (booleanValues & ~updatedBooleans) | (update.booleanValues & updatedBooleans);
+		fieldMask |= updateMask;
+	}
+
+	/**
+	 * @return true if this record carries all the fields of the dialog state
+	 */
+	public boolean isFullSnapshot() {
+		return (fieldMask & ALL_FIELDS) == ALL_FIELDS;
+	}
+
+	/**
+	 * Check whether this record can be merged on the cached record passed in param without losing any state
+	 * @param cachedState the record currently stored in the cache, null if none
+	 * @return true if this record is a full snapshot or a delta built on top of the cached record version
+	 */
+	public boolean canBeAppliedOn(DialogReplicationState cachedState) {
+		if(isFullSnapshot()) {
+			return true;
+		}
+		return cachedState != null && cachedState.getVersion() == baseVersion;
+	}
+
+	/**
+	 * @param field the bit of the field to check
+	 * @return true if the field is carried by this record
+	 */
+	public boolean isSet(int field) {
+		return (fieldMask & field) != 0;
+	}
+
+	public int getFieldMask() {
+		return fieldMask;
+	}
+
+	void setFieldMask(int fieldMask) {
+		this.fieldMask = fieldMask;
+	}
+
+	int getBooleanValues() {
+		return booleanValues;
+	}
+
+	void setBooleanValues(int booleanValues) {
+		this.booleanValues = booleanValues;
+	}
+
+	private boolean getBoolean(int field) {
+		return (booleanValues & field) != 0;
+	}
+
+	private void setBoolean(int field, boolean value) {
+		if(value) {
+			booleanValues |= field;
+		} else {
+			booleanValues &= ~field;
+		}
+		fieldMask |= field;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return the version of the cached record this delta has been built on top of, 0 if none
+	 */
+	public long getBaseVersion() {
+		return baseVersion;
+	}
+
+	public void setBaseVersion(long baseVersion) {
+		this.baseVersion = baseVersion;
+	}
+
+	public int getDialogState() {
+		return dialogState;
+	}
+
+	public void setDialogState(int dialogState) {
+		this.dialogState = dialogState;
+		fieldMask |= DIALOG_STATE;
+	}
+
+	public String getDialogMethod() {
+		return dialogMethod;
+	}
+
+	public void setDialogMethod(String dialogMethod) {
+		this.dialogMethod = dialogMethod;
+		fieldMask |= DIALOG_METHOD;
+	}
+
+	/**
+	 * @return the projection of the last response, see {@link org.mobicents.ha.javax.sip.message.MessageProjection}
+	 */
+	public byte[] getLastResponse() {
+		return lastResponse;
+	}
+
+	public void setLastResponse(byte[] lastResponse) {
+		this.lastResponse = lastResponse;
+		fieldMask |= LAST_RESPONSE;
+	}
+
+	public boolean isReInvite() {
+		return getBoolean(IS_REINVITE);
+	}
+
+	public void setReInvite(boolean reInvite) {
+		setBoolean(IS_REINVITE, reInvite);
+	}
+
+	public String[] getRouteList() {
+		return routeList;
+	}
+
+	public void setRouteList(String[] routeList) {
+		this.routeList = routeList;
+		fieldMask |= ROUTE_LIST;
+	}
+
+	public boolean isTerminateOnBye() {
+		return getBoolean(TERMINATE_ON_BYE);
+	}
+
+	public void setTerminateOnBye(boolean terminateOnBye) {
+		setBoolean(TERMINATE_ON_BYE, terminateOnBye);
+	}
+
+	public String getRemoteTarget() {
+		return remoteTarget;
+	}
+
+	public void setRemoteTarget(String remoteTarget) {
+		this.remoteTarget = remoteTarget;
+		fieldMask |= REMOTE_TARGET;
+	}
+
+	public String getEventHeader() {
+		return eventHeader;
+	}
+
+	public void setEventHeader(String eventHeader) {
+		this.eventHeader = eventHeader;
+		fieldMask |= EVENT_HEADER;
+	}
+
+	public boolean isB2BUA() {
+		return getBoolean(B2BUA);
+	}
+
+	public void setB2BUA(boolean b2bua) {
+		setBoolean(B2BUA, b2bua);
+	}
+
+	public boolean isServer() {
+		return getBoolean(IS_SERVER);
+	}
+
+	public void setServer(boolean isServer) {
+		setBoolean(IS_SERVER, isServer);
+	}
+
+	public boolean isFirstTxSecure() {
+		return getBoolean(FIRST_TX_SECURE);
+	}
+
+	public void setFirstTxSecure(boolean firstTxSecure) {
+		setBoolean(FIRST_TX_SECURE, firstTxSecure);
+	}
+
+	public String getFirstTxId() {
+		return firstTxId;
+	}
+
+	public void setFirstTxId(String firstTxId) {
+		this.firstTxId = firstTxId;
+		fieldMask |= FIRST_TX_ID;
+	}
+
+	public boolean isCSeqValidationEnabled() {
+		return getBoolean(ENABLE_CSEQ_VALIDATION);
+	}
+
+	public void setCSeqValidationEnabled(boolean enableCSeqValidation) {
+		setBoolean(ENABLE_CSEQ_VALIDATION, enableCSeqValidation);
+	}
+
+	public String getFirstTxMethod() {
+		return firstTxMethod;
+	}
+
+	public void setFirstTxMethod(String firstTxMethod) {
+		this.firstTxMethod = firstTxMethod;
+		fieldMask |= FIRST_TX_METHOD;
+	}
+
+	public String getContactHeader() {
+		return contactHeader;
+	}
+
+	public void setContactHeader(String contactHeader) {
+		this.contactHeader = contactHeader;
+		fieldMask |= CONTACT_HEADER;
+	}
+
+	public boolean isLatestTxServer() {
+		return getBoolean(IS_LATEST_TX_SERVER);
+	}
+
+	public void setLatestTxServer(boolean isLatestTxServer) {
+		setBoolean(IS_LATEST_TX_SERVER, isLatestTxServer);
+	}
+
+	public String getRemoteTag() {
+		return remoteTag;
+	}
+
+	public void setRemoteTag(String remoteTag) {
+		this.remoteTag = remoteTag;
+		fieldMask |= REMOTE_TAG;
+	}
+
+	public String getLocalTag() {
+		return localTag;
+	}
+
+	public void setLocalTag(String localTag) {
+		this.localTag = localTag;
+		fieldMask |= LOCAL_TAG;
+	}
+
+	public long getRemoteCSeq() {
+		return remoteCSeq;
+	}
+
+	public void setRemoteCSeq(long remoteCSeq) {
+		this.remoteCSeq = remoteCSeq;
+		fieldMask |= REMOTE_CSEQ;
+	}
+
+	public long getLocalCSeq() {
+		return localCSeq;
+	}
+
+	public void setLocalCSeq(long localCSeq) {
+		this.localCSeq = localCSeq;
+		fieldMask |= LOCAL_CSEQ;
+	}
+
+	/**
+	 * @return the id of the dialog to recover along with this one, such as the other leg of a B2BUA call, null if none
+	 */
+	public String getLinkedDialogId() {
+		return linkedDialogId;
+	}
+
+	public void setLinkedDialogId(String linkedDialogId) {
+		this.linkedDialogId = linkedDialogId;
+		fieldMask |= LINKED_DIALOG_ID;
+	}
+
+	@Override
+	public String toString() {
+		return "DialogReplicationState[version=" + version + ", fieldMask=0x" + Integer.toHexString(fieldMask) + "]";
+	}
+}
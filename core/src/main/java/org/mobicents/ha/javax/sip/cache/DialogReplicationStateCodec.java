@@ -0,0 +1,306 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.nio.charset.Charset;
+
+/**
+ * Binary encoder/decoder for {@link DialogReplicationState}.
+ * The layout is a format version byte, the field mask, the dialog version,
+ * the boolean values and then only the fields present in the mask in the order of their bits.
+ * Integers are written as variable length quantities, strings as UTF-8 and byte arrays as is, both prefixed by their length.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class DialogReplicationStateCodec {
+	public static final byte FORMAT_VERSION = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private DialogReplicationStateCodec() {}
+
+	/**
+	 * Encode the record passed in param
+	 * @param state the record to encode
+	 * @return the bytes to store in the cache
+	 */
+	public static byte[] encode(DialogReplicationState state) {
+		final Encoder encoder = new Encoder();
+		final int fieldMask = state.getFieldMask();
+		encoder.writeByte(FORMAT_VERSION);
+		encoder.writeVarLong(fieldMask);
+		encoder.writeVarLong(state.getVersion());
+		if((fieldMask & DialogReplicationState.BOOLEAN_FIELDS) != 0) {
+			encoder.writeVarLong(state.getBooleanValues() & fieldMask);
+		}
+		if((fieldMask & DialogReplicationState.DIALOG_STATE) != 0) {
+			encoder.writeVarLong(state.getDialogState());
+		}
+		if((fieldMask & DialogReplicationState.DIALOG_METHOD) != 0) {
+			encoder.writeString(state.getDialogMethod());
+		}
+		if((fieldMask & DialogReplicationState.LAST_RESPONSE) != 0) {
+			encoder.writeBytes(state.getLastResponse());
+		}
+		if((fieldMask & DialogReplicationState.ROUTE_LIST) != 0) {
+			final String[] routes = state.getRouteList();
+			if(routes == null) {
+				encoder.writeVarLong(0);
+			} else {
+				encoder.writeVarLong(routes.length + 1);
+				for (String route : routes) {
+					encoder.writeString(route);
+				}
+			}
+		}
+		if((fieldMask & DialogReplicationState.REMOTE_TARGET) != 0) {
+			encoder.writeString(state.getRemoteTarget());
+		}
+		if((fieldMask & DialogReplicationState.EVENT_HEADER) != 0) {
+			encoder.writeString(state.getEventHeader());
+		}
+		if((fieldMask & DialogReplicationState.FIRST_TX_ID) != 0) {
+			encoder.writeString(state.getFirstTxId());
+		}
+		if((fieldMask & DialogReplicationState.FIRST_TX_METHOD) != 0) {
+			encoder.writeString(state.getFirstTxMethod());
+		}
+		if((fieldMask & DialogReplicationState.CONTACT_HEADER) != 0) {
+			encoder.writeString(state.getContactHeader());
+		}
+		if((fieldMask & DialogReplicationState.REMOTE_TAG) != 0) {
+			encoder.writeString(state.getRemoteTag());
+		}
+		if((fieldMask & DialogReplicationState.LOCAL_TAG) != 0) {
+			encoder.writeString(state.getLocalTag());
+		}
+		if((fieldMask & DialogReplicationState.REMOTE_CSEQ) != 0) {
+			encoder.writeVarLong(state.getRemoteCSeq());
+		}
+		if((fieldMask & DialogReplicationState.LOCAL_CSEQ) != 0) {
+			encoder.writeVarLong(state.getLocalCSeq());
+		}
+		if((fieldMask & DialogReplicationState.LINKED_DIALOG_ID) != 0) {
+			encoder.writeString(state.getLinkedDialogId());
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decode the bytes passed in param
+	 * @param data bytes previously produced by {@link #encode(DialogReplicationState)}
+	 * @return the decoded record, null if data is null
+	 * @throws SipCacheException if the bytes are not a valid encoded record
+	 */
+	public static DialogReplicationState decode(byte[] data) throws SipCacheException {
+		if(data == null) {
+			return null;
+		}
+		final Decoder decoder = new Decoder(data);
+		final byte formatVersion = decoder.readByte();
+		if(formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+			throw new SipCacheException("Unsupported dialog replication format version " + formatVersion);
+		}
+		final int fieldMask = (int) decoder.readVarLong();
+		final DialogReplicationState state = new DialogReplicationState(decoder.readVarLong());
+		if((fieldMask & DialogReplicationState.BOOLEAN_FIELDS) != 0) {
+			state.setBooleanValues((int) decoder.readVarLong());
+		}
+		if((fieldMask & DialogReplicationState.DIALOG_STATE) != 0) {
+			state.setDialogState((int) decoder.readVarLong());
+		}
+		if((fieldMask & DialogReplicationState.DIALOG_METHOD) != 0) {
+			state.setDialogMethod(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.LAST_RESPONSE) != 0) {
+			state.setLastResponse(decoder.readBytes());
+		}
+		if((fieldMask & DialogReplicationState.ROUTE_LIST) != 0) {
+			final int length = decoder.readCount();
+			String[] routes = null;
+			if(length >= 0) {
+				routes = new String[length];
+				for (int i = 0; i < length; i++) {
+					routes[i] = decoder.readString();
+				}
+			}
+			state.setRouteList(routes);
+		}
+		if((fieldMask & DialogReplicationState.REMOTE_TARGET) != 0) {
+			state.setRemoteTarget(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.EVENT_HEADER) != 0) {
+			state.setEventHeader(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.FIRST_TX_ID) != 0) {
+			state.setFirstTxId(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.FIRST_TX_METHOD) != 0) {
+			state.setFirstTxMethod(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.CONTACT_HEADER) != 0) {
+			state.setContactHeader(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.REMOTE_TAG) != 0) {
+			state.setRemoteTag(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.LOCAL_TAG) != 0) {
+			state.setLocalTag(decoder.readString());
+		}
+		if((fieldMask & DialogReplicationState.REMOTE_CSEQ) != 0) {
+			state.setRemoteCSeq(decoder.readVarLong());
+		}
+		if((fieldMask & DialogReplicationState.LOCAL_CSEQ) != 0) {
+			state.setLocalCSeq(decoder.readVarLong());
+		}
+		if((fieldMask & DialogReplicationState.LINKED_DIALOG_ID) != 0) {
+			state.setLinkedDialogId(decoder.readString());
+		}
+		state.setFieldMask(fieldMask);
+		return state;
+	}
+
+	/**
+	 * Growable byte buffer, avoids the synchronization and copies of ByteArrayOutputStream
+	 */
+	private static final class Encoder {
+		private byte[] buffer = new byte[256];
+		private int position;
+
+		private void ensureCapacity(int length) {
+			if(position + length > buffer.length) {
+				byte[] newBuffer = new byte[Math.max(buffer.length << 1, position + length)];
+				System.arraycopy(buffer, 0, newBuffer, 0, position);
+				buffer = newBuffer;
+			}
+		}
+
+		void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[position++] = (byte) value;
+		}
+
+		/**
+		 * zigzag encoding so that small negative values (such as the -1 CSeq of a fresh dialog) stay small
+		 */
+		void writeVarLong(long value) {
+			long zigzag = (value << 1) ^ (value >> 63);
+			ensureCapacity(10);
+			while((zigzag & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			buffer[position++] = (byte) zigzag;
+		}
+
+		void writeString(String value) {
+			writeBytes(value == null ? null : value.getBytes(UTF_8));
+		}
+
+		void writeBytes(byte[] bytes) {
+			if(bytes == null) {
+				writeVarLong(0);
+				return;
+			}
+			writeVarLong(bytes.length + 1);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+
+		byte[] toByteArray() {
+			final byte[] data = new byte[position];
+			System.arraycopy(buffer, 0, data, 0, position);
+			return data;
+		}
+	}
+
+	private static final class Decoder {
+		private final byte[] buffer;
+		private int position;
+
+		Decoder(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		byte readByte() throws SipCacheException {
+			if(position >= buffer.length) {
+				throw new SipCacheException("Truncated dialog replication data of length " + buffer.length);
+			}
+			return buffer[position++];
+		}
+
+		long readVarLong() throws SipCacheException {
+			long zigzag = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if(shift > 63) {
+					throw new SipCacheException("Malformed variable length quantity at position " + position);
+				}
+				b = readByte();
+				zigzag |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		String readString() throws SipCacheException {
+			final int length = readLength();
+			if(length < 0) {
+				return null;
+			}
+			final String value = new String(buffer, position, length, UTF_8);
+			position += length;
+			return value;
+		}
+
+		byte[] readBytes() throws SipCacheException {
+			final int length = readLength();
+			if(length < 0) {
+				return null;
+			}
+			final byte[] value = new byte[length];
+			System.arraycopy(buffer, position, value, 0, length);
+			position += length;
+			return value;
+		}
+
+		/**
+		 * @return the number of elements of an array prefixed by its count, -1 for a null array
+		 */
+		int readCount() throws SipCacheException {
+			// each element takes at least one byte, a larger count can only come from corrupted data
+			return readLength();
+		}
+
+		private int readLength() throws SipCacheException {
+			final long length = readVarLong() - 1;
+			if(length < -1 || length > buffer.length - position) {
+				throw new SipCacheException("Invalid length " + length + " at position " + position + " in dialog replication data of length " + buffer.length);
+			}
+			return (int) length;
+		}
+	}
+}
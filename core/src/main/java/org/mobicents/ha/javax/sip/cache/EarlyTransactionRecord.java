@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * State of the INVITE transaction of an early dialog, stored in the {@link DialogCacheEntry} of the dialog
+ * when the {@link org.mobicents.ha.javax.sip.ClusteredSipStack#EARLY_DIALOG_TRANSACTION_RECORD} option is enabled,
+ * so that the dialog and its transaction are written, recovered and removed as a single record.
+ * The transaction cache then only holds the id of the dialog under the transaction id.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class EarlyTransactionRecord implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String transactionId;
+	private final boolean server;
+	private final Map<String, Object> metaData;
+	private final Object applicationData;
+	private final long revision;
+
+	/**
+	 * @param transactionId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param metaData the transaction meta data as returned by getMetaDataToReplicate
+	 * @param applicationData the transaction application data, can be null
+	 * @param revision stamp unique to each write of the transaction, records are compared on it rather than on the meta data
+	 */
+	public EarlyTransactionRecord(String transactionId, boolean server, Map<String, Object> metaData, Object applicationData, long revision) {
+		this.transactionId = transactionId;
+		this.server = server;
+		this.metaData = metaData;
+		this.applicationData = applicationData;
+		this.revision = revision;
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	public boolean isServer() {
+		return server;
+	}
+
+	public Map<String, Object> getMetaData() {
+		return metaData;
+	}
+
+	public Object getApplicationData() {
+		return applicationData;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * @param transactionId the id of a transaction
+	 * @param server true for a server transaction
+	 * @return true if this record holds the transaction passed in param
+	 */
+	public boolean isFor(String transactionId, boolean server) {
+		return this.server == server && this.transactionId.equals(transactionId);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof EarlyTransactionRecord)) {
+			return false;
+		}
+		final EarlyTransactionRecord other = (EarlyTransactionRecord) obj;
+		return server == other.server && revision == other.revision && transactionId.equals(other.transactionId);
+	}
+
+	@Override
+	public int hashCode() {
+		return transactionId.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "EarlyTransactionRecord[transactionId=" + transactionId + ", server=" + server + ", revision=" + revision + "]";
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+
+/**
+ * Implemented by the SipCache wanting to hear about the changes made by the other nodes, the stack passes on to it
+ * what the listeners of the backend report through the remote methods of the {@link ClusteredSipStack}.
+ * The dialog modifications are only reported by the backends when {@link ClusteredSipStack#DIALOG_NEAR_CACHE} is enabled.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public interface RemoteChangeListener {
+
+	void remoteDialogModification(String dialogId);
+
+	void remoteDialogRemoval(String dialogId);
+
+	void remoteServerTransactionRemoval(String transactionId);
+
+	void remoteClientTransactionRemoval(String transactionId);
+}
@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single timer thread shared by all the dialogs and transactions of a stack to run their delayed replications,
+ * so that delaying a replication doesn't cost a thread or a timer per dialog.
+ * The tasks should be short, a task writing to the cache synchronously delays the ones behind it.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ReplicationTimer {
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	public ReplicationTimer() {
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "SipCacheReplicationTimer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * @param task the task to run
+	 * @param delay the delay in milliseconds
+	 * @return the future to cancel the task, null if the timer has been stopped
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay) {
+		try {
+			return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param future a future returned by {@link #schedule(Runnable, long)}
+	 * @return true if the task has been cancelled before it ran
+	 */
+	public boolean cancel(ScheduledFuture<?> future) {
+		if(future.cancel(false)) {
+			// the dialogs that terminate before their replication is due are the common case,
+			// cancelled tasks would stay in the queue until their delay elapses otherwise
+			executor.remove((Runnable) future);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stop the timer, the pending tasks are dropped
+	 */
+	public void stop() {
+		executor.shutdownNow();
+	}
+}
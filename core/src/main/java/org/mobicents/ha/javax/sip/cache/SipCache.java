@@ -26,6 +26,8 @@ import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
@@ -95,6 +97,24 @@ public interface SipCache {
 	 */
 	void removeDialog(String dialogId) throws SipCacheException;
 
+	/**
+	 * Retrieve the dialogs with the passed dialogIds from the cache, in as few calls to the cache as it allows
+	 * @param dialogIds ids of the dialogs to retrieve from the cache
+	 * @return the dialogs found in the cache keyed by their id, the dialogs not found are not part of the map
+	 */
+	Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException;
+	/**
+	 * Store the dialogs into the cache, in as few calls to the cache as it allows.
+	 * Each dialog stays stored under its own id, the dialogs are not guaranteed to be stored atomically
+	 * @param dialogs the dialogs to store
+	 */
+	void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException;
+	/**
+	 * Remove the dialogs from the cache, in as few calls to the cache as it allows
+	 * @param dialogIds the ids of the dialogs to remove
+	 */
+	void removeDialogs(Collection<String> dialogIds) throws SipCacheException;
+
 	/**
 	 * Evict the dialog from the cache memory
 	 * @param dialogId the id of the dialog to evict
@@ -117,6 +137,22 @@ public interface SipCache {
 	 * @param serverTransaction the id of the transaction to remove
 	 */
 	void removeServerTransaction(String transactionId) throws SipCacheException;
+	/**
+	 * Retrieve the server transactions with the passed transactionIds from the cache, in as few calls to the cache as it allows
+	 * @param transactionIds ids of the transactions to retrieve from the cache
+	 * @return the transactions found in the cache keyed by their id, the transactions not found are not part of the map
+	 */
+	Map<String, SIPServerTransaction> getServerTransactions(Collection<String> transactionIds) throws SipCacheException;
+	/**
+	 * Store the server transactions into the cache, in as few calls to the cache as it allows
+	 * @param serverTransactions the transactions to store
+	 */
+	void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) throws SipCacheException;
+	/**
+	 * Remove the server transactions from the cache, in as few calls to the cache as it allows
+	 * @param transactionIds the ids of the transactions to remove
+	 */
+	void removeServerTransactions(Collection<String> transactionIds) throws SipCacheException;
 	
 	/**
 	 * Retrieve the client transaction with the passed transactionId from the cache
@@ -134,6 +170,22 @@ public interface SipCache {
 	 * @param transactionId the id of the transaction to remove
 	 */
 	void removeClientTransaction(String transactionId) throws SipCacheException;
+	/**
+	 * Retrieve the client transactions with the passed transactionIds from the cache, in as few calls to the cache as it allows
+	 * @param transactionIds ids of the transactions to retrieve from the cache
+	 * @return the transactions found in the cache keyed by their id, the transactions not found are not part of the map
+	 */
+	Map<String, SIPClientTransaction> getClientTransactions(Collection<String> transactionIds) throws SipCacheException;
+	/**
+	 * Store the client transactions into the cache, in as few calls to the cache as it allows
+	 * @param clientTransactions the transactions to store
+	 */
+	void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) throws SipCacheException;
+	/**
+	 * Remove the client transactions from the cache, in as few calls to the cache as it allows
+	 * @param transactionIds the ids of the transactions to remove
+	 */
+	void removeClientTransactions(Collection<String> transactionIds) throws SipCacheException;
 	
 	/**
 	 * Indicates if the cache is running in local or clustered mode.
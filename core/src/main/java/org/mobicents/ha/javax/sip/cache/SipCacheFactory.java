@@ -42,6 +42,14 @@ public class SipCacheFactory {
 		if (cacheClassName == null) {
 			throw new IllegalArgumentException("the sip cache class name can't be null, please set the org.mobicents.ha.javax.sip.CACHE_CLASS_NAME property accordingly");
 		}
+		return createSipCache(clusteredSipStack, configurationProperties, cacheClassName);
+	}
+
+	/**
+	 * Create a cache of the class passed in param rather than the one of the configuration, for the caches wrapping another cache
+	 */
+	public static SipCache createSipCache(ClusteredSipStack clusteredSipStack,
+			Properties configurationProperties, String cacheClassName) throws PeerUnavailableException {
 		try {
             SipCache sipCache = (SipCache) Class.forName(cacheClassName).newInstance();
             sipCache.setClusteredSipStack(clusteredSipStack);
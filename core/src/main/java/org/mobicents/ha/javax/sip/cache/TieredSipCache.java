@@ -0,0 +1,467 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sip.PeerUnavailableException;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.HASipDialog;
+
+/**
+ * SipCache wrapping another one, the L2, with a bounded local L1 recording what is known about the content of the L2,
+ * so that the stack doesn't go to the L2 for what it already knows :
+ * <ul>
+ * <li>the dialogs and transactions found missing, the stack looks a transaction up in the cache for each new request</li>
+ * <li>the version of the dialogs written or checked by this node, a confirmed dialog is checked against the cache each time it is looked up</li>
+ * </ul>
+ * The dialogs and transactions themselves are always recreated by the L2, the stack initializes and adopts each one it gets from the cache.
+ *
+ * The writes go through to the L2 before updating the L1. The changes made by the other nodes invalidate the L1 when the L2 reports them,
+ * see {@link RemoteChangeListener}, the entries the L2 doesn't report the changes of expire after a time to live : the missing dialogs and transactions,
+ * since no backend reports additions, and the dialogs versions unless {@link ClusteredSipStack#DIALOG_NEAR_CACHE} is enabled.
+ *
+ * It is used by setting <b>org.mobicents.ha.javax.sip.CACHE_CLASS_NAME</b> to this class, configured through the following Restcomm SIP Stack properties :
+ * <b>org.mobicents.ha.javax.sip.TIERED_CACHE_L2_CLASS_NAME</b> class name of the wrapped cache, which gets the same properties, mandatory
+ * <b>org.mobicents.ha.javax.sip.TIERED_CACHE_MAX_ENTRIES</b> number of entries of the L1, the least recently used ones being evicted, 10000 by default
+ * <b>org.mobicents.ha.javax.sip.TIERED_CACHE_TIME_TO_LIVE</b> time in milliseconds the L1 entries not invalidated by the L2 are trusted, 1000 by default.
+ * It bounds the time a dialog or transaction created by another node can be reported missing
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class TieredSipCache implements SipCache, RemoteChangeListener, SipCacheReadiness {
+
+	public static final String TIERED_CACHE_L2_CLASS_NAME = "org.mobicents.ha.javax.sip.TIERED_CACHE_L2_CLASS_NAME";
+	public static final String TIERED_CACHE_MAX_ENTRIES = "org.mobicents.ha.javax.sip.TIERED_CACHE_MAX_ENTRIES";
+	public static final String TIERED_CACHE_TIME_TO_LIVE = "org.mobicents.ha.javax.sip.TIERED_CACHE_TIME_TO_LIVE";
+
+	// prefixes of the keys of the L1
+	private static final String DIALOG = "d:";
+	private static final String SERVER_TRANSACTION = "s:";
+	private static final String CLIENT_TRANSACTION = "c:";
+	private static final int INVALIDATION_STRIPES = 256;
+
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(TieredSipCache.class);
+
+	private Properties configProperties = null;
+	private ClusteredSipStack stack;
+	private SipCache l2;
+	private LocalEntries l1;
+	private long timeToLive;
+	private boolean dialogModificationsReported;
+	// incremented on each invalidation of a key of the stripe, an entry read from the L2 is only recorded
+	// if no key of its stripe has been invalidated during the read, so that the reads of the other keys aren't discarded
+	private final AtomicLongArray invalidationStamps = new AtomicLongArray(INVALIDATION_STRIPES);
+
+	public void init() throws SipCacheException {
+		final String l2ClassName = configProperties.getProperty(TIERED_CACHE_L2_CLASS_NAME);
+		if (l2ClassName == null) {
+			throw new SipCacheException(TIERED_CACHE_L2_CLASS_NAME + " is mandatory for the tiered cache");
+		}
+		final int maxEntries;
+		try {
+			maxEntries = Integer.parseInt(configProperties.getProperty(TIERED_CACHE_MAX_ENTRIES, "10000"));
+			timeToLive = Long.parseLong(configProperties.getProperty(TIERED_CACHE_TIME_TO_LIVE, "1000"));
+		} catch (NumberFormatException e) {
+			throw new SipCacheException("Invalid tiered cache configuration", e);
+		}
+		dialogModificationsReported = Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE));
+		l1 = new LocalEntries(maxEntries);
+		try {
+			l2 = SipCacheFactory.createSipCache(stack, configProperties, l2ClassName);
+		} catch (PeerUnavailableException e) {
+			throw new SipCacheException("Couldn't create the L2 of the tiered cache", e);
+		}
+		l2.init();
+	}
+
+	public void start() throws SipCacheException {
+		l2.start();
+	}
+
+	public void stop() throws SipCacheException {
+		l2.stop();
+		clear();
+	}
+
+	/**
+	 * @return the cache wrapped
+	 */
+	public SipCache getL2() {
+		return l2;
+	}
+
+	/**
+	 * @return the number of entries of the L1
+	 */
+	public int getL1Size() {
+		synchronized (l1) {
+			return l1.size();
+		}
+	}
+
+	private void clear() {
+		for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+			invalidationStamps.incrementAndGet(i);
+		}
+		synchronized (l1) {
+			l1.clear();
+		}
+	}
+
+	// the stack looks the transactions up by their lower case id
+	private static String getServerTransactionKey(String transactionId) {
+		return SERVER_TRANSACTION + transactionId.toLowerCase();
+	}
+
+	private static String getClientTransactionKey(String transactionId) {
+		return CLIENT_TRANSACTION + transactionId.toLowerCase();
+	}
+
+	private static int getInvalidationStripe(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+	}
+
+	/**
+	 * @return the stamp to take before reading the key from the L2
+	 */
+	private Long getInvalidationStamp(String key) {
+		return Long.valueOf(invalidationStamps.get(getInvalidationStripe(key)));
+	}
+
+	private LocalEntry getLocalEntry(String key) {
+		synchronized (l1) {
+			final LocalEntry localEntry = l1.get(key);
+			if (localEntry != null && localEntry.expirationTime < System.currentTimeMillis()) {
+				l1.remove(key);
+				return null;
+			}
+			return localEntry;
+		}
+	}
+
+	/**
+	 * @param stamp the invalidation stamp taken before reading the L2, null if the entry comes from a local write
+	 */
+	private void putLocalEntry(String key, boolean present, long version, Long stamp) {
+		final boolean reported = present && dialogModificationsReported && key.startsWith(DIALOG);
+		final LocalEntry localEntry = new LocalEntry(present, version, reported ? Long.MAX_VALUE : System.currentTimeMillis() + timeToLive);
+		final int stripe = getInvalidationStripe(key);
+		if (stamp == null) {
+			// a read of the L2 started before the write mustn't record what it found
+			invalidationStamps.incrementAndGet(stripe);
+		}
+		synchronized (l1) {
+			if (stamp == null || stamp.longValue() == invalidationStamps.get(stripe)) {
+				l1.put(key, localEntry);
+			}
+		}
+	}
+
+	private void invalidate(String key) {
+		invalidationStamps.incrementAndGet(getInvalidationStripe(key));
+		synchronized (l1) {
+			l1.remove(key);
+		}
+	}
+
+	/**
+	 * @return true if the L1 knows the key is missing from the L2
+	 */
+	private boolean isMissing(String key) {
+		final LocalEntry localEntry = getLocalEntry(key);
+		if (localEntry != null && !localEntry.present) {
+			if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug(key + " is known to be missing from the L2");
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public SIPDialog getDialog(String dialogId) throws SipCacheException {
+		final String key = DIALOG + dialogId;
+		if (isMissing(key)) {
+			return null;
+		}
+		final Long stamp = getInvalidationStamp(key);
+		final SIPDialog dialog = l2.getDialog(dialogId);
+		putLocalEntry(key, dialog != null, dialog != null ? ((HASipDialog) dialog).getVersion() : 0, stamp);
+		return dialog;
+	}
+
+	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		l2.putDialog(dialog);
+		putLocalEntry(DIALOG + dialog.getDialogId(), true, ((HASipDialog) dialog).getVersion(), null);
+	}
+
+	public void updateDialog(SIPDialog dialog) throws SipCacheException {
+		final String key = DIALOG + dialog.getDialogId();
+		final LocalEntry localEntry = getLocalEntry(key);
+		if (localEntry != null && localEntry.present && localEntry.version >= ((HASipDialog) dialog).getVersion()) {
+			if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("dialog " + dialog.getDialogId() + " is as recent as the version " + localEntry.version + " known to be in the L2");
+			}
+			return;
+		}
+		final Long stamp = getInvalidationStamp(key);
+		l2.updateDialog(dialog);
+		putLocalEntry(key, true, ((HASipDialog) dialog).getVersion(), stamp);
+	}
+
+	public void removeDialog(String dialogId) throws SipCacheException {
+		invalidate(DIALOG + dialogId);
+		l2.removeDialog(dialogId);
+	}
+
+	public void evictDialog(String dialogId) {
+		invalidate(DIALOG + dialogId);
+		l2.evictDialog(dialogId);
+	}
+
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		final List<String> dialogIdsToGet = new ArrayList<String>(dialogIds.size());
+		for (String dialogId : dialogIds) {
+			if (!isMissing(DIALOG + dialogId)) {
+				dialogIdsToGet.add(dialogId);
+			}
+		}
+		final Long[] stamps = new Long[dialogIdsToGet.size()];
+		for (int i = 0; i < stamps.length; i++) {
+			stamps[i] = getInvalidationStamp(DIALOG + dialogIdsToGet.get(i));
+		}
+		final Map<String, SIPDialog> dialogs = l2.getDialogs(dialogIdsToGet);
+		for (int i = 0; i < stamps.length; i++) {
+			final SIPDialog dialog = dialogs.get(dialogIdsToGet.get(i));
+			putLocalEntry(DIALOG + dialogIdsToGet.get(i), dialog != null, dialog != null ? ((HASipDialog) dialog).getVersion() : 0, stamps[i]);
+		}
+		return dialogs;
+	}
+
+	public void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		l2.putDialogs(dialogs);
+		for (SIPDialog dialog : dialogs) {
+			putLocalEntry(DIALOG + dialog.getDialogId(), true, ((HASipDialog) dialog).getVersion(), null);
+		}
+	}
+
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		for (String dialogId : dialogIds) {
+			invalidate(DIALOG + dialogId);
+		}
+		l2.removeDialogs(dialogIds);
+	}
+
+	public SIPServerTransaction getServerTransaction(String transactionId) throws SipCacheException {
+		final String key = getServerTransactionKey(transactionId);
+		if (isMissing(key)) {
+			return null;
+		}
+		final Long stamp = getInvalidationStamp(key);
+		final SIPServerTransaction serverTransaction = l2.getServerTransaction(transactionId);
+		if (serverTransaction == null) {
+			putLocalEntry(key, false, 0, stamp);
+		}
+		return serverTransaction;
+	}
+
+	public void putServerTransaction(SIPServerTransaction serverTransaction) throws SipCacheException {
+		l2.putServerTransaction(serverTransaction);
+		invalidate(getServerTransactionKey(serverTransaction.getTransactionId()));
+	}
+
+	public void removeServerTransaction(String transactionId) throws SipCacheException {
+		invalidate(getServerTransactionKey(transactionId));
+		l2.removeServerTransaction(transactionId);
+	}
+
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> transactionIds) throws SipCacheException {
+		final List<String> transactionIdsToGet = new ArrayList<String>(transactionIds.size());
+		for (String transactionId : transactionIds) {
+			if (!isMissing(getServerTransactionKey(transactionId))) {
+				transactionIdsToGet.add(transactionId);
+			}
+		}
+		final Long[] stamps = new Long[transactionIdsToGet.size()];
+		for (int i = 0; i < stamps.length; i++) {
+			stamps[i] = getInvalidationStamp(getServerTransactionKey(transactionIdsToGet.get(i)));
+		}
+		final Map<String, SIPServerTransaction> serverTransactions = l2.getServerTransactions(transactionIdsToGet);
+		for (int i = 0; i < stamps.length; i++) {
+			if (!serverTransactions.containsKey(transactionIdsToGet.get(i))) {
+				putLocalEntry(getServerTransactionKey(transactionIdsToGet.get(i)), false, 0, stamps[i]);
+			}
+		}
+		return serverTransactions;
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) throws SipCacheException {
+		l2.putServerTransactions(serverTransactions);
+		for (SIPServerTransaction serverTransaction : serverTransactions) {
+			invalidate(getServerTransactionKey(serverTransaction.getTransactionId()));
+		}
+	}
+
+	public void removeServerTransactions(Collection<String> transactionIds) throws SipCacheException {
+		for (String transactionId : transactionIds) {
+			invalidate(getServerTransactionKey(transactionId));
+		}
+		l2.removeServerTransactions(transactionIds);
+	}
+
+	public SIPClientTransaction getClientTransaction(String transactionId) throws SipCacheException {
+		final String key = getClientTransactionKey(transactionId);
+		if (isMissing(key)) {
+			return null;
+		}
+		final Long stamp = getInvalidationStamp(key);
+		final SIPClientTransaction clientTransaction = l2.getClientTransaction(transactionId);
+		if (clientTransaction == null) {
+			putLocalEntry(key, false, 0, stamp);
+		}
+		return clientTransaction;
+	}
+
+	public void putClientTransaction(SIPClientTransaction clientTransaction) throws SipCacheException {
+		l2.putClientTransaction(clientTransaction);
+		invalidate(getClientTransactionKey(clientTransaction.getTransactionId()));
+	}
+
+	public void removeClientTransaction(String transactionId) throws SipCacheException {
+		invalidate(getClientTransactionKey(transactionId));
+		l2.removeClientTransaction(transactionId);
+	}
+
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> transactionIds) throws SipCacheException {
+		final List<String> transactionIdsToGet = new ArrayList<String>(transactionIds.size());
+		for (String transactionId : transactionIds) {
+			if (!isMissing(getClientTransactionKey(transactionId))) {
+				transactionIdsToGet.add(transactionId);
+			}
+		}
+		final Long[] stamps = new Long[transactionIdsToGet.size()];
+		for (int i = 0; i < stamps.length; i++) {
+			stamps[i] = getInvalidationStamp(getClientTransactionKey(transactionIdsToGet.get(i)));
+		}
+		final Map<String, SIPClientTransaction> clientTransactions = l2.getClientTransactions(transactionIdsToGet);
+		for (int i = 0; i < stamps.length; i++) {
+			if (!clientTransactions.containsKey(transactionIdsToGet.get(i))) {
+				putLocalEntry(getClientTransactionKey(transactionIdsToGet.get(i)), false, 0, stamps[i]);
+			}
+		}
+		return clientTransactions;
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) throws SipCacheException {
+		l2.putClientTransactions(clientTransactions);
+		for (SIPClientTransaction clientTransaction : clientTransactions) {
+			invalidate(getClientTransactionKey(clientTransaction.getTransactionId()));
+		}
+	}
+
+	public void removeClientTransactions(Collection<String> transactionIds) throws SipCacheException {
+		for (String transactionId : transactionIds) {
+			invalidate(getClientTransactionKey(transactionId));
+		}
+		l2.removeClientTransactions(transactionIds);
+	}
+
+	public void remoteDialogModification(String dialogId) {
+		invalidate(DIALOG + dialogId);
+	}
+
+	public void remoteDialogRemoval(String dialogId) {
+		invalidate(DIALOG + dialogId);
+	}
+
+	public void remoteServerTransactionRemoval(String transactionId) {
+		invalidate(getServerTransactionKey(transactionId));
+	}
+
+	public void remoteClientTransactionRemoval(String transactionId) {
+		invalidate(getClientTransactionKey(transactionId));
+	}
+
+	public void setConfigurationProperties(Properties configurationProperties) {
+		this.configProperties = configurationProperties;
+	}
+
+	public boolean inLocalMode() {
+		return l2.inLocalMode();
+	}
+
+	public boolean isReady() {
+		return !(l2 instanceof SipCacheReadiness) || ((SipCacheReadiness) l2).isReady();
+	}
+
+	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
+		stack = clusteredStack;
+	}
+
+	/**
+	 * What is known about a dialog or transaction of the L2
+	 */
+	private static class LocalEntry {
+		private final boolean present;
+		private final long version;
+		private final long expirationTime;
+
+		LocalEntry(boolean present, long version, long expirationTime) {
+			this.present = present;
+			this.version = version;
+			this.expirationTime = expirationTime;
+		}
+	}
+
+	/**
+	 * Least recently used entries of the L1, guarded by itself
+	 */
+	private static class LocalEntries extends LinkedHashMap<String, LocalEntry> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		LocalEntries(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, LocalEntry> eldest) {
+			return size() > maxEntries;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write behind pipeline between the stack and the {@link SipCache}, so that the threads processing SIP messages never wait on the cache.
+ * 
+ * Pending writes are keyed by dialog or transaction id, a write for an id that is already pending replaces the pending one :
+ * since the state to replicate is computed from the dialog or transaction when the write is flushed, a burst of updates
+ * collapses into a single write and a removal cancels the pending store.
+ * Linked dialogs are queued under a single key, so a write of one of them that can't replace
+ * the pending write of both is chained after it instead and a removal is never overtaken by a pending write of the linked dialogs.
+ * Each id is always flushed by the same thread, which keeps the writes of an id ordered.
+ * A write is flushed maxDelay milliseconds after the first update queued for its id, whatever the other ids pending on the same thread.
+ * When the number of pending ids reaches the configured capacity, the write is done synchronously by the calling thread,
+ * after the write of the same id being flushed if any, and in place of the one still pending if any.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class WriteBehindReplicationQueue {
+	private static StackLogger logger = CommonLogger.getLogger(WriteBehindReplicationQueue.class);
+
+	public static final String THREADS = "org.mobicents.ha.javax.sip.WRITE_BEHIND_THREADS";
+	public static final String MAX_DELAY = "org.mobicents.ha.javax.sip.WRITE_BEHIND_MAX_DELAY";
+	public static final String CAPACITY = "org.mobicents.ha.javax.sip.WRITE_BEHIND_CAPACITY";
+	public static final long DEFAULT_MAX_DELAY = 20;
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static final long POLL_TIMEOUT = 100;
+	private static final int WRITE_LOCKS = 256;
+	private static final String DIALOG_KEY_PREFIX = "D";
+	private static final String SERVER_TX_KEY_PREFIX = "S";
+	private static final String CLIENT_TX_KEY_PREFIX = "C";
+
+	private final SipCache sipCache;
+	private final long maxDelay;
+	private final int capacity;
+	private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+	// key the writes of linked dialogs are queued under, until each dialog is removed
+	private final ConcurrentHashMap<String, String> linkKeys = new ConcurrentHashMap<String, String>();
+	private final FlushThread[] flushThreads;
+	// serialize the writes of an id between the flush threads and the callers writing synchronously
+	private final Object[] writeLocks = new Object[WRITE_LOCKS];
+	private volatile boolean running;
+
+	/**
+	 * @param sipCache the cache to write to
+	 * @param threads the number of flush threads
+	 * @param maxDelay the maximum time in milliseconds a write stays pending
+	 * @param capacity the maximum number of pending ids
+	 */
+	public WriteBehindReplicationQueue(SipCache sipCache, int threads, long maxDelay, int capacity) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("at least one flush thread is needed " + threads);
+		}
+		this.sipCache = sipCache;
+		this.maxDelay = maxDelay;
+		this.capacity = capacity;
+		this.flushThreads = new FlushThread[threads];
+		for (int i = 0; i < threads; i++) {
+			flushThreads[i] = new FlushThread("SipCacheWriteBehind-" + i);
+		}
+		for (int i = 0; i < writeLocks.length; i++) {
+			writeLocks[i] = new Object();
+		}
+	}
+
+	public void start() {
+		running = true;
+		for (FlushThread flushThread : flushThreads) {
+			flushThread.start();
+		}
+	}
+
+	/**
+	 * Stop the flush threads once all the pending writes have been flushed
+	 */
+	public void stop() {
+		running = false;
+		for (FlushThread flushThread : flushThreads) {
+			try {
+				flushThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		// writes queued while the threads were exiting
+		for (FlushThread flushThread : flushThreads) {
+			flushThread.flushAll();
+		}
+	}
+
+	public int getPendingWrites() {
+		return pendingWrites.size();
+	}
+
+	public void putDialog(final SIPDialog dialog) throws SipCacheException {
+		submit(getDialogKey(dialog.getDialogId()), new PendingWrite(false, dialog.getDialogId()) {
+			void write() throws SipCacheException {
+				sipCache.putDialog(dialog);
+			}
+		});
+	}
+
+	/**
+	 * Queue a write of linked dialogs, they are written to the cache in a single call.
+	 * The write is queued under their link key, the smallest dialog id unless one of the dialogs already has a link key.
+	 * All the following writes of these dialogs, removals included, go through the same key until each dialog is removed,
+	 * so that a removal can't be overtaken by a pending write of the linked dialogs
+	 * @param dialogs the dialogs to write together
+	 */
+	public void putDialogs(final Collection<SIPDialog> dialogs) throws SipCacheException {
+		final List<String> dialogIds = new ArrayList<String>(dialogs.size());
+		for (SIPDialog dialog : dialogs) {
+			dialogIds.add(dialog.getDialogId());
+		}
+		Collections.sort(dialogIds);
+		submit(getLinkKey(dialogIds), new PendingWrite(false, dialogIds.toString()) {
+			void write() throws SipCacheException {
+				sipCache.putDialogs(dialogs);
+			}
+		});
+	}
+
+	/**
+	 * @param dialogIds the sorted ids of linked dialogs
+	 * @return the key the writes of the linked dialogs are queued under, recorded for each dialog until it is removed
+	 */
+	String getLinkKey(List<String> dialogIds) {
+		String key = null;
+		for (String dialogId : dialogIds) {
+			key = linkKeys.get(dialogId);
+			if(key != null) {
+				break;
+			}
+		}
+		if(key == null) {
+			key = DIALOG_KEY_PREFIX + dialogIds.get(0);
+		}
+		for (String dialogId : dialogIds) {
+			linkKeys.putIfAbsent(dialogId, key);
+		}
+		return key;
+	}
+
+	public void removeDialog(final String dialogId) throws SipCacheException {
+		final String linkKey = linkKeys.remove(dialogId);
+		submit(linkKey != null ? linkKey : DIALOG_KEY_PREFIX + dialogId, new PendingWrite(true, dialogId) {
+			void write() throws SipCacheException {
+				sipCache.removeDialog(dialogId);
+			}
+		});
+	}
+
+	/**
+	 * Drop the link key of the dialog passed in param, to be called each time a dialog is removed locally,
+	 * including when it is not removed from the cache because it never got there
+	 * @param dialogId the id of the dialog removed
+	 */
+	public void forget(String dialogId) {
+		linkKeys.remove(dialogId);
+	}
+
+	/**
+	 * @return the key the writes of the dialog are queued under
+	 */
+	private String getDialogKey(String dialogId) {
+		final String linkKey = linkKeys.get(dialogId);
+		return linkKey != null ? linkKey : DIALOG_KEY_PREFIX + dialogId;
+	}
+
+	public void putServerTransaction(final SIPServerTransaction serverTransaction) throws SipCacheException {
+		submit(SERVER_TX_KEY_PREFIX + serverTransaction.getTransactionId(), new PendingWrite(false, serverTransaction.getTransactionId()) {
+			void write() throws SipCacheException {
+				sipCache.putServerTransaction(serverTransaction);
+			}
+		});
+	}
+
+	public void removeServerTransaction(final String transactionId) throws SipCacheException {
+		submit(SERVER_TX_KEY_PREFIX + transactionId, new PendingWrite(true, transactionId) {
+			void write() throws SipCacheException {
+				sipCache.removeServerTransaction(transactionId);
+			}
+		});
+	}
+
+	public void putClientTransaction(final SIPClientTransaction clientTransaction) throws SipCacheException {
+		submit(CLIENT_TX_KEY_PREFIX + clientTransaction.getTransactionId(), new PendingWrite(false, clientTransaction.getTransactionId()) {
+			void write() throws SipCacheException {
+				sipCache.putClientTransaction(clientTransaction);
+			}
+		});
+	}
+
+	public void removeClientTransaction(final String transactionId) throws SipCacheException {
+		submit(CLIENT_TX_KEY_PREFIX + transactionId, new PendingWrite(true, transactionId) {
+			void write() throws SipCacheException {
+				sipCache.removeClientTransaction(transactionId);
+			}
+		});
+	}
+
+	private void submit(String key, PendingWrite write) throws SipCacheException {
+		if(!running || (pendingWrites.size() >= capacity && !pendingWrites.containsKey(key))) {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("write behind queue " + (running ? "full" : "stopped") + ", writing " + key + " synchronously");
+			}
+			synchronized (getWriteLock(key)) {
+				// the write still pending for the same key, if any, goes first or is superseded
+				final PendingWrite previous = pendingWrites.remove(key);
+				(previous != null ? write.coalesce(previous) : write).write();
+			}
+			return;
+		}
+		while(true) {
+			final PendingWrite previous = pendingWrites.get(key);
+			if(previous == null) {
+				if(pendingWrites.putIfAbsent(key, write) == null) {
+					// the delay is counted from the first update so that a busy dialog still gets flushed regularly
+					flushThreads[(key.hashCode() & Integer.MAX_VALUE) % flushThreads.length].queue.offer(new PendingKey(key, System.currentTimeMillis() + maxDelay));
+					return;
+				}
+			} else if(pendingWrites.replace(key, previous, write.coalesce(previous))) {
+				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug("write of " + key + " coalesced with the pending one");
+				}
+				return;
+			}
+			// flushed or coalesced concurrently, try again
+		}
+	}
+
+	private Object getWriteLock(String key) {
+		return writeLocks[(key.hashCode() & Integer.MAX_VALUE) % writeLocks.length];
+	}
+
+	private void flush(String key) {
+		synchronized (getWriteLock(key)) {
+			final PendingWrite pendingWrite = pendingWrites.remove(key);
+			if(pendingWrite == null) {
+				return;
+			}
+			try {
+				pendingWrite.write();
+			} catch (SipCacheException e) {
+				logger.logError("problem writing " + key + " to the distributed cache", e);
+			} catch (RuntimeException e) {
+				logger.logError("unexpected problem writing " + key + " to the distributed cache", e);
+			}
+		}
+	}
+
+	private abstract static class PendingWrite {
+		private final boolean removal;
+		// ids written
+		private final String target;
+
+		PendingWrite(boolean removal, String target) {
+			this.removal = removal;
+			this.target = target;
+		}
+
+		abstract void write() throws SipCacheException;
+
+		/**
+		 * @param previous the write still pending under the same key
+		 * @return the write to keep pending in place of the previous one and this one
+		 */
+		PendingWrite coalesce(PendingWrite previous) {
+			if(previous instanceof ChainedWrite) {
+				return ((ChainedWrite) previous).append(this);
+			}
+			if(supersedes(previous)) {
+				return this;
+			}
+			// a removal of one of the linked dialogs, or a write of one of them after the write of both, has to run after it
+			return new ChainedWrite(previous, this);
+		}
+
+		/**
+		 * the state is computed when writing, so the last write of the same ids carries it, and a removal cancels the pending store
+		 */
+		boolean supersedes(PendingWrite previous) {
+			return target.equals(previous.target) && (removal || !previous.removal);
+		}
+	}
+
+	/**
+	 * Writes of a link key that have to run one after the other
+	 */
+	private static class ChainedWrite extends PendingWrite {
+		private final List<PendingWrite> writes;
+
+		ChainedWrite(PendingWrite first, PendingWrite second) {
+			super(false, "");
+			writes = new ArrayList<PendingWrite>(2);
+			writes.add(first);
+			writes.add(second);
+		}
+
+		private ChainedWrite(List<PendingWrite> writes) {
+			super(false, "");
+			this.writes = writes;
+		}
+
+		/**
+		 * @return a chain ending with the write passed in param, the chain itself is left untouched as it may be flushed concurrently
+		 */
+		ChainedWrite append(PendingWrite write) {
+			final List<PendingWrite> appended = new ArrayList<PendingWrite>(writes);
+			if(write.supersedes(appended.get(appended.size() - 1))) {
+				appended.set(appended.size() - 1, write);
+			} else {
+				appended.add(write);
+			}
+			return new ChainedWrite(appended);
+		}
+
+		@Override
+		void write() throws SipCacheException {
+			SipCacheException failure = null;
+			for (PendingWrite write : writes) {
+				try {
+					write.write();
+				} catch (SipCacheException e) {
+					if(failure == null) {
+						failure = e;
+					}
+				}
+			}
+			if(failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Id queued on a flush thread, available to the thread once its write is due
+	 */
+	private static class PendingKey implements Delayed {
+		private final String key;
+		private final long dueTime;
+
+		PendingKey(String key, long dueTime) {
+			this.key = key;
+			this.dueTime = dueTime;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			final long otherDueTime = ((PendingKey) other).dueTime;
+			return dueTime < otherDueTime ? -1 : (dueTime == otherDueTime ? 0 : 1);
+		}
+	}
+
+	private class FlushThread extends Thread {
+		private final DelayQueue<PendingKey> queue = new DelayQueue<PendingKey>();
+
+		FlushThread(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				final PendingKey pendingKey;
+				try {
+					// only gives back an id whose write is due
+					pendingKey = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(pendingKey != null) {
+					flush(pendingKey.key);
+				}
+			}
+			flushAll();
+		}
+
+		/**
+		 * Flush all the ids queued on this thread without waiting for their writes to be due
+		 */
+		private void flushAll() {
+			PendingKey pendingKey;
+			while((pendingKey = queue.peek()) != null) {
+				if(queue.remove(pendingKey)) {
+					flush(pendingKey.key);
+				}
+			}
+		}
+	}
+}
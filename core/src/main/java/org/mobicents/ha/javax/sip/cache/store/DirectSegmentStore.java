@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SegmentStore} keeping its segments in slabs of direct memory, out of the Java heap,
+ * so that only the index of the keys is scanned by the garbage collector however many values are stored.
+ * The slabs released by the compaction are kept to be reused by the next segments, up to the number of slabs allowed,
+ * nothing survives the JVM.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DirectSegmentStore extends SegmentStore {
+
+	private final int maxSlabs;
+	// guarded by itself
+	private final List<ByteBuffer> freeSlabs = new ArrayList<ByteBuffer>();
+	private int allocatedSlabs;
+
+	/**
+	 * @param slabSize the size in bytes of the slabs, bounding the size of a record
+	 * @param maxSize the number of bytes of direct memory the store can take, rounded up to a number of slabs, 0 for no limit
+	 */
+	public DirectSegmentStore(int slabSize, long maxSize) {
+		super(slabSize);
+		this.maxSlabs = maxSize > 0 ? (int) Math.max(2, (maxSize + slabSize - 1) / slabSize) : Integer.MAX_VALUE;
+	}
+
+	@Override
+	protected void recoverSegments() {
+		// nothing to recover from direct memory
+	}
+
+	@Override
+	protected ByteBuffer allocateSegment(long id) throws IOException {
+		synchronized (freeSlabs) {
+			if(!freeSlabs.isEmpty()) {
+				return freeSlabs.remove(freeSlabs.size() - 1);
+			}
+			if(allocatedSlabs >= maxSlabs) {
+				throw new IOException("the " + maxSlabs + " slabs of " + segmentSize + " bytes of the store are full");
+			}
+			allocatedSlabs++;
+		}
+		return ByteBuffer.allocateDirect(segmentSize);
+	}
+
+	@Override
+	protected void releaseSegment(long id, ByteBuffer buffer) {
+		// the readers still holding a location in the slab check the index once the value is read, so it can be reused right away
+		synchronized (freeSlabs) {
+			freeSlabs.add(buffer);
+		}
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		synchronized (freeSlabs) {
+			// the slabs are freed once garbage collected
+			freeSlabs.clear();
+			allocatedSlabs = 0;
+		}
+	}
+
+	/**
+	 * @return the number of bytes of direct memory taken by the slabs
+	 */
+	public long getAllocatedSize() {
+		synchronized (freeSlabs) {
+			return (long) allocatedSlabs * segmentSize;
+		}
+	}
+}
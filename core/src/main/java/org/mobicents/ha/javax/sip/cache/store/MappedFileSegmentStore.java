@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.store;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * {@link SegmentStore} keeping each segment in a file of its directory, mapped in memory.
+ * The writes land in the page cache so they survive a crash of the JVM, a segment is forced to the disk once full,
+ * the active one whenever {@link #flush()} is called.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class MappedFileSegmentStore extends SegmentStore {
+
+	private static StackLogger logger = CommonLogger.getLogger(MappedFileSegmentStore.class);
+
+	private static final String SEGMENT_FILE_PREFIX = "segment-";
+	private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+	private final File directory;
+
+	/**
+	 * @param directory the directory holding the segment files, created if needed
+	 * @param segmentSize the size in bytes of the segment files
+	 */
+	public MappedFileSegmentStore(File directory, int segmentSize) {
+		super(segmentSize);
+		this.directory = directory;
+	}
+
+	@Override
+	protected void recoverSegments() throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create the directory " + directory);
+		}
+		final String[] fileNames = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX);
+			}
+		});
+		if(fileNames == null) {
+			throw new IOException("Couldn't list the directory " + directory);
+		}
+		// the ids are zero padded so the names sort in the order of the segments
+		Arrays.sort(fileNames);
+		for (String fileName : fileNames) {
+			final long id;
+			try {
+				id = Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				logger.logWarning("ignoring the file " + fileName + " of " + directory);
+				continue;
+			}
+			final File file = new File(directory, fileName);
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("recovering segment " + file);
+			}
+			loadSegment(id, map(file, file.length()));
+		}
+	}
+
+	@Override
+	protected ByteBuffer allocateSegment(long id) throws IOException {
+		return map(getFile(id), segmentSize);
+	}
+
+	@Override
+	protected void releaseSegment(long id, ByteBuffer buffer) {
+		// the mapping stays valid for the readers still holding it until it is garbage collected
+		final File file = getFile(id);
+		if(!file.delete()) {
+			logger.logWarning("Couldn't delete the compacted segment " + file);
+		}
+	}
+
+	@Override
+	protected void forceSegment(ByteBuffer buffer) {
+		((MappedByteBuffer) buffer).force();
+	}
+
+	private File getFile(long id) {
+		return new File(directory, SEGMENT_FILE_PREFIX + String.format("%019d", id) + SEGMENT_FILE_SUFFIX);
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			if(randomAccessFile.length() < size) {
+				randomAccessFile.setLength(size);
+			}
+			return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+}
@@ -0,0 +1,480 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.store;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured key/value store appending its records to fixed size segments.
+ * A write appends a record to the active segment and points the in memory index of the key to it, the previous record of the key becoming garbage.
+ * Once the active segment is full a new one is started, the full segments are never written again until they are compacted.
+ *
+ * Compaction always works on the oldest segment : its live records are appended again to the active segment and the segment is released,
+ * so that no remove record can be dropped while an older record of the same key is still around.
+ * It kicks in once less than half of the oldest segment is live, or when the store holds more garbage than live records.
+ *
+ * Each record is laid out as follows, the length being written last so that a partially written record is ignored on recovery :
+ * <pre>
+ * int length | int CRC32 of what follows | long timestamp | byte operation | unsigned short key length | UTF-8 key | value
+ * </pre>
+ *
+ * Where the segments live is left to the subclasses, which allocate, release and recover them.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public abstract class SegmentStore {
+
+	private static StackLogger logger = CommonLogger.getLogger(SegmentStore.class);
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 2;
+	private static final int MAX_KEY_SIZE = 0xFFFF;
+
+	protected final int segmentSize;
+	private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+	// oldest first, the last one is the active segment, guarded by the lock as well as the segments state
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final Object lock = new Object();
+	private Segment activeSegment;
+	private long nextSegmentId;
+
+	/**
+	 * @param segmentSize the size in bytes of the segments, bounding the size of a record
+	 */
+	protected SegmentStore(int segmentSize) {
+		if(segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("segment size " + segmentSize + " is too small");
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @param id the id of the segment, segments are created with increasing ids
+	 * @return an empty segment buffer of {@link #segmentSize} bytes
+	 */
+	protected abstract ByteBuffer allocateSegment(long id) throws IOException;
+
+	/**
+	 * Called once the live records of a segment have been moved, the segment won't be read or written anymore
+	 */
+	protected abstract void releaseSegment(long id, ByteBuffer buffer);
+
+	/**
+	 * Load the segments kept from a previous run, if any, by calling {@link #loadSegment(long, ByteBuffer)} for each of them in increasing ids
+	 */
+	protected abstract void recoverSegments() throws IOException;
+
+	/**
+	 * Write the segment to its underlying storage, if any
+	 */
+	protected void forceSegment(ByteBuffer buffer) {
+	}
+
+	/**
+	 * Recover the segments and start a new active segment, the writes never go after what has been recovered
+	 */
+	public void open() throws IOException {
+		synchronized (lock) {
+			recoverSegments();
+			startSegment();
+			if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				logger.logInfo("segment store opened with " + index.size() + " entries recovered from " + (segments.size() - 1) + " segments");
+			}
+		}
+	}
+
+	/**
+	 * Force the segments to their storage and forget them
+	 */
+	public void close() {
+		synchronized (lock) {
+			for (Segment segment : segments) {
+				forceSegment(segment.buffer);
+			}
+			segments.clear();
+			index.clear();
+			activeSegment = null;
+		}
+	}
+
+	/**
+	 * Force the active segment to its storage, the other segments have been forced once full
+	 */
+	public void flush() {
+		final Segment segment;
+		synchronized (lock) {
+			segment = activeSegment;
+		}
+		if(segment != null) {
+			forceSegment(segment.buffer);
+		}
+	}
+
+	/**
+	 * Add a segment from a previous run, its records override the ones of the segments loaded before
+	 * @param id the id of the segment
+	 * @param buffer the content of the segment
+	 */
+	protected void loadSegment(long id, ByteBuffer buffer) {
+		final Segment segment = new Segment(id, buffer);
+		int offset = 0;
+		while(offset + HEADER_SIZE <= buffer.capacity()) {
+			final int length = buffer.getInt(offset);
+			if(length < HEADER_SIZE || offset + length > buffer.capacity()) {
+				// end of the written records or partially written record
+				break;
+			}
+			final byte[] record = new byte[length];
+			final ByteBuffer source = buffer.duplicate();
+			source.position(offset);
+			source.get(record);
+			if(checksum(record) != ByteBuffer.wrap(record).getInt(4)) {
+				logger.logWarning("corrupted record at offset " + offset + " of segment " + id + ", ignoring the rest of the segment");
+				break;
+			}
+			final String key = getKey(record);
+			final Location previousLocation;
+			if(record[16] == PUT) {
+				final Location location = new Location(segment, offset, length, HEADER_SIZE + getKeySize(record));
+				segment.liveBytes += length;
+				previousLocation = index.put(key, location);
+			} else {
+				previousLocation = index.remove(key);
+			}
+			if(previousLocation != null) {
+				previousLocation.segment.liveBytes -= previousLocation.length;
+			}
+			offset += length;
+		}
+		segment.position = offset;
+		segments.add(segment);
+		nextSegmentId = Math.max(nextSegmentId, id + 1);
+	}
+
+	/**
+	 * @return the value stored under the key, null if none
+	 */
+	public StoredValue get(String key) {
+		while(true) {
+			final Location location = index.get(key);
+			if(location == null) {
+				return null;
+			}
+			final byte[] value = location.readValue();
+			// the segment may have been compacted and released while being read
+			if(index.get(key) == location) {
+				return new StoredValue(location, value);
+			}
+		}
+	}
+
+	/**
+	 * Store the value, no matter what is stored under the key
+	 */
+	public void put(String key, byte[] value) throws IOException {
+		final byte[] record = createRecord(PUT, key, value);
+		synchronized (lock) {
+			replaceLocation(key, append(record));
+		}
+	}
+
+	/**
+	 * Store the value if what is stored under the key is still the expected value
+	 * @param expectedValue the value read before, null if the key is expected to be absent
+	 * @return false if the key has been written concurrently
+	 */
+	public boolean replace(String key, StoredValue expectedValue, byte[] value) throws IOException {
+		final byte[] record = createRecord(PUT, key, value);
+		synchronized (lock) {
+			if(index.get(key) != (expectedValue == null ? null : expectedValue.location)) {
+				return false;
+			}
+			replaceLocation(key, append(record));
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if a value was stored under the key
+	 */
+	public boolean remove(String key) throws IOException {
+		synchronized (lock) {
+			if(!index.containsKey(key)) {
+				return false;
+			}
+			append(createRecord(REMOVE, key, new byte[0]));
+			replaceLocation(key, null);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove the value if what is stored under the key is still the expected value
+	 * @param expectedValue the value read before
+	 * @return false if the key has been written or removed concurrently
+	 */
+	public boolean remove(String key, StoredValue expectedValue) throws IOException {
+		synchronized (lock) {
+			if(index.get(key) != expectedValue.location) {
+				return false;
+			}
+			append(createRecord(REMOVE, key, new byte[0]));
+			replaceLocation(key, null);
+			return true;
+		}
+	}
+
+	/**
+	 * @return a view of the keys stored, reflecting the concurrent writes or not
+	 */
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	 * @return the number of keys stored
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Compact the oldest segments as long as they hold too much garbage
+	 * @param expirationTime the live records written before that time are dropped along with the segment they are in, 0 to keep them all
+	 * @return the number of segments compacted
+	 */
+	public int compact(long expirationTime) throws IOException {
+		int compactedSegments = 0;
+		int segmentsToCompact;
+		synchronized (lock) {
+			segmentsToCompact = segments.size() - 1;
+		}
+		while(segmentsToCompact-- > 0) {
+			final Segment segment;
+			synchronized (lock) {
+				if(segments.size() < 2 || !needsCompaction(segments.get(0))) {
+					break;
+				}
+				segment = segments.get(0);
+			}
+			compact(segment, expirationTime);
+			synchronized (lock) {
+				segments.remove(segment);
+			}
+			releaseSegment(segment.id, segment.buffer);
+			compactedSegments++;
+		}
+		if(compactedSegments > 0 && logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug(compactedSegments + " segments compacted, " + index.size() + " entries left");
+		}
+		return compactedSegments;
+	}
+
+	private boolean needsCompaction(Segment oldestSegment) {
+		if(oldestSegment.liveBytes * 2L < oldestSegment.position) {
+			return true;
+		}
+		long usedBytes = 0;
+		long liveBytes = 0;
+		for (Segment segment : segments) {
+			usedBytes += segment.position;
+			liveBytes += segment.liveBytes;
+		}
+		return usedBytes - liveBytes > liveBytes;
+	}
+
+	/**
+	 * Move the live records of a full segment to the active segment, the records are copied as they are so they keep their timestamp
+	 */
+	private void compact(Segment segment, long expirationTime) throws IOException {
+		int offset = 0;
+		while(offset < segment.position) {
+			final int length = segment.buffer.getInt(offset);
+			final byte[] record = new byte[length];
+			final ByteBuffer source = segment.buffer.duplicate();
+			source.position(offset);
+			source.get(record);
+			if(record[16] == PUT) {
+				final String key = getKey(record);
+				synchronized (lock) {
+					final Location location = index.get(key);
+					if(location != null && location.segment == segment && location.offset == offset) {
+						if(ByteBuffer.wrap(record).getLong(8) < expirationTime) {
+							// nothing older is left to be resurrected on recovery, no remove record is needed
+							replaceLocation(key, null);
+						} else {
+							replaceLocation(key, append(record));
+						}
+					}
+				}
+			}
+			offset += length;
+		}
+	}
+
+	/**
+	 * To be called with the lock held
+	 */
+	private void replaceLocation(String key, Location location) {
+		final Location previousLocation = location == null ? index.remove(key) : index.put(key, location);
+		if(previousLocation != null) {
+			previousLocation.segment.liveBytes -= previousLocation.length;
+		}
+	}
+
+	/**
+	 * To be called with the lock held
+	 * @return the location of the record, counted as live
+	 */
+	private Location append(byte[] record) throws IOException {
+		if(activeSegment == null) {
+			throw new IOException("segment store is closed");
+		}
+		if(activeSegment.position + record.length > segmentSize) {
+			forceSegment(activeSegment.buffer);
+			startSegment();
+		}
+		final int offset = activeSegment.position;
+		final ByteBuffer target = activeSegment.buffer.duplicate();
+		target.position(offset + 4);
+		target.put(record, 4, record.length - 4);
+		activeSegment.buffer.putInt(offset, record.length);
+		activeSegment.position += record.length;
+		final Location location = new Location(activeSegment, offset, record.length, HEADER_SIZE + getKeySize(record));
+		if(record[16] == PUT) {
+			activeSegment.liveBytes += record.length;
+		}
+		return location;
+	}
+
+	private void startSegment() throws IOException {
+		final long id = nextSegmentId++;
+		activeSegment = new Segment(id, allocateSegment(id));
+		segments.add(activeSegment);
+	}
+
+	private byte[] createRecord(byte operation, String key, byte[] value) throws IOException {
+		final byte[] keyBytes = key.getBytes("UTF-8");
+		if(keyBytes.length > MAX_KEY_SIZE) {
+			throw new IOException("key of " + keyBytes.length + " bytes is too long");
+		}
+		final int length = HEADER_SIZE + keyBytes.length + value.length;
+		if(length > segmentSize) {
+			throw new IOException("record of " + length + " bytes doesn't fit in a segment of " + segmentSize + " bytes");
+		}
+		final byte[] record = new byte[length];
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(length);
+		buffer.putInt(0);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.put(operation);
+		buffer.putShort((short) keyBytes.length);
+		buffer.put(keyBytes);
+		buffer.put(value);
+		buffer.putInt(4, checksum(record));
+		return record;
+	}
+
+	private static int checksum(byte[] record) {
+		final CRC32 crc = new CRC32();
+		crc.update(record, 8, record.length - 8);
+		return (int) crc.getValue();
+	}
+
+	private static int getKeySize(byte[] record) {
+		return ByteBuffer.wrap(record).getShort(17) & 0xFFFF;
+	}
+
+	private static String getKey(byte[] record) {
+		try {
+			return new String(record, HEADER_SIZE, getKeySize(record), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Segment {
+		private final long id;
+		private final ByteBuffer buffer;
+		private int position;
+		private long liveBytes;
+
+		Segment(long id, ByteBuffer buffer) {
+			this.id = id;
+			this.buffer = buffer;
+		}
+	}
+
+	private static class Location {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+		private final int valueOffset;
+
+		Location(Segment segment, int offset, int length, int valueOffset) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.valueOffset = valueOffset;
+		}
+
+		byte[] readValue() {
+			final byte[] value = new byte[length - valueOffset];
+			final ByteBuffer source = segment.buffer.duplicate();
+			source.position(offset + valueOffset);
+			source.get(value);
+			return value;
+		}
+	}
+
+	/**
+	 * Value read from the store, to be passed back to {@link SegmentStore#replace(String, StoredValue, byte[])}
+	 */
+	public static class StoredValue {
+		private final Location location;
+		private final byte[] value;
+
+		StoredValue(Location location, byte[] value) {
+			this.location = location;
+			this.value = value;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.message;
+
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ListIterator;
+
+import javax.sip.PeerUnavailableException;
+import javax.sip.SipFactory;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+
+/**
+ * Projection of a SIP message on the headers needed to recreate a dialog or a transaction on another node.
+ * The body and all the other headers are dropped, the projection is stored as UTF-8 bytes
+ * and parsed back into a synthetic message with an empty body on recovery.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class MessageProjection {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String CONTENT_LENGTH_ZERO = "Content-Length: 0\r\n\r\n";
+	private static final String[] PROJECTED_HEADERS = new String[] {
+		ViaHeader.NAME, FromHeader.NAME, ToHeader.NAME, CallIdHeader.NAME, CSeqHeader.NAME, MaxForwardsHeader.NAME,
+		ContactHeader.NAME, RecordRouteHeader.NAME, RouteHeader.NAME, EventHeader.NAME
+	};
+
+	private MessageProjection() {}
+
+	/**
+	 * @param message the message to project
+	 * @return the start line and projected headers of the message as UTF-8 bytes
+	 */
+	public static byte[] project(SIPMessage message) {
+		final StringBuilder projection = new StringBuilder(512);
+		if(message instanceof SIPRequest) {
+			projection.append(((SIPRequest) message).getRequestLine().encode());
+		} else {
+			projection.append(((SIPResponse) message).getStatusLine().encode());
+		}
+		for (String headerName : PROJECTED_HEADERS) {
+			final ListIterator<SIPHeader> headers = message.getHeaders(headerName);
+			while (headers.hasNext()) {
+				projection.append(headers.next().encode());
+			}
+		}
+		projection.append(CONTENT_LENGTH_ZERO);
+		return projection.toString().getBytes(UTF_8);
+	}
+
+	/**
+	 * @param projection either a projection returned by {@link #project(SIPMessage)} or the full text of a request
+	 * as replicated by previous versions
+	 * @return the parsed request, null if projection is null
+	 */
+	public static SIPRequest createRequest(Object projection) throws ParseException, PeerUnavailableException {
+		final String text = toText(projection);
+		if(text == null) {
+			return null;
+		}
+		return (SIPRequest) SipFactory.getInstance().createMessageFactory().createRequest(text);
+	}
+
+	/**
+	 * @param projection either a projection returned by {@link #project(SIPMessage)} or the full text of a response
+	 * as replicated by previous versions
+	 * @return the parsed response, null if projection is null
+	 */
+	public static SIPResponse createResponse(Object projection) throws ParseException, PeerUnavailableException {
+		final String text = toText(projection);
+		if(text == null) {
+			return null;
+		}
+		return (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(text);
+	}
+
+	private static String toText(Object projection) {
+		if(projection instanceof byte[]) {
+			return new String((byte[]) projection, UTF_8);
+		}
+		return (String) projection;
+	}
+}
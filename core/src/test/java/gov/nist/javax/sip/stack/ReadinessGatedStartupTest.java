@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.DialogState;
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+import javax.sip.message.MessageFactory;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackImpl;
+import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.LoadBalancerHeartBeatingService;
+import org.mobicents.ha.javax.sip.LoadBalancerHeartBeatingServiceImpl;
+import org.mobicents.ha.javax.sip.ReplicationStrategy;
+import org.mobicents.ha.javax.sip.cache.NoCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.SipCacheReadiness;
+
+/**
+ * Replication and heartbeats held back until the SipCache is ready, see {@link ClusteredSipStack#READINESS_GATED_STARTUP}
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ReadinessGatedStartupTest extends TestCase {
+
+	private static final String IP_ADDRESS = "127.0.0.1";
+	private static final int PORT = 5091;
+	// the readiness is checked every second while the heartbeats are held back
+	private static final long HEARTBEAT_TIMEOUT = 5000;
+	private static final String UNKNOWN_DIALOG_ID = "unknown@" + IP_ADDRESS + ":local:remote";
+
+	private ClusteredSipStackImpl sipStack;
+	private ReadinessSipCache sipCache;
+	private RecordingHeartBeatingService heartBeatingService;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(sipStack != null) {
+			sipStack.stop();
+		}
+		super.tearDown();
+	}
+
+	public void testNothingReplicatedUntilTheCacheIsReady() throws Exception {
+		startStack(true);
+		final ConfirmedNoAppDataReplicationSipDialog dialog = createConfirmedDialog();
+		assertFalse(sipStack.isCacheReady());
+		dialog.replicateState();
+		assertNull(sipStack.getDialog(UNKNOWN_DIALOG_ID));
+		assertTrue(sipCache.operations.toString(), sipCache.operations.isEmpty());
+
+		sipCache.ready = true;
+		assertTrue(sipStack.isCacheReady());
+		dialog.replicateState();
+		assertTrue(sipCache.operations.toString(), sipCache.operations.contains("putDialog " + dialog.getDialogId()));
+		assertNull(sipStack.getDialog(UNKNOWN_DIALOG_ID));
+		assertTrue(sipCache.operations.toString(), sipCache.operations.contains("getDialog " + UNKNOWN_DIALOG_ID));
+		// latched, the cache isn't asked again
+		sipCache.ready = false;
+		assertTrue(sipStack.isCacheReady());
+	}
+
+	public void testHeartbeatsHeldUntilTheCacheIsReady() throws Exception {
+		startStack(true);
+		assertFalse(heartBeatingService.started);
+		sipCache.ready = true;
+		final long deadline = System.currentTimeMillis() + HEARTBEAT_TIMEOUT;
+		while(!heartBeatingService.started && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertTrue(heartBeatingService.started);
+	}
+
+	public void testNotGatedByDefault() throws Exception {
+		startStack(false);
+		// the cache readiness is ignored
+		assertTrue(sipStack.isCacheReady());
+		assertTrue(heartBeatingService.started);
+	}
+
+	private void startStack(boolean readinessGated) throws Exception {
+		final Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "ReadinessGatedStartupTest-" + getName());
+		properties.setProperty(ClusteredSipStack.REPLICATION_STRATEGY_PROPERTY, ReplicationStrategy.ConfirmedDialogNoApplicationData.toString());
+		properties.setProperty(ClusteredSipStack.CACHE_CLASS_NAME_PROPERTY, ReadinessSipCache.class.getName());
+		properties.setProperty(LoadBalancerHeartBeatingService.LB_HB_SERVICE_CLASS_NAME, RecordingHeartBeatingService.class.getName());
+		properties.setProperty(ClusteredSipStack.READINESS_GATED_STARTUP, String.valueOf(readinessGated));
+		properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "ERROR");
+		sipStack = new ClusteredSipStackImpl(properties) {};
+		sipCache = (ReadinessSipCache) sipStack.getSipCache();
+		heartBeatingService = (RecordingHeartBeatingService) sipStack.getLoadBalancerHeartBeatingService();
+		sipStack.start();
+	}
+
+	private ConfirmedNoAppDataReplicationSipDialog createConfirmedDialog() throws Exception {
+		final ListeningPoint listeningPoint = sipStack.createListeningPoint(IP_ADDRESS, PORT, ListeningPoint.UDP);
+		final SipProviderImpl sipProvider = (SipProviderImpl) sipStack.createSipProvider(listeningPoint);
+		final SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("gov.nist");
+		final MessageFactory messageFactory = sipFactory.createMessageFactory();
+		final SIPResponse response = (SIPResponse) messageFactory.createResponse("SIP/2.0 200 OK\r\n" +
+				"Via: SIP/2.0/UDP " + IP_ADDRESS + ":" + PORT + ";branch=z9hG4bK-1\r\n" +
+				"From: <sip:alice@" + IP_ADDRESS + ">;tag=local\r\n" +
+				"To: <sip:bob@192.168.0.2>;tag=remote\r\n" +
+				"Call-ID: " + getName() + "@" + IP_ADDRESS + "\r\n" +
+				"CSeq: 1 INVITE\r\n" +
+				"Contact: <sip:bob@192.168.0.2:5060>\r\n" +
+				"Content-Length: 0\r\n\r\n");
+		final ConfirmedNoAppDataReplicationSipDialog dialog = (ConfirmedNoAppDataReplicationSipDialog) HASipDialogFactory.createHASipDialog(
+				sipStack.getReplicationStrategy(), sipProvider, response);
+		dialog.setState(DialogState._CONFIRMED);
+		sipStack.putDialog(dialog);
+		return dialog;
+	}
+
+	/**
+	 * Records the dialog operations, reports ready on demand
+	 */
+	public static class ReadinessSipCache extends NoCache implements SipCacheReadiness {
+		final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean ready;
+
+		public boolean isReady() {
+			return ready;
+		}
+
+		@Override
+		public boolean inLocalMode() {
+			return false;
+		}
+
+		@Override
+		public SIPDialog getDialog(String dialogId) throws SipCacheException {
+			operations.add("getDialog " + dialogId);
+			return null;
+		}
+
+		@Override
+		public void putDialog(SIPDialog dialog) throws SipCacheException {
+			operations.add("putDialog " + dialog.getDialogId());
+		}
+
+		@Override
+		public void removeDialog(String dialogId) throws SipCacheException {
+			operations.add("removeDialog " + dialogId);
+		}
+	}
+
+	/**
+	 * Only records whether the heartbeats have been started, nothing is sent
+	 */
+	public static class RecordingHeartBeatingService extends LoadBalancerHeartBeatingServiceImpl {
+		volatile boolean started;
+
+		@Override
+		public void init(ClusteredSipStack clusteredSipStack, Properties stackProperties) {}
+
+		@Override
+		public void start() {
+			started = true;
+		}
+
+		@Override
+		public void stop() {
+			started = false;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.AbstractHASipDialog.ResponseFingerprint;
+
+import javax.sip.SipFactory;
+import javax.sip.message.MessageFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Detection of the responses that change what is needed to recreate a dialog, see {@link AbstractHASipDialog#setLastResponse(SIPTransaction, SIPResponse)}
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ResponseFingerprintTest extends TestCase {
+
+	private static final String CONTACT = "<sip:bob@192.168.0.2:5060>";
+	private static final String RECORD_ROUTE = "<sip:proxy1@192.168.0.3:5060;lr>";
+
+	private MessageFactory messageFactory;
+
+	@Override
+	protected void setUp() throws Exception {
+		final SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("gov.nist");
+		messageFactory = sipFactory.createMessageFactory();
+	}
+
+	public void testFirstResponse() throws Exception {
+		assertTrue(fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE).isRecoveryRelevantChange(null, "INVITE"));
+	}
+
+	public void testRetransmittedResponse() throws Exception {
+		final ResponseFingerprint previous = fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE);
+		assertFalse(fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE).isRecoveryRelevantChange(previous, "INVITE"));
+		assertFalse(fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE).isRecoveryRelevantChange(previous, null));
+	}
+
+	public void testChangedStatusCode() throws Exception {
+		final ResponseFingerprint previous = fingerprint(180, "INVITE", "remote", CONTACT, RECORD_ROUTE);
+		assertTrue(fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE).isRecoveryRelevantChange(previous, "INVITE"));
+	}
+
+	public void testChangedToTag() throws Exception {
+		final ResponseFingerprint previous = fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE);
+		assertTrue(fingerprint(200, "INVITE", "forked", CONTACT, RECORD_ROUTE).isRecoveryRelevantChange(previous, "INVITE"));
+	}
+
+	public void testChangedContact() throws Exception {
+		final ResponseFingerprint previous = fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE);
+		assertTrue(fingerprint(200, "INVITE", "remote", "<sip:bob@192.168.0.4:5060>", RECORD_ROUTE).isRecoveryRelevantChange(previous, "INVITE"));
+		assertTrue(fingerprint(200, "INVITE", "remote", null, RECORD_ROUTE).isRecoveryRelevantChange(previous, "INVITE"));
+	}
+
+	public void testChangedRecordRoute() throws Exception {
+		final ResponseFingerprint previous = fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE);
+		assertTrue(fingerprint(200, "INVITE", "remote", CONTACT, "<sip:proxy2@192.168.0.5:5060;lr>").isRecoveryRelevantChange(previous, "INVITE"));
+		assertTrue(fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE + ",<sip:proxy2@192.168.0.5:5060;lr>").isRecoveryRelevantChange(previous, "INVITE"));
+		assertTrue(fingerprint(200, "INVITE", "remote", CONTACT, null).isRecoveryRelevantChange(previous, "INVITE"));
+	}
+
+	public void testResponsesToMidDialogRequests() throws Exception {
+		// the CSeqs of the mid-dialog transactions are replicated on their own, their responses can't recreate the dialog
+		final ResponseFingerprint previous = fingerprint(200, "INVITE", "remote", CONTACT, RECORD_ROUTE);
+		assertFalse(fingerprint(200, "INFO", "remote", CONTACT, RECORD_ROUTE).isRecoveryRelevantChange(previous, "INVITE"));
+		assertFalse(fingerprint(200, "NOTIFY", "remote", "<sip:bob@192.168.0.4:5060>", null).isRecoveryRelevantChange(previous, "INVITE"));
+	}
+
+	private ResponseFingerprint fingerprint(int statusCode, String method, String toTag, String contact, String recordRoute) throws Exception {
+		final SIPResponse response = (SIPResponse) messageFactory.createResponse("SIP/2.0 " + statusCode + " " + SIPResponse.getReasonPhrase(statusCode) + "\r\n" +
+				"Via: SIP/2.0/UDP 192.168.0.1:5060;branch=z9hG4bK-1\r\n" +
+				"From: <sip:alice@192.168.0.1>;tag=local\r\n" +
+				"To: <sip:bob@192.168.0.2>;tag=" + toTag + "\r\n" +
+				"Call-ID: call-1@192.168.0.1\r\n" +
+				"CSeq: 1 " + method + "\r\n" +
+				(contact != null ? "Contact: " + contact + "\r\n" : "") +
+				(recordRoute != null ? "Record-Route: " + recordRoute + "\r\n" : "") +
+				"Content-Length: 0\r\n\r\n");
+		return new ResponseFingerprint(response);
+	}
+}
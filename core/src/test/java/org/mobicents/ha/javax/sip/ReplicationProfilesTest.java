@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import javax.sip.SipFactory;
+import javax.sip.message.MessageFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Parsing of the {@link ClusteredSipStack#REPLICATION_PROFILES} property and matching of the requests against the profiles
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ReplicationProfilesTest extends TestCase {
+
+	private MessageFactory messageFactory;
+
+	@Override
+	protected void setUp() throws Exception {
+		final SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("gov.nist");
+		messageFactory = sipFactory.createMessageFactory();
+	}
+
+	public void testProfilesByMethod() {
+		final ReplicationProfiles profiles = new ReplicationProfiles("MESSAGE=NONE, options = none ,INVITE=Confirmed,SUBSCRIBE=EARLY");
+		assertFalse(profiles.isEmpty());
+		assertEquals(DialogReplicationMode.NONE, profiles.getReplicationMode("MESSAGE"));
+		assertEquals(DialogReplicationMode.NONE, profiles.getReplicationMode("OPTIONS"));
+		assertEquals(DialogReplicationMode.CONFIRMED, profiles.getReplicationMode("invite"));
+		assertEquals(DialogReplicationMode.EARLY, profiles.getReplicationMode("SUBSCRIBE"));
+		assertNull(profiles.getReplicationMode("REFER"));
+	}
+
+	public void testEmptyProfiles() {
+		assertTrue(new ReplicationProfiles("").isEmpty());
+		assertTrue(new ReplicationProfiles(" , ,").isEmpty());
+	}
+
+	public void testMalformedProfiles() {
+		try {
+			new ReplicationProfiles("MESSAGE");
+			fail("a profile without mode should be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new ReplicationProfiles("=NONE");
+			fail("a profile without method should be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new ReplicationProfiles("MESSAGE=SOMETIMES");
+			fail("an unknown mode should be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testEventPackageTakesPrecedence() throws Exception {
+		final ReplicationProfiles profiles = new ReplicationProfiles("SUBSCRIBE=CONFIRMED,SUBSCRIBE:Presence.winfo=NONE");
+		assertEquals(DialogReplicationMode.NONE, profiles.getReplicationMode(createRequest("SUBSCRIBE", "presence.winfo")));
+		assertEquals(DialogReplicationMode.CONFIRMED, profiles.getReplicationMode(createRequest("SUBSCRIBE", "presence")));
+		assertEquals(DialogReplicationMode.CONFIRMED, profiles.getReplicationMode(createRequest("SUBSCRIBE", null)));
+		// without request only the method is known
+		assertEquals(DialogReplicationMode.CONFIRMED, profiles.getReplicationMode("SUBSCRIBE"));
+	}
+
+	public void testEventPackageWithoutMethodProfile() throws Exception {
+		final ReplicationProfiles profiles = new ReplicationProfiles("SUBSCRIBE:dialog=EARLY");
+		assertEquals(DialogReplicationMode.EARLY, profiles.getReplicationMode(createRequest("SUBSCRIBE", "Dialog")));
+		assertNull(profiles.getReplicationMode(createRequest("SUBSCRIBE", "presence")));
+		assertNull(profiles.getReplicationMode(createRequest("INVITE", null)));
+	}
+
+	public void testResponseMatching() throws Exception {
+		final ReplicationProfiles profiles = new ReplicationProfiles("SUBSCRIBE=CONFIRMED,SUBSCRIBE:presence.winfo=NONE,INVITE=EARLY");
+		assertEquals(DialogReplicationMode.EARLY, profiles.getReplicationMode(createResponse("INVITE", null)));
+		assertEquals(DialogReplicationMode.NONE, profiles.getReplicationMode(createResponse("SUBSCRIBE", "presence.winfo")));
+		// the event package is unknown if the response doesn't carry it
+		assertEquals(DialogReplicationMode.CONFIRMED, profiles.getReplicationMode(createResponse("SUBSCRIBE", null)));
+		assertNull(profiles.getReplicationMode(createResponse("REFER", null)));
+	}
+
+	private SIPResponse createResponse(String method, String eventPackage) throws Exception {
+		return (SIPResponse) messageFactory.createResponse("SIP/2.0 200 OK\r\n" +
+				"Via: SIP/2.0/UDP 192.168.0.1:5060;branch=z9hG4bK-1\r\n" +
+				"From: <sip:alice@192.168.0.1>;tag=local\r\n" +
+				"To: <sip:bob@192.168.0.2>;tag=remote\r\n" +
+				"Call-ID: call-1@192.168.0.1\r\n" +
+				"CSeq: 1 " + method + "\r\n" +
+				(eventPackage != null ? "Event: " + eventPackage + "\r\n" : "") +
+				"Content-Length: 0\r\n\r\n");
+	}
+
+	private SIPRequest createRequest(String method, String eventPackage) throws Exception {
+		return (SIPRequest) messageFactory.createRequest(method + " sip:bob@192.168.0.2:5060 SIP/2.0\r\n" +
+				"Via: SIP/2.0/UDP 192.168.0.1:5060;branch=z9hG4bK-1\r\n" +
+				"From: <sip:alice@192.168.0.1>;tag=local\r\n" +
+				"To: <sip:bob@192.168.0.2>\r\n" +
+				"Call-ID: call-1@192.168.0.1\r\n" +
+				"CSeq: 1 " + method + "\r\n" +
+				"Max-Forwards: 70\r\n" +
+				(eventPackage != null ? "Event: " + eventPackage + "\r\n" : "") +
+				"Content-Length: 0\r\n\r\n");
+	}
+}
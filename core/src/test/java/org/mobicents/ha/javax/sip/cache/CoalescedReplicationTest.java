@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Coalescing of the replications triggered by provisional responses with {@link CoalescedReplication}
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class CoalescedReplicationTest extends TestCase {
+
+	private static final long WINDOW = 50;
+
+	private ReplicationTimer replicationTimer;
+	private AtomicInteger replications;
+	private CoalescedReplication coalescedReplication;
+
+	@Override
+	protected void setUp() throws Exception {
+		replicationTimer = new ReplicationTimer();
+		replications = new AtomicInteger();
+		coalescedReplication = new CoalescedReplication(replicationTimer, WINDOW) {
+			@Override
+			protected void replicate() {
+				replications.incrementAndGet();
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		replicationTimer.stop();
+	}
+
+	public void testReplicationsWithinTheWindowAreCoalesced() throws Exception {
+		assertTrue(coalescedReplication.defer());
+		assertTrue(coalescedReplication.defer());
+		assertTrue(coalescedReplication.defer());
+		assertEquals(0, replications.get());
+		waitForReplications(1);
+		Thread.sleep(WINDOW * 2);
+		assertEquals(1, replications.get());
+	}
+
+	public void testNewWindowOnceTheReplicationRan() throws Exception {
+		assertTrue(coalescedReplication.defer());
+		waitForReplications(1);
+		assertTrue(coalescedReplication.defer());
+		waitForReplications(2);
+	}
+
+	public void testFlushCancelsThePendingReplication() throws Exception {
+		// nothing pending, the final response doesn't owe a replication
+		assertFalse(coalescedReplication.flush());
+		assertTrue(coalescedReplication.defer());
+		// the caller replicates right away in place of the timer
+		assertTrue(coalescedReplication.flush());
+		assertFalse(coalescedReplication.flush());
+		Thread.sleep(WINDOW * 2);
+		assertEquals(0, replications.get());
+	}
+
+	public void testNothingIsReplicatedOnceClosed() throws Exception {
+		assertTrue(coalescedReplication.defer());
+		coalescedReplication.close();
+		// deferrals are swallowed, nothing is written after the removal
+		assertTrue(coalescedReplication.defer());
+		Thread.sleep(WINDOW * 2);
+		assertEquals(0, replications.get());
+		assertFalse(coalescedReplication.flush());
+	}
+
+	public void testCannotDeferOnceTheTimerIsStopped() {
+		replicationTimer.stop();
+		assertFalse(coalescedReplication.defer());
+	}
+
+	private void waitForReplications(int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(replications.get() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, replications.get());
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import junit.framework.TestCase;
+
+/**
+ * Comparison of the dialog cache entries used by the conditional writes of the backends
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogCacheEntryTest extends TestCase {
+
+	/**
+	 * application data that doesn't implement equals, as most application data
+	 */
+	private static class ApplicationData implements Serializable {
+		private static final long serialVersionUID = 1L;
+	}
+
+	public void testSerializedCopyIsEqual() throws Exception {
+		final DialogCacheEntry entry = new DialogCacheEntry(new byte[] {1, 2, 3}, new ApplicationData());
+		final DialogCacheEntry copy = copy(entry);
+		assertEquals(entry, copy);
+		assertEquals(entry.hashCode(), copy.hashCode());
+		assertEquals(entry.withApplicationData(new ApplicationData()), copy(entry.withApplicationData(new ApplicationData())));
+	}
+
+	public void testEachWriteChangesTheEntry() throws Exception {
+		final DialogCacheEntry entry = new DialogCacheEntry(new byte[] {1, 2, 3}, new ApplicationData());
+		final DialogCacheEntry updated = entry.withApplicationData(new ApplicationData());
+		assertEquals(1, updated.getStamp());
+		assertFalse(entry.equals(updated));
+		assertEquals(2, updated.withTransaction(null).getStamp());
+		assertFalse(updated.equals(updated.withTransaction(null)));
+	}
+
+	public void testDifferentStatesAreNotEqual() {
+		assertFalse(new DialogCacheEntry(new byte[] {1, 2, 3}, null).equals(new DialogCacheEntry(new byte[] {1, 2, 4}, null)));
+		assertFalse(new DialogCacheEntry(new byte[] {1, 2, 3}, null, null, 3).equals(new DialogCacheEntry(new byte[] {1, 2, 3}, null, null, 4)));
+	}
+
+	private static DialogCacheEntry copy(DialogCacheEntry entry) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(entry);
+		out.close();
+		return (DialogCacheEntry) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+}
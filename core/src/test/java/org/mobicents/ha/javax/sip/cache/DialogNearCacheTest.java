@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Tracking of the dialogs in sync with the distributed cache by {@link DialogNearCache}
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogNearCacheTest extends TestCase {
+
+	private DialogNearCache dialogNearCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		dialogNearCache = new DialogNearCache();
+	}
+
+	public void testMarkedDialogIsUpToDateUntilInvalidated() {
+		assertTrue(dialogNearCache.markUpToDate("call-1:a:b", dialogNearCache.stamp("call-1:a:b")));
+		assertTrue(dialogNearCache.isUpToDate("call-1:a:b"));
+		dialogNearCache.invalidate("call-1:a:b");
+		assertFalse(dialogNearCache.isUpToDate("call-1:a:b"));
+		assertEquals(0, dialogNearCache.size());
+	}
+
+	public void testInvalidationDuringTheCheckIsNotLost() {
+		final long stamp = dialogNearCache.stamp("call-1:a:b");
+		// the cache reports a remote modification while the dialog is being checked
+		dialogNearCache.invalidate("call-1:a:b");
+		assertFalse(dialogNearCache.markUpToDate("call-1:a:b", stamp));
+		assertFalse(dialogNearCache.isUpToDate("call-1:a:b"));
+	}
+
+	public void testInvalidationOfAnotherStripeDoesntHoldBackTheCheck() {
+		// single character ids land on consecutive stripes
+		final long stamp = dialogNearCache.stamp("a");
+		dialogNearCache.invalidate("b");
+		assertTrue(dialogNearCache.markUpToDate("a", stamp));
+		assertTrue(dialogNearCache.isUpToDate("a"));
+	}
+
+	public void testClearInvalidatesAllStripes() {
+		final long stamp = dialogNearCache.stamp("a");
+		dialogNearCache.markUpToDate("b", dialogNearCache.stamp("b"));
+		dialogNearCache.clear();
+		assertFalse(dialogNearCache.isUpToDate("b"));
+		assertFalse(dialogNearCache.markUpToDate("a", stamp));
+	}
+}
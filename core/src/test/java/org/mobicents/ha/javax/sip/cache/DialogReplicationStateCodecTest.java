@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips of the dialog records through the binary codec and rejection of the corrupted ones
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogReplicationStateCodecTest extends TestCase {
+
+	private static DialogReplicationState fullState() {
+		final DialogReplicationState state = new DialogReplicationState(42);
+		state.setDialogState(2);
+		state.setDialogMethod("INVITE");
+		state.setLastResponse(new byte[] {1, 2, 3, (byte) 0xFF});
+		state.setReInvite(true);
+		state.setRouteList(new String[] {"<sip:proxy1;lr>", "<sip:proxy2;lr>"});
+		state.setTerminateOnBye(false);
+		state.setRemoteTarget("sip:bob@192.168.0.2:5060");
+		state.setEventHeader("presence;id=1");
+		state.setB2BUA(true);
+		state.setServer(false);
+		state.setFirstTxSecure(true);
+		state.setFirstTxId("z9hg4bk-1234");
+		state.setCSeqValidationEnabled(true);
+		state.setFirstTxMethod("INVITE");
+		state.setContactHeader("<sip:alice@192.168.0.1:5060>");
+		state.setLatestTxServer(true);
+		state.setRemoteTag("remote-\u00e9t\u00e9");
+		state.setLocalTag("local");
+		state.setRemoteCSeq(Integer.MAX_VALUE + 10L);
+		state.setLocalCSeq(7);
+		state.setLinkedDialogId("peer-dialog");
+		return state;
+	}
+
+	public void testFullStateRoundTrip() throws Exception {
+		final DialogReplicationState state = fullState();
+		assertTrue(state.isFullSnapshot());
+		final DialogReplicationState decoded = DialogReplicationStateCodec.decode(DialogReplicationStateCodec.encode(state));
+		assertTrue(decoded.isFullSnapshot());
+		assertEquals(state.getFieldMask(), decoded.getFieldMask());
+		assertEquals(42, decoded.getVersion());
+		assertEquals(2, decoded.getDialogState());
+		assertEquals("INVITE", decoded.getDialogMethod());
+		assertTrue(Arrays.equals(state.getLastResponse(), decoded.getLastResponse()));
+		assertTrue(decoded.isReInvite());
+		assertTrue(Arrays.equals(state.getRouteList(), decoded.getRouteList()));
+		assertFalse(decoded.isTerminateOnBye());
+		assertEquals("sip:bob@192.168.0.2:5060", decoded.getRemoteTarget());
+		assertEquals("presence;id=1", decoded.getEventHeader());
+		assertTrue(decoded.isB2BUA());
+		assertFalse(decoded.isServer());
+		assertTrue(decoded.isFirstTxSecure());
+		assertEquals("z9hg4bk-1234", decoded.getFirstTxId());
+		assertTrue(decoded.isCSeqValidationEnabled());
+		assertEquals("INVITE", decoded.getFirstTxMethod());
+		assertEquals("<sip:alice@192.168.0.1:5060>", decoded.getContactHeader());
+		assertTrue(decoded.isLatestTxServer());
+		assertEquals("remote-\u00e9t\u00e9", decoded.getRemoteTag());
+		assertEquals("local", decoded.getLocalTag());
+		assertEquals(Integer.MAX_VALUE + 10L, decoded.getRemoteCSeq());
+		assertEquals(7, decoded.getLocalCSeq());
+		assertEquals("peer-dialog", decoded.getLinkedDialogId());
+	}
+
+	public void testNullValuesRoundTrip() throws Exception {
+		final DialogReplicationState state = fullState();
+		state.setRouteList(null);
+		state.setLastResponse(null);
+		state.setEventHeader(null);
+		state.setLinkedDialogId(null);
+		final DialogReplicationState decoded = DialogReplicationStateCodec.decode(DialogReplicationStateCodec.encode(state));
+		assertTrue(decoded.isSet(DialogReplicationState.ROUTE_LIST));
+		assertNull(decoded.getRouteList());
+		assertNull(decoded.getLastResponse());
+		assertNull(decoded.getEventHeader());
+		assertNull(decoded.getLinkedDialogId());
+		// an empty route list is not a null one
+		state.setRouteList(new String[0]);
+		assertEquals(0, DialogReplicationStateCodec.decode(DialogReplicationStateCodec.encode(state)).getRouteList().length);
+		assertNull(DialogReplicationStateCodec.decode(null));
+	}
+
+	public void testNegativeCSeqRoundTrip() throws Exception {
+		final DialogReplicationState state = new DialogReplicationState(1);
+		state.setLocalCSeq(-1);
+		state.setRemoteCSeq(Long.MIN_VALUE);
+		final byte[] data = DialogReplicationStateCodec.encode(state);
+		final DialogReplicationState decoded = DialogReplicationStateCodec.decode(data);
+		assertEquals(-1, decoded.getLocalCSeq());
+		assertEquals(Long.MIN_VALUE, decoded.getRemoteCSeq());
+		// the -1 of a fresh dialog is zigzag encoded on a single byte
+		state.setRemoteCSeq(-1);
+		assertEquals(data.length - 9, DialogReplicationStateCodec.encode(state).length);
+	}
+
+	public void testDeltaOnlyCarriesItsFields() throws Exception {
+		final DialogReplicationState delta = new DialogReplicationState(5);
+		delta.setRemoteCSeq(3);
+		delta.setRemoteTarget("sip:bob@192.168.0.3");
+		final DialogReplicationState decoded = DialogReplicationStateCodec.decode(DialogReplicationStateCodec.encode(delta));
+		assertFalse(decoded.isFullSnapshot());
+		assertEquals(DialogReplicationState.REMOTE_CSEQ | DialogReplicationState.REMOTE_TARGET, decoded.getFieldMask());
+		assertEquals(3, decoded.getRemoteCSeq());
+		assertNull(decoded.getDialogMethod());
+	}
+
+	public void testRecordWithoutLinkedDialogId() throws Exception {
+		// records written before LINKED_DIALOG_ID was appended carry all the other fields
+		final DialogReplicationState state = fullState();
+		state.setFieldMask(DialogReplicationState.ALL_FIELDS & ~DialogReplicationState.LINKED_DIALOG_ID);
+		final DialogReplicationState decoded = DialogReplicationStateCodec.decode(DialogReplicationStateCodec.encode(state));
+		assertFalse(decoded.isSet(DialogReplicationState.LINKED_DIALOG_ID));
+		assertFalse(decoded.isFullSnapshot());
+		assertNull(decoded.getLinkedDialogId());
+		assertEquals("local", decoded.getLocalTag());
+		assertEquals(7, decoded.getLocalCSeq());
+	}
+
+	public void testTruncatedData() throws Exception {
+		final byte[] data = DialogReplicationStateCodec.encode(fullState());
+		for (int length = 0; length < data.length; length++) {
+			try {
+				DialogReplicationStateCodec.decode(Arrays.copyOf(data, length));
+				fail("decoded a record truncated to " + length + " bytes");
+			} catch (SipCacheException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testUnknownFormatVersion() throws Exception {
+		final byte[] data = DialogReplicationStateCodec.encode(fullState());
+		data[0] = DialogReplicationStateCodec.FORMAT_VERSION + 1;
+		try {
+			DialogReplicationStateCodec.decode(data);
+			fail("decoded an unknown format version");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		data[0] = 0;
+		try {
+			DialogReplicationStateCodec.decode(data);
+			fail("decoded format version 0");
+		} catch (SipCacheException e) {
+			// expected
+		}
+	}
+
+	public void testCorruptedRouteCount() throws Exception {
+		final DialogReplicationState state = new DialogReplicationState(1);
+		state.setRouteList(new String[] {"<sip:proxy;lr>"});
+		final byte[] data = DialogReplicationStateCodec.encode(state);
+		// format version, field mask and dialog version on a byte each, then the route count
+		final int countPosition = 3;
+		assertEquals(4, data[countPosition]);
+		// a count of about 2^31 routes
+		final byte[] corrupted = new byte[data.length + 4];
+		System.arraycopy(data, 0, corrupted, 0, countPosition);
+		corrupted[countPosition] = (byte) 0xFE;
+		corrupted[countPosition + 1] = (byte) 0xFF;
+		corrupted[countPosition + 2] = (byte) 0xFF;
+		corrupted[countPosition + 3] = (byte) 0xFF;
+		corrupted[countPosition + 4] = (byte) 0x0F;
+		System.arraycopy(data, countPosition + 1, corrupted, countPosition + 5, data.length - countPosition - 1);
+		try {
+			DialogReplicationStateCodec.decode(corrupted);
+			fail("decoded a route count larger than the data");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		// a negative count
+		data[countPosition] = 3;
+		try {
+			DialogReplicationStateCodec.decode(data);
+			fail("decoded a negative route count");
+		} catch (SipCacheException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Merge of the dialog deltas on the cached records
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogReplicationStateTest extends TestCase {
+
+	private static DialogReplicationState snapshot(long version) {
+		final DialogReplicationState state = new DialogReplicationState(version);
+		state.setDialogState(1);
+		state.setDialogMethod("INVITE");
+		state.setLastResponse(new byte[] {1});
+		state.setReInvite(false);
+		state.setRouteList(new String[] {"<sip:proxy;lr>"});
+		state.setTerminateOnBye(true);
+		state.setRemoteTarget("sip:bob@192.168.0.2");
+		state.setEventHeader(null);
+		state.setB2BUA(false);
+		state.setServer(true);
+		state.setFirstTxSecure(false);
+		state.setFirstTxId("z9hg4bk-1");
+		state.setCSeqValidationEnabled(true);
+		state.setFirstTxMethod("INVITE");
+		state.setContactHeader("<sip:alice@192.168.0.1>");
+		state.setLatestTxServer(true);
+		state.setRemoteTag("remote");
+		state.setLocalTag("local");
+		state.setRemoteCSeq(1);
+		state.setLocalCSeq(1);
+		state.setLinkedDialogId(null);
+		return state;
+	}
+
+	public void testFullSnapshotAppliesOnAnything() {
+		final DialogReplicationState state = snapshot(3);
+		assertTrue(state.isFullSnapshot());
+		assertTrue(state.canBeAppliedOn(null));
+		assertTrue(state.canBeAppliedOn(snapshot(7)));
+	}
+
+	public void testDeltaOnlyAppliesOnItsBaseVersion() {
+		final DialogReplicationState delta = new DialogReplicationState(4);
+		delta.setBaseVersion(3);
+		delta.setRemoteCSeq(2);
+		assertFalse(delta.isFullSnapshot());
+		assertFalse(delta.canBeAppliedOn(null));
+		assertTrue(delta.canBeAppliedOn(snapshot(3)));
+		// another node wrote in between, the delta would lose its changes
+		assertFalse(delta.canBeAppliedOn(snapshot(2)));
+		assertFalse(delta.canBeAppliedOn(snapshot(4)));
+	}
+
+	public void testMergeOnlyCopiesTheCarriedFields() {
+		final DialogReplicationState cached = snapshot(3);
+		final DialogReplicationState delta = new DialogReplicationState(4);
+		delta.setBaseVersion(3);
+		delta.setRemoteTarget("sip:bob@192.168.0.3");
+		delta.setReInvite(true);
+		delta.setTerminateOnBye(false);
+		cached.merge(delta);
+		assertEquals(4, cached.getVersion());
+		assertTrue(cached.isFullSnapshot());
+		assertEquals("sip:bob@192.168.0.3", cached.getRemoteTarget());
+		assertTrue(cached.isReInvite());
+		assertFalse(cached.isTerminateOnBye());
+		// the booleans not carried by the delta keep their values
+		assertTrue(cached.isServer());
+		assertTrue(cached.isCSeqValidationEnabled());
+		assertEquals("INVITE", cached.getDialogMethod());
+		assertEquals("remote", cached.getRemoteTag());
+	}
+
+	public void testMergeKeepsTheHighestCSeqs() {
+		final DialogReplicationState cached = snapshot(3);
+		cached.setRemoteCSeq(10);
+		cached.setLocalCSeq(5);
+		final DialogReplicationState delta = new DialogReplicationState(4);
+		delta.setRemoteCSeq(8);
+		delta.setLocalCSeq(6);
+		cached.merge(delta);
+		assertEquals(10, cached.getRemoteCSeq());
+		assertEquals(6, cached.getLocalCSeq());
+	}
+
+	public void testMergeOnAPartialRecordTakesTheCSeq() {
+		// a record without CSeq yet, such as a fresh dialog with the -1 CSeq, takes the update as is
+		final DialogReplicationState cached = new DialogReplicationState(1);
+		cached.setRemoteTag("remote");
+		final DialogReplicationState update = new DialogReplicationState(2);
+		update.setLocalCSeq(-1);
+		cached.merge(update);
+		assertEquals(-1, cached.getLocalCSeq());
+		assertTrue(cached.isSet(DialogReplicationState.LOCAL_CSEQ));
+		assertTrue(cached.isSet(DialogReplicationState.REMOTE_TAG));
+		assertFalse(cached.isSet(DialogReplicationState.REMOTE_CSEQ));
+	}
+
+	public void testMergeOfNullValues() {
+		final DialogReplicationState cached = snapshot(3);
+		final DialogReplicationState delta = new DialogReplicationState(4);
+		delta.setRouteList(null);
+		delta.setLinkedDialogId("peer");
+		cached.merge(delta);
+		assertNull(cached.getRouteList());
+		assertEquals("peer", cached.getLinkedDialogId());
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+
+/**
+ * In memory {@link SipCache} recording the operations it receives, the writes or transaction reads of one id can be held
+ * to check what happens while they are in progress
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+class RecordingSipCache implements SipCache {
+
+	final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+	final Map<String, SIPDialog> dialogs = Collections.synchronizedMap(new HashMap<String, SIPDialog>());
+	private volatile String heldId;
+	private final CountDownLatch heldWriteStarted = new CountDownLatch(1);
+	private final CountDownLatch heldWriteReleased = new CountDownLatch(1);
+
+	/**
+	 * the first write or transaction read of the id passed in param will wait for {@link #releaseHeldWrite()}
+	 */
+	void holdFirstWrite(String id) {
+		heldId = id;
+	}
+
+	void awaitHeldWrite() throws InterruptedException {
+		if(!heldWriteStarted.await(5, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("the write of " + heldId + " never started");
+		}
+	}
+
+	void releaseHeldWrite() {
+		heldWriteReleased.countDown();
+	}
+
+	private void record(String operation, String id) {
+		if(id.equals(heldId)) {
+			heldId = null;
+			heldWriteStarted.countDown();
+			try {
+				heldWriteReleased.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		operations.add(operation + " " + id);
+	}
+
+	public void setClusteredSipStack(ClusteredSipStack clusteredSipStack) {}
+
+	public void setConfigurationProperties(Properties configurationProperties) {}
+
+	public void init() throws SipCacheException {}
+
+	public void start() throws SipCacheException {}
+
+	public void stop() throws SipCacheException {}
+
+	public SIPDialog getDialog(String dialogId) throws SipCacheException {
+		operations.add("getDialog " + dialogId);
+		return dialogs.get(dialogId);
+	}
+
+	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		record("putDialog", dialog.getDialogId());
+		dialogs.put(dialog.getDialogId(), dialog);
+	}
+
+	public void updateDialog(SIPDialog sipDialog) throws SipCacheException {
+		operations.add("updateDialog " + sipDialog.getDialogId());
+	}
+
+	public void removeDialog(String dialogId) throws SipCacheException {
+		record("removeDialog", dialogId);
+		dialogs.remove(dialogId);
+	}
+
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		final Map<String, SIPDialog> found = new HashMap<String, SIPDialog>();
+		for (String dialogId : dialogIds) {
+			final SIPDialog dialog = getDialog(dialogId);
+			if(dialog != null) {
+				found.put(dialogId, dialog);
+			}
+		}
+		return found;
+	}
+
+	public void putDialogs(Collection<SIPDialog> dialogsToPut) throws SipCacheException {
+		for (SIPDialog dialog : dialogsToPut) {
+			putDialog(dialog);
+		}
+	}
+
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		for (String dialogId : dialogIds) {
+			removeDialog(dialogId);
+		}
+	}
+
+	public void evictDialog(String dialogId) {
+		operations.add("evictDialog " + dialogId);
+	}
+
+	public SIPServerTransaction getServerTransaction(String transactionId) throws SipCacheException {
+		record("getServerTransaction", transactionId);
+		return null;
+	}
+
+	public void putServerTransaction(SIPServerTransaction serverTransaction) throws SipCacheException {
+		record("putServerTransaction", serverTransaction.getTransactionId());
+	}
+
+	public void removeServerTransaction(String transactionId) throws SipCacheException {
+		record("removeServerTransaction", transactionId);
+	}
+
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> transactionIds) throws SipCacheException {
+		return new HashMap<String, SIPServerTransaction>();
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) throws SipCacheException {
+		for (SIPServerTransaction serverTransaction : serverTransactions) {
+			putServerTransaction(serverTransaction);
+		}
+	}
+
+	public void removeServerTransactions(Collection<String> transactionIds) throws SipCacheException {
+		for (String transactionId : transactionIds) {
+			removeServerTransaction(transactionId);
+		}
+	}
+
+	public SIPClientTransaction getClientTransaction(String transactionId) throws SipCacheException {
+		return null;
+	}
+
+	public void putClientTransaction(SIPClientTransaction clientTransaction) throws SipCacheException {
+		record("putClientTransaction", clientTransaction.getTransactionId());
+	}
+
+	public void removeClientTransaction(String transactionId) throws SipCacheException {
+		record("removeClientTransaction", transactionId);
+	}
+
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> transactionIds) throws SipCacheException {
+		return new HashMap<String, SIPClientTransaction>();
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) throws SipCacheException {
+		for (SIPClientTransaction clientTransaction : clientTransactions) {
+			putClientTransaction(clientTransaction);
+		}
+	}
+
+	public void removeClientTransactions(Collection<String> transactionIds) throws SipCacheException {
+		for (String transactionId : transactionIds) {
+			removeClientTransaction(transactionId);
+		}
+	}
+
+	public boolean inLocalMode() {
+		return false;
+	}
+}
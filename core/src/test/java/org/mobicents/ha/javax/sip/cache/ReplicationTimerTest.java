@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Scheduling and cancellation of the delayed replications on the {@link ReplicationTimer}
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class ReplicationTimerTest extends TestCase {
+
+	private ReplicationTimer replicationTimer;
+
+	@Override
+	protected void setUp() throws Exception {
+		replicationTimer = new ReplicationTimer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		replicationTimer.stop();
+	}
+
+	public void testTaskRunsOnceTheDelayElapsed() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(1);
+		final long start = System.currentTimeMillis();
+		assertNotNull(replicationTimer.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 50));
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 45);
+	}
+
+	public void testCancelledTaskNeverRuns() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		final ScheduledFuture<?> future = replicationTimer.schedule(new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 50);
+		// a dialog terminated before its replication is due
+		assertTrue(replicationTimer.cancel(future));
+		Thread.sleep(150);
+		assertEquals(0, runs.get());
+	}
+
+	public void testCancelAfterTheTaskRan() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(1);
+		final ScheduledFuture<?> future = replicationTimer.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 0);
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		// the replication happened, the dialog has to be removed from the cache
+		future.get(5, TimeUnit.SECONDS);
+		assertFalse(replicationTimer.cancel(future));
+	}
+
+	public void testScheduleOnceStopped() {
+		replicationTimer.stop();
+		assertNull(replicationTimer.schedule(new Runnable() {
+			public void run() {
+			}
+		}, 10));
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * What the {@link TieredSipCache} records about the L2 when the reads of the L2 race with invalidations
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class TieredSipCacheTest extends TestCase {
+
+	private TieredSipCache cache;
+	private RecordingSipCache l2;
+
+	@Override
+	protected void setUp() throws Exception {
+		final Properties properties = new Properties();
+		properties.setProperty(TieredSipCache.TIERED_CACHE_L2_CLASS_NAME, RecordingSipCache.class.getName());
+		properties.setProperty(TieredSipCache.TIERED_CACHE_TIME_TO_LIVE, "60000");
+		cache = new TieredSipCache();
+		cache.setConfigurationProperties(properties);
+		cache.init();
+		cache.start();
+		l2 = (RecordingSipCache) cache.getL2();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		l2.releaseHeldWrite();
+		cache.stop();
+	}
+
+	public void testMissingTransactionRecorded() throws Exception {
+		assertNull(cache.getServerTransaction("T1"));
+		assertNull(cache.getServerTransaction("t1"));
+		assertEquals(1, l2.operations.size());
+	}
+
+	public void testInvalidationDuringTheReadDiscardsIt() throws Exception {
+		final Thread reader = readWhileInvalidating("t1", "t1");
+		// the transaction may have been created by another node after the read started
+		assertNull(cache.getServerTransaction("t1"));
+		assertEquals(2, l2.operations.size());
+		assertFalse(reader.isAlive());
+	}
+
+	public void testInvalidationOfAnotherKeyDuringTheReadKeepsIt() throws Exception {
+		readWhileInvalidating("t1", "t2");
+		assertNull(cache.getServerTransaction("t1"));
+		assertEquals(1, l2.operations.size());
+	}
+
+	/**
+	 * @return the thread which read the transaction, done
+	 */
+	private Thread readWhileInvalidating(final String transactionId, String invalidatedTransactionId) throws Exception {
+		l2.holdFirstWrite(transactionId);
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cache.getServerTransaction(transactionId);
+				} catch (SipCacheException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		reader.start();
+		l2.awaitHeldWrite();
+		cache.remoteServerTransactionRemoval(invalidatedTransactionId);
+		l2.releaseHeldWrite();
+		reader.join(5000);
+		return reader;
+	}
+}
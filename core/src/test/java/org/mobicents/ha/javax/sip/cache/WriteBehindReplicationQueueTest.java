@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Coalescing and ordering of the writes going through the {@link WriteBehindReplicationQueue}
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class WriteBehindReplicationQueueTest extends TestCase {
+
+	private RecordingSipCache sipCache;
+	private WriteBehindReplicationQueue queue;
+
+	@Override
+	protected void setUp() throws Exception {
+		sipCache = new RecordingSipCache();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sipCache.releaseHeldWrite();
+		if(queue != null) {
+			queue.stop();
+		}
+	}
+
+	public void testWritesOfAnIdAreCoalesced() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 200, 100);
+		queue.start();
+		queue.removeDialog("a");
+		queue.removeDialog("a");
+		queue.removeServerTransaction("a");
+		queue.removeDialog("a");
+		assertEquals(2, queue.getPendingWrites());
+		assertTrue(sipCache.operations.isEmpty());
+		queue.stop();
+		assertEquals(2, sipCache.operations.size());
+		assertTrue(sipCache.operations.contains("removeDialog a"));
+		assertTrue(sipCache.operations.contains("removeServerTransaction a"));
+		assertEquals(0, queue.getPendingWrites());
+	}
+
+	public void testWritesAreFlushedOnceDue() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 50, 100);
+		queue.start();
+		queue.removeDialog("a");
+		queue.removeDialog("b");
+		waitForOperations(2);
+		assertEquals("removeDialog a", sipCache.operations.get(0));
+		assertEquals("removeDialog b", sipCache.operations.get(1));
+	}
+
+	public void testWriteAfterFlushIsQueuedAgain() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 10, 100);
+		queue.start();
+		queue.removeDialog("a");
+		waitForOperations(1);
+		queue.removeDialog("a");
+		waitForOperations(2);
+		assertEquals(0, queue.getPendingWrites());
+	}
+
+	public void testStopFlushesWithoutWaiting() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 2, 60000, 100);
+		queue.start();
+		queue.removeDialog("a");
+		queue.removeClientTransaction("b");
+		final long start = System.currentTimeMillis();
+		queue.stop();
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(2, sipCache.operations.size());
+	}
+
+	public void testWritesAreSynchronousOnceStopped() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 60000, 100);
+		queue.start();
+		queue.stop();
+		queue.removeDialog("a");
+		assertEquals(1, sipCache.operations.size());
+	}
+
+	public void testSynchronousWriteWhenFull() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 60000, 1);
+		queue.start();
+		queue.removeDialog("a");
+		// the queue is full, a new id is written right away
+		queue.removeDialog("b");
+		assertEquals(1, sipCache.operations.size());
+		assertEquals("removeDialog b", sipCache.operations.get(0));
+		// an id already pending is still coalesced
+		queue.removeDialog("a");
+		assertEquals(1, queue.getPendingWrites());
+		assertEquals(1, sipCache.operations.size());
+	}
+
+	public void testSynchronousWriteWaitsForTheFlushOfTheSameId() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 0, 1);
+		queue.start();
+		sipCache.holdFirstWrite("a");
+		queue.removeDialog("a");
+		sipCache.awaitHeldWrite();
+		// the only flush thread is busy with a, b stays pending and fills the queue
+		queue.removeDialog("b");
+		final List<Exception> failures = new ArrayList<Exception>();
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.removeDialog("a");
+				} catch (Exception e) {
+					failures.add(e);
+				}
+			}
+		};
+		writer.start();
+		writer.join(200);
+		assertTrue("the second write of a went through while the first one was in progress", writer.isAlive());
+		assertTrue(sipCache.operations.isEmpty());
+		sipCache.releaseHeldWrite();
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		assertTrue(failures.isEmpty());
+		waitForOperations(3);
+		assertEquals("removeDialog a", sipCache.operations.get(0));
+		// b can be flushed before or after the second write of a
+		assertEquals(3, sipCache.operations.lastIndexOf("removeDialog a") + sipCache.operations.indexOf("removeDialog b"));
+	}
+
+	public void testRemovalsOfLinkedDialogsGoThroughTheLinkKey() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 60000, 100);
+		queue.start();
+		final List<String> linkedDialogs = new ArrayList<String>();
+		linkedDialogs.add("a");
+		linkedDialogs.add("b");
+		assertEquals("Da", queue.getLinkKey(linkedDialogs));
+		// dialogs linked to an already linked dialog keep its key
+		linkedDialogs.set(0, "c");
+		assertEquals("Da", queue.getLinkKey(linkedDialogs));
+		queue.removeDialog("b");
+		queue.removeDialog("c");
+		queue.removeDialog("a");
+		// chained behind each other under the link key
+		assertEquals(1, queue.getPendingWrites());
+		// once removed a dialog is no longer linked
+		queue.removeDialog("b");
+		assertEquals(2, queue.getPendingWrites());
+		queue.stop();
+		assertEquals(4, sipCache.operations.size());
+		final List<String> chained = new ArrayList<String>(sipCache.operations);
+		chained.remove(chained.lastIndexOf("removeDialog b"));
+		assertEquals("removeDialog b", chained.get(0));
+		assertEquals("removeDialog c", chained.get(1));
+		assertEquals("removeDialog a", chained.get(2));
+	}
+
+	public void testForgottenDialogsAreUnlinked() throws Exception {
+		queue = new WriteBehindReplicationQueue(sipCache, 1, 60000, 100);
+		queue.start();
+		final List<String> linkedDialogs = new ArrayList<String>();
+		linkedDialogs.add("b");
+		linkedDialogs.add("c");
+		assertEquals("Db", queue.getLinkKey(linkedDialogs));
+		// the dialogs ended without being removed from the cache
+		queue.forget("b");
+		queue.forget("c");
+		linkedDialogs.set(0, "a");
+		assertEquals("Da", queue.getLinkKey(linkedDialogs));
+		queue.stop();
+	}
+
+	private void waitForOperations(int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(sipCache.operations.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, sipCache.operations.size());
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes, recovery and compaction of the segment files
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class MappedFileSegmentStoreTest extends TestCase {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	private File directory;
+	private MappedFileSegmentStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("segments", "");
+		directory.delete();
+		store = open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private MappedFileSegmentStore open() throws IOException {
+		final MappedFileSegmentStore segmentStore = new MappedFileSegmentStore(directory, SEGMENT_SIZE);
+		segmentStore.open();
+		return segmentStore;
+	}
+
+	private MappedFileSegmentStore reopen() throws IOException {
+		store.close();
+		store = open();
+		return store;
+	}
+
+	private static byte[] value(String value) {
+		return value.getBytes();
+	}
+
+	private void assertValue(String expectedValue, String key) {
+		final SegmentStore.StoredValue storedValue = store.get(key);
+		if (expectedValue == null) {
+			assertNull(key + " should be absent", storedValue);
+		} else {
+			assertNotNull(key + " should be present", storedValue);
+			assertTrue(key + " should be " + expectedValue, Arrays.equals(value(expectedValue), storedValue.getValue()));
+		}
+	}
+
+	public void testConditionalWrites() throws Exception {
+		assertTrue(store.replace("a", null, value("1")));
+		assertFalse("the key isn't absent anymore", store.replace("a", null, value("2")));
+		final SegmentStore.StoredValue storedValue = store.get("a");
+		assertTrue(store.replace("a", storedValue, value("2")));
+		assertFalse("the key has been written since it was read", store.replace("a", storedValue, value("3")));
+		assertValue("2", "a");
+		assertTrue(store.remove("a"));
+		assertFalse(store.remove("a"));
+		assertValue(null, "a");
+	}
+
+	public void testRecovery() throws Exception {
+		store.put("a", value("1"));
+		store.put("b", value("1"));
+		store.put("a", value("2"));
+		store.remove("b");
+		store.put("c", value("1"));
+		reopen();
+		assertEquals(2, store.size());
+		assertValue("2", "a");
+		assertValue(null, "b");
+		assertValue("1", "c");
+		// the writes go on after the recovered records
+		store.put("c", value("2"));
+		reopen();
+		assertValue("2", "c");
+	}
+
+	public void testPartiallyWrittenRecordIsIgnored() throws Exception {
+		store.put("a", value("1"));
+		store.put("b", value("1"));
+		store.close();
+		// corrupt the value of the last record of the first segment
+		final File segmentFile = directory.listFiles()[0];
+		final RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+		try {
+			int offset = 0;
+			int lastOffset = 0;
+			int length;
+			while ((length = readInt(file, offset)) > 0) {
+				lastOffset = offset;
+				offset += length;
+			}
+			file.seek(offset - 1);
+			final int lastByte = file.read();
+			file.seek(offset - 1);
+			file.write(lastByte ^ 0xFF);
+			assertTrue(lastOffset > 0);
+		} finally {
+			file.close();
+		}
+		store = open();
+		assertValue("1", "a");
+		assertValue(null, "b");
+	}
+
+	private static int readInt(RandomAccessFile file, int offset) throws IOException {
+		file.seek(offset);
+		return file.readInt();
+	}
+
+	public void testCompaction() throws Exception {
+		final String padding = new String(new char[500]).replace('\0', 'x');
+		// fill several segments with versions of a few keys
+		for (int i = 0; i < 40; i++) {
+			store.put("key" + (i % 4), value(padding + i));
+		}
+		store.put("removed", value("1"));
+		store.remove("removed");
+		final int segmentFiles = directory.listFiles().length;
+		assertTrue(segmentFiles > 2);
+		assertTrue(store.compact(0) > 0);
+		assertTrue(directory.listFiles().length < segmentFiles);
+		for (int i = 36; i < 40; i++) {
+			assertValue(padding + i, "key" + (i % 4));
+		}
+		// nothing is resurrected on recovery once the segments holding the old records are gone
+		reopen();
+		assertEquals(4, store.size());
+		for (int i = 36; i < 40; i++) {
+			assertValue(padding + i, "key" + (i % 4));
+		}
+		assertValue(null, "removed");
+	}
+
+	public void testExpiration() throws Exception {
+		final String padding = new String(new char[1000]).replace('\0', 'x');
+		store.put("old", value("1"));
+		Thread.sleep(10);
+		final long expirationTime = System.currentTimeMillis();
+		for (int i = 0; i < 12; i++) {
+			store.put("key", value(padding + i));
+		}
+		store.compact(expirationTime);
+		assertValue(null, "old");
+		assertValue(padding + 11, "key");
+		reopen();
+		assertValue(null, "old");
+		assertValue(padding + 11, "key");
+	}
+
+	public void testRecordLargerThanSegment() throws Exception {
+		try {
+			store.put("a", new byte[SEGMENT_SIZE]);
+			fail("the record doesn't fit in a segment");
+		} catch (IOException e) {
+			// expected
+		}
+		assertValue(null, "a");
+	}
+}
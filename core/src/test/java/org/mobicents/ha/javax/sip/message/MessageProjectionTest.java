@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.message;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.ListIterator;
+
+import javax.sip.SipFactory;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Headers kept and dropped by the projections of the messages replicated with the dialogs and transactions
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class MessageProjectionTest extends TestCase {
+
+	private static final String BODY = "v=0\r\no=- 1 1 IN IP4 192.168.0.1\r\ns=-\r\n";
+	private static final String HEADERS =
+		"Via: SIP/2.0/UDP 192.168.0.1:5060;branch=z9hG4bK-1\r\n" +
+		"Via: SIP/2.0/UDP 192.168.0.5:5060;branch=z9hG4bK-0\r\n" +
+		"From: <sip:alice@192.168.0.1>;tag=local\r\n" +
+		"To: <sip:bob@192.168.0.2>;tag=remote\r\n" +
+		"Call-ID: call-1@192.168.0.1\r\n" +
+		"CSeq: 2 SUBSCRIBE\r\n" +
+		"Max-Forwards: 69\r\n" +
+		"Contact: <sip:alice@192.168.0.1:5060>\r\n" +
+		"Record-Route: <sip:proxy1:5060;lr>\r\n" +
+		"Record-Route: <sip:proxy2:5060;lr>\r\n" +
+		"Event: presence;id=1\r\n" +
+		"Subject: dropped\r\n" +
+		"User-Agent: dropped\r\n" +
+		"X-Custom: dropped\r\n" +
+		"Content-Type: application/sdp\r\n" +
+		"Content-Length: " + BODY.length() + "\r\n\r\n" + BODY;
+
+	private MessageFactory messageFactory;
+
+	@Override
+	protected void setUp() throws Exception {
+		final SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("gov.nist");
+		messageFactory = sipFactory.createMessageFactory();
+	}
+
+	public void testRequestProjection() throws Exception {
+		final SIPRequest request = (SIPRequest) messageFactory.createRequest("SUBSCRIBE sip:bob@192.168.0.2:5060 SIP/2.0\r\n" + HEADERS);
+		final SIPRequest projected = MessageProjection.createRequest(MessageProjection.project(request));
+		assertEquals("SUBSCRIBE", projected.getMethod());
+		assertEquals(request.getRequestURI(), projected.getRequestURI());
+		assertHeadersProjected(projected);
+	}
+
+	public void testResponseProjection() throws Exception {
+		final SIPResponse response = (SIPResponse) messageFactory.createResponse("SIP/2.0 200 OK\r\n" + HEADERS);
+		final SIPResponse projected = MessageProjection.createResponse(MessageProjection.project(response));
+		assertEquals(200, projected.getStatusCode());
+		assertEquals("OK", projected.getReasonPhrase());
+		assertHeadersProjected(projected);
+	}
+
+	private void assertHeadersProjected(SIPMessage projected) {
+		assertEquals("call-1@192.168.0.1", ((CallIdHeader) projected.getHeader(CallIdHeader.NAME)).getCallId());
+		assertEquals(2, ((CSeqHeader) projected.getHeader(CSeqHeader.NAME)).getSeqNumber());
+		assertEquals("local", ((FromHeader) projected.getHeader(FromHeader.NAME)).getTag());
+		assertEquals("remote", projected.getToTag());
+		assertEquals("presence", ((EventHeader) projected.getHeader(EventHeader.NAME)).getEventType());
+		assertNotNull(projected.getHeader("Contact"));
+		assertNotNull(projected.getHeader("Max-Forwards"));
+		// the order of the multi-valued headers is kept
+		final ListIterator<?> vias = projected.getHeaders(ViaHeader.NAME);
+		assertEquals("z9hG4bK-1", ((ViaHeader) vias.next()).getBranch());
+		assertEquals("z9hG4bK-0", ((ViaHeader) vias.next()).getBranch());
+		assertFalse(vias.hasNext());
+		final ListIterator<?> recordRoutes = projected.getHeaders(RecordRouteHeader.NAME);
+		assertTrue(((RecordRouteHeader) recordRoutes.next()).getAddress().getURI().toString().contains("proxy1"));
+		assertTrue(((RecordRouteHeader) recordRoutes.next()).getAddress().getURI().toString().contains("proxy2"));
+		assertFalse(recordRoutes.hasNext());
+		// the body and the headers not needed for recovery are dropped
+		assertNull(projected.getHeader("Subject"));
+		assertNull(projected.getHeader("User-Agent"));
+		assertNull(projected.getHeader("X-Custom"));
+		assertNull(projected.getHeader("Content-Type"));
+		assertNull(projected.getRawContent());
+		assertEquals(0, projected.getContentLength().getContentLength());
+	}
+
+	public void testFullTextOfPreviousVersions() throws Exception {
+		final String text = "SUBSCRIBE sip:bob@192.168.0.2:5060 SIP/2.0\r\n" + HEADERS;
+		final SIPRequest request = MessageProjection.createRequest(text);
+		assertEquals("SUBSCRIBE", request.getMethod());
+		// the full text is parsed as is
+		assertNotNull(request.getHeader("X-Custom"));
+		assertNull(MessageProjection.createRequest(null));
+		assertNull(MessageProjection.createResponse(null));
+	}
+
+	public void testProjectionIsSmallerThanTheMessage() throws Exception {
+		final SIPRequest request = (SIPRequest) messageFactory.createRequest("SUBSCRIBE sip:bob@192.168.0.2:5060 SIP/2.0\r\n" + HEADERS);
+		assertTrue(MessageProjection.project(request).length < request.encode().length() - BODY.length());
+	}
+}
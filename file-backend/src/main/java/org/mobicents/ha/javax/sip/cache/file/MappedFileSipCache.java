@@ -0,0 +1,405 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.mobicents.ha.javax.sip.cache.file;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.SipCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.store.MappedFileSegmentStore;
+import org.mobicents.ha.javax.sip.cache.store.SegmentStore;
+
+/**
+ * Implementation of the SipCache interface persisting the dialogs and transactions of a single node in memory mapped segment files,
+ * see {@link MappedFileSegmentStore}. Once restarted after a crash, the node rebuilds the index of the segments
+ * and finds its dialogs and transactions there the same way it would find them in a distributed cache,
+ * without any other node. Nodes sharing a disk in active/passive can use the same directory, as long as a single node uses it at a time.
+ *
+ * It is used by setting <b>org.mobicents.ha.javax.sip.CACHE_CLASS_NAME</b> to this class, configured through the following Restcomm SIP Stack properties :
+ * <b>org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_DIRECTORY</b> directory of the segment files, mandatory
+ * <b>org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_SEGMENT_SIZE</b> size of the segment files in bytes, bounding the size of a dialog, 64MB by default
+ * <b>org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_COMPACTION_INTERVAL</b> time in milliseconds between two compactions of the segments, 10000 by default.
+ * The active segment is forced to the disk at the same time
+ * <b>org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_ENTRY_MAX_AGE</b> time in milliseconds after which an entry which hasn't been written again is dropped
+ * by the compaction, to get rid of the dialogs of a previous run which ended while the node was down. 0, the default, keeps them
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class MappedFileSipCache implements SipCache {
+
+	public static final String MAPPED_FILE_CACHE_DIRECTORY = "org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_DIRECTORY";
+	public static final String MAPPED_FILE_CACHE_SEGMENT_SIZE = "org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_SEGMENT_SIZE";
+	public static final String MAPPED_FILE_CACHE_COMPACTION_INTERVAL = "org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_COMPACTION_INTERVAL";
+	public static final String MAPPED_FILE_CACHE_ENTRY_MAX_AGE = "org.mobicents.ha.javax.sip.MAPPED_FILE_CACHE_ENTRY_MAX_AGE";
+
+	// prefixes of the keys of the store
+	static final String DIALOGS = "d:";
+	static final String SERVER_TRANSACTIONS = "s:";
+	static final String CLIENT_TRANSACTIONS = "c:";
+
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(MappedFileSipCache.class);
+
+	private Properties configProperties = null;
+	private ClusteredSipStack stack;
+	private SegmentStore store;
+	private long compactionInterval;
+	private long entryMaxAge;
+	private ScheduledThreadPoolExecutor compactionExecutor;
+
+	private SIPDialogCacheData dialogCacheData;
+	private SIPServerTransactionCacheData serverTXCacheData;
+	private SIPClientTransactionCacheData clientTXCacheData;
+
+	public void init() throws SipCacheException {
+		final String directory = configProperties.getProperty(MAPPED_FILE_CACHE_DIRECTORY);
+		if (directory == null) {
+			throw new SipCacheException(MAPPED_FILE_CACHE_DIRECTORY + " is mandatory for the mapped file cache");
+		}
+		final int segmentSize;
+		try {
+			segmentSize = Integer.parseInt(configProperties.getProperty(MAPPED_FILE_CACHE_SEGMENT_SIZE, String.valueOf(64 * 1024 * 1024)));
+			compactionInterval = Long.parseLong(configProperties.getProperty(MAPPED_FILE_CACHE_COMPACTION_INTERVAL, "10000"));
+			entryMaxAge = Long.parseLong(configProperties.getProperty(MAPPED_FILE_CACHE_ENTRY_MAX_AGE, "0"));
+			store = new MappedFileSegmentStore(new File(directory), segmentSize);
+		} catch (IllegalArgumentException e) {
+			throw new SipCacheException("Invalid mapped file cache configuration", e);
+		}
+		if (compactionInterval <= 0) {
+			throw new SipCacheException(MAPPED_FILE_CACHE_COMPACTION_INTERVAL + " must be positive");
+		}
+		if (Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.EARLY_DIALOG_TRANSACTION_RECORD))) {
+			clusteredlogger.logWarning(ClusteredSipStack.EARLY_DIALOG_TRANSACTION_RECORD + " isn't supported by the mapped file cache, ignored");
+		}
+	}
+
+	public void start() throws SipCacheException {
+		try {
+			store.open();
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't open the segments of " + configProperties.getProperty(MAPPED_FILE_CACHE_DIRECTORY), e);
+		}
+		dialogCacheData = new SIPDialogCacheData(stack, this);
+		serverTXCacheData = new SIPServerTransactionCacheData(stack, this);
+		clientTXCacheData = new SIPClientTransactionCacheData(stack, this);
+		compactionExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "MappedFileSipCacheCompaction");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					store.compact(entryMaxAge > 0 ? System.currentTimeMillis() - entryMaxAge : 0);
+				} catch (Exception e) {
+					clusteredlogger.logError("Couldn't compact the segments", e);
+				}
+				store.flush();
+			}
+		}, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() throws SipCacheException {
+		compactionExecutor.shutdown();
+		try {
+			compactionExecutor.awaitTermination(compactionInterval, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		store.close();
+		clientTXCacheData = null;
+		serverTXCacheData = null;
+		dialogCacheData = null;
+	}
+
+	/**
+	 * @param region the prefix of the key
+	 * @return the value stored under the key, null if none
+	 */
+	SegmentStore.StoredValue get(String region, String key) {
+		return store.get(region + key);
+	}
+
+	/**
+	 * @return the object serialized in the stored value
+	 */
+	Object read(SegmentStore.StoredValue storedValue) throws SipCacheException {
+		try {
+			final ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(storedValue.getValue()));
+			try {
+				return in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (ClassNotFoundException e) {
+			throw new SipCacheException("Couldn't load a class of the stored state", e);
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't read the stored state", e);
+		}
+	}
+
+	/**
+	 * Store the value if the one stored is still the value passed in param
+	 * @param storedValue the value the new one has been computed from, null if none
+	 * @return false if the key has been written concurrently
+	 */
+	boolean replace(String region, String key, SegmentStore.StoredValue storedValue, Object value) throws SipCacheException {
+		try {
+			return store.replace(region + key, storedValue, serialize(value));
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't store " + key, e);
+		}
+	}
+
+	/**
+	 * Store the value, no matter what is stored under the key
+	 */
+	void put(String region, String key, Object value) throws SipCacheException {
+		try {
+			store.put(region + key, serialize(value));
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't store " + key, e);
+		}
+	}
+
+	void remove(String region, String key) throws SipCacheException {
+		try {
+			store.remove(region + key);
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't remove " + key, e);
+		}
+	}
+
+	private static byte[] serialize(Object value) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public SIPDialog getDialog(String dialogId) throws SipCacheException {
+		if (dialogId == null) 
+			throw new SipCacheException("No dialogId");
+		
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialog(dialogId);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		if (dialog == null) 
+			throw new SipCacheException("SipDialog is null");
+		
+		if (dialogCacheData != null)
+			dialogCacheData.putDialog(dialog);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void updateDialog(SIPDialog dialog) throws SipCacheException {
+		if (dialog == null) 
+			throw new SipCacheException("SipDialog is null");
+		
+		if (dialogCacheData != null)
+			dialogCacheData.updateDialog(dialog);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void removeDialog(String dialogId) throws SipCacheException {
+		if (dialogId == null) 
+			throw new SipCacheException("No dialogId");
+		
+		if (dialogCacheData != null)
+			dialogCacheData.removeDialog(dialogId);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void evictDialog(String dialogId) {
+		// nothing but the index of the segments is held in memory, the record of the dialog is kept
+	}
+
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.putDialogs(dialogs);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.removeDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+
+	public SIPServerTransaction getServerTransaction(String txId) throws SipCacheException {
+		if (serverTXCacheData != null)
+			return serverTXCacheData.getServerTransaction(txId);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void putServerTransaction(SIPServerTransaction serverTransaction) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.putServerTransaction(serverTransaction);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void removeServerTransaction(String txId) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.removeServerTransaction(txId);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) throws SipCacheException {
+		if (serverTXCacheData != null)
+			return serverTXCacheData.getServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.putServerTransactions(serverTransactions);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public void removeServerTransactions(Collection<String> txIds) throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.removeServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+
+	public SIPClientTransaction getClientTransaction(String txId) throws SipCacheException {
+		if (clientTXCacheData != null)
+			return clientTXCacheData.getClientTransaction(txId);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void putClientTransaction(SIPClientTransaction clientTransaction) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.putClientTransaction(clientTransaction);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void removeClientTransaction(String txId) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.removeClientTransaction(txId);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) throws SipCacheException {
+		if (clientTXCacheData != null)
+			return clientTXCacheData.getClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.putClientTransactions(clientTransactions);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void removeClientTransactions(Collection<String> txIds) throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.removeClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+
+	public void setConfigurationProperties(Properties configurationProperties) {
+		this.configProperties = configurationProperties;
+	}
+
+	/**
+	 * The stack has to hand its dialogs and transactions over for them to be persisted
+	 */
+	public boolean inLocalMode() {
+		return false;
+	}
+
+	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
+		stack = clusteredStack;
+	}
+
+	/**
+	 * Resolves the classes of the application data with the context class loader
+	 */
+	private static class ContextObjectInputStream extends ObjectInputStream {
+		ContextObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			if (classLoader != null) {
+				try {
+					return Class.forName(desc.getName(), false, classLoader);
+				} catch (ClassNotFoundException e) {
+					// falls back to the default resolution
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+}
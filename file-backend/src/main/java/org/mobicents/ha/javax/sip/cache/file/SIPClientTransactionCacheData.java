@@ -0,0 +1,198 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.file;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.MessageProcessor;
+import gov.nist.javax.sip.stack.MobicentsHASIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sip.PeerUnavailableException;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.store.SegmentStore;
+
+/**
+ * Stores the client transactions in the {@link MappedFileSipCache}, as {@link EarlyTransactionRecord}
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class SIPClientTransactionCacheData {
+	
+	private ClusteredSipStack stack;
+	private StackLogger logger;
+	private MappedFileSipCache cache;
+	
+	public SIPClientTransactionCacheData(ClusteredSipStack s, MappedFileSipCache cache) {
+		stack = s;
+		logger = s.getStackLogger();
+		this.cache = cache;
+	}
+	
+	public SIPClientTransaction getClientTransaction(String txId) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getClientTransaction(" + txId + ")");
+		
+		final SegmentStore.StoredValue storedValue = cache.get(MappedFileSipCache.CLIENT_TRANSACTIONS, txId);
+		if(storedValue == null) {
+			return null;
+		}
+		final EarlyTransactionRecord record = (EarlyTransactionRecord) cache.read(storedValue);
+		return createClientTransaction(txId, record.getMetaData(), record.getApplicationData());
+	}
+
+	public void putClientTransaction(SIPClientTransaction clientTransaction) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putClientTransaction(" + clientTransaction.getTransactionId() + ")");
+		
+		final MobicentsHASIPClientTransaction haClientTransaction = (MobicentsHASIPClientTransaction) clientTransaction;
+		final String txId = clientTransaction.getTransactionId();
+		// the meta data is complete on each write, whatever has been stored before is replaced
+		cache.put(MappedFileSipCache.CLIENT_TRANSACTIONS, txId, new EarlyTransactionRecord(txId, false, haClientTransaction.getMetaDataToReplicate(), 
+				haClientTransaction.getApplicationDataToReplicate(), 0));
+	}
+
+	public void removeClientTransaction(String txId) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeClientTransaction(" + txId + ")");
+		cache.remove(MappedFileSipCache.CLIENT_TRANSACTIONS, txId);
+	}
+	
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getClientTransactions(" + txIds + ")");
+		
+		final Map<String, SIPClientTransaction> haSipClientTransactions = new HashMap<String, SIPClientTransaction>();
+		for (String txId : txIds) {
+			final SIPClientTransaction haSipClientTransaction = getClientTransaction(txId);
+			if(haSipClientTransaction != null) {
+				haSipClientTransactions.put(txId, haSipClientTransaction);
+			}
+		}
+		return haSipClientTransactions;
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactionsToPut) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putClientTransactions(" + clientTransactionsToPut.size() + " transactions)");
+		
+		for (SIPClientTransaction clientTransaction : clientTransactionsToPut) {
+			putClientTransaction(clientTransaction);
+		}
+	}
+	
+	public void removeClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeClientTransactions(" + txIds + ")");
+		for (String txId : txIds) {
+			cache.remove(MappedFileSipCache.CLIENT_TRANSACTIONS, txId);
+		}
+	}
+	
+	public MobicentsHASIPClientTransaction createClientTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
+		MobicentsHASIPClientTransaction haClientTransaction = null; 
+		if(transactionMetaData != null) {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("sipStack " + this + " client transaction " + txId + " is present in the cache, recreating it locally");
+			}
+			String channelTransport = (String) transactionMetaData.get(MobicentsHASIPClientTransaction.TRANSPORT);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : transport " + channelTransport);
+			}
+			InetAddress channelIp = (InetAddress) transactionMetaData.get(MobicentsHASIPClientTransaction.PEER_IP);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : channel peer Ip address " + channelIp);
+			}
+			Integer channelPort = (Integer) transactionMetaData.get(MobicentsHASIPClientTransaction.PEER_PORT);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : channel peer port " + channelPort);
+			}
+			Integer myPort = (Integer) transactionMetaData.get(MobicentsHASIPClientTransaction.MY_PORT);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : my port " + myPort);
+			}
+			MessageChannel messageChannel = null;
+			MessageProcessor[] messageProcessors = stack.getStackMessageProcessors();
+			for (MessageProcessor messageProcessor : messageProcessors) {
+				if(messageProcessor.getTransport().equalsIgnoreCase(channelTransport)) {
+					try {
+						messageChannel = messageProcessor.createMessageChannel(channelIp, channelPort);
+					} catch (IOException e) {
+						logger.logError("couldn't recreate the message channel on ip address " 
+								+ channelIp + " and port " + channelPort, e);
+					}
+					break;
+				}
+			}
+			
+			haClientTransaction = new MobicentsHASIPClientTransaction((SIPTransactionStack) stack, messageChannel);
+			haClientTransaction.setBranch(txId);
+			try {
+				updateClientTransactionMetaData(transactionMetaData, transactionAppData, haClientTransaction, true);						
+			} catch (PeerUnavailableException e) {
+				throw new SipCacheException("A problem occured while retrieving the following transaction " + txId + " from the Cache", e);
+			} catch (ParseException e) {
+				throw new SipCacheException("A problem occured while retrieving the following transaction " + txId + " from the Cache", e);
+			}
+		} else {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("sipStack " + this + " client transaction " + txId + " not found in the cache");
+			}
+		}
+		
+		return haClientTransaction;
+	}
+
+	/**
+	 * Update the haSipDialog passed in param with the dialogMetaData and app meta data
+	 * @param transactionMetaData
+	 * @param transactionAppData
+	 * @param haClientTransaction
+	 * @throws ParseException
+	 * @throws PeerUnavailableException
+	 */
+	private void updateClientTransactionMetaData(Map<String, Object> transactionMetaData, Object transactionAppData, MobicentsHASIPClientTransaction haClientTransaction, boolean recreation) throws ParseException,
+			PeerUnavailableException {
+		haClientTransaction.setMetaDataToReplicate(transactionMetaData, recreation);
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("updating application data with the one from cache " + transactionAppData);
+		}
+		haClientTransaction.setApplicationDataToReplicate(transactionAppData);		
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.file;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.MessageProcessor;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sip.PeerUnavailableException;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.store.SegmentStore;
+
+/**
+ * Stores the server transactions in the {@link MappedFileSipCache}, as {@link EarlyTransactionRecord}
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class SIPServerTransactionCacheData {
+	
+	private ClusteredSipStack stack;
+	private StackLogger logger;
+	private MappedFileSipCache cache;
+	
+	public SIPServerTransactionCacheData(ClusteredSipStack s, MappedFileSipCache cache) {
+		stack = s;
+		logger = s.getStackLogger();
+		this.cache = cache;
+	}
+	
+	public SIPServerTransaction getServerTransaction(String txId) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getServerTransaction(" + txId + ")");
+		
+		final SegmentStore.StoredValue storedValue = cache.get(MappedFileSipCache.SERVER_TRANSACTIONS, txId);
+		if(storedValue == null) {
+			return null;
+		}
+		final EarlyTransactionRecord record = (EarlyTransactionRecord) cache.read(storedValue);
+		return createServerTransaction(txId, record.getMetaData(), record.getApplicationData());
+	}
+
+	public void putServerTransaction(SIPServerTransaction serverTransaction) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putServerTransaction(" + serverTransaction.getTransactionId() + ")");
+		
+		final MobicentsHASIPServerTransaction haServerTransaction = (MobicentsHASIPServerTransaction) serverTransaction;
+		final String txId = serverTransaction.getTransactionId();
+		// the meta data is complete on each write, whatever has been stored before is replaced
+		cache.put(MappedFileSipCache.SERVER_TRANSACTIONS, txId, new EarlyTransactionRecord(txId, true, haServerTransaction.getMetaDataToReplicate(), 
+				haServerTransaction.getApplicationDataToReplicate(), 0));
+	}
+
+	public void removeServerTransaction(String txId) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeServerTransaction(" + txId + ")");
+		cache.remove(MappedFileSipCache.SERVER_TRANSACTIONS, txId);
+	}
+	
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getServerTransactions(" + txIds + ")");
+		
+		final Map<String, SIPServerTransaction> haSipServerTransactions = new HashMap<String, SIPServerTransaction>();
+		for (String txId : txIds) {
+			final SIPServerTransaction haSipServerTransaction = getServerTransaction(txId);
+			if(haSipServerTransaction != null) {
+				haSipServerTransactions.put(txId, haSipServerTransaction);
+			}
+		}
+		return haSipServerTransactions;
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactionsToPut) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putServerTransactions(" + serverTransactionsToPut.size() + " transactions)");
+		
+		for (SIPServerTransaction serverTransaction : serverTransactionsToPut) {
+			putServerTransaction(serverTransaction);
+		}
+	}
+	
+	public void removeServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeServerTransactions(" + txIds + ")");
+		for (String txId : txIds) {
+			cache.remove(MappedFileSipCache.SERVER_TRANSACTIONS, txId);
+		}
+	}
+	
+	public MobicentsHASIPServerTransaction createServerTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
+		MobicentsHASIPServerTransaction haServerTransaction = null; 
+		if(transactionMetaData != null) {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("sipStack " + this + " server transaction " + txId + " is present in the cache, recreating it locally");
+			}
+			String channelTransport = (String) transactionMetaData.get(MobicentsHASIPServerTransaction.TRANSPORT);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : transport " + channelTransport);
+			}
+			InetAddress channelIp = (InetAddress) transactionMetaData.get(MobicentsHASIPServerTransaction.PEER_IP);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : channel peer Ip address " + channelIp);
+			}
+			Integer channelPort = (Integer) transactionMetaData.get(MobicentsHASIPServerTransaction.PEER_PORT);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : channel peer port " + channelPort);
+			}
+			Integer myPort = (Integer) transactionMetaData.get(MobicentsHASIPServerTransaction.MY_PORT);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(txId + " : my port " + myPort);
+			}
+			MessageChannel messageChannel = null;
+			MessageProcessor[] messageProcessors = stack.getStackMessageProcessors();
+			for (MessageProcessor messageProcessor : messageProcessors) {
+				if(messageProcessor.getTransport().equalsIgnoreCase(channelTransport)) {
+					try {
+						messageChannel = messageProcessor.createMessageChannel(channelIp, channelPort);
+					} catch (IOException e) {
+						logger.logError("couldn't recreate the message channel on ip address " 
+								+ channelIp + " and port " + channelPort, e);
+					}
+					break;
+				}
+			}
+			
+			haServerTransaction = new MobicentsHASIPServerTransaction((SIPTransactionStack) stack, messageChannel);
+			haServerTransaction.setBranch(txId);
+			try {
+				updateServerTransactionMetaData(transactionMetaData, transactionAppData, haServerTransaction, true);						
+			} catch (PeerUnavailableException e) {
+				throw new SipCacheException("A problem occured while retrieving the following transaction " + txId + " from the Cache", e);
+			} catch (ParseException e) {
+				throw new SipCacheException("A problem occured while retrieving the following transaction " + txId + " from the Cache", e);
+			}
+		} else {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("sipStack " + this + " server transaction " + txId + " not found in the cache");
+			}
+		}
+		
+		return haServerTransaction;
+	}
+
+	/**
+	 * Update the haSipDialog passed in param with the dialogMetaData and app meta data
+	 * @param transactionMetaData
+	 * @param transactionAppData
+	 * @param haServerTransaction
+	 * @throws ParseException
+	 * @throws PeerUnavailableException
+	 */
+	private void updateServerTransactionMetaData(Map<String, Object> transactionMetaData, Object transactionAppData, MobicentsHASIPServerTransaction haServerTransaction, boolean recreation) throws ParseException,
+			PeerUnavailableException {
+		haServerTransaction.setMetaDataToReplicate(transactionMetaData, recreation);
+		haServerTransaction.setApplicationDataToReplicate(transactionAppData);		
+	}
+}
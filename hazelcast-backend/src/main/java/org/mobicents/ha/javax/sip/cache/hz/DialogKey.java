@@ -0,0 +1,104 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.io.IOException;
+
+import com.hazelcast.core.PartitionAware;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * Key of the dialog maps, partitioned by the Call-ID of the dialog so that all the dialogs of a call,
+ * their state, application data and version all live on the same partition owner.
+ * Only the dialog id is serialized, the partition key is derived from it.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class DialogKey implements PartitionAware<String>, DataSerializable {
+
+	private String dialogId;
+
+	public DialogKey() {}
+
+	public DialogKey(String dialogId) {
+		this.dialogId = dialogId;
+	}
+
+	public String getDialogId() {
+		return dialogId;
+	}
+
+	/**
+	 * @return the part of the Call-ID before its first colon, see getPartitionKey(String)
+	 */
+	public String getPartitionKey() {
+		return getPartitionKey(dialogId);
+	}
+
+	/**
+	 * The dialog id is the Call-ID followed by zero, one or two tags, each one prefixed by a colon,
+	 * and the Call-ID can contain colons itself so the tags can't be told apart from the Call-ID by counting colons.
+	 * The dialog ids of a call all start with the same Call-ID though, so they all share the part of it before its first colon,
+	 * the whole Call-ID when it doesn't contain any.
+	 * 
+	 * @param dialogId a dialog id of the form call-id[:tag[:tag]]
+	 * @return the part of the dialog id before its first colon, the dialog id itself if it doesn't contain any
+	 */
+	static String getPartitionKey(String dialogId) {
+		final int firstColonIndex = dialogId.indexOf(':');
+		if(firstColonIndex < 0) {
+			return dialogId;
+		}
+		return dialogId.substring(0, firstColonIndex);
+	}
+
+	public void writeData(ObjectDataOutput out) throws IOException {
+		out.writeUTF(dialogId);
+	}
+
+	public void readData(ObjectDataInput in) throws IOException {
+		dialogId = in.readUTF();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof DialogKey)) {
+			return false;
+		}
+		return dialogId.equals(((DialogKey) obj).dialogId);
+	}
+
+	@Override
+	public int hashCode() {
+		return dialogId.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return dialogId;
+	}
+}
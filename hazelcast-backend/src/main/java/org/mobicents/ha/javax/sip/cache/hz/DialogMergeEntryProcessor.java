@@ -0,0 +1,106 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.Map;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * Merges a dialog state delta into the cached dialog entry on the partition owner, so that a dialog write
+ * is a single call carrying only the delta, and no concurrent write can be lost between reading and writing the entry.
+ * The delta is only applied if its version is newer than the cached one, and only on top of the cached version it has been built on.
+ * The same merge runs on the backups.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogMergeEntryProcessor extends AbstractEntryProcessor<DialogKey, Object> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * the delta has been merged in the cached entry
+	 */
+	public static final Integer APPLIED = Integer.valueOf(0);
+	/**
+	 * the cached entry is already at the same or a newer version, only the application data has been stored if any
+	 */
+	public static final Integer STALE = Integer.valueOf(1);
+	/**
+	 * the delta has not been built on top of the cached version, a full snapshot has to be sent instead
+	 */
+	public static final Integer REJECTED = Integer.valueOf(2);
+
+	private final byte[] metaData;
+	private final long baseVersion;
+	private final SerializedApplicationData applicationData;
+
+	/**
+	 * @param metaData the dialog state to merge, null if only the application data changed
+	 * @param applicationData the application data to store, serialized by the stack so that the members don't need its classes, null to keep the cached one
+	 */
+	public DialogMergeEntryProcessor(DialogReplicationState metaData, SerializedApplicationData applicationData) {
+		super(true);
+		this.metaData = metaData == null ? null : DialogReplicationStateCodec.encode(metaData);
+		this.baseVersion = metaData == null ? 0 : metaData.getBaseVersion();
+		this.applicationData = applicationData;
+	}
+
+	@Override
+	public Object process(Map.Entry<DialogKey, Object> entry) {
+		final DialogCacheEntry cachedEntry = (DialogCacheEntry) entry.getValue();
+		byte[] metaDataToStore = cachedEntry != null ? cachedEntry.getMetaData() : null;
+		Integer result = STALE;
+		if(metaData != null) {
+			try {
+				final DialogReplicationState update = DialogReplicationStateCodec.decode(metaData);
+				update.setBaseVersion(baseVersion);
+				final DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(metaDataToStore);
+				if(!update.canBeAppliedOn(cachedMetaData)) {
+					return REJECTED;
+				}
+				if(cachedMetaData == null) {
+					metaDataToStore = metaData;
+					result = APPLIED;
+				} else if(cachedMetaData.getVersion() < update.getVersion()) {
+					cachedMetaData.merge(update);
+					metaDataToStore = DialogReplicationStateCodec.encode(cachedMetaData);
+					result = APPLIED;
+				}
+			} catch (SipCacheException e) {
+				throw new IllegalStateException("Couldn't merge the dialog " + entry.getKey() + " state", e);
+			}
+		}
+		if(result == APPLIED || applicationData != null) {
+			final Object applicationDataToStore = applicationData != null ? applicationData : (cachedEntry != null ? cachedEntry.getApplicationData() : null);
+			// the INVITE transaction stored along with the dialog is kept as is
+			entry.setValue(cachedEntry != null ? new DialogCacheEntry(metaDataToStore, applicationDataToStore, cachedEntry.getTransaction(), cachedEntry.getStamp() + 1)
+					: new DialogCacheEntry(metaDataToStore, applicationDataToStore));
+		}
+		return result;
+	}
+}
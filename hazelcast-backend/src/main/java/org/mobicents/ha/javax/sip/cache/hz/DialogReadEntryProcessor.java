@@ -0,0 +1,68 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.Map;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * Reads the cached dialog entry on the partition owner and only sends it back if its dialog state is newer than the version
+ * the caller already has, so that checking an up to date local dialog against the cache is a single call that doesn't ship the dialog state.
+ * The entry is left untouched and nothing runs on the backups.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogReadEntryProcessor extends AbstractEntryProcessor<DialogKey, Object> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long version;
+
+	/**
+	 * @param version the version of the dialog known by the caller
+	 */
+	public DialogReadEntryProcessor(long version) {
+		super(false);
+		this.version = version;
+	}
+
+	@Override
+	public Object process(Map.Entry<DialogKey, Object> entry) {
+		final DialogCacheEntry cachedEntry = (DialogCacheEntry) entry.getValue();
+		if(cachedEntry == null || cachedEntry.getMetaData() == null) {
+			return null;
+		}
+		try {
+			if(DialogReplicationStateCodec.decode(cachedEntry.getMetaData()).getVersion() <= version) {
+				return null;
+			}
+		} catch (SipCacheException e) {
+			throw new IllegalStateException("Couldn't read the dialog " + entry.getKey() + " state", e);
+		}
+		return cachedEntry;
+	}
+}
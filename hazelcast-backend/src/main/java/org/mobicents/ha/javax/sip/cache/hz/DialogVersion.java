@@ -0,0 +1,74 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * Value of the dialog versions map, the version of the dialog state just written along with the endpoint that wrote it,
+ * so that a member or a client can ignore the notifications of its own writes.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class DialogVersion implements DataSerializable {
+
+	private long version;
+	private String origin;
+
+	public DialogVersion() {}
+
+	/**
+	 * @param version the version of the dialog state
+	 * @param origin the uuid of the member or client that wrote it
+	 */
+	public DialogVersion(long version, String origin) {
+		this.version = version;
+		this.origin = origin;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public void writeData(ObjectDataOutput out) throws IOException {
+		out.writeLong(version);
+		out.writeUTF(origin);
+	}
+
+	public void readData(ObjectDataInput in) throws IOException {
+		version = in.readLong();
+		origin = in.readUTF();
+	}
+
+	@Override
+	public String toString() {
+		return version + "@" + origin;
+	}
+}
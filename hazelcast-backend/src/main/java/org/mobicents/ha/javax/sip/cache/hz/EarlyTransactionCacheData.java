@@ -0,0 +1,130 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * Stores the INVITE transactions bound to a dialog in the cache entry of the dialog, see {@link ClusteredSipStack#EARLY_DIALOG_TRANSACTION_RECORD}.
+ * The transaction cache only keeps the id of the dialog under the transaction id, written once per transaction,
+ * so that the transaction, the early dialog it belongs to and their application data are recovered with a single read of the dialog entry.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class EarlyTransactionCacheData {
+
+	private StackLogger logger;
+	private IMap<DialogKey, Object> dialogs;
+	private SIPDialogCacheData dialogCacheData;
+	// transactions whose dialog id has already been written by this node
+	private Set<String> aliasedTransactions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private AtomicLong revisions = new AtomicLong(System.currentTimeMillis());
+
+	public EarlyTransactionCacheData(ClusteredSipStack s, 
+			IMap<DialogKey, Object> dialogCache,
+			SIPDialogCacheData dialogCacheData) {
+		logger = s.getStackLogger();
+		dialogs = dialogCache;
+		this.dialogCacheData = dialogCacheData;
+	}
+
+	/**
+	 * Store the transaction in the entry of its dialog
+	 * @param txId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param metaData the transaction meta data
+	 * @param appData the transaction application data, can be null
+	 * @param transactions the transaction cache keeping the dialog id of the transaction
+	 * @param transactionsApp the transaction application data cache
+	 * @return false if the transaction isn't bound to a dialog yet and has to be stored in the transaction cache
+	 */
+	public boolean putTransaction(String txId, boolean server, Map<String, Object> metaData, Object appData, 
+			IMap<String, Object> transactions, IMap<String, Object> transactionsApp) throws SipCacheException {
+		final String dialogId = (String) metaData.get(MobicentsHASIPServerTransaction.DIALOG_ID);
+		if(dialogId == null) {
+			return false;
+		}
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("storing " + (server ? "server" : "client") + " transaction " + txId + " in the entry of dialog " + dialogId);
+		}
+		dialogs.executeOnKey(new DialogKey(dialogId), new EarlyTransactionEntryProcessor(
+				new EarlyTransactionRecord(txId, server, metaData, SerializedApplicationData.serialize(appData), revisions.incrementAndGet())));
+		if(aliasedTransactions.add(aliasKey(txId, server))) {
+			transactions.set(txId, dialogId);
+			// the transaction may have been stored on its own before being bound to the dialog
+			transactionsApp.delete(txId);
+		}
+		return true;
+	}
+
+	/**
+	 * Read the transaction from the entry of its dialog, the early dialog read along is recreated locally if it isn't known yet
+	 * @param txId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param dialogId the dialog id stored in the transaction cache under the transaction id
+	 * @return the transaction, null if it isn't in the dialog entry anymore
+	 */
+	public EarlyTransactionRecord getTransaction(String txId, boolean server, String dialogId) throws SipCacheException {
+		final DialogCacheEntry entry = (DialogCacheEntry) dialogs.get(new DialogKey(dialogId));
+		if(entry == null || entry.getTransaction() == null || !entry.getTransaction().isFor(txId, server)) {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug((server ? "server" : "client") + " transaction " + txId + " not found in the entry of dialog " + dialogId);
+			}
+			return null;
+		}
+		if(entry.getMetaData() != null) {
+			dialogCacheData.recoverDialog(dialogId, entry);
+		}
+		final EarlyTransactionRecord transaction = entry.getTransaction();
+		return new EarlyTransactionRecord(txId, server, transaction.getMetaData(), 
+				SerializedApplicationData.deserialize(transaction.getApplicationData()), transaction.getRevision());
+	}
+
+	/**
+	 * Clear the transaction from the entry of its dialog
+	 * @param txId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param dialogId the dialog id that was stored in the transaction cache under the transaction id
+	 */
+	public void removeTransaction(String txId, boolean server, String dialogId) {
+		aliasedTransactions.remove(aliasKey(txId, server));
+		dialogs.executeOnKey(new DialogKey(dialogId), new EarlyTransactionEntryProcessor(txId, server));
+	}
+
+	private static String aliasKey(String txId, boolean server) {
+		return server ? "s:" + txId : "c:" + txId;
+	}
+}
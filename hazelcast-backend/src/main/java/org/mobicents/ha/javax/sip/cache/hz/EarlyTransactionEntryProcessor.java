@@ -0,0 +1,78 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.Map;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * Stores or clears the INVITE transaction kept in the cache entry of its dialog, leaving the dialog state and application data untouched.
+ * The entry is created if the dialog has not been stored yet and removed once it holds neither a dialog nor a transaction.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class EarlyTransactionEntryProcessor extends AbstractEntryProcessor<DialogKey, Object> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final EarlyTransactionRecord transaction;
+	private final String transactionId;
+	private final boolean server;
+
+	/**
+	 * @param transaction the transaction to store in the dialog entry
+	 */
+	public EarlyTransactionEntryProcessor(EarlyTransactionRecord transaction) {
+		super(true);
+		this.transaction = transaction;
+		this.transactionId = transaction.getTransactionId();
+		this.server = transaction.isServer();
+	}
+
+	/**
+	 * @param transactionId the id of the transaction to clear from the dialog entry, if it is still the one stored there
+	 * @param server true for a server transaction
+	 */
+	public EarlyTransactionEntryProcessor(String transactionId, boolean server) {
+		super(true);
+		this.transaction = null;
+		this.transactionId = transactionId;
+		this.server = server;
+	}
+
+	@Override
+	public Object process(Map.Entry<DialogKey, Object> entry) {
+		final DialogCacheEntry cachedEntry = (DialogCacheEntry) entry.getValue();
+		if(transaction != null) {
+			entry.setValue(cachedEntry == null ? new DialogCacheEntry(null, null, transaction) : cachedEntry.withTransaction(transaction));
+		} else if(cachedEntry != null && cachedEntry.getTransaction() != null && cachedEntry.getTransaction().isFor(transactionId, server)) {
+			final DialogCacheEntry updatedEntry = cachedEntry.withTransaction(null);
+			// setting a null value removes the entry
+			entry.setValue(updatedEntry.isEmpty() ? null : updatedEntry);
+		}
+		return null;
+	}
+}
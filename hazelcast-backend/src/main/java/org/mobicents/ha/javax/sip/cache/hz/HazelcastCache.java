@@ -27,15 +27,25 @@ import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
 import org.mobicents.ha.javax.sip.cache.SipCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.SipCacheReadiness;
 
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.client.config.XmlClientConfigBuilder;
 import com.hazelcast.config.ClasspathXmlConfig;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.config.XmlConfigBuilder;
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
@@ -45,30 +55,68 @@ import com.hazelcast.core.IMap;
  * The configuration of Hazelcast Cache can be set throught the following Restcomm SIP Stack property :
  * <b>org.mobicents.ha.javax.sip.HAZELCAST_CACHE_CONFIG_PATH</b>
  * 
+ * When <b>org.mobicents.ha.javax.sip.HAZELCAST_CLIENT_MODE</b> is set to true, the stack joins the cluster as a Hazelcast client
+ * instead of a member, the dialogs and transactions being owned by a separate tier of Hazelcast members.
+ * The members of that tier need the classes of this backend and of the core on their classpath, since the dialog keys are partition aware
+ * and the dialog writes run as entry processors on the owner of the dialog. They don't need the classes of the applications :
+ * the application data stored in the dialog entries, the one of the dialogs and of the transactions kept along with them, is serialized
+ * by the stack and stays opaque to the members, see {@link SerializedApplicationData}. The application data of the other transactions
+ * is stored in maps that no entry processor reads, so the members never deserialize it either.
+ * The client configuration is read from <b>org.mobicents.ha.javax.sip.HAZELCAST_CLIENT_CONFIG_PATH</b>, or looked up the Hazelcast client way
+ * (hazelcast-client.xml) if not set, and a near cache is added to the cache.dialogs map unless the configuration declares one.
+ * The cache.dialogVersions map is never near cached by default : it is only written, to notify the listeners of the dialog changes,
+ * so a near cache would only add the invalidation traffic of each write.
+ * 
  * @author icivico@gmail.com
  *
  */
-public class HazelcastCache implements SipCache {
+public class HazelcastCache implements SipCache, SipCacheReadiness {
 	
 	public static final String HAZELCAST_CACHE_CONFIG_PATH = "org.mobicents.ha.javax.sip.HAZELCAST_CACHE_CONFIG_PATH";
 	public static final String DEFAULT_FILE_CONFIG_PATH = "META-INF/cache-configuration.xml"; 
 	public static final String HAZELCAST_INSTANCE_NAME = "org.mobicents.ha.javax.sip.HAZELCAST_INSTANCE_NAME";
 	public static final String DEFAULT_HAZELCAST_INSTANCE_NAME = "jain-sip-ha";
+	/**
+	 * when set to true, the stack connects to the Hazelcast cluster as a client instead of joining it as a member
+	 */
+	public static final String HAZELCAST_CLIENT_MODE = "org.mobicents.ha.javax.sip.HAZELCAST_CLIENT_MODE";
+	public static final String HAZELCAST_CLIENT_CONFIG_PATH = "org.mobicents.ha.javax.sip.HAZELCAST_CLIENT_CONFIG_PATH";
+	/**
+	 * maximum number of dialogs kept in the near cache of the client, 0 disables the near cache
+	 */
+	public static final String HAZELCAST_CLIENT_NEAR_CACHE_MAX_SIZE = "org.mobicents.ha.javax.sip.HAZELCAST_CLIENT_NEAR_CACHE_MAX_SIZE";
+	public static final int DEFAULT_HAZELCAST_CLIENT_NEAR_CACHE_MAX_SIZE = 10000;
+	/**
+	 * time in seconds a dialog stays in the near cache of the client, 0, the default, keeps it until it is modified or evicted
+	 */
+	public static final String HAZELCAST_CLIENT_NEAR_CACHE_TIME_TO_LIVE = "org.mobicents.ha.javax.sip.HAZELCAST_CLIENT_NEAR_CACHE_TIME_TO_LIVE";
+	public static final int DEFAULT_HAZELCAST_CLIENT_NEAR_CACHE_TIME_TO_LIVE = 0;
+	private static final String[] NEAR_CACHED_MAPS = new String[] {"cache.dialogs"};
+	// delays between the attempts to attach the cache in the background, doubled after each failure
+	private static final long ATTACH_RETRY_INITIAL_DELAY = 1000;
+	private static final long ATTACH_RETRY_MAX_DELAY = 30000;
 	private static StackLogger clusteredlogger = CommonLogger.getLogger(HazelcastCache.class);
 	
 	private Properties configProperties = null;
 	protected HazelcastInstance hz;
 	private ClusteredSipStack stack;
-	private IMap<String, Object> dialogs;
-	private IMap<String, Object> appDataMap;
+	private IMap<DialogKey, Object> dialogs;
+	private IMap<DialogKey, DialogVersion> dialogVersions;
 	private IMap<String, Object> serverTransactions;
 	private IMap<String, Object> serverTransactionsApp;
 	private IMap<String, Object> clientTransactions;
 	private IMap<String, Object> clientTransactionsApp;
 	
-	private SIPDialogCacheData dialogCacheData;
-	private SIPServerTransactionCacheData serverTXCacheData;
-	private SIPClientTransactionCacheData clientTXCacheData;
+	// volatile since the instance may be attached after the cache is started, see ClusteredSipStack.READINESS_GATED_STARTUP
+	private volatile SIPDialogCacheData dialogCacheData;
+	private volatile SIPServerTransactionCacheData serverTXCacheData;
+	private volatile SIPClientTransactionCacheData clientTXCacheData;
+	private String dialogVersionsListenerId;
+	private boolean clientMode;
+	private boolean started;
+	private volatile boolean stopped;
+	// true if the member instance has been created by this cache rather than found by name
+	private volatile boolean memberInstanceCreated;
 	
 	public SIPDialog getDialog(String dialogId) throws SipCacheException {
 		if (dialogId == null) 
@@ -163,11 +211,154 @@ public class HazelcastCache implements SipCache {
 			throw new SipCacheException("No SIPServerTransactionCache");
 	}
 	
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+	
+	public void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.putDialogs(dialogs);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+	
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.removeDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+	
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (clientTXCacheData != null)
+			return clientTXCacheData.getClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+	
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) 
+			throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.putClientTransactions(clientTransactions);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+	
+	public void removeClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.removeClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+	
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (serverTXCacheData != null)
+			return serverTXCacheData.getServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+	
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) 
+			throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.putServerTransactions(serverTransactions);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+	
+	public void removeServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.removeServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+	
 	public void init() throws SipCacheException {
+		clientMode = Boolean.valueOf(configProperties.getProperty(HAZELCAST_CLIENT_MODE));
+		if (Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.READINESS_GATED_STARTUP))) {
+			// the stack doesn't wait for the instance to join the cluster, it holds the replication back until the cache is ready
+			final Thread attachThread = new Thread(new Runnable() {
+				public void run() {
+					attachInBackground();
+				}
+			}, "HazelcastCacheAttach");
+			attachThread.setDaemon(true);
+			attachThread.start();
+		} else {
+			attach(createInstance());
+		}
+	}
+	
+	/**
+	 * Attach the cache, retrying with a growing delay until it succeeds or the cache is stopped,
+	 * since the stack stays not ready and doesn't replicate anything until then
+	 */
+	private void attachInBackground() {
+		long delay = ATTACH_RETRY_INITIAL_DELAY;
+		while (!stopped) {
+			try {
+				attach(createInstance());
+				return;
+			} catch (Exception e) {
+				clusteredlogger.logError("Couldn't attach the Hazelcast cache, the stack won't replicate anything until it is attached, next attempt in " + delay + "ms", e);
+			}
+			synchronized (this) {
+				if (stopped) {
+					return;
+				}
+				try {
+					// woken up by stop
+					wait(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			delay = Math.min(delay * 2, ATTACH_RETRY_MAX_DELAY);
+		}
+	}
+	
+	private HazelcastInstance createInstance() throws SipCacheException {
+		if (clientMode) {
+			return HazelcastClient.newHazelcastClient(getClientConfig());
+		}
+		return getMemberInstance();
+	}
+	
+	private synchronized void attach(HazelcastInstance instance) {
+		if (stopped) {
+			// created while the cache was stopping, nothing else uses it
+			if (clientMode || memberInstanceCreated) {
+				instance.shutdown();
+			}
+			return;
+		}
+		hz = instance;
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("Hazelcast cache attached to " + hz.getName());
+		}
+		dialogs = hz.getMap("cache.dialogs");
+		dialogVersions = hz.getMap("cache.dialogVersions");
+		serverTransactions = hz.getMap("cache.serverTX");
+		serverTransactionsApp = hz.getMap("cache.serverTXApp");
+		clientTransactions = hz.getMap("cache.clientTX");
+		clientTransactionsApp = hz.getMap("cache.clientTXApp");
+		if (started) {
+			createCacheData();
+		}
+	}
+	
+	private HazelcastInstance getMemberInstance() throws SipCacheException {
 		Config cfg = null;
 		String instanceName = configProperties.getProperty(HAZELCAST_INSTANCE_NAME, 
 				DEFAULT_HAZELCAST_INSTANCE_NAME);
-		hz = Hazelcast.getHazelcastInstanceByName(instanceName);
+		HazelcastInstance hz = Hazelcast.getHazelcastInstanceByName(instanceName);
 		if (hz == null) {
 			String pojoConfigurationPath = configProperties.getProperty(HAZELCAST_CACHE_CONFIG_PATH);
 			if (pojoConfigurationPath != null) {
@@ -179,7 +370,7 @@ public class HazelcastCache implements SipCache {
 					cfg = new XmlConfigBuilder(pojoConfigurationPath).build();
 					
 				} catch (FileNotFoundException e) {
-					e.printStackTrace();
+					throw new SipCacheException("Couldn't read the Hazelcast configuration " + pojoConfigurationPath, e);
 				}
 				
 			} else {
@@ -188,28 +379,97 @@ public class HazelcastCache implements SipCache {
 			}
 			cfg.setInstanceName(instanceName);
 	        hz = Hazelcast.newHazelcastInstance(cfg);
+	        memberInstanceCreated = true;
 		}
-		dialogs = hz.getMap("cache.dialogs");
-		appDataMap = hz.getMap("cache.appdata");
-		serverTransactions = hz.getMap("cache.serverTX");
-		serverTransactionsApp = hz.getMap("cache.serverTXApp");
-		clientTransactions = hz.getMap("cache.clientTX");
-		clientTransactionsApp = hz.getMap("cache.clientTXApp");
+		return hz;
 	}
 	
-	public void start() throws SipCacheException {
+	private ClientConfig getClientConfig() throws SipCacheException {
+		ClientConfig clientConfig = null;
+		String clientConfigurationPath = configProperties.getProperty(HAZELCAST_CLIENT_CONFIG_PATH);
+		if (clientConfigurationPath != null) {
+			if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				clusteredlogger.logInfo(
+						"Mobicents JAIN SIP Hazelcast Client Configuration path is : " + clientConfigurationPath);
+			}
+			try {
+				clientConfig = new XmlClientConfigBuilder(clientConfigurationPath).build();
+			} catch (IOException e) {
+				throw new SipCacheException("Couldn't read the Hazelcast client configuration " + clientConfigurationPath, e);
+			}
+		} else {
+			clientConfig = new XmlClientConfigBuilder().build();
+		}
+		int nearCacheMaxSize = Integer.parseInt(configProperties.getProperty(HAZELCAST_CLIENT_NEAR_CACHE_MAX_SIZE, 
+				String.valueOf(DEFAULT_HAZELCAST_CLIENT_NEAR_CACHE_MAX_SIZE)));
+		int nearCacheTimeToLive = Integer.parseInt(configProperties.getProperty(HAZELCAST_CLIENT_NEAR_CACHE_TIME_TO_LIVE, 
+				String.valueOf(DEFAULT_HAZELCAST_CLIENT_NEAR_CACHE_TIME_TO_LIVE)));
+		if (nearCacheMaxSize > 0) {
+			for (String mapName : NEAR_CACHED_MAPS) {
+				if (clientConfig.getNearCacheConfig(mapName) == null) {
+					// the dialog writes run on the members, so the near cache only has to be invalidated on change,
+					// and the entries are kept serialized since the stack recreates a dialog from each entry it reads
+					NearCacheConfig nearCacheConfig = new NearCacheConfig();
+					nearCacheConfig.setName(mapName);
+					nearCacheConfig.setMaxSize(nearCacheMaxSize);
+					nearCacheConfig.setTimeToLiveSeconds(nearCacheTimeToLive);
+					nearCacheConfig.setEvictionPolicy("LRU");
+					nearCacheConfig.setInvalidateOnChange(true);
+					clientConfig.addNearCacheConfig(mapName, nearCacheConfig);
+				}
+			}
+		}
+		return clientConfig;
+	}
+	
+	public synchronized void start() throws SipCacheException {
+		started = true;
+		if (dialogs != null) {
+			createCacheData();
+		}
+	}
+	
+	private void createCacheData() {
+		final boolean dialogNearCache = Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE));
+		// the dialog versions are only needed to notify the near caches of the other members
 		dialogCacheData = new SIPDialogCacheData(stack, 
-				dialogs, appDataMap);
-		serverTXCacheData = new SIPServerTransactionCacheData(stack, 
-				serverTransactions, serverTransactionsApp);
-		clientTXCacheData = new SIPClientTransactionCacheData(stack, 
-				clientTransactions, clientTransactionsApp);
+				dialogs, dialogNearCache ? dialogVersions : null, hz.getLocalEndpoint().getUuid());
+		if (Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.EARLY_DIALOG_TRANSACTION_RECORD))) {
+			final EarlyTransactionCacheData earlyTransactionCacheData = new EarlyTransactionCacheData(stack, 
+					dialogs, dialogCacheData);
+			serverTXCacheData = new SIPServerTransactionCacheData(stack, 
+					serverTransactions, serverTransactionsApp, earlyTransactionCacheData);
+			clientTXCacheData = new SIPClientTransactionCacheData(stack, 
+					clientTransactions, clientTransactionsApp, earlyTransactionCacheData);
+		} else {
+			serverTXCacheData = new SIPServerTransactionCacheData(stack, 
+					serverTransactions, serverTransactionsApp);
+			clientTXCacheData = new SIPClientTransactionCacheData(stack, 
+					clientTransactions, clientTransactionsApp);
+		}
+		if (dialogNearCache) {
+			// every dialog write ends with a version update, so listening on the versions is enough
+			// to know when another member modified a dialog, without shipping the dialog state around
+			dialogVersionsListenerId = dialogVersions.addEntryListener(new DialogVersionsListener(hz.getLocalEndpoint().getUuid()), true);
+		}
 	}
 
-	public void stop() throws SipCacheException {
+	public synchronized void stop() throws SipCacheException {
+		started = false;
+		stopped = true;
+		// ends the wait of the background attach before its next attempt, an instance being created is shut down once attached
+		notifyAll();
+		if (dialogVersionsListenerId != null) {
+			dialogVersions.removeEntryListener(dialogVersionsListenerId);
+			dialogVersionsListenerId = null;
+		}
 		clientTXCacheData = null;
 		serverTXCacheData = null;
 		dialogCacheData = null;
+		if (clientMode && hz != null) {
+			// unlike the members, shared by name between the stacks of the JVM, the client belongs to this cache
+			hz.shutdown();
+		}
 	}
 	
 	public void setConfigurationProperties(Properties configurationProperties) {
@@ -220,7 +480,38 @@ public class HazelcastCache implements SipCache {
 		return false;
 	}
 	
+	public boolean isReady() {
+		if (dialogCacheData == null) {
+			return false;
+		}
+		// a joining member would otherwise take calls while the partitions and their backups are still migrating to it
+		return clientMode || hz.getPartitionService().isClusterSafe();
+	}
+	
 	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
 		stack = clusteredStack;
 	}
+	
+	/**
+	 * Notifies the stack of the dialogs modified or removed by other members
+	 */
+	private class DialogVersionsListener extends EntryAdapter<DialogKey, DialogVersion> {
+		private final String origin;
+		
+		DialogVersionsListener(String origin) {
+			this.origin = origin;
+		}
+		
+		@Override
+		public void onEntryEvent(EntryEvent<DialogKey, DialogVersion> event) {
+			// the member of the event is the one that ran the operation, the client it ran it for is only known from the value
+			final DialogVersion dialogVersion = event.getValue() != null ? event.getValue() : event.getOldValue();
+			if (dialogVersion == null || !origin.equals(dialogVersion.getOrigin())) {
+				if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("dialog " + event.getKey() + " " + event.getEventType() + " by " + (dialogVersion != null ? dialogVersion.getOrigin() : event.getMember()));
+				}
+				stack.remoteDialogModification(event.getKey().getDialogId());
+			}
+		}
+	}
 }
@@ -10,11 +10,19 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import com.hazelcast.core.IMap;
@@ -25,6 +33,8 @@ public class SIPClientTransactionCacheData {
 	private StackLogger logger;
 	private IMap<String, Object> clientTransactions;
 	private IMap<String, Object> clientTransactionsApp;
+	// not null if the transactions bound to a dialog are stored in the dialog entry
+	private EarlyTransactionCacheData earlyTransactions;
 	
 	public SIPClientTransactionCacheData(
 			ClusteredSipStack s, IMap<String, Object> clientTXCache,
@@ -34,6 +44,14 @@ public class SIPClientTransactionCacheData {
 		clientTransactions = clientTXCache;
 		clientTransactionsApp = clientTxAppCache;
 	}
+
+	public SIPClientTransactionCacheData(ClusteredSipStack s, 
+			IMap<String, Object> clientTXCache,
+			IMap<String, Object> clientTxAppCache,
+			EarlyTransactionCacheData earlyTransactionCacheData) {
+		this(s, clientTXCache, clientTxAppCache);
+		earlyTransactions = earlyTransactionCacheData;
+	}
 	
 	public SIPClientTransaction getClientTransaction(String txId) 
 			throws SipCacheException {
@@ -42,10 +60,14 @@ public class SIPClientTransactionCacheData {
 			logger.logDebug("getServerTransaction(" + txId + ")");
 		
 		try {
-			final Map<String, Object> transactionMetaData = (Map<String, Object>)clientTransactions.get(txId);		
-			final Object txAppData = clientTransactionsApp.get(txId);
-				
-			haSipClientTransaction = createClientTransaction(txId, transactionMetaData, txAppData);
+			final Object cachedTransaction = clientTransactions.get(txId);
+			if(cachedTransaction instanceof String) {
+				// only the dialog id is stored, the transaction is in the dialog entry
+				haSipClientTransaction = createAliasedClientTransaction(txId, (String) cachedTransaction);
+			} else {
+				final Object txAppData = clientTransactionsApp.get(txId);
+				haSipClientTransaction = createClientTransaction(txId, (Map<String, Object>) cachedTransaction, txAppData);
+			}
 			
 		} catch (Exception e) {
 			throw new SipCacheException(e);
@@ -64,6 +86,10 @@ public class SIPClientTransactionCacheData {
 			
 			// metadata
 			Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
+			if(earlyTransactions != null && earlyTransactions.putTransaction(clientTransaction.getTransactionId(), false, 
+					metaData, haClientTransaction.getApplicationDataToReplicate(), clientTransactions, clientTransactionsApp)) {
+				return;
+			}
 			clientTransactions.put(clientTransaction.getTransactionId(), metaData);
 			
 			// app data
@@ -80,8 +106,108 @@ public class SIPClientTransactionCacheData {
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			logger.logDebug("removeClientTransaction(" + txId + ")");
-		clientTransactions.remove(txId);
-		clientTransactionsApp.remove(txId);
+		final Object cachedTransaction = clientTransactions.remove(txId);
+		if(cachedTransaction instanceof String) {
+			if(earlyTransactions != null) {
+				earlyTransactions.removeTransaction(txId, false, (String) cachedTransaction);
+			}
+		} else {
+			clientTransactionsApp.remove(txId);
+		}
+	}
+	
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getClientTransactions(" + txIds + ")");
+		
+		final Map<String, SIPClientTransaction> haSipClientTransactions = new HashMap<String, SIPClientTransaction>();
+		try {
+			final Set<String> keys = new HashSet<String>(txIds);
+			final Map<String, Object> metaDatas = clientTransactions.getAll(keys);
+			final Map<String, Object> appDatas = clientTransactionsApp.getAll(keys);
+			for (String txId : txIds) {
+				final Object cachedTransaction = metaDatas.get(txId);
+				final SIPClientTransaction haSipClientTransaction = cachedTransaction instanceof String ? 
+						createAliasedClientTransaction(txId, (String) cachedTransaction) : createClientTransaction(txId, (Map<String, Object>) cachedTransaction, appDatas.get(txId));
+				if(haSipClientTransaction != null) {
+					haSipClientTransactions.put(txId, haSipClientTransaction);
+				}
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+		
+		return haSipClientTransactions;
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactionsToPut) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putClientTransactions(" + clientTransactionsToPut.size() + " transactions)");
+		
+		try {
+			final Map<String, Object> metaDatas = new HashMap<String, Object>();
+			final Map<String, Object> appDatas = new HashMap<String, Object>();
+			for (SIPClientTransaction clientTransaction : clientTransactionsToPut) {
+				final MobicentsHASIPClientTransaction haClientTransaction = (MobicentsHASIPClientTransaction) clientTransaction;
+				final Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
+				final Object transactionAppData = haClientTransaction.getApplicationDataToReplicate();
+				if(earlyTransactions != null && earlyTransactions.putTransaction(clientTransaction.getTransactionId(), false, 
+						metaData, transactionAppData, clientTransactions, clientTransactionsApp)) {
+					continue;
+				}
+				metaDatas.put(clientTransaction.getTransactionId(), metaData);
+				if(transactionAppData != null) {
+					appDatas.put(clientTransaction.getTransactionId(), transactionAppData);
+				}
+			}
+			clientTransactions.putAll(metaDatas);
+			if(!appDatas.isEmpty()) {
+				clientTransactionsApp.putAll(appDatas);
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+	}
+	
+	public void removeClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeClientTransactions(" + txIds + ")");
+		// removals are pipelined and only waited for at the end
+		final List<Future<?>> removals = new ArrayList<Future<?>>(txIds.size() * 2);
+		final Map<String, Future<Object>> transactionRemovals = new HashMap<String, Future<Object>>(txIds.size());
+		for (String txId : txIds) {
+			final Future<Object> transactionRemoval = clientTransactions.removeAsync(txId);
+			transactionRemovals.put(txId, transactionRemoval);
+			removals.add(transactionRemoval);
+			removals.add(clientTransactionsApp.removeAsync(txId));
+		}
+		SIPDialogCacheData.waitFor(removals);
+		if(earlyTransactions != null) {
+			for (Map.Entry<String, Future<Object>> transactionRemoval : transactionRemovals.entrySet()) {
+				try {
+					final Object cachedTransaction = transactionRemoval.getValue().get();
+					if(cachedTransaction instanceof String) {
+						earlyTransactions.removeTransaction(transactionRemoval.getKey(), false, (String) cachedTransaction);
+					}
+				} catch (Exception e) {
+					throw new SipCacheException(e);
+				}
+			}
+		}
+	}
+	
+	private MobicentsHASIPClientTransaction createAliasedClientTransaction(String txId, String dialogId) throws SipCacheException {
+		if(earlyTransactions == null) {
+			return null;
+		}
+		final EarlyTransactionRecord transaction = earlyTransactions.getTransaction(txId, false, dialogId);
+		if(transaction == null) {
+			return null;
+		}
+		return createClientTransaction(txId, transaction.getMetaData(), transaction.getApplicationData());
 	}
 	
 	public MobicentsHASIPClientTransaction createClientTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
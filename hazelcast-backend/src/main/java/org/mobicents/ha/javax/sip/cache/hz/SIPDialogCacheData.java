@@ -3,12 +3,18 @@ package org.mobicents.ha.javax.sip.cache.hz;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.message.SIPResponse;
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -18,7 +24,11 @@ import javax.sip.header.ContactHeader;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
 import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.message.MessageProjection;
 
 import com.hazelcast.core.IMap;
 
@@ -26,64 +36,142 @@ public class SIPDialogCacheData {
 
 	private ClusteredSipStack stack;
 	private StackLogger clusteredlogger;
-	private IMap<String, Object> dialogs;
-	private IMap<String, Object> appDataMap;
+	private IMap<DialogKey, Object> dialogs;
+	// version of each dialog stored in dialogs, only written to let the other members know that a dialog changed, null if no one listens to it.
+	// It is updated after the dialog entry and can lag behind it, so it is never used to decide that a local dialog is up to date
+	private IMap<DialogKey, DialogVersion> dialogVersions;
+	// uuid of the local member or client, written along with the versions
+	private String origin;
 	
 	public SIPDialogCacheData(ClusteredSipStack s, 
-			IMap<String, Object> dialogCache,
-			IMap<String, Object> dialogAppCache) {
+			IMap<DialogKey, Object> dialogCache,
+			IMap<DialogKey, DialogVersion> dialogVersionCache,
+			String origin) {
 		stack = s;
 		clusteredlogger = s.getStackLogger();
 		dialogs = dialogCache;
-		appDataMap = dialogAppCache;
+		dialogVersions = dialogVersionCache;
+		this.origin = origin;
 	}
 	
 	public SIPDialog getDialog(String dialogId) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logTrace("getDialog("+ dialogId +")");
 		
-		Object metaData = dialogs.get(dialogId);
-		Object appData = appDataMap.get(dialogId);
-		if (metaData != null) {
-			return (SIPDialog) createDialog(dialogId, (Map<String, Object>) metaData, appData);
+		// dialog state and application data are stored in the same entry, a single read brings both back
+		final DialogCacheEntry entry = (DialogCacheEntry) dialogs.get(new DialogKey(dialogId));
+		if (entry != null && entry.getMetaData() != null) {
+			return (SIPDialog) createDialog(dialogId, DialogReplicationStateCodec.decode(entry.getMetaData()), SerializedApplicationData.deserialize(entry.getApplicationData()));
 			
 		} else {
 			return null;
 		}
 	}
 	
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logTrace("getDialogs(" + dialogIds + ")");
+		
+		final Set<DialogKey> keys = new HashSet<DialogKey>();
+		for (String dialogId : dialogIds) {
+			keys.add(new DialogKey(dialogId));
+		}
+		final Map<DialogKey, Object> entries = dialogs.getAll(keys);
+		final Map<String, SIPDialog> sipDialogs = new HashMap<String, SIPDialog>();
+		for (Map.Entry<DialogKey, Object> entry : entries.entrySet()) {
+			final DialogCacheEntry dialogCacheEntry = (DialogCacheEntry) entry.getValue();
+			if (dialogCacheEntry != null && dialogCacheEntry.getMetaData() != null) {
+				final String dialogId = entry.getKey().getDialogId();
+				sipDialogs.put(dialogId, (SIPDialog) createDialog(dialogId, DialogReplicationStateCodec.decode(dialogCacheEntry.getMetaData()), SerializedApplicationData.deserialize(dialogCacheEntry.getApplicationData())));
+			}
+		}
+		return sipDialogs;
+	}
+	
 	public void putDialog(SIPDialog dialog) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
 			clusteredlogger.logDebug("putDialog(" + dialog.getDialogId() + ")");
 		}
 		
-		final HASipDialog haSipDialog = (HASipDialog) dialog;
+		final DialogWrite dialogWrite = new DialogWrite((HASipDialog) dialog);
+		if (dialogWrite.isEmpty()) {
+			return;
+		}
+		// the merge runs on the partition owner, only the delta travels and concurrent writes can't overwrite each other
+		if (!dialogWrite.completed(dialogs.executeOnKey(dialogWrite.key, dialogWrite.processor()))
+				&& !dialogWrite.completed(dialogs.executeOnKey(dialogWrite.key, dialogWrite.processor()))) {
+			// the full state applies on top of any cached record, the entry processor couldn't do its job
+			throw new SipCacheException("The full state of the dialog " + dialogWrite.dialogId + " has been rejected by the cache");
+		}
+		if (dialogVersions != null && dialogWrite.replicatedMetaData != null) {
+			// only the change notification matters, no need to wait for it
+			dialogVersions.putAsync(dialogWrite.key, new DialogVersion(dialogWrite.replicatedMetaData.getVersion(), origin));
+		}
+		dialogWrite.acknowledge();
+	}
+	
+	public void putDialogs(Collection<SIPDialog> dialogsToPut) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogs(" + dialogsToPut.size() + " dialogs)");
+		}
 		
-		Object dialogMetaData = haSipDialog.getMetaDataToReplicate(); 
-		if (dialogMetaData != null) {
-			if (dialogs.containsKey(dialog.getDialogId())) {
-				Map<String, Object> cachedMetaData = (Map<String, Object>)dialogs.get(dialog.getDialogId());
-				Long currentVersion = (Long)((Map<String, Object>)dialogMetaData).get(AbstractHASipDialog.VERSION);
-				Long cacheVersion = (Long)((Map<String, Object>)cachedMetaData).get(AbstractHASipDialog.VERSION);
-				if ( cacheVersion.longValue() < currentVersion.longValue()) {
-					for(Entry<String, Object> e : ((Map<String, Object>)dialogMetaData).entrySet()) {
-						cachedMetaData.put(e.getKey(), e.getValue());
-					}
-					dialogs.replace(dialog.getDialogId(), cachedMetaData);
+		final List<DialogWrite> dialogWrites = new ArrayList<DialogWrite>(dialogsToPut.size());
+		for (SIPDialog dialog : dialogsToPut) {
+			final DialogWrite dialogWrite = new DialogWrite((HASipDialog) dialog);
+			if (!dialogWrite.isEmpty()) {
+				dialogWrites.add(dialogWrite);
+			}
+		}
+		List<DialogWrite> rejectedWrites = submit(dialogWrites);
+		if (!rejectedWrites.isEmpty()) {
+			rejectedWrites = submit(rejectedWrites);
+		}
+		if (dialogVersions != null) {
+			final Map<DialogKey, DialogVersion> versions = new HashMap<DialogKey, DialogVersion>();
+			for (DialogWrite dialogWrite : dialogWrites) {
+				if (dialogWrite.replicatedMetaData != null) {
+					versions.put(dialogWrite.key, new DialogVersion(dialogWrite.replicatedMetaData.getVersion(), origin));
 				}
-				
-			} else {
-				dialogs.put(dialog.getDialogId(), dialogMetaData);
+			}
+			if (!versions.isEmpty()) {
+				dialogVersions.putAll(versions);
 			}
 		}
-		
-		Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
-		if (dialogAppData != null) {
-			if (appDataMap.containsKey(dialog.getDialogId()))
-				appDataMap.replace(dialog.getDialogId(), dialogAppData);
-			else 
-				appDataMap.put(dialog.getDialogId(), dialogAppData);
+		for (DialogWrite dialogWrite : dialogWrites) {
+			dialogWrite.acknowledge();
+		}
+		if (!rejectedWrites.isEmpty()) {
+			// the full state applies on top of any cached record, the entry processor couldn't do its job
+			throw new SipCacheException("The full state of " + rejectedWrites.size() + " dialogs has been rejected by the cache");
+		}
+	}
+	
+	/**
+	 * Pipeline the merges of the dialog writes passed in param and wait for all of them
+	 * @return the writes whose delta has been rejected and that need to be sent again with the full state
+	 */
+	private List<DialogWrite> submit(List<DialogWrite> dialogWrites) throws SipCacheException {
+		final List<Future<?>> merges = new ArrayList<Future<?>>(dialogWrites.size());
+		for (DialogWrite dialogWrite : dialogWrites) {
+			merges.add(dialogs.submitToKey(dialogWrite.key, dialogWrite.processor()));
 		}
+		waitFor(merges);
+		final List<DialogWrite> rejectedWrites = new ArrayList<DialogWrite>();
+		for (int i = 0; i < dialogWrites.size(); i++) {
+			final Object result;
+			try {
+				result = merges.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SipCacheException("Interrupted while waiting for the cache", e);
+			} catch (ExecutionException e) {
+				throw new SipCacheException("A problem occured while running a batch operation on the cache", e.getCause());
+			}
+			if (!dialogWrites.get(i).completed(result)) {
+				rejectedWrites.add(dialogWrites.get(i));
+			}
+		}
+		return rejectedWrites;
 	}
 	
 	public void updateDialog(SIPDialog dialog) throws SipCacheException {
@@ -91,27 +179,82 @@ public class SIPDialogCacheData {
 			clusteredlogger.logDebug("updateDialog(" + dialog.getDialogId() + ")");
 		
 		final HASipDialog haSipDialog = (HASipDialog) dialog;
-		final Object dialogMetaData = dialogs.get(dialog.getDialogId());
-		final Object dialogAppData = appDataMap.get(dialog.getDialogId()); 
-	    
-		updateDialog(haSipDialog, (Map<String, Object>)dialogMetaData, dialogAppData);
+		// the version check runs on the partition owner, the dialog state only comes back if the local dialog is older
+		final DialogCacheEntry entry = (DialogCacheEntry) dialogs.executeOnKey(new DialogKey(dialog.getDialogId()), new DialogReadEntryProcessor(haSipDialog.getVersion()));
+		if (entry == null) {
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("HA SIP Dialog " + dialog.getDialogId() + " with version " + haSipDialog.getVersion() + " is not older than the one in the cache, not updating it");
+			}
+		} else {
+			updateDialog(haSipDialog, DialogReplicationStateCodec.decode(entry.getMetaData()), SerializedApplicationData.deserialize(entry.getApplicationData()));
+		}
+	}
+	
+	/**
+	 * Recreate locally the dialog read along with one of its transactions, unless the stack already knows it
+	 * @param dialogId the id of the dialog
+	 * @param entry the cache entry of the dialog
+	 */
+	void recoverDialog(String dialogId, DialogCacheEntry entry) throws SipCacheException {
+		final HASipDialog haSipDialog = createDialog(dialogId, DialogReplicationStateCodec.decode(entry.getMetaData()), SerializedApplicationData.deserialize(entry.getApplicationData()));
+		if(haSipDialog != null) {
+			haSipDialog.initAfterLoad(stack);
+			stack.putDialog((SIPDialog) haSipDialog);
+		}
 	}
 	
 	public void removeDialog(String dialogId) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logDebug("removeDialog(" + dialogId + ")");
 		
-		dialogs.remove(dialogId);
+		final DialogKey key = new DialogKey(dialogId);
+		dialogs.remove(key);
+		if (dialogVersions != null) {
+			dialogVersions.delete(key);
+		}
+	}
+	
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logDebug("removeDialogs(" + dialogIds + ")");
+		
+		// removals are pipelined and only waited for at the end
+		final List<Future<?>> removals = new ArrayList<Future<?>>(dialogIds.size() * 2);
+		for (String dialogId : dialogIds) {
+			final DialogKey key = new DialogKey(dialogId);
+			removals.add(dialogs.removeAsync(key));
+			if (dialogVersions != null) {
+				removals.add(dialogVersions.removeAsync(key));
+			}
+		}
+		waitFor(removals);
+	}
+	
+	static void waitFor(List<Future<?>> futures) throws SipCacheException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SipCacheException("Interrupted while waiting for the cache", e);
+			} catch (ExecutionException e) {
+				throw new SipCacheException("A problem occured while running a batch operation on the cache", e.getCause());
+			}
+		}
 	}
 	
 	public void evictDialog(String dialogId) {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logDebug("evictDialog(" + dialogId + ")");
 		
-		dialogs.remove(dialogId);
+		final DialogKey key = new DialogKey(dialogId);
+		dialogs.remove(key);
+		if (dialogVersions != null) {
+			dialogVersions.delete(key);
+		}
 	}
 	
-	private HASipDialog createDialog(String dialogId, Map<String, Object> dialogMetaData, 
+	private HASipDialog createDialog(String dialogId, DialogReplicationState dialogMetaData, 
 			Object dialogAppData) throws SipCacheException {
 		HASipDialog haSipDialog = null; 
 		if(dialogMetaData != null) {
@@ -119,9 +262,9 @@ public class SIPDialogCacheData {
 				clusteredlogger.logDebug("sipStack " + this + " dialog " + dialogId + " is present in the distributed cache, recreating it locally");
 			}
 			
-			final String lastResponseStringified = (String) dialogMetaData.get(AbstractHASipDialog.LAST_RESPONSE);
+			final byte[] lastResponseProjection = dialogMetaData.getLastResponse();
 			try {
-				final SIPResponse lastResponse = (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(lastResponseStringified);
+				final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
 				haSipDialog = HASipDialogFactory.createHASipDialog(stack.getReplicationStrategy(), (SipProviderImpl)stack.getSipProviders().next(), lastResponse);
 				haSipDialog.setDialogId(dialogId);
 				updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, true);
@@ -145,18 +288,18 @@ public class SIPDialogCacheData {
 		return haSipDialog;
 	}
 	
-	public void updateDialog(HASipDialog haSipDialog, Map<String, Object> dialogMetaData, 
+	public void updateDialog(HASipDialog haSipDialog, DialogReplicationState dialogMetaData, 
 			Object dialogAppData) throws SipCacheException {
 		if(dialogMetaData != null) {			
 			final long currentVersion = haSipDialog.getVersion();
-			final Long cacheVersion = ((Long)dialogMetaData.get(AbstractHASipDialog.VERSION)); 
-			if(cacheVersion != null && currentVersion < cacheVersion.longValue()) {
+			final long cacheVersion = dialogMetaData.getVersion(); 
+			if(currentVersion < cacheVersion) {
 				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 					clusteredlogger.logDebug("HA SIP Dialog " + haSipDialog + " with dialogId " + haSipDialog.getDialogIdToReplicate() + " is older " + currentVersion + " than the one in the cache " + cacheVersion + " updating it");
 				}
 				try {
-					final String lastResponseStringified = (String) dialogMetaData.get(AbstractHASipDialog.LAST_RESPONSE);				
-					final SIPResponse lastResponse = (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(lastResponseStringified);
+					final byte[] lastResponseProjection = dialogMetaData.getLastResponse();				
+					final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
 					haSipDialog.setLastResponse(lastResponse);
 					updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, false);
 				
@@ -182,11 +325,11 @@ public class SIPDialogCacheData {
 	 * @throws ParseException
 	 * @throws PeerUnavailableException
 	 */
-	private void updateDialogMetaData(Map<String, Object> dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) 
+	private void updateDialogMetaData(DialogReplicationState dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) 
 			throws ParseException, PeerUnavailableException {
 		haSipDialog.setMetaDataToReplicate(dialogMetaData, recreation);
 		haSipDialog.setApplicationDataToReplicate(dialogAppData);
-		final String contactStringified = (String) dialogMetaData.get(AbstractHASipDialog.CONTACT_HEADER);
+		final String contactStringified = dialogMetaData.getContactHeader();
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			clusteredlogger.logDebug("contactStringified " + contactStringified);
 		}
@@ -201,4 +344,61 @@ public class SIPDialogCacheData {
 			haSipDialog.setContactHeader(contactHeader);
 		}
 	}
+	
+	/**
+	 * Tracks the write of a dialog state delta merged on the partition owner by {@link DialogMergeEntryProcessor}
+	 */
+	private class DialogWrite {
+		private final HASipDialog haSipDialog;
+		private final String dialogId;
+		private final DialogKey key;
+		private DialogReplicationState dialogMetaData;
+		private final SerializedApplicationData dialogAppData;
+		private DialogReplicationState replicatedMetaData;
+		
+		DialogWrite(HASipDialog haSipDialog) throws SipCacheException {
+			this.haSipDialog = haSipDialog;
+			this.dialogId = ((SIPDialog) haSipDialog).getDialogId();
+			this.key = new DialogKey(dialogId);
+			this.dialogMetaData = haSipDialog.getMetaDataToReplicate();
+			// serialized here so that the members never need the classes of the application
+			this.dialogAppData = SerializedApplicationData.serialize(haSipDialog.getApplicationDataToReplicate());
+		}
+		
+		boolean isEmpty() {
+			return dialogMetaData == null && dialogAppData == null;
+		}
+		
+		DialogMergeEntryProcessor processor() {
+			return new DialogMergeEntryProcessor(dialogMetaData, dialogAppData);
+		}
+		
+		/**
+		 * @param result the result of the processor on the partition owner
+		 * @return false if the delta has been rejected and the full state has to be sent instead
+		 */
+		boolean completed(Object result) {
+			if (DialogMergeEntryProcessor.REJECTED.equals(result)) {
+				// the cached record is missing or has been written by someone else, the delta would lose state
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("dialog " + dialogId + " delta based on version " + dialogMetaData.getBaseVersion() + " doesn't match the cached record, replicating the full state");
+				}
+				dialogMetaData = haSipDialog.getFullMetaDataToReplicate();
+				return false;
+			}
+			if (DialogMergeEntryProcessor.APPLIED.equals(result)) {
+				replicatedMetaData = dialogMetaData;
+			}
+			return true;
+		}
+		
+		/**
+		 * to be called once the entry has been stored
+		 */
+		void acknowledge() {
+			if (replicatedMetaData != null) {
+				haSipDialog.metaDataReplicated(replicatedMetaData);
+			}
+		}
+	}
 }
@@ -10,11 +10,19 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import com.hazelcast.core.IMap;
@@ -25,6 +33,8 @@ public class SIPServerTransactionCacheData {
 	private StackLogger logger;
 	private IMap<String, Object> serverTransactions;
 	private IMap<String, Object> serverTransactionsApp;
+	// not null if the transactions bound to a dialog are stored in the dialog entry
+	private EarlyTransactionCacheData earlyTransactions;
 	
 	public SIPServerTransactionCacheData(ClusteredSipStack s, 
 			IMap<String, Object> serverTXCache,
@@ -34,6 +44,14 @@ public class SIPServerTransactionCacheData {
 		serverTransactions = serverTXCache;
 		serverTransactionsApp = serverTxAppCache;
 	}
+
+	public SIPServerTransactionCacheData(ClusteredSipStack s, 
+			IMap<String, Object> serverTXCache,
+			IMap<String, Object> serverTxAppCache,
+			EarlyTransactionCacheData earlyTransactionCacheData) {
+		this(s, serverTXCache, serverTxAppCache);
+		earlyTransactions = earlyTransactionCacheData;
+	}
 	
 	public SIPServerTransaction getServerTransaction(String txId) 
 			throws SipCacheException {
@@ -42,10 +60,14 @@ public class SIPServerTransactionCacheData {
 			logger.logDebug("getServerTransaction(" + txId + ")");
 		
 		try {
-			final Map<String, Object> transactionMetaData = (Map<String, Object>)serverTransactions.get(txId);		
-			final Object txAppData = serverTransactionsApp.get(txId);
-				
-			haSipServerTransaction = createServerTransaction(txId, transactionMetaData, txAppData);
+			final Object cachedTransaction = serverTransactions.get(txId);
+			if(cachedTransaction instanceof String) {
+				// only the dialog id is stored, the transaction is in the dialog entry
+				haSipServerTransaction = createAliasedServerTransaction(txId, (String) cachedTransaction);
+			} else {
+				final Object txAppData = serverTransactionsApp.get(txId);
+				haSipServerTransaction = createServerTransaction(txId, (Map<String, Object>) cachedTransaction, txAppData);
+			}
 			
 		} catch (Exception e) {
 			throw new SipCacheException(e);
@@ -64,6 +86,10 @@ public class SIPServerTransactionCacheData {
 			
 			// meta data
 			Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
+			if(earlyTransactions != null && earlyTransactions.putTransaction(serverTransaction.getTransactionId(), true, 
+					metaData, haServerTransaction.getApplicationDataToReplicate(), serverTransactions, serverTransactionsApp)) {
+				return;
+			}
 			serverTransactions.put(serverTransaction.getTransactionId(), metaData);
 			
 			// app data
@@ -80,8 +106,108 @@ public class SIPServerTransactionCacheData {
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			logger.logDebug("removeServerTransaction(" + txId + ")");
-		serverTransactions.remove(txId);
-		serverTransactionsApp.remove(txId);
+		final Object cachedTransaction = serverTransactions.remove(txId);
+		if(cachedTransaction instanceof String) {
+			if(earlyTransactions != null) {
+				earlyTransactions.removeTransaction(txId, true, (String) cachedTransaction);
+			}
+		} else {
+			serverTransactionsApp.remove(txId);
+		}
+	}
+	
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getServerTransactions(" + txIds + ")");
+		
+		final Map<String, SIPServerTransaction> haSipServerTransactions = new HashMap<String, SIPServerTransaction>();
+		try {
+			final Set<String> keys = new HashSet<String>(txIds);
+			final Map<String, Object> metaDatas = serverTransactions.getAll(keys);
+			final Map<String, Object> appDatas = serverTransactionsApp.getAll(keys);
+			for (String txId : txIds) {
+				final Object cachedTransaction = metaDatas.get(txId);
+				final SIPServerTransaction haSipServerTransaction = cachedTransaction instanceof String ? 
+						createAliasedServerTransaction(txId, (String) cachedTransaction) : createServerTransaction(txId, (Map<String, Object>) cachedTransaction, appDatas.get(txId));
+				if(haSipServerTransaction != null) {
+					haSipServerTransactions.put(txId, haSipServerTransaction);
+				}
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+		
+		return haSipServerTransactions;
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactionsToPut) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putServerTransactions(" + serverTransactionsToPut.size() + " transactions)");
+		
+		try {
+			final Map<String, Object> metaDatas = new HashMap<String, Object>();
+			final Map<String, Object> appDatas = new HashMap<String, Object>();
+			for (SIPServerTransaction serverTransaction : serverTransactionsToPut) {
+				final MobicentsHASIPServerTransaction haServerTransaction = (MobicentsHASIPServerTransaction) serverTransaction;
+				final Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
+				final Object transactionAppData = haServerTransaction.getApplicationDataToReplicate();
+				if(earlyTransactions != null && earlyTransactions.putTransaction(serverTransaction.getTransactionId(), true, 
+						metaData, transactionAppData, serverTransactions, serverTransactionsApp)) {
+					continue;
+				}
+				metaDatas.put(serverTransaction.getTransactionId(), metaData);
+				if(transactionAppData != null) {
+					appDatas.put(serverTransaction.getTransactionId(), transactionAppData);
+				}
+			}
+			serverTransactions.putAll(metaDatas);
+			if(!appDatas.isEmpty()) {
+				serverTransactionsApp.putAll(appDatas);
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+	}
+	
+	public void removeServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeServerTransactions(" + txIds + ")");
+		// removals are pipelined and only waited for at the end
+		final List<Future<?>> removals = new ArrayList<Future<?>>(txIds.size() * 2);
+		final Map<String, Future<Object>> transactionRemovals = new HashMap<String, Future<Object>>(txIds.size());
+		for (String txId : txIds) {
+			final Future<Object> transactionRemoval = serverTransactions.removeAsync(txId);
+			transactionRemovals.put(txId, transactionRemoval);
+			removals.add(transactionRemoval);
+			removals.add(serverTransactionsApp.removeAsync(txId));
+		}
+		SIPDialogCacheData.waitFor(removals);
+		if(earlyTransactions != null) {
+			for (Map.Entry<String, Future<Object>> transactionRemoval : transactionRemovals.entrySet()) {
+				try {
+					final Object cachedTransaction = transactionRemoval.getValue().get();
+					if(cachedTransaction instanceof String) {
+						earlyTransactions.removeTransaction(transactionRemoval.getKey(), true, (String) cachedTransaction);
+					}
+				} catch (Exception e) {
+					throw new SipCacheException(e);
+				}
+			}
+		}
+	}
+	
+	private MobicentsHASIPServerTransaction createAliasedServerTransaction(String txId, String dialogId) throws SipCacheException {
+		if(earlyTransactions == null) {
+			return null;
+		}
+		final EarlyTransactionRecord transaction = earlyTransactions.getTransaction(txId, true, dialogId);
+		if(transaction == null) {
+			return null;
+		}
+		return createServerTransaction(txId, transaction.getMetaData(), transaction.getApplicationData());
 	}
 	
 	public MobicentsHASIPServerTransaction createServerTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
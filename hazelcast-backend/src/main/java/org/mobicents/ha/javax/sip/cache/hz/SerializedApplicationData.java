@@ -0,0 +1,125 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Application data of a dialog serialized by the stack that wrote it, stored as is in the dialog entry.
+ * The members owning the dialogs deserialize the entries to run the entry processors on them, keeping the application data opaque
+ * spares them the classes of the applications, which only the stacks have, when the stacks connect as clients.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public final class SerializedApplicationData implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] bytes;
+
+	private SerializedApplicationData(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param applicationData the application data of a dialog, can be null
+	 * @return the serialized application data, null if the application data passed in param is null
+	 */
+	public static SerializedApplicationData serialize(Object applicationData) throws SipCacheException {
+		if (applicationData == null) {
+			return null;
+		}
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(applicationData);
+			out.close();
+			return new SerializedApplicationData(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't serialize the application data " + applicationData, e);
+		}
+	}
+
+	/**
+	 * @param storedApplicationData the application data read from a dialog entry, can be null
+	 * @return the application data deserialized with the classes of the application
+	 */
+	public static Object deserialize(Object storedApplicationData) throws SipCacheException {
+		if (!(storedApplicationData instanceof SerializedApplicationData)) {
+			// entries written before the application data was kept opaque
+			return storedApplicationData;
+		}
+		try {
+			final ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(((SerializedApplicationData) storedApplicationData).bytes));
+			try {
+				return in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new SipCacheException("Couldn't deserialize the application data", e);
+		} catch (ClassNotFoundException e) {
+			throw new SipCacheException("Couldn't deserialize the application data", e);
+		}
+	}
+
+	public int size() {
+		return bytes.length;
+	}
+
+	@Override
+	public String toString() {
+		return "SerializedApplicationData[" + bytes.length + " bytes]";
+	}
+
+	/**
+	 * Resolves the classes with the context class loader of the calling thread, the one of the application, before this backend's one
+	 */
+	private static final class ContextObjectInputStream extends ObjectInputStream {
+
+		ContextObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			if (classLoader != null) {
+				try {
+					return Class.forName(desc.getName(), false, classLoader);
+				} catch (ClassNotFoundException e) {
+					// falls back to the default resolution
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+}
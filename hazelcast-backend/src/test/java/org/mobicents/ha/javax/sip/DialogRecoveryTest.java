@@ -1,12 +1,10 @@
 package org.mobicents.ha.javax.sip;
 
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -52,6 +50,11 @@ import junit.framework.TestCase;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+import org.mobicents.ha.javax.sip.cache.hz.DialogKey;
+import org.mobicents.ha.javax.sip.cache.hz.SerializedApplicationData;
 
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -978,8 +981,7 @@ public class DialogRecoveryTest extends TestCase {
 		// get dialogs cache created by shootme1
 		HazelcastInstance hz = Hazelcast
 				.getHazelcastInstanceByName("jain-sip-ha1");
-		IMap<String, Object> dialogs = hz.getMap("cache.dialogs");
-		IMap<String, Object> appData = hz.getMap("cache.appdata");
+		IMap<DialogKey, Object> dialogs = hz.getMap("cache.dialogs");
 
 
 		// start test sending an invite
@@ -993,19 +995,20 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
-		Object data = appData.get(shootme1.dialog.getDialogId());
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs
+				.get(new DialogKey(shootme1.dialog.getDialogId()))).getMetaData());
+		// the application data is kept serialized in the entry
+		Object data = SerializedApplicationData.deserialize(((DialogCacheEntry) dialogs.get(new DialogKey(shootme1.dialog.getDialogId()))).getApplicationData());
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
 		assertEquals(shootme1.dialog.getLocalTag(),
-				cachedMetaData.get(AbstractHASipDialog.LOCAL_TAG));
+				cachedMetaData.getLocalTag());
 		assertEquals(shootme1.dialog.getRemoteTag(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TAG));
+				cachedMetaData.getRemoteTag());
 		assertEquals(shootme1.dialog.getRemoteTarget().toString(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TARGET));
-		String [] routeList = (String[])cachedMetaData.get(AbstractHASipDialog.ROUTE_LIST);
+				cachedMetaData.getRemoteTarget());
+		String [] routeList = cachedMetaData.getRouteList();
 		assertNotNull(routeList);
 		assertEquals(1, routeList.length);
 		assertEquals("<"+recordRoute+">", routeList[0]);
@@ -1079,7 +1082,7 @@ public class DialogRecoveryTest extends TestCase {
 		// get dialogs cache created by shootme1
 		HazelcastInstance hz = Hazelcast
 				.getHazelcastInstanceByName("jain-sip-ha2");
-		IMap<String, Object> dialogs = hz.getMap("cache.dialogs");
+		IMap<DialogKey, Object> dialogs = hz.getMap("cache.dialogs");
 
 		// start test sending an invite
 		System.out.println(">>>> Start Shootist");
@@ -1092,18 +1095,18 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs
+				.get(new DialogKey(shootme1.dialog.getDialogId()))).getMetaData());
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
 		assertEquals(shootme1.dialog.getLocalTag(),
-				cachedMetaData.get(AbstractHASipDialog.LOCAL_TAG));
+				cachedMetaData.getLocalTag());
 		assertEquals(shootme1.dialog.getRemoteTag(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TAG));
+				cachedMetaData.getRemoteTag());
 		assertEquals(shootme1.dialog.getRemoteTarget().toString(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TARGET));
-		String [] routeList = (String[])cachedMetaData.get(AbstractHASipDialog.ROUTE_LIST);
+				cachedMetaData.getRemoteTarget());
+		String [] routeList = cachedMetaData.getRouteList();
 		assertNotNull(routeList);
 		assertEquals(1, routeList.length);
 		assertEquals("<"+recordRoute+">", routeList[0]);
@@ -1,12 +1,10 @@
 package org.mobicents.ha.javax.sip;
 
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -52,6 +50,11 @@ import junit.framework.TestCase;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+import org.mobicents.ha.javax.sip.cache.hz.DialogKey;
+import org.mobicents.ha.javax.sip.cache.hz.SerializedApplicationData;
 
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -975,9 +978,8 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		
 		// get dialogs cache created by shootme1
 		HazelcastInstance hz = Hazelcast.getHazelcastInstanceByName("jain-sip-ha3");
-		IMap<String, Object> dialogs = hz.getMap("cache.dialogs");
+		IMap<DialogKey, Object> dialogs = hz.getMap("cache.dialogs");
 		IMap<String, Object> serverTXs = hz.getMap("cache.serverTX");
-		IMap<String, Object> appData = hz.getMap("cache.appdata");
 
 		// start test sending an invite
 		System.out.println(">>>> Start Shootist");
@@ -987,15 +989,16 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(shootme1.dialog.getDialogId());
-		Object data = appData.get(shootme1.dialog.getDialogId());
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs.get(new DialogKey(shootme1.dialog.getDialogId()))).getMetaData());
+		// the application data is kept serialized in the entry
+		Object data = SerializedApplicationData.deserialize(((DialogCacheEntry) dialogs.get(new DialogKey(shootme1.dialog.getDialogId()))).getApplicationData());
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
 		
 		assertEquals(((SIPDialog)shootme1.dialog).getState(), DialogState.EARLY);
 		assertEquals(((SIPDialog)shootme1.dialog).getState().getValue(), 
-				cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE));
+				cachedMetaData.getDialogState());
 		
 		String txId = (String)shootme1.dialog.getApplicationData();
 		assertNotNull(txId);
@@ -1025,7 +1028,7 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		assertEquals(txId, txId2);
 		assertEquals(((SIPDialog)shootme2.dialog).getState(), DialogState.EARLY);
 		assertEquals(((SIPDialog)shootme2.dialog).getState().getValue(), 
-				cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE));
+				cachedMetaData.getDialogState());
 		
 		shootme2.send200Invite();
 		
@@ -1045,7 +1048,7 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		System.out.println(">>>> Wait for dialog to terminate on Shootme2");
 		Thread.sleep(7000);
 		shootme2.checkDialogRemoved();
-		assertNull(dialogs.get(dialogId));
+		assertNull(dialogs.get(new DialogKey(dialogId)));
 		assertNull(serverTXs.get(txId));
 		
 		System.out.println(">>>> Call recovered succesfully.");
@@ -1088,7 +1091,7 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		
 		HazelcastInstance hz = Hazelcast
 				.getHazelcastInstanceByName("jain-sip-ha4");
-		IMap<String, Object> dialogs = hz.getMap("cache.dialogs");
+		IMap<DialogKey, Object> dialogs = hz.getMap("cache.dialogs");
 		
 		// start test sending an invite
 		System.out.println(">>>> Start Shootist");
@@ -1123,9 +1126,9 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		Thread.sleep(1000);
 		
 		// check dialog metada
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(dialogId);
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs.get(new DialogKey(dialogId))).getMetaData());
 		assertNotNull(cachedMetaData);
-		assertEquals(cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE), DialogState.TERMINATED.getValue());
+		assertEquals(cachedMetaData.getDialogState(), DialogState.TERMINATED.getValue());
 		
 		// recover dialog from cache
 		shootme2.recoverDialog(dialogId);
@@ -1134,14 +1137,14 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		assertNotNull(shootme2.dialog);
 		assertEquals(((SIPDialog)shootme2.dialog).getState(), DialogState.TERMINATED);
 		assertEquals(((SIPDialog)shootme2.dialog).getState().getValue(), 
-				cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE));
+				cachedMetaData.getDialogState());
 				
 		// wait for dialog and transaction removal
 		System.out.println(">>>> Wait for dialog to terminate and clear from cache");
 		Thread.sleep(12000);
 		shootme2.checkDialogRemoved();
 		
-		assertNull(dialogs.get(dialogId));
+		assertNull(dialogs.get(new DialogKey(dialogId)));
 		
 		System.out.println(">>>> Dialog cleared succesfully.");
 
@@ -0,0 +1,87 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import junit.framework.TestCase;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.nio.serialization.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.SerializationService;
+import com.hazelcast.partition.strategy.DefaultPartitioningStrategy;
+
+/**
+ * Partitioning and serialization of the {@link DialogKey} of the dialog maps
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogKeyTest extends TestCase {
+
+	private static final String CALL_ID = "7a3f19c0@192.168.0.10";
+	// IPv6 hosts bring colons in the Call-ID
+	private static final String IPV6_CALL_ID = "7a3f19c0@[2001:db8::10]";
+
+	private SerializationService serializationService;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		serializationService = new DefaultSerializationServiceBuilder().build();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		serializationService.destroy();
+		super.tearDown();
+	}
+
+	public void testCallIdWithoutColon() throws Exception {
+		assertEquals(CALL_ID, new DialogKey(CALL_ID).getPartitionKey());
+		assertEquals(CALL_ID, new DialogKey(CALL_ID + ":1234").getPartitionKey());
+		assertEquals(CALL_ID, new DialogKey(CALL_ID + ":1234:5678").getPartitionKey());
+	}
+
+	public void testCallIdWithColons() throws Exception {
+		final String partitionKey = new DialogKey(IPV6_CALL_ID).getPartitionKey();
+		// whatever the number of tags, the dialogs of the call share the same partition key
+		assertEquals(partitionKey, new DialogKey(IPV6_CALL_ID + ":1234").getPartitionKey());
+		assertEquals(partitionKey, new DialogKey(IPV6_CALL_ID + ":1234:5678").getPartitionKey());
+		assertEquals(partitionKey, new DialogKey(IPV6_CALL_ID + ":9abc:5678").getPartitionKey());
+		assertTrue(IPV6_CALL_ID.startsWith(partitionKey));
+		assertFalse(partitionKey.equals(new DialogKey("8b4e2ad1@[2001:db8::10]:1234:5678").getPartitionKey()));
+	}
+
+	public void testSerialization() throws Exception {
+		final DialogKey key = new DialogKey(IPV6_CALL_ID + ":1234:5678");
+		final DialogKey deserializedKey = serializationService.toObject(serializationService.toData(key));
+		assertEquals(key, deserializedKey);
+		assertEquals(key.hashCode(), deserializedKey.hashCode());
+		assertEquals(key.getDialogId(), deserializedKey.getDialogId());
+		assertEquals(key.getPartitionKey(), deserializedKey.getPartitionKey());
+	}
+
+	public void testDialogsOfACallShareTheirPartition() throws Exception {
+		final DefaultPartitioningStrategy partitioningStrategy = new DefaultPartitioningStrategy();
+		final Data earlyKey = serializationService.toData(new DialogKey(IPV6_CALL_ID + ":1234"), partitioningStrategy);
+		final Data confirmedKey = serializationService.toData(new DialogKey(IPV6_CALL_ID + ":1234:5678"), partitioningStrategy);
+		assertEquals(earlyKey.getPartitionHash(), confirmedKey.getPartitionHash());
+	}
+}
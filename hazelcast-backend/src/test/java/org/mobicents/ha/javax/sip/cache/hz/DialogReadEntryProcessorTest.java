@@ -0,0 +1,75 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.AbstractMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+
+/**
+ * Freshness check of the cached dialogs done on the partition owner by {@link DialogReadEntryProcessor}
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogReadEntryProcessorTest extends TestCase {
+
+	private static final DialogKey KEY = new DialogKey("call-1@192.168.0.1:local:remote");
+
+	public void testNewerEntryIsReturned() throws Exception {
+		final DialogCacheEntry cachedEntry = createEntry(5);
+		final Map.Entry<DialogKey, Object> entry = new AbstractMap.SimpleEntry<DialogKey, Object>(KEY, cachedEntry);
+		assertSame(cachedEntry, new DialogReadEntryProcessor(4).process(entry));
+		assertSame(cachedEntry, new DialogReadEntryProcessor(0).process(entry));
+	}
+
+	public void testEntryNotNewerIsNotReturned() throws Exception {
+		final Map.Entry<DialogKey, Object> entry = new AbstractMap.SimpleEntry<DialogKey, Object>(KEY, createEntry(5));
+		assertNull(new DialogReadEntryProcessor(5).process(entry));
+		assertNull(new DialogReadEntryProcessor(6).process(entry));
+	}
+
+	public void testMissingDialogState() throws Exception {
+		assertNull(new DialogReadEntryProcessor(0).process(new AbstractMap.SimpleEntry<DialogKey, Object>(KEY, null)));
+		// an entry only holding an early transaction doesn't carry any dialog
+		assertNull(new DialogReadEntryProcessor(0).process(new AbstractMap.SimpleEntry<DialogKey, Object>(KEY, new DialogCacheEntry(null, null))));
+	}
+
+	public void testEntryIsLeftUntouched() throws Exception {
+		final DialogCacheEntry cachedEntry = createEntry(5);
+		final Map.Entry<DialogKey, Object> entry = new AbstractMap.SimpleEntry<DialogKey, Object>(KEY, cachedEntry);
+		new DialogReadEntryProcessor(4).process(entry);
+		assertSame(cachedEntry, entry.getValue());
+		// nothing to apply on the backups
+		assertNull(new DialogReadEntryProcessor(4).getBackupProcessor());
+	}
+
+	private static DialogCacheEntry createEntry(long version) {
+		final DialogReplicationState state = new DialogReplicationState(version);
+		state.setRemoteCSeq(3);
+		return new DialogCacheEntry(DialogReplicationStateCodec.encode(state), "applicationData");
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Application data kept opaque in the dialog entries by {@link SerializedApplicationData}
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class SerializedApplicationDataTest extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		final List<String> applicationData = new ArrayList<String>();
+		applicationData.add("z9hG4bK-1");
+		final SerializedApplicationData serialized = SerializedApplicationData.serialize(applicationData);
+		assertTrue(serialized.size() > 0);
+		// the members store and ship the wrapper as any other value of the entry
+		assertEquals(applicationData, SerializedApplicationData.deserialize(javaRoundTrip(serialized)));
+	}
+
+	public void testNullApplicationData() throws Exception {
+		assertNull(SerializedApplicationData.serialize(null));
+		assertNull(SerializedApplicationData.deserialize(null));
+	}
+
+	public void testApplicationDataWrittenBeforeIsReturnedAsIs() throws Exception {
+		assertEquals("txId", SerializedApplicationData.deserialize("txId"));
+	}
+
+	private static Object javaRoundTrip(Object object) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.infinispan.Cache;
+import org.infinispan.affinity.KeyAffinityService;
+import org.infinispan.affinity.KeyAffinityServiceFactory;
+import org.infinispan.affinity.KeyGenerator;
+import org.infinispan.remoting.transport.Address;
+
+/**
+ * Gives the dialogs stored by this node a key whose group is owned by this node, see {@link InfinispanCache#INFINISPAN_DIALOG_KEY_AFFINITY}.
+ * The key is the dialog id followed by a group picked by the Infinispan key affinity service among the ones mapped to the local node,
+ * the {@link DialogGrouper} places the dialog entry on the owners of that group, so that the node handling the call is their primary owner
+ * and the reads and writes of its dialogs are local, the backups being kept on the other owners.
+ *
+ * The key of each dialog is written once in the cache.dialogKeys cache, so that another node can find the dialog on failover.
+ * This index costs RPCs of its own, to be weighed against the remote reads and writes saved on the dialog entries :
+ * <ul>
+ * <li>storing a dialog for the first time adds a putIfAbsent on the index, and removing it a remove, each one a remote call when
+ * the index entry is owned by other nodes</li>
+ * <li>a node looking up a dialog it doesn't write reads the index first, so that lookup costs two remote gets instead of one</li>
+ * </ul>
+ * Since the dialog entries are only read remotely on failover, the affinity pays off as soon as a dialog is updated more than a few times.
+ * The keys of the dialogs written by this node are kept in memory until this node removes them or is notified of their removal,
+ * the keys of the dialogs only looked up are not, as this node wouldn't be notified of their removal when it doesn't own them.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogAffinity {
+
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(DialogAffinity.class);
+
+	public static final char GROUP_SEPARATOR = '#';
+	// number of local groups generated in advance by the key affinity service
+	private static final int GROUP_BUFFER_SIZE = 100;
+
+	private Cache<String, String> dialogKeys;
+	// keys of the dialogs written by this node
+	private ConcurrentMap<String, String> localDialogKeys = new ConcurrentHashMap<String, String>();
+	private ExecutorService groupGenerator;
+	private KeyAffinityService<String> groups;
+	private Address localAddress;
+
+	/**
+	 * @param dialogs the dialogs cache, has to be distributed with the groups enabled
+	 * @param dialogKeys the cache indexing the keys of the dialogs by dialog id
+	 */
+	public DialogAffinity(Cache<String, Object> dialogs, Cache<String, String> dialogKeys) {
+		this.dialogKeys = dialogKeys;
+		this.localAddress = dialogs.getCacheManager().getAddress();
+		this.groupGenerator = Executors.newSingleThreadExecutor();
+		this.groups = KeyAffinityServiceFactory.newLocalKeyAffinityService(dialogs, new GroupGenerator(), groupGenerator, GROUP_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param dialogs the dialogs cache
+	 * @return true if the dialogs cache is distributed with the groups enabled, key affinity is meaningless otherwise
+	 */
+	public static boolean isSupported(Cache<String, Object> dialogs) {
+		return dialogs.getCacheConfiguration().clustering().cacheMode().isDistributed()
+				&& dialogs.getCacheConfiguration().clustering().hash().groups().enabled();
+	}
+
+	/**
+	 * @param dialogId the id of the dialog
+	 * @return the key the dialog is stored under, null if the dialog has never been stored
+	 */
+	public String getKey(String dialogId) {
+		final String key = localDialogKeys.get(dialogId);
+		if(key == null) {
+			// the dialog has been stored by another node
+			return dialogKeys.get(dialogId);
+		}
+		return key;
+	}
+
+	/**
+	 * @param dialogId the id of the dialog
+	 * @return the key to store the dialog under, with a group owned by this node if the dialog has never been stored
+	 */
+	public String getOrCreateKey(String dialogId) {
+		String key = localDialogKeys.get(dialogId);
+		if(key != null) {
+			return key;
+		}
+		key = dialogKeys.get(dialogId);
+		if(key == null) {
+			key = dialogId + GROUP_SEPARATOR + groups.getKeyForAddress(localAddress);
+			final String existingKey = dialogKeys.putIfAbsent(dialogId, key);
+			if(existingKey != null) {
+				// another node stored the dialog concurrently
+				key = existingKey;
+			}
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("dialog " + dialogId + " stored under key " + key);
+			}
+		}
+		// this node writes the dialog from now on, it removes the key once the dialog ends
+		localDialogKeys.put(dialogId, key);
+		return key;
+	}
+
+	/**
+	 * Remove the key of the dialog from the index
+	 * @param dialogId the id of the dialog
+	 * @return the key the dialog was stored under, null if the dialog has never been stored
+	 */
+	public String removeKey(String dialogId) {
+		final String key = getKey(dialogId);
+		if(key != null) {
+			dialogKeys.remove(dialogId);
+			localDialogKeys.remove(dialogId);
+		}
+		return key;
+	}
+
+	/**
+	 * Forget the key of a dialog removed by another node, the index entry is removed by that node
+	 * @param dialogId the id of the dialog
+	 */
+	public void forgetKey(String dialogId) {
+		localDialogKeys.remove(dialogId);
+	}
+
+	/**
+	 * @param key a key of the dialogs or dialog versions caches
+	 * @return the dialog id part of the key
+	 */
+	public static String getDialogId(Object key) {
+		final String stringKey = (String) key;
+		final int separator = stringKey.lastIndexOf(GROUP_SEPARATOR);
+		if(separator < 0) {
+			return stringKey;
+		}
+		return stringKey.substring(0, separator);
+	}
+
+	public void stop() {
+		groups.stop();
+		groupGenerator.shutdown();
+		localDialogKeys.clear();
+	}
+
+	/**
+	 * Random group names, the key affinity service keeps the ones mapped to the local node
+	 */
+	private static class GroupGenerator implements KeyGenerator<String> {
+		private final Random random = new Random();
+
+		public String getKey() {
+			return Long.toHexString(random.nextLong());
+		}
+	}
+}
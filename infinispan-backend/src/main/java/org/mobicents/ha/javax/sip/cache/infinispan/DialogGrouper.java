@@ -0,0 +1,45 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import org.infinispan.distribution.group.Grouper;
+
+/**
+ * Infinispan grouper placing the dialog entries keyed by {@link DialogAffinity} on the owners of the group carried by their key,
+ * to be declared in the hash configuration of the cache.dialogs cache along with the groups.
+ * Keys without group, such as plain dialog ids or transaction ids, keep the default placement.
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogGrouper implements Grouper<String> {
+
+	public String computeGroup(String key, String group) {
+		final int separator = key.lastIndexOf(DialogAffinity.GROUP_SEPARATOR);
+		if(separator < 0) {
+			return group;
+		}
+		return key.substring(separator + 1);
+	}
+
+	public Class<String> getKeyType() {
+		return String.class;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+/**
+ * Cache event listener registered on the dialog versions cache when the dialog near cache is enabled.
+ * Every dialog write ends with an update of its version, so a modification of the version coming from
+ * another node means the local copy of the dialog may be stale and has to be checked against the cache on next use.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+@Listener
+public class DialogVersionsListener {
+
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(DialogVersionsListener.class);
+
+	private ClusteredSipStack clusteredSipStack;
+	
+	public DialogVersionsListener(ClusteredSipStack clusteredSipStack) {
+		this.clusteredSipStack = clusteredSipStack;
+	}
+	
+	@CacheEntryModified
+	public void cacheEntryModifiedHandler(CacheEntryModifiedEvent<?, ?> event) {
+		if(event.isPre() || event.isOriginLocal()) {
+			return;
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("sipStack " + clusteredSipStack + 
+					" dialog modified remotely : " + event.getKey() + " - version " + event.getValue());
+		}
+		clusteredSipStack.remoteDialogModification(DialogAffinity.getDialogId(event.getKey()));
+	}
+	
+}
@@ -0,0 +1,172 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import org.infinispan.Cache;
+
+/**
+ * Stores the INVITE transactions bound to a dialog in the cache entry of the dialog, see {@link ClusteredSipStack#EARLY_DIALOG_TRANSACTION_RECORD}.
+ * The transaction cache only keeps the id of the dialog under the transaction id, written once per transaction,
+ * so that the transaction, the early dialog it belongs to and their application data are recovered with a single read of the dialog entry.
+ * The dialog entry is updated with the same conditional operations as the dialog writes, so that neither overwrites the other.
+ * 
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class EarlyTransactionCacheData {
+
+	// bound on the number of times the dialog entry is read again after losing a race against another write
+	private static final int MAX_WRITE_ATTEMPTS = 16;
+
+	private StackLogger logger;
+	private SIPDialogCacheData dialogCacheData;
+	// transactions whose dialog id has already been written by this node
+	private Set<String> aliasedTransactions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private AtomicLong revisions = new AtomicLong(System.currentTimeMillis());
+
+	public EarlyTransactionCacheData(ClusteredSipStack s, 
+			SIPDialogCacheData dialogCacheData) {
+		logger = s.getStackLogger();
+		this.dialogCacheData = dialogCacheData;
+	}
+
+	/**
+	 * Store the transaction in the entry of its dialog
+	 * @param txId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param metaData the transaction meta data
+	 * @param appData the transaction application data, can be null
+	 * @param transactions the transaction cache keeping the dialog id of the transaction
+	 * @param transactionsApp the transaction application data cache
+	 * @return false if the transaction isn't bound to a dialog yet and has to be stored in the transaction cache
+	 */
+	public boolean putTransaction(String txId, boolean server, Map<String, Object> metaData, Object appData, 
+			Cache<String, Object> transactions, Cache<String, Object> transactionsApp) throws SipCacheException {
+		final String dialogId = (String) metaData.get(MobicentsHASIPServerTransaction.DIALOG_ID);
+		if(dialogId == null) {
+			return false;
+		}
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("storing " + (server ? "server" : "client") + " transaction " + txId + " in the entry of dialog " + dialogId);
+		}
+		write(dialogId, txId, server, new EarlyTransactionRecord(txId, server, metaData, appData, revisions.incrementAndGet()));
+		if(aliasedTransactions.add(aliasKey(txId, server))) {
+			transactions.put(txId, dialogId);
+			// the transaction may have been stored on its own before being bound to the dialog
+			transactionsApp.remove(txId);
+		}
+		return true;
+	}
+
+	/**
+	 * Read the transaction from the entry of its dialog, the early dialog read along is recreated locally if it isn't known yet
+	 * @param txId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param dialogId the dialog id stored in the transaction cache under the transaction id
+	 * @return the transaction, null if it isn't in the dialog entry anymore
+	 */
+	public EarlyTransactionRecord getTransaction(String txId, boolean server, String dialogId) throws SipCacheException {
+		final String key = dialogCacheData.getKey(dialogId);
+		final DialogCacheEntry entry = key != null ? (DialogCacheEntry) dialogCacheData.getDialogs().get(key) : null;
+		if(entry == null || entry.getTransaction() == null || !entry.getTransaction().isFor(txId, server)) {
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug((server ? "server" : "client") + " transaction " + txId + " not found in the entry of dialog " + dialogId);
+			}
+			return null;
+		}
+		if(entry.getMetaData() != null) {
+			dialogCacheData.recoverDialog(dialogId, entry);
+		}
+		return entry.getTransaction();
+	}
+
+	/**
+	 * Clear the transaction from the entry of its dialog
+	 * @param txId the id of the transaction
+	 * @param server true for a server transaction
+	 * @param dialogId the dialog id that was stored in the transaction cache under the transaction id
+	 */
+	public void removeTransaction(String txId, boolean server, String dialogId) throws SipCacheException {
+		aliasedTransactions.remove(aliasKey(txId, server));
+		write(dialogId, txId, server, null);
+	}
+
+	/**
+	 * Store the transaction in the dialog entry, or clear it if null and the entry still holds the transaction passed in param.
+	 * The entry is created if the dialog has not been stored yet and removed once it holds neither a dialog nor a transaction.
+	 */
+	private void write(String dialogId, String txId, boolean server, EarlyTransactionRecord transaction) throws SipCacheException {
+		final Cache<String, Object> dialogs = dialogCacheData.getDialogs();
+		final String key = transaction != null ? dialogCacheData.getOrCreateKey(dialogId) : dialogCacheData.getKey(dialogId);
+		if(key == null) {
+			return;
+		}
+		for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+			final DialogCacheEntry cachedEntry = (DialogCacheEntry) dialogs.get(key);
+			final boolean stored;
+			if(transaction != null) {
+				if(cachedEntry == null) {
+					stored = dialogs.putIfAbsent(key, new DialogCacheEntry(null, null, transaction)) == null;
+				} else {
+					stored = dialogs.replace(key, cachedEntry, cachedEntry.withTransaction(transaction));
+				}
+			} else {
+				if(cachedEntry == null || cachedEntry.getTransaction() == null || !cachedEntry.getTransaction().isFor(txId, server)) {
+					return;
+				}
+				final DialogCacheEntry entry = cachedEntry.withTransaction(null);
+				if(entry.isEmpty()) {
+					stored = dialogs.remove(key, cachedEntry);
+					if(stored) {
+						// the dialog has never been stored, its key isn't needed anymore
+						dialogCacheData.removeKey(dialogId);
+					}
+				} else {
+					stored = dialogs.replace(key, cachedEntry, entry);
+				}
+			}
+			if(stored) {
+				return;
+			}
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("dialog " + dialogId + " has been modified concurrently, updating its transaction " + txId + " again");
+			}
+		}
+		throw new SipCacheException("Couldn't update the transaction " + txId + " of dialog " + dialogId + " after " + MAX_WRITE_ATTEMPTS + " attempts, too many concurrent writes");
+	}
+
+	private static String aliasKey(String txId, boolean server) {
+		return server ? "s:" + txId : "c:" + txId;
+	}
+}
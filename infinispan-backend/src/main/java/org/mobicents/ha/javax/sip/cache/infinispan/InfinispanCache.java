@@ -27,6 +27,8 @@ import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -35,10 +37,12 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.manager.CacheContainer;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
 import org.mobicents.ha.javax.sip.cache.SipCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.SipCacheReadiness;
 
 /**
  * Implementation of the SipCache interface, backed by an Infinispan Cache
@@ -52,28 +56,40 @@ import org.mobicents.ha.javax.sip.cache.SipCacheException;
  * If neither the Infinispan cache configuration path property, nor the CacheManager JNDI name are specified, then a default Infinispan config will be used, which can be found at:
  * <b>META-INF/cache-configuration.xml</b> 
  * 
+ * When the dialogs caches are distributed, the node storing a dialog can be made its primary owner through the following property:
+ * <b>org.mobicents.ha.javax.sip.INFINISPAN_DIALOG_KEY_AFFINITY</b>
+ * 
  * @author <A HREF="mailto:posfai.gergely@ext.alerant.hu">Gergely Posfai</A>
  * @author <A HREF="mailto:kokuti.andras@ext.alerant.hu">Andras Kokuti</A>
  *
  */
-public class InfinispanCache implements SipCache {
+public class InfinispanCache implements SipCache, SipCacheReadiness {
 	
 	public static final String INFINISPAN_CACHE_CONFIG_PATH = "org.mobicents.ha.javax.sip.INFINISPAN_CACHE_CONFIG_PATH";
 	public static final String DEFAULT_FILE_CONFIG_PATH = "META-INF/cache-configuration.xml"; 
 	public static final String INFINISPAN_CACHEMANAGER_JNDI_NAME = "org.mobicents.ha.javax.sip.INFINISPAN_CACHEMANAGER_JNDI_NAME";
+	/**
+	 * when set to true, the dialogs stored by a node are keyed so that this node is their primary owner,
+	 * at the cost of an index of the keys, see {@link DialogAffinity} for the remote calls it adds.
+	 * Requires the cache.dialogs cache to be distributed with the groups enabled and the {@link DialogGrouper} declared
+	 */
+	public static final String INFINISPAN_DIALOG_KEY_AFFINITY = "org.mobicents.ha.javax.sip.INFINISPAN_DIALOG_KEY_AFFINITY";
 	private static StackLogger clusteredlogger = CommonLogger.getLogger(InfinispanCache.class);
 	
 	private ScheduledThreadPoolExecutor executor = null;
 	private Properties configProperties = null;
 	private ClusteredSipStack stack;
 	private Cache<String, Object> dialogs;
-	private Cache<String, Object> appDataMap;
+	private Cache<String, Long> dialogVersions;
 	private Cache<String, Object> serverTransactions;
 	private Cache<String, Object> serverTransactionsApp;
 	private Cache<String, Object> clientTransactions;
 	private Cache<String, Object> clientTransactionsApp;
+	private DialogAffinity dialogAffinity;
 	
 	private CacheContainer cm;
+	// set once the caches have been looked up, the CacheManager may be bound to JNDI after the stack is created
+	private volatile boolean attached;
 	
 	private SIPDialogCacheData dialogCacheData;
 	private SIPServerTransactionCacheData serverTXCacheData;
@@ -173,6 +189,75 @@ public class InfinispanCache implements SipCache {
 			throw new SipCacheException("No SIPServerTransactionCache");
 	}
 	
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+	
+	public void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.putDialogs(dialogs);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+	
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if (dialogCacheData != null)
+			dialogCacheData.removeDialogs(dialogIds);
+		else
+			throw new SipCacheException("No SIPDialogCache");
+	}
+	
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (clientTXCacheData != null)
+			return clientTXCacheData.getClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+	
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) 
+			throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.putClientTransactions(clientTransactions);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+	
+	public void removeClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (clientTXCacheData != null)
+			clientTXCacheData.removeClientTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPClientTransactionCache");
+	}
+	
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (serverTXCacheData != null)
+			return serverTXCacheData.getServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+	
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) 
+			throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.putServerTransactions(serverTransactions);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+	
+	public void removeServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if (serverTXCacheData != null)
+			serverTXCacheData.removeServerTransactions(txIds);
+		else
+			throw new SipCacheException("No SIPServerTransactionCache");
+	}
+	
 	public void init() throws SipCacheException {
 		
 		executor = new ScheduledThreadPoolExecutor(1);
@@ -183,6 +268,8 @@ public class InfinispanCache implements SipCache {
 			if(clusteredlogger.isLoggingEnabled(LogLevels.TRACE_INFO)) {
 				clusteredlogger.logInfo(INFINISPAN_CACHEMANAGER_JNDI_NAME + " specified, trying to load Inifinispan CacheManager from JNDI " + configProperties.getProperty(INFINISPAN_CACHEMANAGER_JNDI_NAME));
 			}
+			// the stack doesn't take any call before the cache is ready in that case, so there is no point in giving up
+			final boolean retryUntilFound = Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.READINESS_GATED_STARTUP));
 			executor.scheduleAtFixedRate(new Runnable() {
 				
 				static final int MAX_ATTEMPTS = 30;
@@ -203,7 +290,7 @@ public class InfinispanCache implements SipCache {
 							executor.shutdown();
 						} catch (NamingException e) {
 							// Inifinispan CacheManager JNDI lookup failed: could not get InitialContext or lookup failed
-							if(attempts > MAX_ATTEMPTS) {
+							if(attempts > MAX_ATTEMPTS && !retryUntilFound) {
 								clusteredlogger.logError("Inifinispan CacheManager JNDI lookup failed: could not get InitialContext or lookup failed after attempts " + attempts + " stopping there", e);
 								executor.remove(this);
 								executor.shutdown();
@@ -216,11 +303,17 @@ public class InfinispanCache implements SipCache {
 						}
 					}
 					
-					setupCacheStructures();
+					try {
+						setupCacheStructures();
+					} catch (SipCacheException e) {
+						clusteredlogger.logError("Inifinispan CacheManager found through JNDI can't be used", e);
+						return;
+					}
 					
 					if(dialogCacheData != null) {
 						dialogCacheData.setDialogs(dialogs);
-						dialogCacheData.setAppDataMap(appDataMap);
+						dialogCacheData.setDialogVersions(dialogVersions);
+						dialogCacheData.setDialogAffinity(dialogAffinity);
 					}
 					if(serverTXCacheData != null) {
 						serverTXCacheData.setServerTransactions(serverTransactions);
@@ -230,6 +323,7 @@ public class InfinispanCache implements SipCache {
 						clientTXCacheData.setClientTransactions(clientTransactions);
 						clientTXCacheData.setClientTransactionsApp(clientTransactionsApp);
 					}
+					attached = true;
 				}
 			} , 0, 1, TimeUnit.SECONDS);
 		} else {
@@ -250,7 +344,8 @@ public class InfinispanCache implements SipCache {
 			
 			if(dialogCacheData != null) {
 				dialogCacheData.setDialogs(dialogs);
-				dialogCacheData.setAppDataMap(appDataMap);
+				dialogCacheData.setDialogVersions(dialogVersions);
+				dialogCacheData.setDialogAffinity(dialogAffinity);
 			}
 			if(serverTXCacheData != null) {
 				serverTXCacheData.setServerTransactions(serverTransactions);
@@ -260,35 +355,69 @@ public class InfinispanCache implements SipCache {
 				clientTXCacheData.setClientTransactions(clientTransactions);
 				clientTXCacheData.setClientTransactionsApp(clientTransactionsApp);
 			}
+			attached = dialogs != null;
 		}
 	}
 
-	private void setupCacheStructures() {
-		InfinispanCacheListener dialogsCacheListener = new InfinispanCacheListener(stack);
-		
+	private void setupCacheStructures() throws SipCacheException {
+		final boolean dialogNearCache = Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE));
+		if(dialogNearCache) {
+			// Infinispan only notifies the owners of an entry, every node has to own all the versions to hear about all the remote modifications
+			final CacheMode dialogVersionsMode = cm.getCache("cache.dialogVersions").getCacheConfiguration().clustering().cacheMode();
+			if(dialogVersionsMode.isClustered() && !dialogVersionsMode.isReplicated()) {
+				throw new SipCacheException(ClusteredSipStack.DIALOG_NEAR_CACHE + " requires the cache.dialogVersions cache to be replicated, it is " + dialogVersionsMode);
+			}
+		}
 		dialogs = cm.getCache("cache.dialogs");
-		appDataMap = cm.getCache("cache.appdata");
 		serverTransactions = cm.getCache("cache.serverTX");
 		serverTransactionsApp = cm.getCache("cache.serverTXApp");
 		clientTransactions = cm.getCache("cache.clientTX");
 		clientTransactionsApp = cm.getCache("cache.clientTXApp");
 		
-		dialogs.addListener(dialogsCacheListener);
+		if(Boolean.valueOf(configProperties.getProperty(INFINISPAN_DIALOG_KEY_AFFINITY))) {
+			if(DialogAffinity.isSupported(dialogs)) {
+				final Cache<String, String> dialogKeys = cm.getCache("cache.dialogKeys");
+				dialogAffinity = new DialogAffinity(dialogs, dialogKeys);
+			} else {
+				clusteredlogger.logWarning(INFINISPAN_DIALOG_KEY_AFFINITY + " ignored, the cache.dialogs cache isn't distributed with the groups enabled");
+			}
+		}
+		
+		dialogs.addListener(new InfinispanCacheListener(stack, dialogAffinity));
+		if(dialogNearCache) {
+			// the dialog versions are only written to let the near caches of the other nodes know that a dialog changed,
+			// the version is written last, once the dialog state is visible in the cache
+			dialogVersions = cm.getCache("cache.dialogVersions");
+			dialogVersions.addListener(new DialogVersionsListener(stack));
+		}
 	}
 	
 	public void start() throws SipCacheException {
 		dialogCacheData = new SIPDialogCacheData(stack, 
-				dialogs, appDataMap);
-		serverTXCacheData = new SIPServerTransactionCacheData(stack, 
-				serverTransactions, serverTransactionsApp);
-		clientTXCacheData = new SIPClientTransactionCacheData(stack, 
-				clientTransactions, clientTransactionsApp);
+				dialogs, dialogVersions);
+		dialogCacheData.setDialogAffinity(dialogAffinity);
+		if(Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.EARLY_DIALOG_TRANSACTION_RECORD))) {
+			final EarlyTransactionCacheData earlyTransactionCacheData = new EarlyTransactionCacheData(stack, dialogCacheData);
+			serverTXCacheData = new SIPServerTransactionCacheData(stack, 
+					serverTransactions, serverTransactionsApp, earlyTransactionCacheData);
+			clientTXCacheData = new SIPClientTransactionCacheData(stack, 
+					clientTransactions, clientTransactionsApp, earlyTransactionCacheData);
+		} else {
+			serverTXCacheData = new SIPServerTransactionCacheData(stack, 
+					serverTransactions, serverTransactionsApp);
+			clientTXCacheData = new SIPClientTransactionCacheData(stack, 
+					clientTransactions, clientTransactionsApp);
+		}
 	}
 
 	public void stop() throws SipCacheException {
 		clientTXCacheData = null;
 		serverTXCacheData = null;
 		dialogCacheData = null;
+		if(dialogAffinity != null) {
+			dialogAffinity.stop();
+			dialogAffinity = null;
+		}
 	}
 	
 	public void setConfigurationProperties(Properties configurationProperties) {
@@ -299,6 +428,11 @@ public class InfinispanCache implements SipCache {
 		return false;
 	}
 	
+	public boolean isReady() {
+		// getCache only returns once the joining caches received their state, so the cache is warm as soon as it is attached
+		return attached && dialogCacheData != null;
+	}
+	
 	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
 		stack = clusteredStack;
 	}
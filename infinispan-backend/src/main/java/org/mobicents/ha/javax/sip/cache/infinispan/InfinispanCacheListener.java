@@ -23,6 +23,7 @@ import org.infinispan.notifications.Listener;
 import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
 import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
 
 import gov.nist.core.CommonLogger;
 import gov.nist.core.StackLogger;
@@ -44,10 +45,19 @@ public class InfinispanCacheListener {
 	private static StackLogger clusteredlogger = CommonLogger.getLogger(InfinispanCacheListener.class);
 
 	private ClusteredSipStack clusteredSipStack;
+	private DialogAffinity dialogAffinity;
 	
 	
 	public InfinispanCacheListener(ClusteredSipStack clusteredSipStack) {
+		this(clusteredSipStack, null);
+	}
+	
+	/**
+	 * @param dialogAffinity the key affinity of the dialogs, to forget the keys of the dialogs removed by other nodes, can be null
+	 */
+	public InfinispanCacheListener(ClusteredSipStack clusteredSipStack, DialogAffinity dialogAffinity) {
 		this.clusteredSipStack = clusteredSipStack;
+		this.dialogAffinity = dialogAffinity;
 	}
 	
 	@CacheEntryRemoved
@@ -58,7 +68,15 @@ public class InfinispanCacheListener {
 					" entry removed : " + event.getKey() + " - " + event.getValue());
 		}
 		
-		clusteredSipStack.remoteDialogRemoval((String)event.getKey());
+		if (event.getValue() instanceof DialogCacheEntry && ((DialogCacheEntry) event.getValue()).getMetaData() == null) {
+			// the entry only held the transaction of a dialog that has never been stored
+			return;
+		}
+		final String dialogId = DialogAffinity.getDialogId(event.getKey());
+		if (dialogAffinity != null && !event.isOriginLocal()) {
+			dialogAffinity.forgetKey(dialogId);
+		}
+		clusteredSipStack.remoteDialogRemoval(dialogId);
 	}
 	
 }
@@ -29,11 +29,17 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import org.infinispan.Cache;
@@ -53,6 +59,8 @@ public class SIPClientTransactionCacheData {
 	private StackLogger logger;
 	private Cache<String, Object> clientTransactions;
 	private Cache<String, Object> clientTransactionsApp;
+	// not null if the transactions bound to a dialog are stored in the dialog entry
+	private EarlyTransactionCacheData earlyTransactions;
 	
 	public SIPClientTransactionCacheData(
 			ClusteredSipStack s, Cache<String, Object> clientTXCache,
@@ -62,6 +70,14 @@ public class SIPClientTransactionCacheData {
 		setClientTransactions(clientTXCache);
 		setClientTransactionsApp(clientTxAppCache);
 	}
+
+	public SIPClientTransactionCacheData(ClusteredSipStack s, 
+			Cache<String, Object> clientTXCache,
+			Cache<String, Object> clientTxAppCache,
+			EarlyTransactionCacheData earlyTransactionCacheData) {
+		this(s, clientTXCache, clientTxAppCache);
+		earlyTransactions = earlyTransactionCacheData;
+	}
 	
 	public SIPClientTransaction getClientTransaction(String txId) 
 			throws SipCacheException {
@@ -70,10 +86,14 @@ public class SIPClientTransactionCacheData {
 			logger.logDebug("getServerTransaction(" + txId + ")");
 		
 		try {
-			final Map<String, Object> transactionMetaData = (Map<String, Object>)getClientTransactions().get(txId);		
-			final Object txAppData = getClientTransactionsApp().get(txId);
-				
-			haSipClientTransaction = createClientTransaction(txId, transactionMetaData, txAppData);
+			final Object cachedTransaction = getClientTransactions().get(txId);
+			if(cachedTransaction instanceof String) {
+				// only the dialog id is stored, the transaction is in the dialog entry
+				haSipClientTransaction = createAliasedClientTransaction(txId, (String) cachedTransaction);
+			} else {
+				final Object txAppData = getClientTransactionsApp().get(txId);
+				haSipClientTransaction = createClientTransaction(txId, (Map<String, Object>) cachedTransaction, txAppData);
+			}
 			
 		} catch (Exception e) {
 			throw new SipCacheException(e);
@@ -92,6 +112,10 @@ public class SIPClientTransactionCacheData {
 			
 			// metadata
 			Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
+			if(earlyTransactions != null && earlyTransactions.putTransaction(clientTransaction.getTransactionId(), false, 
+					metaData, haClientTransaction.getApplicationDataToReplicate(), getClientTransactions(), getClientTransactionsApp())) {
+				return;
+			}
 			getClientTransactions().put(clientTransaction.getTransactionId(), metaData);
 			
 			// app data
@@ -108,8 +132,114 @@ public class SIPClientTransactionCacheData {
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			logger.logDebug("removeClientTransaction(" + txId + ")");
-		getClientTransactions().remove(txId);
-		getClientTransactionsApp().remove(txId);
+		final Object cachedTransaction = getClientTransactions().remove(txId);
+		if(cachedTransaction instanceof String) {
+			if(earlyTransactions != null) {
+				earlyTransactions.removeTransaction(txId, false, (String) cachedTransaction);
+			}
+		} else {
+			getClientTransactionsApp().remove(txId);
+		}
+	}
+	
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getClientTransactions(" + txIds + ")");
+		
+		final Map<String, SIPClientTransaction> haSipClientTransactions = new HashMap<String, SIPClientTransaction>();
+		try {
+			// reads are served locally in replicated mode
+			final Map<String, Object> metaDatas = new HashMap<String, Object>();
+			final Map<String, Object> appDatas = new HashMap<String, Object>();
+			for (String txId : txIds) {
+				metaDatas.put(txId, getClientTransactions().get(txId));
+				appDatas.put(txId, getClientTransactionsApp().get(txId));
+			}
+			for (String txId : txIds) {
+				final Object cachedTransaction = metaDatas.get(txId);
+				final SIPClientTransaction haSipClientTransaction = cachedTransaction instanceof String ? 
+						createAliasedClientTransaction(txId, (String) cachedTransaction) : createClientTransaction(txId, (Map<String, Object>) cachedTransaction, appDatas.get(txId));
+				if(haSipClientTransaction != null) {
+					haSipClientTransactions.put(txId, haSipClientTransaction);
+				}
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+		
+		return haSipClientTransactions;
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactionsToPut) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putClientTransactions(" + clientTransactionsToPut.size() + " transactions)");
+		
+		try {
+			final Map<String, Object> metaDatas = new HashMap<String, Object>();
+			final Map<String, Object> appDatas = new HashMap<String, Object>();
+			for (SIPClientTransaction clientTransaction : clientTransactionsToPut) {
+				final MobicentsHASIPClientTransaction haClientTransaction = (MobicentsHASIPClientTransaction) clientTransaction;
+				final Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
+				final Object transactionAppData = haClientTransaction.getApplicationDataToReplicate();
+				if(earlyTransactions != null && earlyTransactions.putTransaction(clientTransaction.getTransactionId(), false, 
+						metaData, transactionAppData, getClientTransactions(), getClientTransactionsApp())) {
+					continue;
+				}
+				metaDatas.put(clientTransaction.getTransactionId(), metaData);
+				if(transactionAppData != null) {
+					appDatas.put(clientTransaction.getTransactionId(), transactionAppData);
+				}
+			}
+			getClientTransactions().putAll(metaDatas);
+			if(!appDatas.isEmpty()) {
+				getClientTransactionsApp().putAll(appDatas);
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+	}
+	
+	public void removeClientTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeClientTransactions(" + txIds + ")");
+		// removals are pipelined and only waited for at the end
+		final List<Future<?>> removals = new ArrayList<Future<?>>(txIds.size() * 2);
+		final Map<String, Future<Object>> transactionRemovals = new HashMap<String, Future<Object>>(txIds.size());
+		for (String txId : txIds) {
+			final Future<Object> transactionRemoval = getClientTransactions().removeAsync(txId);
+			transactionRemovals.put(txId, transactionRemoval);
+			removals.add(transactionRemoval);
+			removals.add(getClientTransactionsApp().removeAsync(txId));
+		}
+		SIPDialogCacheData.waitFor(removals);
+		if(earlyTransactions != null) {
+			for (Map.Entry<String, Future<Object>> transactionRemoval : transactionRemovals.entrySet()) {
+				try {
+					final Object cachedTransaction = transactionRemoval.getValue().get();
+					if(cachedTransaction instanceof String) {
+						earlyTransactions.removeTransaction(transactionRemoval.getKey(), false, (String) cachedTransaction);
+					}
+				} catch (SipCacheException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new SipCacheException(e);
+				}
+			}
+		}
+	}
+	
+	private MobicentsHASIPClientTransaction createAliasedClientTransaction(String txId, String dialogId) throws SipCacheException {
+		if(earlyTransactions == null) {
+			return null;
+		}
+		final EarlyTransactionRecord transaction = earlyTransactions.getTransaction(txId, false, dialogId);
+		if(transaction == null) {
+			return null;
+		}
+		return createClientTransaction(txId, transaction.getMetaData(), transaction.getApplicationData());
 	}
 	
 	public MobicentsHASIPClientTransaction createClientTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
@@ -22,12 +22,16 @@ package org.mobicents.ha.javax.sip.cache.infinispan;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.message.SIPResponse;
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -37,7 +41,11 @@ import javax.sip.header.ContactHeader;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
 import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.message.MessageProjection;
 
 import org.infinispan.Cache;
 
@@ -52,65 +60,154 @@ import org.infinispan.Cache;
 
 public class SIPDialogCacheData {
 
+	// bound on the number of times a dialog write is merged again after losing a race against another node
+	private static final int MAX_WRITE_ATTEMPTS = 16;
+
 	private ClusteredSipStack stack;
 	private StackLogger clusteredlogger;
 	private Cache<String, Object> dialogs;
-	private Cache<String, Object> appDataMap;
+	// version of each dialog stored in dialogs, only written to let the other nodes know that a dialog changed, null if no one listens to it.
+	// It is updated after the dialog entry and can lag behind it, so it is never used to decide that a local dialog is up to date
+	private Cache<String, Long> dialogVersions;
+	// gives the dialogs stored by this node a key owned by this node, null if the dialogs are keyed by their id
+	private DialogAffinity dialogAffinity;
 	
 	public SIPDialogCacheData(ClusteredSipStack s, 
 			Cache<String, Object> dialogCache,
-			Cache<String, Object> dialogAppCache) {
+			Cache<String, Long> dialogVersionCache) {
 		stack = s;
 		clusteredlogger = s.getStackLogger();
 		setDialogs(dialogCache);
-		setAppDataMap(dialogAppCache);
+		setDialogVersions(dialogVersionCache);
 	}
 	
 	public SIPDialog getDialog(String dialogId) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logTrace("getDialog("+ dialogId +")");
 		
-		Object metaData = getDialogs().get(dialogId);
-		Object appData = getAppDataMap().get(dialogId);
-		if (metaData != null) {
-			return (SIPDialog) createDialog(dialogId, (Map<String, Object>) metaData, appData);
+		// dialog state and application data are stored in the same entry, a single read brings both back
+		final String key = getKey(dialogId);
+		if (key == null) {
+			return null;
+		}
+		final DialogCacheEntry entry = (DialogCacheEntry) getDialogs().get(key);
+		if (entry != null && entry.getMetaData() != null) {
+			return (SIPDialog) createDialog(dialogId, DialogReplicationStateCodec.decode(entry.getMetaData()), entry.getApplicationData());
 			
 		} else {
 			return null;
 		}
 	}
 	
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logTrace("getDialogs(" + dialogIds + ")");
+		
+		// reads are served locally in replicated mode
+		final Map<String, Object> entries = new HashMap<String, Object>();
+		for (String dialogId : dialogIds) {
+			final String key = getKey(dialogId);
+			if (key != null) {
+				entries.put(dialogId, getDialogs().get(key));
+			}
+		}
+		final Map<String, SIPDialog> sipDialogs = new HashMap<String, SIPDialog>();
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			final DialogCacheEntry dialogCacheEntry = (DialogCacheEntry) entry.getValue();
+			if (dialogCacheEntry != null && dialogCacheEntry.getMetaData() != null) {
+				sipDialogs.put(entry.getKey(), (SIPDialog) createDialog(entry.getKey(), DialogReplicationStateCodec.decode(dialogCacheEntry.getMetaData()), dialogCacheEntry.getApplicationData()));
+			}
+		}
+		return sipDialogs;
+	}
+	
 	public void putDialog(SIPDialog dialog) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
 			clusteredlogger.logDebug("putDialog(" + dialog.getDialogId() + ")");
 		}
 		
-		final HASipDialog haSipDialog = (HASipDialog) dialog;
+		final DialogWrite dialogWrite = new DialogWrite((HASipDialog) dialog);
+		if (dialogWrite.isEmpty()) {
+			return;
+		}
+		final List<DialogWrite> dialogWrites = new ArrayList<DialogWrite>(1);
+		dialogWrites.add(dialogWrite);
+		write(dialogWrites);
+	}
+	
+	public void putDialogs(Collection<SIPDialog> dialogsToPut) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogs(" + dialogsToPut.size() + " dialogs)");
+		}
 		
-		Object dialogMetaData = haSipDialog.getMetaDataToReplicate(); 
-		if (dialogMetaData != null) {
-			if (getDialogs().containsKey(dialog.getDialogId())) {
-				Map<String, Object> cachedMetaData = (Map<String, Object>)getDialogs().get(dialog.getDialogId());
-				Long currentVersion = (Long)((Map<String, Object>)dialogMetaData).get(AbstractHASipDialog.VERSION);
-				Long cacheVersion = (Long)((Map<String, Object>)cachedMetaData).get(AbstractHASipDialog.VERSION);
-				if ( cacheVersion.longValue() < currentVersion.longValue()) {
-					for(Entry<String, Object> e : ((Map<String, Object>)dialogMetaData).entrySet()) {
-						cachedMetaData.put(e.getKey(), e.getValue());
+		final List<DialogWrite> dialogWrites = new ArrayList<DialogWrite>(dialogsToPut.size());
+		for (SIPDialog dialog : dialogsToPut) {
+			final DialogWrite dialogWrite = new DialogWrite((HASipDialog) dialog);
+			if (!dialogWrite.isEmpty()) {
+				dialogWrites.add(dialogWrite);
+			}
+		}
+		write(dialogWrites);
+	}
+	
+	/**
+	 * Store the dialog writes passed in param with conditional operations guarded by the entry each write has been computed from,
+	 * a write losing the race against another node is computed again from the new entry.
+	 * Infinispan can't merge on the owner, so a write is a read followed by a conditional write : a single remote call in replicated mode
+	 * or with the key affinity since the read is local, two remote calls when the dialogs are distributed without it
+	 */
+	private void write(List<DialogWrite> dialogWrites) throws SipCacheException {
+		List<DialogWrite> pendingWrites = dialogWrites;
+		for (int attempt = 0; !pendingWrites.isEmpty(); attempt++) {
+			if (attempt == MAX_WRITE_ATTEMPTS) {
+				throw new SipCacheException("Couldn't store " + pendingWrites.size() + " dialogs after " + MAX_WRITE_ATTEMPTS + " attempts, too many concurrent writes");
+			}
+			final List<DialogWrite> preparedWrites = new ArrayList<DialogWrite>(pendingWrites.size());
+			final List<Future<?>> conditionalWrites = new ArrayList<Future<?>>(pendingWrites.size());
+			for (DialogWrite dialogWrite : pendingWrites) {
+				if (dialogWrite.key == null) {
+					dialogWrite.key = getOrCreateKey(dialogWrite.dialogId);
+				}
+				// reads are served locally in replicated mode or when the dialog key is owned by this node
+				if (dialogWrite.prepare((DialogCacheEntry) getDialogs().get(dialogWrite.key))) {
+					preparedWrites.add(dialogWrite);
+					if (dialogWrite.cachedEntry == null) {
+						conditionalWrites.add(getDialogs().putIfAbsentAsync(dialogWrite.key, dialogWrite.entry));
+					} else {
+						conditionalWrites.add(getDialogs().replaceAsync(dialogWrite.key, dialogWrite.cachedEntry, dialogWrite.entry));
 					}
-					getDialogs().replace(dialog.getDialogId(), cachedMetaData);
 				}
-				
-			} else {
-				getDialogs().put(dialog.getDialogId(), dialogMetaData);
+			}
+			waitFor(conditionalWrites);
+			pendingWrites = new ArrayList<DialogWrite>();
+			for (int i = 0; i < preparedWrites.size(); i++) {
+				final DialogWrite dialogWrite = preparedWrites.get(i);
+				final Object result = getResult(conditionalWrites.get(i));
+				final boolean stored = dialogWrite.cachedEntry == null ? result == null : Boolean.TRUE.equals(result);
+				if (stored) {
+					if (getDialogVersions() != null && dialogWrite.replicatedMetaData != null) {
+						// only the change notification matters, no need to wait for it
+						getDialogVersions().putAsync(dialogWrite.key, Long.valueOf(dialogWrite.replicatedMetaData.getVersion()));
+					}
+					dialogWrite.acknowledge();
+				} else {
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + dialogWrite.dialogId + " has been modified concurrently, merging again");
+					}
+					pendingWrites.add(dialogWrite);
+				}
 			}
 		}
-		
-		Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
-		if (dialogAppData != null) {
-			if (getAppDataMap().containsKey(dialog.getDialogId()))
-				getAppDataMap().replace(dialog.getDialogId(), dialogAppData);
-			else 
-				getAppDataMap().put(dialog.getDialogId(), dialogAppData);
+	}
+	
+	private static Object getResult(Future<?> future) throws SipCacheException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SipCacheException("Interrupted while waiting for the cache", e);
+		} catch (ExecutionException e) {
+			throw new SipCacheException("A problem occured while running a batch operation on the cache", e.getCause());
 		}
 	}
 	
@@ -119,27 +216,112 @@ public class SIPDialogCacheData {
 			clusteredlogger.logDebug("updateDialog(" + dialog.getDialogId() + ")");
 		
 		final HASipDialog haSipDialog = (HASipDialog) dialog;
-		final Object dialogMetaData = getDialogs().get(dialog.getDialogId());
-		final Object dialogAppData = getAppDataMap().get(dialog.getDialogId()); 
-	    
-		updateDialog(haSipDialog, (Map<String, Object>)dialogMetaData, dialogAppData);
+		final String key = getKey(dialog.getDialogId());
+		if (key == null) {
+			return;
+		}
+		// reads are served locally in replicated mode or when the dialog key is owned by this node
+		final DialogCacheEntry entry = (DialogCacheEntry) getDialogs().get(key);
+		if (entry != null) {
+			updateDialog(haSipDialog, DialogReplicationStateCodec.decode(entry.getMetaData()), entry.getApplicationData());
+		}
+	}
+	
+	/**
+	 * Recreate locally the dialog read along with one of its transactions, unless the stack already knows it
+	 * @param dialogId the id of the dialog
+	 * @param entry the cache entry of the dialog
+	 */
+	void recoverDialog(String dialogId, DialogCacheEntry entry) throws SipCacheException {
+		final HASipDialog haSipDialog = createDialog(dialogId, DialogReplicationStateCodec.decode(entry.getMetaData()), entry.getApplicationData());
+		if(haSipDialog != null) {
+			haSipDialog.initAfterLoad(stack);
+			stack.putDialog((SIPDialog) haSipDialog);
+		}
 	}
 	
 	public void removeDialog(String dialogId) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logDebug("removeDialog(" + dialogId + ")");
 		
-		getDialogs().remove(dialogId);
+		final String key = removeKey(dialogId);
+		if (key != null) {
+			getDialogs().remove(key);
+			if (getDialogVersions() != null) {
+				getDialogVersions().remove(key);
+			}
+		}
+	}
+	
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logDebug("removeDialogs(" + dialogIds + ")");
+		
+		// removals are pipelined and only waited for at the end
+		final List<Future<?>> removals = new ArrayList<Future<?>>(dialogIds.size() * 2);
+		for (String dialogId : dialogIds) {
+			final String key = removeKey(dialogId);
+			if (key != null) {
+				removals.add(getDialogs().removeAsync(key));
+				if (getDialogVersions() != null) {
+					removals.add(getDialogVersions().removeAsync(key));
+				}
+			}
+		}
+		waitFor(removals);
+	}
+	
+	static void waitFor(List<Future<?>> futures) throws SipCacheException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SipCacheException("Interrupted while waiting for the cache", e);
+			} catch (ExecutionException e) {
+				throw new SipCacheException("A problem occured while running a batch operation on the cache", e.getCause());
+			}
+		}
 	}
 	
 	public void evictDialog(String dialogId) {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logDebug("evictDialog(" + dialogId + ")");
 		
-		getDialogs().remove(dialogId);
+		final String key = removeKey(dialogId);
+		if (key != null) {
+			getDialogs().remove(key);
+			if (getDialogVersions() != null) {
+				getDialogVersions().remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * @param dialogId the id of the dialog
+	 * @return the key the dialog is stored under in the dialogs and dialog versions caches, null if it has never been stored
+	 */
+	String getKey(String dialogId) {
+		return dialogAffinity != null ? dialogAffinity.getKey(dialogId) : dialogId;
+	}
+	
+	/**
+	 * @param dialogId the id of the dialog
+	 * @return the key to store the dialog under in the dialogs and dialog versions caches
+	 */
+	String getOrCreateKey(String dialogId) {
+		return dialogAffinity != null ? dialogAffinity.getOrCreateKey(dialogId) : dialogId;
+	}
+	
+	/**
+	 * @param dialogId the id of the dialog
+	 * @return the key the dialog was stored under, null if it has never been stored
+	 */
+	String removeKey(String dialogId) {
+		return dialogAffinity != null ? dialogAffinity.removeKey(dialogId) : dialogId;
 	}
 	
-	private HASipDialog createDialog(String dialogId, Map<String, Object> dialogMetaData, 
+	private HASipDialog createDialog(String dialogId, DialogReplicationState dialogMetaData, 
 			Object dialogAppData) throws SipCacheException {
 		HASipDialog haSipDialog = null; 
 		if(dialogMetaData != null) {
@@ -147,9 +329,9 @@ public class SIPDialogCacheData {
 				clusteredlogger.logDebug("sipStack " + this + " dialog " + dialogId + " is present in the distributed cache, recreating it locally");
 			}
 			
-			final String lastResponseStringified = (String) dialogMetaData.get(AbstractHASipDialog.LAST_RESPONSE);
+			final byte[] lastResponseProjection = dialogMetaData.getLastResponse();
 			try {
-				final SIPResponse lastResponse = (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(lastResponseStringified);
+				final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
 				haSipDialog = HASipDialogFactory.createHASipDialog(stack.getReplicationStrategy(), (SipProviderImpl)stack.getSipProviders().next(), lastResponse);
 				haSipDialog.setDialogId(dialogId);
 				updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, true);
@@ -173,18 +355,18 @@ public class SIPDialogCacheData {
 		return haSipDialog;
 	}
 	
-	public void updateDialog(HASipDialog haSipDialog, Map<String, Object> dialogMetaData, 
+	public void updateDialog(HASipDialog haSipDialog, DialogReplicationState dialogMetaData, 
 			Object dialogAppData) throws SipCacheException {
 		if(dialogMetaData != null) {			
 			final long currentVersion = haSipDialog.getVersion();
-			final Long cacheVersion = ((Long)dialogMetaData.get(AbstractHASipDialog.VERSION)); 
-			if(cacheVersion != null && currentVersion < cacheVersion.longValue()) {
+			final long cacheVersion = dialogMetaData.getVersion(); 
+			if(currentVersion < cacheVersion) {
 				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 					clusteredlogger.logDebug("HA SIP Dialog " + haSipDialog + " with dialogId " + haSipDialog.getDialogIdToReplicate() + " is older " + currentVersion + " than the one in the cache " + cacheVersion + " updating it");
 				}
 				try {
-					final String lastResponseStringified = (String) dialogMetaData.get(AbstractHASipDialog.LAST_RESPONSE);				
-					final SIPResponse lastResponse = (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(lastResponseStringified);
+					final byte[] lastResponseProjection = dialogMetaData.getLastResponse();				
+					final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
 					haSipDialog.setLastResponse(lastResponse);
 					updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, false);
 				
@@ -210,11 +392,11 @@ public class SIPDialogCacheData {
 	 * @throws ParseException
 	 * @throws PeerUnavailableException
 	 */
-	private void updateDialogMetaData(Map<String, Object> dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) 
+	private void updateDialogMetaData(DialogReplicationState dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) 
 			throws ParseException, PeerUnavailableException {
 		haSipDialog.setMetaDataToReplicate(dialogMetaData, recreation);
 		haSipDialog.setApplicationDataToReplicate(dialogAppData);
-		final String contactStringified = (String) dialogMetaData.get(AbstractHASipDialog.CONTACT_HEADER);
+		final String contactStringified = dialogMetaData.getContactHeader();
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			clusteredlogger.logDebug("contactStringified " + contactStringified);
 		}
@@ -245,16 +427,99 @@ public class SIPDialogCacheData {
 	}
 
 	/**
-	 * @return the appDataMap
+	 * @return the dialogVersions
 	 */
-	public Cache<String, Object> getAppDataMap() {
-		return appDataMap;
+	public Cache<String, Long> getDialogVersions() {
+		return dialogVersions;
 	}
 
 	/**
-	 * @param appDataMap the appDataMap to set
+	 * @param dialogVersions the dialogVersions to set
 	 */
-	public void setAppDataMap(Cache<String, Object> appDataMap) {
-		this.appDataMap = appDataMap;
+	public void setDialogVersions(Cache<String, Long> dialogVersions) {
+		this.dialogVersions = dialogVersions;
+	}
+
+	/**
+	 * @param dialogAffinity the key affinity of the dialogs stored by this node, null to key the dialogs by their id
+	 */
+	public void setDialogAffinity(DialogAffinity dialogAffinity) {
+		this.dialogAffinity = dialogAffinity;
+	}
+	
+	/**
+	 * Computes the entry to store for a dialog from the entry currently in the cache
+	 */
+	private class DialogWrite {
+		private final HASipDialog haSipDialog;
+		private final String dialogId;
+		// resolved on the first attempt, once the write is known to store something
+		private String key;
+		private DialogReplicationState dialogMetaData;
+		private final Object dialogAppData;
+		private DialogCacheEntry cachedEntry;
+		private DialogCacheEntry entry;
+		private DialogReplicationState replicatedMetaData;
+		
+		DialogWrite(HASipDialog haSipDialog) {
+			this.haSipDialog = haSipDialog;
+			this.dialogId = ((SIPDialog) haSipDialog).getDialogId();
+			this.dialogMetaData = haSipDialog.getMetaDataToReplicate();
+			this.dialogAppData = haSipDialog.getApplicationDataToReplicate();
+		}
+		
+		boolean isEmpty() {
+			return dialogMetaData == null && dialogAppData == null;
+		}
+		
+		/**
+		 * @param cachedEntry the entry currently in the cache, null if none
+		 * @return true if there is something to store
+		 */
+		boolean prepare(DialogCacheEntry cachedEntry) throws SipCacheException {
+			this.cachedEntry = cachedEntry;
+			this.replicatedMetaData = null;
+			byte[] metaDataToStore = cachedEntry != null ? cachedEntry.getMetaData() : null;
+			if (dialogMetaData != null) {
+				DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(metaDataToStore);
+				if (!dialogMetaData.canBeAppliedOn(cachedMetaData)) {
+					// the cached record is missing or has been written by someone else, the delta would lose state
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + dialogId + " delta based on version " + dialogMetaData.getBaseVersion() + " doesn't match cached record " + cachedMetaData + ", replicating the full state");
+					}
+					dialogMetaData = haSipDialog.getFullMetaDataToReplicate();
+				}
+				if (cachedMetaData != null) {
+					long currentVersion = dialogMetaData.getVersion();
+					long cacheVersion = cachedMetaData.getVersion();
+					if ( cacheVersion < currentVersion) {
+						cachedMetaData.merge(dialogMetaData);
+						metaDataToStore = DialogReplicationStateCodec.encode(cachedMetaData);
+						replicatedMetaData = dialogMetaData;
+					}
+					
+				} else {
+					metaDataToStore = DialogReplicationStateCodec.encode(dialogMetaData);
+					replicatedMetaData = dialogMetaData;
+				}
+			}
+			if (replicatedMetaData == null && dialogAppData == null) {
+				return false;
+			}
+			final Object appDataToStore = dialogAppData != null ? dialogAppData : (cachedEntry != null ? cachedEntry.getApplicationData() : null);
+			// the INVITE transaction stored along with the dialog is kept as is
+			entry = cachedEntry != null ? new DialogCacheEntry(metaDataToStore, appDataToStore, cachedEntry.getTransaction(), cachedEntry.getStamp() + 1)
+					: new DialogCacheEntry(metaDataToStore, appDataToStore);
+			return true;
+		}
+		
+		/**
+		 * to be called once the entry has been stored
+		 */
+		void acknowledge() {
+			if (replicatedMetaData != null) {
+				haSipDialog.metaDataReplicated(replicatedMetaData);
+			}
+		}
 	}
 }
@@ -29,11 +29,17 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.EarlyTransactionRecord;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import org.infinispan.Cache;
@@ -53,6 +59,8 @@ public class SIPServerTransactionCacheData {
 	private StackLogger logger;
 	private Cache<String, Object> serverTransactions;
 	private Cache<String, Object> serverTransactionsApp;
+	// not null if the transactions bound to a dialog are stored in the dialog entry
+	private EarlyTransactionCacheData earlyTransactions;
 	
 	public SIPServerTransactionCacheData(ClusteredSipStack s, 
 			Cache<String, Object> serverTXCache,
@@ -62,6 +70,14 @@ public class SIPServerTransactionCacheData {
 		setServerTransactions(serverTXCache);
 		setServerTransactionsApp(serverTxAppCache);
 	}
+
+	public SIPServerTransactionCacheData(ClusteredSipStack s, 
+			Cache<String, Object> serverTXCache,
+			Cache<String, Object> serverTxAppCache,
+			EarlyTransactionCacheData earlyTransactionCacheData) {
+		this(s, serverTXCache, serverTxAppCache);
+		earlyTransactions = earlyTransactionCacheData;
+	}
 	
 	public SIPServerTransaction getServerTransaction(String txId) 
 			throws SipCacheException {
@@ -70,10 +86,14 @@ public class SIPServerTransactionCacheData {
 			logger.logDebug("getServerTransaction(" + txId + ")");
 		
 		try {
-			final Map<String, Object> transactionMetaData = (Map<String, Object>)getServerTransactions().get(txId);		
-			final Object txAppData = getServerTransactionsApp().get(txId);
-				
-			haSipServerTransaction = createServerTransaction(txId, transactionMetaData, txAppData);
+			final Object cachedTransaction = getServerTransactions().get(txId);
+			if(cachedTransaction instanceof String) {
+				// only the dialog id is stored, the transaction is in the dialog entry
+				haSipServerTransaction = createAliasedServerTransaction(txId, (String) cachedTransaction);
+			} else {
+				final Object txAppData = getServerTransactionsApp().get(txId);
+				haSipServerTransaction = createServerTransaction(txId, (Map<String, Object>) cachedTransaction, txAppData);
+			}
 			
 		} catch (Exception e) {
 			throw new SipCacheException(e);
@@ -92,6 +112,10 @@ public class SIPServerTransactionCacheData {
 			
 			// meta data
 			Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
+			if(earlyTransactions != null && earlyTransactions.putTransaction(serverTransaction.getTransactionId(), true, 
+					metaData, haServerTransaction.getApplicationDataToReplicate(), getServerTransactions(), getServerTransactionsApp())) {
+				return;
+			}
 			getServerTransactions().put(serverTransaction.getTransactionId(), metaData);
 			
 			// app data
@@ -108,8 +132,114 @@ public class SIPServerTransactionCacheData {
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			logger.logDebug("removeServerTransaction(" + txId + ")");
-		getServerTransactions().remove(txId);
-		getServerTransactionsApp().remove(txId);
+		final Object cachedTransaction = getServerTransactions().remove(txId);
+		if(cachedTransaction instanceof String) {
+			if(earlyTransactions != null) {
+				earlyTransactions.removeTransaction(txId, true, (String) cachedTransaction);
+			}
+		} else {
+			getServerTransactionsApp().remove(txId);
+		}
+	}
+	
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("getServerTransactions(" + txIds + ")");
+		
+		final Map<String, SIPServerTransaction> haSipServerTransactions = new HashMap<String, SIPServerTransaction>();
+		try {
+			// reads are served locally in replicated mode
+			final Map<String, Object> metaDatas = new HashMap<String, Object>();
+			final Map<String, Object> appDatas = new HashMap<String, Object>();
+			for (String txId : txIds) {
+				metaDatas.put(txId, getServerTransactions().get(txId));
+				appDatas.put(txId, getServerTransactionsApp().get(txId));
+			}
+			for (String txId : txIds) {
+				final Object cachedTransaction = metaDatas.get(txId);
+				final SIPServerTransaction haSipServerTransaction = cachedTransaction instanceof String ? 
+						createAliasedServerTransaction(txId, (String) cachedTransaction) : createServerTransaction(txId, (Map<String, Object>) cachedTransaction, appDatas.get(txId));
+				if(haSipServerTransaction != null) {
+					haSipServerTransactions.put(txId, haSipServerTransaction);
+				}
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+		
+		return haSipServerTransactions;
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactionsToPut) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putServerTransactions(" + serverTransactionsToPut.size() + " transactions)");
+		
+		try {
+			final Map<String, Object> metaDatas = new HashMap<String, Object>();
+			final Map<String, Object> appDatas = new HashMap<String, Object>();
+			for (SIPServerTransaction serverTransaction : serverTransactionsToPut) {
+				final MobicentsHASIPServerTransaction haServerTransaction = (MobicentsHASIPServerTransaction) serverTransaction;
+				final Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
+				final Object transactionAppData = haServerTransaction.getApplicationDataToReplicate();
+				if(earlyTransactions != null && earlyTransactions.putTransaction(serverTransaction.getTransactionId(), true, 
+						metaData, transactionAppData, getServerTransactions(), getServerTransactionsApp())) {
+					continue;
+				}
+				metaDatas.put(serverTransaction.getTransactionId(), metaData);
+				if(transactionAppData != null) {
+					appDatas.put(serverTransaction.getTransactionId(), transactionAppData);
+				}
+			}
+			getServerTransactions().putAll(metaDatas);
+			if(!appDatas.isEmpty()) {
+				getServerTransactionsApp().putAll(appDatas);
+			}
+		} catch (Exception e) {
+			throw new SipCacheException(e);
+		}
+	}
+	
+	public void removeServerTransactions(Collection<String> txIds) 
+			throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeServerTransactions(" + txIds + ")");
+		// removals are pipelined and only waited for at the end
+		final List<Future<?>> removals = new ArrayList<Future<?>>(txIds.size() * 2);
+		final Map<String, Future<Object>> transactionRemovals = new HashMap<String, Future<Object>>(txIds.size());
+		for (String txId : txIds) {
+			final Future<Object> transactionRemoval = getServerTransactions().removeAsync(txId);
+			transactionRemovals.put(txId, transactionRemoval);
+			removals.add(transactionRemoval);
+			removals.add(getServerTransactionsApp().removeAsync(txId));
+		}
+		SIPDialogCacheData.waitFor(removals);
+		if(earlyTransactions != null) {
+			for (Map.Entry<String, Future<Object>> transactionRemoval : transactionRemovals.entrySet()) {
+				try {
+					final Object cachedTransaction = transactionRemoval.getValue().get();
+					if(cachedTransaction instanceof String) {
+						earlyTransactions.removeTransaction(transactionRemoval.getKey(), true, (String) cachedTransaction);
+					}
+				} catch (SipCacheException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new SipCacheException(e);
+				}
+			}
+		}
+	}
+	
+	private MobicentsHASIPServerTransaction createAliasedServerTransaction(String txId, String dialogId) throws SipCacheException {
+		if(earlyTransactions == null) {
+			return null;
+		}
+		final EarlyTransactionRecord transaction = earlyTransactions.getTransaction(txId, true, dialogId);
+		if(transaction == null) {
+			return null;
+		}
+		return createServerTransaction(txId, transaction.getMetaData(), transaction.getApplicationData());
 	}
 	
 	public MobicentsHASIPServerTransaction createServerTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
@@ -22,7 +22,6 @@ package org.mobicents.ha.javax.sip;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -71,9 +70,11 @@ import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
 import org.mobicents.ha.javax.sip.cache.infinispan.CacheManagerHolder;
 
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 import junit.framework.TestCase;
 
@@ -1004,7 +1005,6 @@ public class DialogRecoveryTest extends TestCase {
 		// get dialogs cache created by shootme1
 		DefaultCacheManager cm = CacheManagerHolder.getManager("META-INF/cache-configuration.xml");
 		Cache<String, Object> dialogs = cm.getCache("cache.dialogs");
-		Cache<String, Object> appData = cm.getCache("cache.appdata");
 
 
 		// start test sending an invite
@@ -1018,19 +1018,19 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
-		Object data = appData.get(shootme1.dialog.getDialogId());
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs
+				.get(shootme1.dialog.getDialogId())).getMetaData());
+		Object data = ((DialogCacheEntry) dialogs.get(shootme1.dialog.getDialogId())).getApplicationData();
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
 		assertEquals(shootme1.dialog.getLocalTag(),
-				cachedMetaData.get(AbstractHASipDialog.LOCAL_TAG));
+				cachedMetaData.getLocalTag());
 		assertEquals(shootme1.dialog.getRemoteTag(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TAG));
+				cachedMetaData.getRemoteTag());
 		assertEquals(shootme1.dialog.getRemoteTarget().toString(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TARGET));
-		String [] routeList = (String[])cachedMetaData.get(AbstractHASipDialog.ROUTE_LIST);
+				cachedMetaData.getRemoteTarget());
+		String [] routeList = cachedMetaData.getRouteList();
 		assertNotNull(routeList);
 		assertEquals(1, routeList.length);
 		assertEquals("<"+recordRoute+">", routeList[0]);
@@ -1116,18 +1116,18 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs
+				.get(shootme1.dialog.getDialogId())).getMetaData());
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
 		assertEquals(shootme1.dialog.getLocalTag(),
-				cachedMetaData.get(AbstractHASipDialog.LOCAL_TAG));
+				cachedMetaData.getLocalTag());
 		assertEquals(shootme1.dialog.getRemoteTag(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TAG));
+				cachedMetaData.getRemoteTag());
 		assertEquals(shootme1.dialog.getRemoteTarget().toString(),
-				cachedMetaData.get(AbstractHASipDialog.REMOTE_TARGET));
-		String [] routeList = (String[])cachedMetaData.get(AbstractHASipDialog.ROUTE_LIST);
+				cachedMetaData.getRemoteTarget());
+		String [] routeList = cachedMetaData.getRouteList();
 		assertNotNull(routeList);
 		assertEquals(1, routeList.length);
 		assertEquals("<"+recordRoute+">", routeList[0]);
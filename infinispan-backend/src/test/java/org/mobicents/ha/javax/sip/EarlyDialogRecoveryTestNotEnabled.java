@@ -22,7 +22,6 @@ package org.mobicents.ha.javax.sip;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -71,9 +70,11 @@ import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationState;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
 import org.mobicents.ha.javax.sip.cache.infinispan.CacheManagerHolder;
 
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 import junit.framework.TestCase;
@@ -1007,7 +1008,6 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		DefaultCacheManager cm = CacheManagerHolder.getManager("META-INF/cache-configuration.xml");
 		Cache<String, Object> dialogs = cm.getCache("cache.dialogs");
 		Cache<String, Object> serverTXs = cm.getCache("cache.serverTX");
-		Cache<String, Object> appData = cm.getCache("cache.appdata");
 
 		// start test sending an invite
 		System.out.println(">>>> Start Shootist");
@@ -1017,15 +1017,15 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(shootme1.dialog.getDialogId());
-		Object data = appData.get(shootme1.dialog.getDialogId());
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs.get(shootme1.dialog.getDialogId())).getMetaData());
+		Object data = ((DialogCacheEntry) dialogs.get(shootme1.dialog.getDialogId())).getApplicationData();
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
 		
 		assertEquals(((SIPDialog)shootme1.dialog).getState(), DialogState.EARLY);
 		assertEquals(((SIPDialog)shootme1.dialog).getState().getValue(), 
-				cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE));
+				cachedMetaData.getDialogState());
 		
 		String txId = (String)shootme1.dialog.getApplicationData();
 		assertNotNull(txId);
@@ -1055,7 +1055,7 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		assertEquals(txId, txId2);
 		assertEquals(((SIPDialog)shootme2.dialog).getState(), DialogState.EARLY);
 		assertEquals(((SIPDialog)shootme2.dialog).getState().getValue(), 
-				cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE));
+				cachedMetaData.getDialogState());
 		
 		shootme2.send200Invite();
 		
@@ -1152,9 +1152,9 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		Thread.sleep(1000);
 		
 		// check dialog metada
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(dialogId);
+		DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs.get(dialogId)).getMetaData());
 		assertNotNull(cachedMetaData);
-		assertEquals(cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE), DialogState.TERMINATED.getValue());
+		assertEquals(cachedMetaData.getDialogState(), DialogState.TERMINATED.getValue());
 		
 		// recover dialog from cache
 		shootme2.recoverDialog(dialogId);
@@ -1163,7 +1163,7 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		assertNotNull(shootme2.dialog);
 		assertEquals(((SIPDialog)shootme2.dialog).getState(), DialogState.TERMINATED);
 		assertEquals(((SIPDialog)shootme2.dialog).getState().getValue(), 
-				cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE));
+				cachedMetaData.getDialogState());
 				
 		// wait for dialog and transaction removal
 		System.out.println(">>>> Wait for dialog to terminate and clear from cache");
@@ -0,0 +1,119 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.mobicents.ha.javax.sip.TestConstants;
+
+/**
+ * Keys given by {@link DialogAffinity} to the dialogs stored by a node and their lookup by the other nodes
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class DialogAffinityTest extends TestCase {
+
+	public final String IP_ADDRESS = TestConstants.getIpAddressFromProperties();
+
+	private static final String CONFIGURATION_FILE = "dialog-affinity-configuration.xml";
+	private static final long CLUSTER_TIMEOUT = 30000;
+	private static final String DIALOG_ID = "7a3f19c0@192.168.0.10:1234:5678";
+
+	private DefaultCacheManager cacheManager1;
+	private DefaultCacheManager cacheManager2;
+	private Cache<String, Object> dialogs1;
+	private DialogAffinity dialogAffinity1;
+	private DialogAffinity dialogAffinity2;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("jgroups.bind_addr", IP_ADDRESS);
+		System.setProperty("java.net.preferIPv4Stack", "true");
+		cacheManager1 = new DefaultCacheManager(CONFIGURATION_FILE);
+		cacheManager2 = new DefaultCacheManager(CONFIGURATION_FILE);
+		dialogs1 = cacheManager1.getCache("cache.dialogs");
+		final Cache<String, Object> dialogs2 = cacheManager2.getCache("cache.dialogs");
+		final Cache<String, String> dialogKeys1 = cacheManager1.getCache("cache.dialogKeys");
+		final Cache<String, String> dialogKeys2 = cacheManager2.getCache("cache.dialogKeys");
+		waitForCluster();
+		assertTrue(DialogAffinity.isSupported(dialogs1));
+		dialogAffinity1 = new DialogAffinity(dialogs1, dialogKeys1);
+		dialogAffinity2 = new DialogAffinity(dialogs2, dialogKeys2);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dialogAffinity1.stop();
+		dialogAffinity2.stop();
+		cacheManager2.stop();
+		cacheManager1.stop();
+		super.tearDown();
+	}
+
+	public void testKeyCreation() throws Exception {
+		final String key = dialogAffinity1.getOrCreateKey(DIALOG_ID);
+		assertTrue(key.startsWith(DIALOG_ID + DialogAffinity.GROUP_SEPARATOR));
+		assertEquals(DIALOG_ID, DialogAffinity.getDialogId(key));
+		// the node storing the dialog owns its entry
+		assertEquals(Collections.singletonList(cacheManager1.getAddress()), dialogs1.getAdvancedCache().getDistributionManager().locate(key));
+		// the key is created once
+		assertEquals(key, dialogAffinity1.getOrCreateKey(DIALOG_ID));
+		assertEquals(key, dialogAffinity1.getKey(DIALOG_ID));
+	}
+
+	public void testKeyLookupFromAnotherNode() throws Exception {
+		assertNull(dialogAffinity2.getKey(DIALOG_ID));
+		final String key = dialogAffinity1.getOrCreateKey(DIALOG_ID);
+		// found through the index on failover
+		assertEquals(key, dialogAffinity2.getKey(DIALOG_ID));
+		// taking over the dialog doesn't move it, its entry is still under the key created by the first node
+		assertEquals(key, dialogAffinity2.getOrCreateKey(DIALOG_ID));
+	}
+
+	public void testKeyRemovalFromAnotherNode() throws Exception {
+		final String key = dialogAffinity1.getOrCreateKey(DIALOG_ID);
+		assertEquals(key, dialogAffinity2.removeKey(DIALOG_ID));
+		assertNull(dialogAffinity2.getKey(DIALOG_ID));
+		// the first node is notified of the removal of the dialog entry
+		dialogAffinity1.forgetKey(DIALOG_ID);
+		assertNull(dialogAffinity1.getKey(DIALOG_ID));
+		assertNull(dialogAffinity1.removeKey(DIALOG_ID));
+	}
+
+	public void testDialogIdOfKeysWithoutGroup() throws Exception {
+		assertEquals(DIALOG_ID, DialogAffinity.getDialogId(DIALOG_ID));
+	}
+
+	private void waitForCluster() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + CLUSTER_TIMEOUT;
+		while (cacheManager1.getMembers().size() < 2 || cacheManager2.getMembers().size() < 2) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("the two nodes didn't form a cluster");
+			}
+			Thread.sleep(100);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.util.Properties;
+
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+import javax.sip.message.MessageFactory;
+
+import junit.framework.TestCase;
+
+import org.infinispan.AbstractDelegatingCache;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.util.concurrent.NotifyingFuture;
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.HASipDialog;
+import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.TestConstants;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogReplicationStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Conditional dialog writes of {@link SIPDialogCacheData} losing the race against the writes of other nodes
+ *
+ * @author jean.deruelle@gmail.com
+ *
+ */
+public class SIPDialogCacheDataTest extends TestCase {
+
+	public final String IP_ADDRESS = TestConstants.getIpAddressFromProperties();
+
+	private static final int PORT = 5090;
+	// SIPDialogCacheData.MAX_WRITE_ATTEMPTS
+	private static final int MAX_WRITE_ATTEMPTS = 16;
+
+	private ClusteredSipStack sipStack;
+	private SipProviderImpl sipProvider;
+	private MessageFactory messageFactory;
+	private DefaultCacheManager cacheManager;
+	private RacingCache dialogs;
+	private SIPDialogCacheData dialogCacheData;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("org.mobicents.ha");
+		final Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "SIPDialogCacheDataTest-" + getName());
+		properties.setProperty("org.mobicents.ha.javax.sip.REPLICATION_STRATEGY", "ConfirmedDialog");
+		// the dialogs are written by the SIPDialogCacheData under test, the stack itself doesn't replicate anything
+		properties.setProperty("org.mobicents.ha.javax.sip.CACHE_CLASS_NAME", "org.mobicents.ha.javax.sip.cache.NoCache");
+		properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "ERROR");
+		sipStack = (ClusteredSipStack) sipFactory.createSipStack(properties);
+		final ListeningPoint listeningPoint = sipStack.createListeningPoint(IP_ADDRESS, PORT, ListeningPoint.UDP);
+		sipProvider = (SipProviderImpl) sipStack.createSipProvider(listeningPoint);
+		sipStack.start();
+		messageFactory = sipFactory.createMessageFactory();
+
+		cacheManager = new DefaultCacheManager();
+		final Cache<String, Object> cache = cacheManager.getCache();
+		dialogs = new RacingCache(cache);
+		dialogCacheData = new SIPDialogCacheData(sipStack, dialogs, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cacheManager.stop();
+		sipStack.stop();
+		super.tearDown();
+	}
+
+	public void testWrite() throws Exception {
+		final HASipDialog dialog = createDialog();
+		dialogCacheData.putDialog((SIPDialog) dialog);
+		assertEquals(1, dialogs.conditionalWrites);
+		final long version = dialog.getVersion();
+		assertEquals(version, getCachedVersion(dialog));
+		// the write has been acknowledged, the next record is a delta on top of it
+		assertEquals(version, dialog.getMetaDataToReplicate().getBaseVersion());
+	}
+
+	public void testWriteRetriedAfterLosingRaces() throws Exception {
+		final HASipDialog dialog = createDialog();
+		// the first write loses against a concurrent creation, the next ones against concurrent updates
+		dialogs.racesToLose = 3;
+		dialogCacheData.putDialog((SIPDialog) dialog);
+		assertEquals(4, dialogs.conditionalWrites);
+		final long version = dialog.getVersion();
+		assertEquals(version, getCachedVersion(dialog));
+		// the entry has been rewritten by the two concurrent updates then by the write that won
+		assertEquals(3, ((DialogCacheEntry) dialogs.get(getDialogId(dialog))).getStamp());
+		assertEquals(version, dialog.getMetaDataToReplicate().getBaseVersion());
+	}
+
+	public void testWriteGivesUpAfterMaxAttempts() throws Exception {
+		final HASipDialog dialog = createDialog();
+		dialogs.racesToLose = Integer.MAX_VALUE;
+		try {
+			dialogCacheData.putDialog((SIPDialog) dialog);
+			fail("the write should have given up");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		assertEquals(MAX_WRITE_ATTEMPTS, dialogs.conditionalWrites);
+		// nothing has been acknowledged, the whole state is replicated again on the next write
+		assertEquals(0, dialog.getMetaDataToReplicate().getBaseVersion());
+		dialogs.racesToLose = 0;
+		dialogCacheData.putDialog((SIPDialog) dialog);
+		assertEquals(dialog.getVersion(), getCachedVersion(dialog));
+	}
+
+	private HASipDialog createDialog() throws Exception {
+		final SIPResponse response = (SIPResponse) messageFactory.createResponse("SIP/2.0 200 OK\r\n" +
+				"Via: SIP/2.0/UDP " + IP_ADDRESS + ":" + PORT + ";branch=z9hG4bK-" + getName() + "\r\n" +
+				"From: <sip:alice@" + IP_ADDRESS + ">;tag=local\r\n" +
+				"To: <sip:bob@192.168.0.2>;tag=remote\r\n" +
+				"Call-ID: " + getName() + "@" + IP_ADDRESS + "\r\n" +
+				"CSeq: 1 INVITE\r\n" +
+				"Contact: <sip:bob@192.168.0.2:5060>\r\n" +
+				"Content-Length: 0\r\n\r\n");
+		return HASipDialogFactory.createHASipDialog(sipStack.getReplicationStrategy(), sipProvider, response);
+	}
+
+	private static String getDialogId(HASipDialog dialog) {
+		return ((SIPDialog) dialog).getDialogId();
+	}
+
+	private long getCachedVersion(HASipDialog dialog) throws SipCacheException {
+		return DialogReplicationStateCodec.decode(((DialogCacheEntry) dialogs.get(getDialogId(dialog))).getMetaData()).getVersion();
+	}
+
+	/**
+	 * Makes the conditional writes fail by writing the entry concurrently right before them, as another node would
+	 */
+	private static class RacingCache extends AbstractDelegatingCache<String, Object> {
+		int racesToLose;
+		int conditionalWrites;
+
+		RacingCache(Cache<String, Object> cache) {
+			super(cache);
+		}
+
+		@Override
+		public NotifyingFuture<Object> putIfAbsentAsync(String key, Object value) {
+			conditionalWrites++;
+			if (racesToLose > 0) {
+				racesToLose--;
+				// another node stored the INVITE transaction of the dialog first
+				put(key, new DialogCacheEntry(null, null));
+			}
+			return super.putIfAbsentAsync(key, value);
+		}
+
+		@Override
+		public NotifyingFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue) {
+			conditionalWrites++;
+			if (racesToLose > 0) {
+				racesToLose--;
+				final DialogCacheEntry entry = (DialogCacheEntry) get(key);
+				put(key, entry.withApplicationData(entry.getApplicationData()));
+			}
+			return super.replaceAsync(key, oldValue, newValue);
+		}
+	}
+}
@@ -99,7 +99,10 @@ public class JBossJainSipCacheListener {
 			clusteredlogger.logDebug("sipStack " + clusteredSipStack + 
 					" Node modified : " + fqn + " " + nodeModifiedEvent.getData());
 		}
-		
+		// only dialog nodes matter, the stack will check them against the cache on next use
+		if (!nodeModifiedEvent.isPre() && fqn.size() > 1 && SipCache.DIALOG_PARENT_FQN_ELEMENT.equals(fqn.getParent().getLastElement())) {
+			clusteredSipStack.remoteDialogModification(fqn.getLastElementAsString());
+		}
 	}
 
 	@NodeRemoved
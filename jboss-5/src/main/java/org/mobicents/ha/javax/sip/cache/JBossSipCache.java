@@ -28,6 +28,9 @@ import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.naming.Context;
@@ -350,5 +353,74 @@ public class JBossSipCache implements SipCache {
 					"A problem occured while removing the following client transaction "
 							+ transactionId + " from JBoss Cache", e);
 		}
-	}	
+	}
+
+	public Map<String, SIPDialog> getDialogs(Collection<String> dialogIds) throws SipCacheException {
+		final Map<String, SIPDialog> dialogs = new HashMap<String, SIPDialog>();
+		for (String dialogId : dialogIds) {
+			final SIPDialog dialog = getDialog(dialogId);
+			if(dialog != null) {
+				dialogs.put(dialogId, dialog);
+			}
+		}
+		return dialogs;
+	}
+
+	public void putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		for (SIPDialog dialog : dialogs) {
+			putDialog(dialog);
+		}
+	}
+
+	public void removeDialogs(Collection<String> dialogIds) throws SipCacheException {
+		for (String dialogId : dialogIds) {
+			removeDialog(dialogId);
+		}
+	}
+
+	public Map<String, SIPServerTransaction> getServerTransactions(Collection<String> transactionIds) throws SipCacheException {
+		final Map<String, SIPServerTransaction> serverTransactions = new HashMap<String, SIPServerTransaction>();
+		for (String transactionId : transactionIds) {
+			final SIPServerTransaction serverTransaction = getServerTransaction(transactionId);
+			if(serverTransaction != null) {
+				serverTransactions.put(transactionId, serverTransaction);
+			}
+		}
+		return serverTransactions;
+	}
+
+	public void putServerTransactions(Collection<SIPServerTransaction> serverTransactions) throws SipCacheException {
+		for (SIPServerTransaction serverTransaction : serverTransactions) {
+			putServerTransaction(serverTransaction);
+		}
+	}
+
+	public void removeServerTransactions(Collection<String> transactionIds) throws SipCacheException {
+		for (String transactionId : transactionIds) {
+			removeServerTransaction(transactionId);
+		}
+	}
+
+	public Map<String, SIPClientTransaction> getClientTransactions(Collection<String> transactionIds) throws SipCacheException {
+		final Map<String, SIPClientTransaction> clientTransactions = new HashMap<String, SIPClientTransaction>();
+		for (String transactionId : transactionIds) {
+			final SIPClientTransaction clientTransaction = getClientTransaction(transactionId);
+			if(clientTransaction != null) {
+				clientTransactions.put(transactionId, clientTransaction);
+			}
+		}
+		return clientTransactions;
+	}
+
+	public void putClientTransactions(Collection<SIPClientTransaction> clientTransactions) throws SipCacheException {
+		for (SIPClientTransaction clientTransaction : clientTransactions) {
+			putClientTransaction(clientTransaction);
+		}
+	}
+
+	public void removeClientTransactions(Collection<String> transactionIds) throws SipCacheException {
+		for (String transactionId : transactionIds) {
+			removeClientTransaction(transactionId);
+		}
+	}
 }
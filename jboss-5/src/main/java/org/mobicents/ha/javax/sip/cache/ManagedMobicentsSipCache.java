@@ -33,6 +33,7 @@ import org.jboss.cache.Node;
 import org.jboss.ha.framework.server.CacheManagerLocator;
 import org.mobicents.cache.MobicentsCache;
 import org.mobicents.cluster.DefaultMobicentsCluster;
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
 
 /**
  * Implementation of the SipCache interface, backed by a Restcomm Cache (JBoss Cache 3.X Cache).
@@ -82,6 +83,11 @@ public class ManagedMobicentsSipCache extends MobicentsSipCache {
 				}
 				cluster = new DefaultMobicentsCluster(new MobicentsCache(cacheManager, configProperties.getProperty(CACHE_NAME,DEFAULT_CACHE_NAME), false), null, null);
 				Thread.currentThread().setContextClassLoader(previousClassLoader);
+				if(Boolean.valueOf(configProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE))) {
+					// the dialog near cache relies on the listener to know about the dialogs modified by other nodes
+					JBossJainSipCacheListener listener = new JBossJainSipCacheListener(clusteredSipStack);
+					cluster.getMobicentsCache().getJBossCache().addCacheListener(listener);
+				}
 			} else {
 				String pojoConfigurationPath = configProperties.getProperty(JBOSS_CACHE_CONFIG_PATH, DEFAULT_FILE_CONFIG_PATH);
 				if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
@@ -26,8 +26,15 @@ import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
 import org.jboss.cache.Fqn;
 import org.jboss.cache.Region;
 import org.mobicents.cache.MobicentsCache;
@@ -261,4 +268,197 @@ public abstract class MobicentsSipCache implements SipCache {
 	public void removeClientTransaction(String transactionId) throws SipCacheException {
 		clientTransactionCacheData.removeClientTransaction(transactionId);
 	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#getDialogs(java.util.Collection)
+	 */
+	public Map<String, SIPDialog> getDialogs(final Collection<String> dialogIds) throws SipCacheException {
+		final Map<String, SIPDialog> dialogs = new HashMap<String, SIPDialog>();
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (String dialogId : dialogIds) {
+					final SIPDialog dialog = dialogsCacheData.getSIPDialog(dialogId);
+					if(dialog != null) {
+						dialogs.put(dialogId, dialog);
+					}
+				}
+			}
+		});
+		return dialogs;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#putDialogs(java.util.Collection)
+	 */
+	public void putDialogs(final Collection<SIPDialog> dialogs) throws SipCacheException {
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (SIPDialog dialog : dialogs) {
+					dialogsCacheData.putSIPDialog(dialog);
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#removeDialogs(java.util.Collection)
+	 */
+	public void removeDialogs(final Collection<String> dialogIds) throws SipCacheException {
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (String dialogId : dialogIds) {
+					dialogsCacheData.removeSIPDialog(dialogId);
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#getServerTransactions(java.util.Collection)
+	 */
+	public Map<String, SIPServerTransaction> getServerTransactions(final Collection<String> transactionIds) throws SipCacheException {
+		final Map<String, SIPServerTransaction> serverTransactions = new HashMap<String, SIPServerTransaction>();
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (String transactionId : transactionIds) {
+					final SIPServerTransaction serverTransaction = serverTransactionCacheData.getServerTransaction(transactionId);
+					if(serverTransaction != null) {
+						serverTransactions.put(transactionId, serverTransaction);
+					}
+				}
+			}
+		});
+		return serverTransactions;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#putServerTransactions(java.util.Collection)
+	 */
+	public void putServerTransactions(final Collection<SIPServerTransaction> serverTransactions) throws SipCacheException {
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (SIPServerTransaction serverTransaction : serverTransactions) {
+					serverTransactionCacheData.putServerTransaction(serverTransaction);
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#removeServerTransactions(java.util.Collection)
+	 */
+	public void removeServerTransactions(final Collection<String> transactionIds) throws SipCacheException {
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (String transactionId : transactionIds) {
+					serverTransactionCacheData.removeServerTransaction(transactionId);
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#getClientTransactions(java.util.Collection)
+	 */
+	public Map<String, SIPClientTransaction> getClientTransactions(final Collection<String> transactionIds) throws SipCacheException {
+		final Map<String, SIPClientTransaction> clientTransactions = new HashMap<String, SIPClientTransaction>();
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (String transactionId : transactionIds) {
+					final SIPClientTransaction clientTransaction = clientTransactionCacheData.getClientTransaction(transactionId);
+					if(clientTransaction != null) {
+						clientTransactions.put(transactionId, clientTransaction);
+					}
+				}
+			}
+		});
+		return clientTransactions;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#putClientTransactions(java.util.Collection)
+	 */
+	public void putClientTransactions(final Collection<SIPClientTransaction> clientTransactions) throws SipCacheException {
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (SIPClientTransaction clientTransaction : clientTransactions) {
+					clientTransactionCacheData.putClientTransaction(clientTransaction);
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.SipCache#removeClientTransactions(java.util.Collection)
+	 */
+	public void removeClientTransactions(final Collection<String> transactionIds) throws SipCacheException {
+		executeInTransaction(new BatchOperation() {
+			void execute() throws SipCacheException {
+				for (String transactionId : transactionIds) {
+					clientTransactionCacheData.removeClientTransaction(transactionId);
+				}
+			}
+		});
+	}
+
+	private abstract static class BatchOperation {
+		abstract void execute() throws SipCacheException;
+	}
+
+	/**
+	 * Run the operation in a single JBoss Cache transaction so that all its writes are replicated together on commit.
+	 * The per item operations join the transaction instead of starting their own.
+	 * If a transaction is already associated with the calling thread, the operation simply joins it.
+	 * The dialogs written by the operation are acknowledged to the stack once the transaction commits, not when they are written.
+	 */
+	private void executeInTransaction(BatchOperation operation) throws SipCacheException {
+		final TransactionManager transactionManager = getMobicentsCache().getJBossCache().getConfiguration().getRuntimeConfig().getTransactionManager();
+		boolean doTx = false;
+		try {
+			if(transactionManager != null && transactionManager.getTransaction() == null) {
+				transactionManager.begin();
+				doTx = true;
+			}
+			operation.execute();
+		} catch (SipCacheException e) {
+			setRollbackOnly(transactionManager);
+			throw e;
+		} catch (Exception e) {
+			setRollbackOnly(transactionManager);
+			throw new SipCacheException("A problem occured while running a batch operation on the Cache", e);
+		} finally {
+			if (doTx) {
+				try {
+					if (transactionManager.getTransaction().getStatus() != Status.STATUS_MARKED_ROLLBACK) {
+						transactionManager.commit();
+					} else {
+						transactionManager.rollback();
+					}
+				} catch (RollbackException re) {
+					throw new SipCacheException("The batch operation transaction has been rolled back", re);
+				} catch (Exception e) {
+					throw new SipCacheException("A problem occured while ending the batch operation transaction", e);
+				}
+			}
+		}
+	}
+
+	private static void setRollbackOnly(TransactionManager transactionManager) {
+		if(transactionManager != null) {
+			try {
+				transactionManager.setRollbackOnly();
+			} catch (Exception e) {
+				// nothing more we can do, the transaction will be rolled back when ending it
+			}
+		}
+	}
 }
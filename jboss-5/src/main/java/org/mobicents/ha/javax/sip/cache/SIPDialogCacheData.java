@@ -26,12 +26,9 @@ import gov.nist.core.CommonLogger;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.message.SIPResponse;
-import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 
 import java.text.ParseException;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -39,6 +36,7 @@ import javax.sip.address.Address;
 import javax.sip.header.ContactHeader;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
+import javax.transaction.Synchronization;
 import javax.transaction.TransactionManager;
 
 import org.jboss.cache.Cache;
@@ -51,6 +49,7 @@ import org.mobicents.cache.MobicentsCache;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
 import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.message.MessageProjection;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -59,6 +58,9 @@ import org.mobicents.ha.javax.sip.HASipDialogFactory;
  */
 public class SIPDialogCacheData extends CacheData {
 	private static final String APPDATA = "APPDATA";
+	private static final String METADATA = "METADATA";
+	// version of the METADATA record, allows to check if a local dialog is up to date without decoding the record
+	private static final String VERSION = "VERSION";
 	private ClusteredSipStack clusteredSipStack;	
 	private static StackLogger logger = CommonLogger.getLogger(SIPDialogCacheData.class);
 	public SIPDialogCacheData(Fqn nodeFqn, MobicentsCache mobicentsCache, ClusteredSipStack clusteredSipStack) {
@@ -96,7 +98,7 @@ public class SIPDialogCacheData extends CacheData {
             final Node<String,Object> childNode = getNode().getChild(dialogId);
 			if(childNode != null) {
 				try {
-					final Map<String, Object> dialogMetaData = childNode.getData();		
+					final DialogReplicationState dialogMetaData = DialogReplicationStateCodec.decode((byte[]) childNode.get(METADATA));		
 					final Object dialogAppData = childNode.get(APPDATA);
 						
 					haSipDialog = createDialog(dialogId, dialogMetaData, dialogAppData);
@@ -180,11 +182,17 @@ public class SIPDialogCacheData extends CacheData {
 			final Node<String,Object> childNode = getNode().getChild(dialogId);
 			if(childNode != null) {
 				try {
-					final Map<String, Object> dialogMetaData = childNode.getData();
-					
 					final HASipDialog haSipDialog = (HASipDialog) sipDialog;
-					final Object dialogAppData = childNode.get(APPDATA);
-					updateDialog(haSipDialog, dialogMetaData, dialogAppData);				
+					final Long cachedVersion = (Long) childNode.get(VERSION);
+					if(cachedVersion != null && cachedVersion.longValue() <= haSipDialog.getVersion()) {
+						if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+							logger.logDebug("HA SIP Dialog " + dialogId + " is not older " + haSipDialog.getVersion() + " than the one in the cache " + cachedVersion + ", not updating it");
+						}
+					} else {
+						final DialogReplicationState dialogMetaData = DialogReplicationStateCodec.decode((byte[]) childNode.get(METADATA));
+						final Object dialogAppData = childNode.get(APPDATA);
+						updateDialog(haSipDialog, dialogMetaData, dialogAppData);
+					}
 				} catch (CacheException e) {
 					throw new SipCacheException("A problem occured while retrieving the following dialog " + dialogId + " from the Cache", e);
 				}
@@ -228,15 +236,15 @@ public class SIPDialogCacheData extends CacheData {
 		}
 	}
 	
-	public HASipDialog createDialog(String dialogId, Map<String, Object> dialogMetaData, Object dialogAppData) throws SipCacheException {
+	public HASipDialog createDialog(String dialogId, DialogReplicationState dialogMetaData, Object dialogAppData) throws SipCacheException {
 		HASipDialog haSipDialog = null; 
 		if(dialogMetaData != null) {
 			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug("sipStack " + this + " dialog " + dialogId + " is present in the distributed cache, recreating it locally");
 			}
-			final String lastResponseStringified = (String) dialogMetaData.get(AbstractHASipDialog.LAST_RESPONSE);
+			final byte[] lastResponseProjection = dialogMetaData.getLastResponse();
 			try {
-				final SIPResponse lastResponse = (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(lastResponseStringified);
+				final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
 				haSipDialog = HASipDialogFactory.createHASipDialog(clusteredSipStack.getReplicationStrategy(), (SipProviderImpl)clusteredSipStack.getSipProviders().next(), lastResponse);
 				haSipDialog.setDialogId(dialogId);
 				updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, true);
@@ -258,18 +266,18 @@ public class SIPDialogCacheData extends CacheData {
 		return haSipDialog;
 	}
 	
-	public void updateDialog(HASipDialog haSipDialog, Map<String, Object> dialogMetaData,
+	public void updateDialog(HASipDialog haSipDialog, DialogReplicationState dialogMetaData,
 			Object dialogAppData) throws SipCacheException {
 		if(dialogMetaData != null) {			
 			final long currentVersion = haSipDialog.getVersion();
-			final Long cacheVersion = ((Long)dialogMetaData.get(AbstractHASipDialog.VERSION)); 
-			if(cacheVersion != null && currentVersion < cacheVersion.longValue()) {
+			final long cacheVersion = dialogMetaData.getVersion(); 
+			if(currentVersion < cacheVersion) {
 				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 					logger.logDebug("HA SIP Dialog " + haSipDialog + " with dialogId " + haSipDialog.getDialogIdToReplicate() + " is older " + currentVersion + " than the one in the cache " + cacheVersion + " updating it");
 				}
 				try {
-					final String lastResponseStringified = (String) dialogMetaData.get(AbstractHASipDialog.LAST_RESPONSE);				
-					final SIPResponse lastResponse = (SIPResponse) SipFactory.getInstance().createMessageFactory().createResponse(lastResponseStringified);
+					final byte[] lastResponseProjection = dialogMetaData.getLastResponse();				
+					final SIPResponse lastResponse = MessageProjection.createResponse(lastResponseProjection);
 					haSipDialog.setLastResponse(lastResponse);
 					updateDialogMetaData(dialogMetaData, dialogAppData, haSipDialog, false);
 				}  catch (PeerUnavailableException e) {
@@ -293,11 +301,11 @@ public class SIPDialogCacheData extends CacheData {
 	 * @throws ParseException
 	 * @throws PeerUnavailableException
 	 */
-	private void updateDialogMetaData(Map<String, Object> dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) throws ParseException,
+	private void updateDialogMetaData(DialogReplicationState dialogMetaData, Object dialogAppData, HASipDialog haSipDialog, boolean recreation) throws ParseException,
 			PeerUnavailableException {
 		haSipDialog.setMetaDataToReplicate(dialogMetaData, recreation);
 		haSipDialog.setApplicationDataToReplicate(dialogAppData);
-		final String contactStringified = (String) dialogMetaData.get(AbstractHASipDialog.CONTACT_HEADER);
+		final String contactStringified = dialogMetaData.getContactHeader();
 		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug("contactStringified " + contactStringified);
 		}
@@ -324,6 +332,8 @@ public class SIPDialogCacheData extends CacheData {
 		final Cache jbossCache = getMobicentsCache().getJBossCache();
 		TransactionManager transactionManager = jbossCache.getConfiguration().getRuntimeConfig().getTransactionManager();		
 		boolean doTx = false;
+		// only set once the metadata has been stored, and reset if the transaction doesn't commit
+		DialogReplicationState replicatedMetaData = null;
 		try {
 			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug("transaction manager :" + transactionManager);
@@ -336,14 +346,29 @@ public class SIPDialogCacheData extends CacheData {
 				doTx = true;				
 	        }			
 			final Node childNode = getNode().addChild(Fqn.fromElements(dialogId));
-			for (Entry<String, Object> metaData : haSipDialog.getMetaDataToReplicate().entrySet()) {
-				childNode.put(metaData.getKey(), metaData.getValue());
+			DialogReplicationState dialogMetaData = haSipDialog.getMetaDataToReplicate();
+			final DialogReplicationState cachedMetaData = DialogReplicationStateCodec.decode((byte[]) childNode.get(METADATA));
+			if(!dialogMetaData.canBeAppliedOn(cachedMetaData)) {
+				// the cached record is missing or has been written by someone else, the delta would lose state
+				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug("dialog " + dialogId + " delta based on version " + dialogMetaData.getBaseVersion() + " doesn't match cached record " + cachedMetaData + ", replicating the full state");
+				}
+				dialogMetaData = haSipDialog.getFullMetaDataToReplicate();
 			}
+			if(cachedMetaData != null) {
+				cachedMetaData.merge(dialogMetaData);
+				childNode.put(METADATA, DialogReplicationStateCodec.encode(cachedMetaData));
+			} else {
+				childNode.put(METADATA, DialogReplicationStateCodec.encode(dialogMetaData));
+			}
+			childNode.put(VERSION, Long.valueOf(dialogMetaData.getVersion()));
 			final Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
 			if(dialogAppData != null) {
 				childNode.put(APPDATA, dialogAppData);
 			}
+			replicatedMetaData = dialogMetaData;
 		} catch (Exception ex) {
+			replicatedMetaData = null;
 			try {
 				if(transactionManager != null) {
 					// Let's set it no matter what.
@@ -365,9 +390,11 @@ public class SIPDialogCacheData extends CacheData {
 						if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 							logger.logDebug("endBatch(): rolling back batch");
 						}
+						replicatedMetaData = null;
 						transactionManager.rollback();
 					}
 				} catch (RollbackException re) {
+					replicatedMetaData = null;
 					// Do nothing here since cache may rollback automatically.
 					logger.logWarning("endBatch(): rolling back transaction with exception: "
 									+ re);
@@ -380,6 +407,35 @@ public class SIPDialogCacheData extends CacheData {
 				}
 			}
 		}
+		if(replicatedMetaData != null) {
+			if(doTx || transactionManager == null) {
+				haSipDialog.metaDataReplicated(replicatedMetaData);
+			} else {
+				// the write joined a transaction of the caller, a batch for instance, nothing is stored until it commits
+				acknowledgeOnCommit(transactionManager, haSipDialog, replicatedMetaData);
+			}
+		}
+	}
+	
+	private void acknowledgeOnCommit(TransactionManager transactionManager, final HASipDialog haSipDialog, final DialogReplicationState replicatedMetaData) {
+		try {
+			transactionManager.getTransaction().registerSynchronization(new Synchronization() {
+				public void beforeCompletion() {}
+				
+				public void afterCompletion(int status) {
+					if(status == Status.STATUS_COMMITTED) {
+						haSipDialog.metaDataReplicated(replicatedMetaData);
+					} else if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("dialog " + haSipDialog.getDialogIdToReplicate() + " version " + replicatedMetaData.getVersion() + " not acknowledged, the transaction ended with status " + status);
+					}
+				}
+			});
+		} catch (Exception e) {
+			// the transaction is already rolling back, the write won't be acknowledged and will be retried on the next replication
+			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("dialog " + haSipDialog.getDialogIdToReplicate() + " version " + replicatedMetaData.getVersion() + " not acknowledged, couldn't register on the transaction : " + e);
+			}
+		}
 	}
 
 	public boolean removeSIPDialog(String dialogId) {